@@ -0,0 +1,132 @@
+package org.wlou.jdownloader.cli;
+
+import org.apache.log4j.Logger;
+import org.wlou.jdownloader.lib.DownloadManager;
+import org.wlou.jdownloader.lib.RetryPolicy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * The headless entry point: it runs {@link DownloadManager} without the GUI, so no JavaFX class is loaded.
+ * Two modes are supported (see {@link Options#USAGE}):
+ *  - batch: the urls are read from the file or stdin, the results are written to stdout,
+ *    the process exits when all downloads are finished (the exit code is 1 if any of them failed);
+ *  - daemon: every connection to the port on the loopback interface is the session sending the urls
+ *    and receiving the results, the process runs until it is killed.
+ */
+public class Main {
+
+    private static Logger LOG = Logger.getLogger(Main.class.getName());
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 1;
+    public static final int EXIT_USAGE = 2;
+
+    public static void main(String[] args) {
+        Options options;
+        try {
+            options = new Options(args);
+        }
+        catch (IllegalArgumentException exc) {
+            System.err.println(exc.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(EXIT_USAGE);
+            return;
+        }
+        if (options.Help) {
+            System.out.println(Options.USAGE);
+            return;
+        }
+        int code;
+        try (DownloadManager manager = createManager(options); Reporter reporter = new Reporter(manager)) {
+            if (options.isDaemon())
+                code = serve(options, reporter);
+            else
+                code = runBatch(options, reporter);
+        }
+        catch (Exception exc) {
+            LOG.error(exc);
+            System.err.println(exc.getMessage());
+            code = EXIT_FAILED;
+        }
+        System.exit(code);
+    }
+
+    /**
+     * @param options The options of the run.
+     * @return The new manager configured by the options.
+     * @throws IOException when the manager can't be created or the cache can't be opened
+     */
+    public static DownloadManager createManager(Options options) throws IOException {
+        DownloadManager manager = new DownloadManager();
+        manager.setMaxActiveDownloads(options.Concurrency);
+        manager.setMaxSegments(options.Segments);
+        manager.setBandwidthLimit(options.Bandwidth);
+        manager.setCompression(options.Compression);
+        manager.setRetryPolicy(new RetryPolicy(options.Retries, RetryPolicy.DEFAULT_BASE_DELAY, RetryPolicy.DEFAULT_MAX_DELAY));
+        if (options.Cache != null) {
+            try {
+                manager.openCache(options.Cache, options.CacheSize);
+            }
+            catch (IOException exc) {
+                closeQuietly(manager);
+                throw exc;
+            }
+        }
+        return manager;
+    }
+
+    private static void closeQuietly(DownloadManager manager) {
+        try {
+            manager.close();
+        }
+        catch (Exception exc) {
+            LOG.error(String.format("[cli] Closing failed: %s", exc));
+        }
+    }
+
+    private static int runBatch(Options options, Reporter reporter) throws IOException, InterruptedException {
+        BufferedReader input = Options.STDIN.equals(options.Input)
+            ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+            : Files.newBufferedReader(Paths.get(options.Input), StandardCharsets.UTF_8);
+        try (BufferedReader urls = input) {
+            PrintWriter output = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            int failures = new Session(reporter, options.Directory, urls, output).run();
+            return failures == 0 ? EXIT_OK : EXIT_FAILED;
+        }
+    }
+
+    private static int serve(Options options, Reporter reporter) throws IOException {
+        try (ServerSocket server = new ServerSocket(options.DaemonPort, 0, InetAddress.getLoopbackAddress())) {
+            if (LOG.isInfoEnabled())
+                LOG.info(String.format("[cli] Serving on %s", server.getLocalSocketAddress()));
+            for (int id = 1; ; ++id) {
+                Socket client = server.accept();
+                Thread thread = new Thread(() -> runSession(client, options, reporter), String.format("Client-%d", id));
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    private static void runSession(Socket client, Options options, Reporter reporter) {
+        try (Socket socket = client) {
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter output = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            new Session(reporter, options.Directory, input, output).run();
+        }
+        catch (IOException | InterruptedException exc) {
+            LOG.error(String.format("[cli] Session %s failed: %s", client.getRemoteSocketAddress(), exc));
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.wlou.jdownloader.cli;
+
+import org.wlou.jdownloader.lib.DownloadCache;
+import org.wlou.jdownloader.lib.RetryPolicy;
+import org.wlou.jdownloader.lib.TokenBucket;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The command line options of the headless runner (see {@link Main}).
+ * Parsing doesn't touch the network or the file system, wrong options are reported by {@link IllegalArgumentException}.
+ */
+public class Options {
+
+    /**
+     * The name of the input meaning the standard input
+     */
+    public static final String STDIN = "-";
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int DEFAULT_SEGMENTS = 1;
+
+    public static final String USAGE = String.join(System.lineSeparator(),
+        "Usage: java -cp <classpath> org.wlou.jdownloader.cli.Main [options]",
+        "  -i, --input FILE        the list of urls, one per line (\"-\" for stdin, default)",
+        "  -d, --dir DIR           the directory to save the files to (default \".\")",
+        "  -c, --concurrency N     the number of files transferred simultaneously (default 4)",
+        "  -s, --segments N        the number of connections per file (default 1)",
+        "  -b, --bandwidth RATE    the total bandwidth limit in bytes per second, k, m and g suffixes are accepted",
+        "  -z, --compression       ask the servers for gzip/deflate compressed content",
+        "  -r, --retries N         the number of retries of the transient failures, 0 turns them off (default 3)",
+        "      --cache DIR         keep the downloaded files in the cache and revalidate them by conditional requests",
+        "      --cache-size SIZE   the limit of the cache in bytes, k, m and g suffixes are accepted (default 1g)",
+        "      --daemon PORT       accept the urls over the local socket instead of the input",
+        "  -h, --help              print this message",
+        "A line of the list is a url optionally followed by a tab and the directory overriding --dir (may be empty)",
+        "and by a tab and the expected digest of the content: sha-256:HEX, md5:HEX or crc32c:HEX.",
+        "Every file is reported by a tab separated line when it is finished:",
+        "  DOWNLOADED|ERROR|CORRUPTED <url> <file> <bytes> <milliseconds> <information>");
+
+    /**
+     * @param args The command line arguments.
+     * @throws IllegalArgumentException when an option is unknown or its value is missing or malformed
+     */
+    public Options(String[] args) {
+        String input = STDIN;
+        Path directory = Paths.get(".");
+        int concurrency = DEFAULT_CONCURRENCY;
+        int segments = DEFAULT_SEGMENTS;
+        long bandwidth = TokenBucket.UNLIMITED;
+        boolean compression = false;
+        int retries = RetryPolicy.DEFAULT.MaxRetries;
+        Path cache = null;
+        long cacheSize = DownloadCache.DEFAULT_MAX_SIZE;
+        int daemonPort = -1;
+        boolean help = false;
+        for (int i = 0; i < args.length; ++i) {
+            String option = args[i];
+            switch (option) {
+                case "-i":
+                case "--input":
+                    input = value(args, ++i, option);
+                    break;
+                case "-d":
+                case "--dir":
+                    directory = Paths.get(value(args, ++i, option));
+                    break;
+                case "-c":
+                case "--concurrency":
+                    concurrency = positive(value(args, ++i, option), option);
+                    break;
+                case "-s":
+                case "--segments":
+                    segments = positive(value(args, ++i, option), option);
+                    break;
+                case "-b":
+                case "--bandwidth":
+                    bandwidth = parseSize(value(args, ++i, option));
+                    break;
+                case "-z":
+                case "--compression":
+                    compression = true;
+                    break;
+                case "-r":
+                case "--retries":
+                    retries = nonNegative(value(args, ++i, option), option);
+                    break;
+                case "--cache":
+                    cache = Paths.get(value(args, ++i, option));
+                    break;
+                case "--cache-size":
+                    cacheSize = parseSize(value(args, ++i, option));
+                    break;
+                case "--daemon":
+                    daemonPort = positive(value(args, ++i, option), option);
+                    if (daemonPort > 0xFFFF)
+                        throw new IllegalArgumentException(String.format("Wrong port: %d", daemonPort));
+                    break;
+                case "-h":
+                case "--help":
+                    help = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown option: %s", option));
+            }
+        }
+        Input = input;
+        Directory = directory;
+        Concurrency = concurrency;
+        Segments = segments;
+        Bandwidth = bandwidth;
+        Compression = compression;
+        Retries = retries;
+        Cache = cache;
+        CacheSize = cacheSize;
+        DaemonPort = daemonPort;
+        Help = help;
+    }
+
+    /**
+     * @return True if the urls are accepted over the local socket
+     */
+    public boolean isDaemon() {
+        return DaemonPort > 0;
+    }
+
+    /**
+     * Parses the number of bytes (or bytes per second) with optional 'k' (KiB), 'm' (MiB) or 'g' (GiB) suffix.
+     * @param size The textual size.
+     * @return The number of bytes.
+     * @throws IllegalArgumentException when the size is malformed or not positive
+     */
+    public static long parseSize(String size) {
+        String value = size.trim().toLowerCase();
+        long multiplier = 1;
+        if (value.endsWith("k"))
+            multiplier = 1024;
+        else if (value.endsWith("m"))
+            multiplier = 1024 * 1024;
+        else if (value.endsWith("g"))
+            multiplier = 1024 * 1024 * 1024;
+        if (multiplier != 1)
+            value = value.substring(0, value.length() - 1);
+        try {
+            long result = Long.parseLong(value);
+            if (result <= 0 || result > Long.MAX_VALUE / multiplier)
+                throw new IllegalArgumentException(String.format("Wrong size: %s", size));
+            return result * multiplier;
+        }
+        catch (NumberFormatException exc) {
+            throw new IllegalArgumentException(String.format("Wrong size: %s", size));
+        }
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length)
+            throw new IllegalArgumentException(String.format("Missing value of %s", option));
+        return args[index];
+    }
+
+    private static int nonNegative(String value, String option) {
+        return "0".equals(value.trim()) ? 0 : positive(value, option);
+    }
+
+    private static int positive(String value, String option) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result > 0)
+                return result;
+        }
+        catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException(String.format("Wrong value of %s: %s", option, value));
+    }
+
+    /**
+     * The file with the urls or {@link #STDIN}
+     */
+    public final String Input;
+    /**
+     * The default directory of the downloaded files
+     */
+    public final Path Directory;
+    /**
+     * The number of files transferred simultaneously
+     */
+    public final int Concurrency;
+    /**
+     * The number of connections per file
+     */
+    public final int Segments;
+    /**
+     * The total bandwidth limit in bytes per second or {@link TokenBucket#UNLIMITED}
+     */
+    public final long Bandwidth;
+    /**
+     * True to ask the servers for the compressed content
+     */
+    public final boolean Compression;
+    /**
+     * The number of retries of the transient failures
+     */
+    public final int Retries;
+    /**
+     * The directory of the cache or null if the files aren't cached
+     */
+    public final Path Cache;
+    /**
+     * The limit of the cache in bytes
+     */
+    public final long CacheSize;
+    /**
+     * The local port of the daemon mode or -1 for the batch mode
+     */
+    public final int DaemonPort;
+    /**
+     * True if only the usage is asked
+     */
+    public final boolean Help;
+}
@@ -0,0 +1,111 @@
+package org.wlou.jdownloader.cli;
+
+import org.apache.log4j.Logger;
+import org.wlou.jdownloader.lib.ContentDigest;
+import org.wlou.jdownloader.lib.Download;
+import org.wlou.jdownloader.lib.DownloadManager;
+
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Routes the finished downloads of the manager to the sessions which have submitted them.
+ * Acts as following:
+ *  1. the manager's events of the downloads turned to DOWNLOADED, ERROR or CORRUPTED are queued by the network threads;
+ *  2. the reporting thread passes the download to its session and removes it from the manager,
+ *     so the manager doesn't keep the finished downloads of the long running daemon.
+ */
+public class Reporter implements Observer, AutoCloseable {
+
+    private static Logger LOG = Logger.getLogger(Reporter.class.getName());
+
+    /**
+     * @param manager The manager running the downloads, the reporter observes it until {@link #close()}.
+     */
+    public Reporter(DownloadManager manager) {
+        assert manager != null;
+        this.manager = manager;
+        manager.addObserver(this);
+        thread = new Thread(this::report, "Reporter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds the download to the manager on behalf of the session.
+     * @param url The url of the resource.
+     * @param base The directory to save the resource to.
+     * @param session The session receiving the download when it is finished.
+     * @return The added download.
+     */
+    public Download submit(URL url, Path base, Session session) {
+        return submit(url, base, null, session);
+    }
+
+    /**
+     * Adds the download verified by the digest to the manager on behalf of the session.
+     * @param url The url of the resource.
+     * @param base The directory to save the resource to.
+     * @param digest The expected digest of the content or null.
+     * @param session The session receiving the download when it is finished.
+     * @return The added download.
+     */
+    public Download submit(URL url, Path base, ContentDigest digest, Session session) {
+        // the download may be finished before it is registered, the reporting thread waits for the registration
+        synchronized (owners) {
+            Download download = manager.addDownload(url, base, Download.DEFAULT_PRIORITY, digest);
+            owners.put(download, session);
+            return download;
+        }
+    }
+
+    @Override
+    public void update(Observable o, Object arg) {
+        if (!(arg instanceof DownloadManager.Event))
+            return;
+        DownloadManager.Event event = (DownloadManager.Event) arg;
+        if (event.Change == DownloadManager.Event.Kind.STATUS_CHANGED &&
+            (event.Status == Download.Status.DOWNLOADED || event.Status == Download.Status.ERROR ||
+             event.Status == Download.Status.CORRUPTED))
+            finished.add(event.Target);
+    }
+
+    @Override
+    public void close() {
+        manager.deleteObserver(this);
+        thread.interrupt();
+    }
+
+    private void report() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Download download = finished.take();
+                Session session;
+                synchronized (owners) {
+                    session = owners.remove(download);
+                }
+                if (session == null)
+                    continue;
+                try {
+                    session.report(download);
+                }
+                catch (RuntimeException exc) {
+                    LOG.error(String.format("[cli] Reporting of %s failed: %s", download.getWhat(), exc));
+                }
+                manager.removeDownload(download);
+            }
+        }
+        catch (InterruptedException ignored) {
+        }
+    }
+
+    private final DownloadManager manager;
+    private final Thread thread;
+    private final Map<Download, Session> owners = new HashMap<>();
+    private final LinkedBlockingQueue<Download> finished = new LinkedBlockingQueue<>();
+}
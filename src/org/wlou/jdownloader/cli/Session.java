@@ -0,0 +1,138 @@
+package org.wlou.jdownloader.cli;
+
+import org.wlou.jdownloader.lib.ContentDigest;
+import org.wlou.jdownloader.lib.Download;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stream of the urls (the batch input or the daemon's connection) and the stream of the results.
+ * The urls are submitted as they are read, so the downloads start before the input is over.
+ * Every finished download is reported by the line (see {@link #format}), the lines are flushed immediately.
+ */
+public class Session {
+
+    public static final String DOWNLOADED = "DOWNLOADED";
+    public static final String ERROR = "ERROR";
+    public static final String CORRUPTED = "CORRUPTED";
+    public static final String SEPARATOR = "\t";
+
+    /**
+     * @param reporter The reporter submitting the downloads.
+     * @param base The default directory of the downloaded files.
+     * @param input The stream of the urls.
+     * @param output The stream of the results.
+     */
+    public Session(Reporter reporter, Path base, BufferedReader input, PrintWriter output) {
+        assert reporter != null && base != null && input != null && output != null;
+        this.reporter = reporter;
+        this.base = base;
+        this.input = input;
+        this.output = output;
+    }
+
+    /**
+     * Submits the urls until the input is over and waits for the downloads to finish.
+     * A line is the url optionally followed by the directory and the expected digest ("algorithm:hex"),
+     * empty lines and lines starting with '#' are skipped.
+     * @return The number of failed downloads (including malformed lines).
+     * @throws IOException when the input can't be read
+     * @throws InterruptedException when the waiting is interrupted
+     */
+    public int run() throws IOException, InterruptedException {
+        String line;
+        while ((line = input.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] fields = line.split(SEPARATOR, 3);
+            URL url;
+            ContentDigest digest;
+            try {
+                url = new URL(fields[0].trim());
+                digest = fields.length > 2 ? ContentDigest.parse(fields[2].trim()) : null;
+            }
+            catch (MalformedURLException | IllegalArgumentException exc) {
+                write(format(ERROR, fields[0].trim(), "", 0, 0, exc.getMessage()));
+                synchronized (this) {
+                    failures += 1;
+                }
+                continue;
+            }
+            Path directory = fields.length > 1 && !fields[1].trim().isEmpty() ? Paths.get(fields[1].trim()) : base;
+            long start = System.nanoTime();
+            // the report waits for the start to be recorded
+            synchronized (this) {
+                pending += 1;
+                started.put(reporter.submit(url, directory, digest, this), start);
+            }
+        }
+        synchronized (this) {
+            while (pending > 0)
+                wait();
+            return failures;
+        }
+    }
+
+    /**
+     * Reports the finished download, it is called by {@link Reporter}.
+     * @param download The download which is DOWNLOADED, ERROR or CORRUPTED.
+     */
+    void report(Download download) {
+        long elapsed;
+        synchronized (this) {
+            elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started.remove(download));
+        }
+        Download.Status status = download.getCurrentStatus();
+        boolean succeeded = status == Download.Status.DOWNLOADED;
+        String information = download.getInformation();
+        if (status == Download.Status.CORRUPTED && download.getLastError() != null)
+            // the mismatched ranges
+            information = download.getLastError().getMessage();
+        write(format(succeeded ? DOWNLOADED : status == Download.Status.CORRUPTED ? CORRUPTED : ERROR,
+            download.getWhat().toString(), download.getWhere().toString(), download.getReceived(), elapsed, information));
+        synchronized (this) {
+            pending -= 1;
+            if (!succeeded)
+                failures += 1;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Forms the result line: status, url, file, bytes, milliseconds and information separated by tabs.
+     * The tabs and line breaks inside the fields are replaced by spaces.
+     */
+    static String format(String status, String url, String file, long bytes, long millis, String information) {
+        return String.join(SEPARATOR, status, clean(url), clean(file), Long.toString(bytes), Long.toString(millis),
+            clean(information));
+    }
+
+    private static String clean(String field) {
+        return field == null ? "" : field.replaceAll("[\\t\\r\\n]", " ");
+    }
+
+    private void write(String line) {
+        synchronized (output) {
+            output.println(line);
+            output.flush();
+        }
+    }
+
+    private final Reporter reporter;
+    private final Path base;
+    private final BufferedReader input;
+    private final PrintWriter output;
+    private final Map<Download, Long> started = new HashMap<>();
+    private int pending;
+    private int failures;
+}
@@ -0,0 +1,109 @@
+package org.wlou.jdownloader.cli.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.cli.Main;
+import org.wlou.jdownloader.cli.Options;
+import org.wlou.jdownloader.cli.Reporter;
+import org.wlou.jdownloader.cli.Session;
+import org.wlou.jdownloader.lib.DownloadManager;
+import org.wlou.jdownloader.lib.RetryPolicy;
+import org.wlou.jdownloader.lib.test.HttpServerStub;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SessionTest extends TestCase {
+
+    public static final String _1K_ZEROS_URL = "http://localhost:8081/JBDownloaderTest?q=1k_bytes_0";
+    public static final String _256K_SEQ_URL = "http://localhost:8081/JBDownloaderTest?q=256k_bytes_seq";
+    public static final String _1K_CORRUPTED_URL = "http://localhost:8081/JBDownloaderTest?q=1k_bytes_0&corrupted";
+    public static final String _404_URL = "http://localhost:8081/JBDownloaderTest?q=404";
+    public static final String MALFORMED_URL = "localhost/JBDownloaderTest";
+
+    static  {
+        new HttpServerStub(8081).start();
+    }
+
+    public void testOptions() throws Exception {
+        Options options = new Options(new String[] {"-i", "urls.txt", "--dir", "out", "-c", "8", "-b", "2m", "-z", "-r", "0", "--daemon", "9000"});
+        assertEquals("urls.txt", options.Input);
+        assertEquals(Paths.get("out"), options.Directory);
+        assertEquals(8, options.Concurrency);
+        assertEquals(Options.DEFAULT_SEGMENTS, options.Segments);
+        assertEquals(2 * 1024 * 1024, options.Bandwidth);
+        assertTrue(options.Compression);
+        assertEquals(0, options.Retries);
+        assertTrue(options.isDaemon());
+
+        options = new Options(new String[0]);
+        assertEquals(Options.STDIN, options.Input);
+        assertFalse(options.isDaemon());
+        assertNull(options.Cache);
+        assertEquals(RetryPolicy.DEFAULT.MaxRetries, options.Retries);
+
+        options = new Options(new String[] {"--cache", "cache", "--cache-size", "3g"});
+        assertEquals(Paths.get("cache"), options.Cache);
+        assertEquals(3L * 1024 * 1024 * 1024, options.CacheSize);
+
+        for (String[] wrong : new String[][] {{"-c"}, {"-c", "0"}, {"-b", "1x"}, {"--daemon", "70000"}, {"-r", "-1"}, {"--unknown"}}) {
+            try {
+                new Options(wrong);
+                fail(Arrays.toString(wrong));
+            }
+            catch (IllegalArgumentException ignored) {
+            }
+        }
+    }
+
+    public void testRun() throws Exception {
+        Path base = Files.createTempDirectory("session-test");
+        String input = String.join("\n",
+            "# the comment and the empty line are skipped", "",
+            _1K_ZEROS_URL, _256K_SEQ_URL, _404_URL, MALFORMED_URL,
+            _1K_CORRUPTED_URL + Session.SEPARATOR + Session.SEPARATOR + "crc32c:00000000");
+        StringWriter output = new StringWriter();
+
+        int failures;
+        try (DownloadManager manager = Main.createManager(new Options(new String[] {"-c", "2"}));
+             Reporter reporter = new Reporter(manager)) {
+            Session session = new Session(reporter, base, new BufferedReader(new StringReader(input)), new PrintWriter(output));
+            failures = session.run();
+            // the finished downloads are removed from the manager
+            for (int i = 0; manager.getDownloadsSnap().length > 0 && i < 10; ++i)
+                Thread.sleep(100);
+            assertEquals(0, manager.getDownloadsSnap().length);
+        }
+
+        assertEquals(3, failures);
+        Map<String, String[]> results = new HashMap<>();
+        for (String line : output.toString().split("\\R")) {
+            String[] fields = line.split(Session.SEPARATOR, -1);
+            assertEquals(line, 6, fields.length);
+            results.put(fields[1], fields);
+        }
+        assertEquals(5, results.size());
+
+        String[] zeros = results.get(_1K_ZEROS_URL);
+        assertEquals(Session.DOWNLOADED, zeros[0]);
+        assertEquals("1024", zeros[3]);
+        assertEquals(1024, Files.size(Paths.get(zeros[2])));
+        String[] seq = results.get(_256K_SEQ_URL);
+        assertEquals(Session.DOWNLOADED, seq[0]);
+        assertEquals(base, Paths.get(seq[2]).getParent());
+        assertEquals(256 * 1024, Files.size(Paths.get(seq[2])));
+        assertEquals(Session.ERROR, results.get(_404_URL)[0]);
+        assertEquals(Session.ERROR, results.get(MALFORMED_URL)[0]);
+        String[] corrupted = results.get(_1K_CORRUPTED_URL);
+        assertEquals(Session.CORRUPTED, corrupted[0]);
+        assertEquals(base, Paths.get(corrupted[2]).getParent());
+        assertTrue(corrupted[5], corrupted[5].contains("0-1023"));
+    }
+}
@@ -1,18 +1,19 @@
 package org.wlou.jdownloader.gui.controllers;
 
 
-import javafx.application.Platform;
 import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
+import javafx.scene.control.ProgressIndicator;
 import org.wlou.jdownloader.lib.Download;
 
-import java.util.Observable;
-import java.util.Observer;
-import java.util.function.Supplier;
-
-public class DownloadController implements Observer {
+/**
+ * The row of the downloads table.
+ * The row doesn't observe the download itself, {@link MainController} refreshes it
+ * on the manager's events and on the progress ticks, so no listener is left behind when the row is removed.
+ */
+public class DownloadController {
     private final StringProperty srcUrl;
     private final StringProperty targetFile;
     private final StringProperty information;
@@ -20,13 +21,12 @@ public class DownloadController implements Observer {
 
     public DownloadController(Download init) {
         download = init;
-        download.addObserver(this);
         srcUrl = new SimpleStringProperty(download.getWhat().toString());
         information = new SimpleStringProperty(download.getInformation());
         targetFile = new SimpleStringProperty("");
         if (download.getCurrentStatus() == Download.Status.DOWNLOADED)
             targetFile.setValue(download.getWhere().toString());
-        this.progress = new SimpleDoubleProperty(download.getProgress());
+        this.progress = new SimpleDoubleProperty(currentProgress());
 
     }
 
@@ -39,22 +39,31 @@ public class DownloadController implements Observer {
         return download;
     }
 
-    @Override
-    public void update(Observable o, Object arg) {
-        final Supplier<Void> updateLogic = () -> {
-            information.setValue(download.getInformation());
-            progress.setValue(download.getProgress());
-            if (download.getCurrentStatus() == Download.Status.DOWNLOADED)
-                targetFile.setValue(download.getWhere().toString());
-            return null;
-        };
-        if (download.equals(o)) {
-            if (Platform.isFxApplicationThread())
-                updateLogic.get();
-            else
-                Platform.runLater(updateLogic::get);
-        }
+    /**
+     * Reads the current progress of the download, it must be called by FX application thread.
+     */
+    public void refreshProgress() {
+        progress.setValue(currentProgress());
+    }
+
+    /**
+     * Reads the current state of the download, it must be called by FX application thread.
+     */
+    public void refresh() {
+        information.setValue(download.getInformation());
+        progress.setValue(currentProgress());
+        if (download.getCurrentStatus() == Download.Status.DOWNLOADED)
+            targetFile.setValue(download.getWhere().toString());
+    }
+
+    /**
+     * The progress of the download of unknown length (chunked or streamed content) is shown as indeterminate.
+     */
+    private double currentProgress() {
+        if (download.getLength() < 0 && download.getCurrentStatus() == Download.Status.DOWNLOADING)
+            return ProgressIndicator.INDETERMINATE_PROGRESS;
+        return download.getProgress();
     }
 
     private final Download download;
-}
\ No newline at end of file
+}
@@ -29,12 +29,22 @@ import java.io.File;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.function.Supplier;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainController implements Observer {
 
+    private static final double ROW_HEIGHT = 24;
+
     @FXML
     private Menu parametersMenu;
     @FXML
@@ -63,6 +73,17 @@ public class MainController implements Observer {
     public void setDownloadManager(DownloadManager manager) {
         this.manager = manager;
         this.manager.addObserver(this);
+        this.manager.getProgressPublisher().subscribe(this::updateProgress);
+        // the downloads added before subscribing (the later events for them are skipped)
+        List<DownloadController> existing = new ArrayList<>();
+        for (Download d : manager.getDownloadsSnap()) {
+            if (!controllers.containsKey(d)) {
+                DownloadController controller = new DownloadController(d);
+                controllers.put(d, controller);
+                existing.add(controller);
+            }
+        }
+        downloads.addAll(existing);
     }
 
     public void addNewDownload(ActionEvent actionEvent) {
@@ -189,6 +210,8 @@ public class MainController implements Observer {
             });
             return row;
         });
+        // the rows of the same height let the table virtualize them without measuring every row
+        downloadsTableView.setFixedCellSize(ROW_HEIGHT);
         downloadsTableView.setItems(downloads);
         urlFieldValidator.reset();
 
@@ -203,21 +226,71 @@ public class MainController implements Observer {
 
     @Override
     public void update(Observable o, Object arg) {
-        Supplier<Void> updateLogic = () -> {
-            downloads.clear();
-            for (Download d : manager.getDownloadsSnap())
-                downloads.add(new DownloadController(d));
-            return null;
-        };
-        if (manager.equals(o)) {
-            if (Platform.isFxApplicationThread())
-                updateLogic.get();
-            else
-                Platform.runLater(updateLogic::get);
+        if (!manager.equals(o) || !(arg instanceof DownloadManager.Event))
+            return;
+        events.add((DownloadManager.Event) arg);
+        // one FX event for all changes made since the previous one
+        if (eventsScheduled.compareAndSet(false, true))
+            Platform.runLater(this::applyEvents);
+    }
+
+    /**
+     * Applies the manager's events to the table: the rows are added and removed by batches,
+     * so the table is laid out once per batch, the changed rows are refreshed in place.
+     */
+    private void applyEvents() {
+        eventsScheduled.set(false);
+        Set<DownloadController> added = new LinkedHashSet<>();
+        Set<DownloadController> removed = new HashSet<>();
+        DownloadManager.Event event;
+        while ((event = events.poll()) != null) {
+            Download d = event.Target;
+            switch (event.Change) {
+                case ADDED:
+                    if (!controllers.containsKey(d)) {
+                        DownloadController controller = new DownloadController(d);
+                        controllers.put(d, controller);
+                        added.add(controller);
+                    }
+                    break;
+                case REMOVED:
+                    DownloadController controller = controllers.remove(d);
+                    if (controller != null && !added.remove(controller))
+                        removed.add(controller);
+                    break;
+                case STATUS_CHANGED:
+                    DownloadController changed = controllers.get(d);
+                    if (changed != null)
+                        changed.refresh();
+                    break;
+                default:
+                    break;
+            }
         }
+        if (!removed.isEmpty())
+            downloads.removeAll(removed);
+        if (!added.isEmpty())
+            downloads.addAll(added);
+    }
+
+    private void updateProgress(List<Download> changed) {
+        // one FX event per tick for all changed downloads
+        Platform.runLater(() -> {
+            for (Download d : changed) {
+                DownloadController controller = controllers.get(d);
+                if (controller != null)
+                    controller.refreshProgress();
+            }
+        });
     }
 
     private Stage mainStage = null;
     private DownloadManager manager = null;
     private final ObservableList<DownloadController> downloads = FXCollections.observableArrayList();
+    /**
+     * The rows by the downloads, it is accessed by FX application thread only
+     */
+    private final Map<Download, DownloadController> controllers = new HashMap<>();
+    private final ConcurrentLinkedQueue<DownloadManager.Event> events = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean eventsScheduled = new AtomicBoolean(false);
 }
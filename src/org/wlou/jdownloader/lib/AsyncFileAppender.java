@@ -0,0 +1,193 @@
+package org.wlou.jdownloader.lib;
+
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link FileAppender} writing the events by its own thread, so the logging threads (network I/O threads
+ * in particular) only put the event to the bounded queue and never wait for the disk.
+ * The writer takes the queued events in batches and flushes the file once per batch.
+ *
+ * <p>When the queue is full the events below {@link Level#WARN} are discarded (the number of them is written
+ * to the file with the next batch), the warnings and errors wait for a free place, so they are never lost.
+ *
+ * <p>Options in addition to the ones of {@link FileAppender}:
+ * <pre>
+ *  QueueSize   the capacity of the queue in events (default {@link #DEFAULT_QUEUE_SIZE})
+ *  BatchSize   the maximal number of events written at once (default {@link #DEFAULT_BATCH_SIZE})
+ * </pre>
+ * The queued events are written by {@link #close()}, it is also called on the JVM shutdown.
+ * The location information (%C, %F, %L, %M patterns) is not captured.
+ */
+public class AsyncFileAppender extends FileAppender {
+
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+    public static final int DEFAULT_BATCH_SIZE = 512;
+
+    public AsyncFileAppender() {
+        // the batches are flushed by the writer
+        setImmediateFlush(false);
+    }
+
+    /**
+     * @param queueSize The capacity of the queue in events [1; Infinity), it is applied by {@link #activateOptions()}.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @param batchSize The maximal number of events written and flushed at once [1; Infinity).
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return The number of events discarded because of the full queue since the start.
+     */
+    public long getDiscardedCount() {
+        return discardedTotal.get();
+    }
+
+    /**
+     * Opens the file and starts the writer.
+     */
+    @Override
+    public synchronized void activateOptions() {
+        super.activateOptions();
+        if (writer != null)
+            return;
+        queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        writer = new Thread(this::drain, String.format("Log-%s", getName()));
+        writer.setDaemon(true);
+        writer.start();
+        // the queued events are written on exit even if the logging is not shut down explicitly
+        shutdownHook = new Thread(this::close, String.format("Log-%s-shutdown", getName()));
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Queues the event, it is called under the appender's lock by {@link #doAppend(LoggingEvent)}.
+     * @param event The event to write.
+     */
+    @Override
+    public void append(LoggingEvent event) {
+        BlockingQueue<LoggingEvent> events = queue;
+        if (events == null) {
+            // not activated: there is no writer
+            super.append(event);
+            return;
+        }
+        // the values depending on the logging thread are taken before the event leaves it
+        event.getThreadName();
+        event.getNDC();
+        event.getMDCCopy();
+        event.getRenderedMessage();
+        event.getThrowableStrRep();
+        if (events.offer(event))
+            return;
+        if (!event.getLevel().isGreaterOrEqual(Level.WARN)) {
+            discarded.incrementAndGet();
+            discardedTotal.incrementAndGet();
+            return;
+        }
+        try {
+            events.put(event);
+        }
+        catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the queued events and closes the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closing = true;
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            }
+            catch (IllegalStateException ignored) {
+                // the shutdown is in progress
+            }
+        }
+        Thread running = writer;
+        if (running != null) {
+            try {
+                running.join();
+            }
+            catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * The writer's loop: takes the events in batches until the appender is closed and the queue is empty.
+     */
+    private void drain() {
+        List<LoggingEvent> batch = new ArrayList<>(batchSize);
+        while (!closing || !queue.isEmpty()) {
+            try {
+                LoggingEvent first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+            }
+            catch (InterruptedException exc) {
+                break;
+            }
+            queue.drainTo(batch, Math.max(0, batchSize - 1));
+            write(batch);
+            batch.clear();
+        }
+        queue.drainTo(batch);
+        write(batch);
+    }
+
+    private void write(List<LoggingEvent> batch) {
+        if (qw == null || layout == null)
+            return;
+        long lost = discarded.getAndSet(0);
+        if (lost > 0)
+            qw.write(String.format("%d log events are discarded: the queue is full%s", lost, Layout.LINE_SEP));
+        for (LoggingEvent event : batch)
+            subAppend(event);
+        qw.flush();
+    }
+
+    // the period of checking the closing flag by the idle writer
+    private static final long POLL_INTERVAL = 100;
+
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong discardedTotal = new AtomicLong();
+    private volatile BlockingQueue<LoggingEvent> queue;
+    private volatile boolean closing;
+    private Thread writer;
+    private Thread shutdownHook;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+}
@@ -2,16 +2,15 @@ package org.wlou.jdownloader.lib;
 
 import org.apache.log4j.Logger;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.Channels;
 import java.nio.channels.CompletionHandler;
-import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.function.BiConsumer;
+import java.util.function.LongUnaryOperator;
+import java.util.function.ObjLongConsumer;
 import java.util.function.Supplier;
 
 public final class AsyncTools {
@@ -110,7 +109,7 @@ public final class AsyncTools {
      * Acts as following:
      *  1. receives result of previously initiated async reading
      *  2. checks continuation conditions
-     *  3. stops or restarts async reading
+     *  3. stops or restarts async reading (with a delay if the bandwidth is limited, see {@link #setThrottle})
      */
     public static class ChannelReader implements CompletionHandler<Integer, NetworkOperationContext> {
 
@@ -140,20 +139,62 @@ public final class AsyncTools {
         @Override
         public void completed(Integer read, NetworkOperationContext ctx) {
             try {
-                log.debug(String.format("%s response portion has been received (%d bytes)", ctx.OperationInfo, read));
+                if (log.isDebugEnabled())
+                    log.debug(String.format("%s response portion has been received (%d bytes)", ctx.OperationInfo, read));
+                // every received portion is accounted, the delay matters only if the reading continues
+                long delay = throttle != null && read > 0 ? throttle.applyAsLong(read) : 0;
                 if (proceedReading != null && !proceedReading.get()) {
-                    log.info(String.format("%s reader has been interrupted", ctx.OperationInfo));
+                    if (log.isInfoEnabled())
+                        log.info(String.format("%s reader has been interrupted", ctx.OperationInfo));
                     runCompletionHandler(read, ctx);
                     return;
                 }
                 if (!ctx.ResponseBytes.hasRemaining())
                     ctx = new NetworkOperationContext(ctx.OperationInfo, ctx.Channel, ctx.RequestBytes, buffers.next());
                 if (read == -1 || ctx.ResponseBytes == null) {
-                    log.info(String.format("%s completing reader cleanly", ctx.OperationInfo));
+                    if (log.isInfoEnabled())
+                        log.info(String.format("%s completing reader cleanly", ctx.OperationInfo));
                     runCompletionHandler(read, ctx);
                     return;
                 }
-                log.debug(String.format("%s continue reading response", ctx.OperationInfo));
+                if (delay > 0) {
+                    if (log.isDebugEnabled())
+                        log.debug(String.format("%s delaying next read for %d us", ctx.OperationInfo, delay / 1000));
+                    final NetworkOperationContext delayed = ctx;
+                    scheduler.accept(() -> readDelayed(read, delayed), delay);
+                    return;
+                }
+                if (log.isDebugEnabled())
+                    log.debug(String.format("%s continue reading response", ctx.OperationInfo));
+                ctx.Channel.read(ctx.ResponseBytes, ctx, this);
+            }
+            catch (Exception e) {
+                failed(e, ctx);
+            }
+        }
+
+        /**
+         * Limits the rate of reading.
+         * @param throttle The callback accounting every received portion, it returns the delay of the next read in nanoseconds.
+         * @param scheduler The callback running the delayed read after the delay in nanoseconds.
+         */
+        public void setThrottle(LongUnaryOperator throttle, ObjLongConsumer<Runnable> scheduler) {
+            assert (throttle == null) == (scheduler == null);
+            this.throttle = throttle;
+            this.scheduler = scheduler;
+        }
+
+        private void readDelayed(Integer read, NetworkOperationContext ctx) {
+            try {
+                // the reading could be interrupted while waiting
+                if (proceedReading != null && !proceedReading.get()) {
+                    if (log.isInfoEnabled())
+                        log.info(String.format("%s reader has been interrupted", ctx.OperationInfo));
+                    runCompletionHandler(read, ctx);
+                    return;
+                }
+                if (log.isDebugEnabled())
+                    log.debug(String.format("%s continue reading response", ctx.OperationInfo));
                 ctx.Channel.read(ctx.ResponseBytes, ctx, this);
             }
             catch (Exception e) {
@@ -190,17 +231,35 @@ public final class AsyncTools {
         private final BiConsumer<Throwable, NetworkOperationContext> errorHandler;
         private final Supplier<Boolean> proceedReading;
         private volatile Logger log;
+        private volatile LongUnaryOperator throttle;
+        private volatile ObjLongConsumer<Runnable> scheduler;
     }
 
     /**
-     * Encapsulates the sequential writing logic for an asynchronous operation.
-     * Similar to {@link org.wlou.jdownloader.lib.AsyncTools.ChannelReader}
+     * Encapsulates the reading logic of Http response headers.
+     * Every received portion is fed to the {@link HttpResponseParser}, so the reading buffer is reused
+     * and headers of any length (up to the parser's limit) are accepted.
+     * Acts as following:
+     *  1. receives result of previously initiated async reading
+     *  2. feeds the received portion to the parser
+     *  3. completes when headers are parsed (the buffer is left in read mode at the beginning of the body),
+     *     the channel is closed or reading is interrupted, otherwise restarts async reading
      */
-    public static class ChannelWriter implements CompletionHandler<Integer, NetworkOperationContext> {
-        public ChannelWriter(Supplier<Boolean> proceedWriting,
+    public static class HeadersReader implements CompletionHandler<Integer, NetworkOperationContext> {
+
+        /**
+         * Constructs reader from it's parts
+         * @param parser is the parser to feed received bytes to
+         * @param proceedReading is a callback to ask parent should the reader continue
+         * @param completionHandler is a handler to call when reading has completed (headers parsed or interrupt)
+         * @param errorHandler is a reading or parsing error handler
+         */
+        public HeadersReader(HttpResponseParser parser,
+                             Supplier<Boolean> proceedReading,
                              BiConsumer<Integer, NetworkOperationContext> completionHandler,
                              BiConsumer<Throwable, NetworkOperationContext> errorHandler) {
-            this.proceedWriting = proceedWriting;
+            this.parser = parser;
+            this.proceedReading = proceedReading;
             this.errorHandler = errorHandler;
             this.completionHandler = completionHandler;
             log = Logger.getLogger(getClass());
@@ -208,25 +267,31 @@ public final class AsyncTools {
 
         /**
          * See {@link CompletionHandler#completed(Object, Object)}
-         * @param written The result of the I/O operation.
+         * @param read The result of the I/O operation.
          * @param ctx The context of this reading operation.
          */
         @Override
-        public void completed(Integer written, NetworkOperationContext ctx) {
+        public void completed(Integer read, NetworkOperationContext ctx) {
             try {
-                log.debug(String.format("%s request portion has been written (%d bytes)", ctx.OperationInfo, written));
-                if (proceedWriting != null && !proceedWriting.get()) {
-                    log.info(String.format("%s writer has been interrupted", ctx.OperationInfo));
-                    runCompletionHandler(written, ctx);
+                if (log.isDebugEnabled())
+                    log.debug(String.format("%s response portion has been received (%d bytes)", ctx.OperationInfo, read));
+                ctx.ResponseBytes.flip();
+                if (parser.parse(ctx.ResponseBytes) || read == -1) {
+                    if (log.isInfoEnabled())
+                        log.info(String.format("%s completing headers reader cleanly", ctx.OperationInfo));
+                    runCompletionHandler(read, ctx);
                     return;
                 }
-                if (written == 0 || ctx.RequestBytes == null) {
-                    log.info(String.format("%s completing writer cleanly", ctx.OperationInfo));
-                    runCompletionHandler(written, ctx);
+                if (proceedReading != null && !proceedReading.get()) {
+                    if (log.isInfoEnabled())
+                        log.info(String.format("%s headers reader has been interrupted", ctx.OperationInfo));
+                    runCompletionHandler(read, ctx);
                     return;
                 }
-                log.debug(String.format("%s continue writing response", ctx.OperationInfo));
-                ctx.Channel.write(ctx.RequestBytes, ctx, this);
+                if (log.isDebugEnabled())
+                    log.debug(String.format("%s continue reading headers", ctx.OperationInfo));
+                ctx.ResponseBytes.clear();
+                ctx.Channel.read(ctx.ResponseBytes, ctx, this);
             }
             catch (Exception e) {
                 failed(e, ctx);
@@ -250,56 +315,234 @@ public final class AsyncTools {
         }
 
         /**
-         * Sets logger for the writer.
+         * Sets logger for the reader.
          * @param log The logger to set.
          */
         public void setLog(Logger log) {
             this.log = log;
         }
 
+        private final HttpResponseParser parser;
         private final BiConsumer<Integer, NetworkOperationContext> completionHandler;
         private final BiConsumer<Throwable, NetworkOperationContext> errorHandler;
-        private final Supplier<Boolean> proceedWriting;
+        private final Supplier<Boolean> proceedReading;
         private volatile Logger log;
     }
 
     /**
-     * Provides "infinite" sequence of {@link ByteBuffer}s.
+     * Encapsulates the reading logic of the body which needs decoding (see {@link BodyDecoder}).
+     * The body is read portion by portion to the same network buffer, every portion is decoded to the output buffers.
+     * Acts as following:
+     *  1. receives result of previously initiated async reading
+     *  2. feeds the received portion to the decoder (or finishes the decoder at the end of the stream)
+     *  3. completes when the body is decoded, the channel is closed or reading is interrupted,
+     *     otherwise restarts async reading (with a delay if the bandwidth is limited, see {@link #setThrottle})
      */
-    public static class OutputBuffersCollector implements Iterator<ByteBuffer> {
-        OutputBuffersCollector(int size) {
-            buffer = ByteBuffer.allocate(size);
-            storage = new ByteArrayOutputStream(size);
-            channel = Channels.newChannel(storage);
+    public static class DecodingReader implements CompletionHandler<Integer, NetworkOperationContext> {
+
+        /**
+         * Constructs reader from it's parts
+         * @param decoder is the decoder to feed received bytes to
+         * @param outputs is needed for keeping the decoded content
+         * @param proceedReading is a callback to ask parent should the reader continue
+         * @param completionHandler is a handler to call when reading has completed (body decoded or interrupt)
+         * @param errorHandler is a reading or decoding error handler
+         */
+        public DecodingReader(BodyDecoder decoder,
+                              Iterator<ByteBuffer> outputs,
+                              Supplier<Boolean> proceedReading,
+                              BiConsumer<Integer, NetworkOperationContext> completionHandler,
+                              BiConsumer<Throwable, NetworkOperationContext> errorHandler) {
+            this.decoder = decoder;
+            this.outputs = outputs;
+            this.proceedReading = proceedReading;
+            this.errorHandler = errorHandler;
+            this.completionHandler = completionHandler;
+            log = Logger.getLogger(getClass());
         }
 
+        /**
+         * See {@link CompletionHandler#completed(Object, Object)}
+         * @param read The result of the I/O operation.
+         * @param ctx The context of this reading operation.
+         */
         @Override
-        public boolean hasNext() {
-            return true;
+        public void completed(Integer read, NetworkOperationContext ctx) {
+            try {
+                if (log.isDebugEnabled())
+                    log.debug(String.format("%s body portion has been received (%d bytes)", ctx.OperationInfo, read));
+                long delay = throttle != null && read > 0 ? throttle.applyAsLong(read) : 0;
+                if (read == -1) {
+                    DownloadTools.finishBody(decoder, outputs, ctx.Channel);
+                }
+                else {
+                    ctx.ResponseBytes.flip();
+                    decoder.decode(ctx.ResponseBytes, outputs);
+                    ctx.ResponseBytes.clear();
+                }
+                if (read == -1 || decoder.isComplete()) {
+                    if (log.isInfoEnabled())
+                        log.info(String.format("%s completing decoding reader cleanly", ctx.OperationInfo));
+                    runCompletionHandler(read, ctx);
+                    return;
+                }
+                if (proceedReading != null && !proceedReading.get()) {
+                    if (log.isInfoEnabled())
+                        log.info(String.format("%s decoding reader has been interrupted", ctx.OperationInfo));
+                    runCompletionHandler(read, ctx);
+                    return;
+                }
+                if (delay > 0) {
+                    if (log.isDebugEnabled())
+                        log.debug(String.format("%s delaying next read for %d us", ctx.OperationInfo, delay / 1000));
+                    final NetworkOperationContext delayed = ctx;
+                    scheduler.accept(() -> readDelayed(read, delayed), delay);
+                    return;
+                }
+                if (log.isDebugEnabled())
+                    log.debug(String.format("%s continue reading body", ctx.OperationInfo));
+                ctx.Channel.read(ctx.ResponseBytes, ctx, this);
+            }
+            catch (Exception e) {
+                failed(e, ctx);
+            }
+        }
+
+        /**
+         * Limits the rate of reading.
+         * @param throttle The callback accounting every received portion, it returns the delay of the next read in nanoseconds.
+         * @param scheduler The callback running the delayed read after the delay in nanoseconds.
+         */
+        public void setThrottle(LongUnaryOperator throttle, ObjLongConsumer<Runnable> scheduler) {
+            assert (throttle == null) == (scheduler == null);
+            this.throttle = throttle;
+            this.scheduler = scheduler;
         }
 
+        private void readDelayed(Integer read, NetworkOperationContext ctx) {
+            try {
+                // the reading could be interrupted while waiting
+                if (proceedReading != null && !proceedReading.get()) {
+                    if (log.isInfoEnabled())
+                        log.info(String.format("%s decoding reader has been interrupted", ctx.OperationInfo));
+                    runCompletionHandler(read, ctx);
+                    return;
+                }
+                if (log.isDebugEnabled())
+                    log.debug(String.format("%s continue reading body", ctx.OperationInfo));
+                ctx.Channel.read(ctx.ResponseBytes, ctx, this);
+            }
+            catch (Exception e) {
+                failed(e, ctx);
+            }
+        }
+
+        private void runCompletionHandler(Integer read, NetworkOperationContext ctx) {
+            if (completionHandler != null)
+                completionHandler.accept(read, ctx);
+        }
+
+        /**
+         * See {@link CompletionHandler#failed(Throwable, Object)}
+         * @param exc The exception to indicate why the I/O operation failed
+         * @param ctx The context of this reading operation.
+         */
         @Override
-        public ByteBuffer next() {
-            return flushBuffer();
+        public void failed(Throwable exc, NetworkOperationContext ctx) {
+            if (errorHandler != null)
+                errorHandler.accept(exc, ctx);
+        }
+
+        /**
+         * Sets logger for the reader.
+         * @param log The logger to set.
+         */
+        public void setLog(Logger log) {
+            this.log = log;
         }
 
-        public byte[] getCollectedBytes() {
-            flushBuffer();
-            return storage.toByteArray();
+        private final BodyDecoder decoder;
+        private final Iterator<ByteBuffer> outputs;
+        private final BiConsumer<Integer, NetworkOperationContext> completionHandler;
+        private final BiConsumer<Throwable, NetworkOperationContext> errorHandler;
+        private final Supplier<Boolean> proceedReading;
+        private volatile Logger log;
+        private volatile LongUnaryOperator throttle;
+        private volatile ObjLongConsumer<Runnable> scheduler;
+    }
+
+    /**
+     * Encapsulates the sequential writing logic for an asynchronous operation.
+     * Similar to {@link org.wlou.jdownloader.lib.AsyncTools.ChannelReader}
+     */
+    public static class ChannelWriter implements CompletionHandler<Integer, NetworkOperationContext> {
+        public ChannelWriter(Supplier<Boolean> proceedWriting,
+                             BiConsumer<Integer, NetworkOperationContext> completionHandler,
+                             BiConsumer<Throwable, NetworkOperationContext> errorHandler) {
+            this.proceedWriting = proceedWriting;
+            this.errorHandler = errorHandler;
+            this.completionHandler = completionHandler;
+            log = Logger.getLogger(getClass());
         }
 
-        private ByteBuffer flushBuffer() {
+        /**
+         * See {@link CompletionHandler#completed(Object, Object)}
+         * @param written The result of the I/O operation.
+         * @param ctx The context of this reading operation.
+         */
+        @Override
+        public void completed(Integer written, NetworkOperationContext ctx) {
             try {
-                buffer.flip();
-                channel.write(buffer);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                if (log.isDebugEnabled())
+                    log.debug(String.format("%s request portion has been written (%d bytes)", ctx.OperationInfo, written));
+                if (proceedWriting != null && !proceedWriting.get()) {
+                    if (log.isInfoEnabled())
+                        log.info(String.format("%s writer has been interrupted", ctx.OperationInfo));
+                    runCompletionHandler(written, ctx);
+                    return;
+                }
+                if (written == 0 || ctx.RequestBytes == null) {
+                    if (log.isInfoEnabled())
+                        log.info(String.format("%s completing writer cleanly", ctx.OperationInfo));
+                    runCompletionHandler(written, ctx);
+                    return;
+                }
+                if (log.isDebugEnabled())
+                    log.debug(String.format("%s continue writing response", ctx.OperationInfo));
+                ctx.Channel.write(ctx.RequestBytes, ctx, this);
+            }
+            catch (Exception e) {
+                failed(e, ctx);
             }
-            return buffer.compact();
         }
 
-        private final ByteBuffer buffer;
-        private final ByteArrayOutputStream storage;
-        private final WritableByteChannel channel;
+        private void runCompletionHandler(Integer read, NetworkOperationContext ctx) {
+            if (completionHandler != null)
+                completionHandler.accept(read, ctx);
+        }
+
+        /**
+         * See {@link CompletionHandler#failed(Throwable, Object)}
+         * @param exc The exception to indicate why the I/O operation failed
+         * @param ctx The context of this reading operation.
+         */
+        @Override
+        public void failed(Throwable exc, NetworkOperationContext ctx) {
+            if (errorHandler != null)
+                errorHandler.accept(exc, ctx);
+        }
+
+        /**
+         * Sets logger for the writer.
+         * @param log The logger to set.
+         */
+        public void setLog(Logger log) {
+            this.log = log;
+        }
+
+        private final BiConsumer<Integer, NetworkOperationContext> completionHandler;
+        private final BiConsumer<Throwable, NetworkOperationContext> errorHandler;
+        private final Supplier<Boolean> proceedWriting;
+        private volatile Logger log;
     }
 }
@@ -0,0 +1,133 @@
+package org.wlou.jdownloader.lib;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the bandwidth at three levels: all downloads, downloads from one host and one download.
+ * The host buckets are chained to the global one, the download's own bucket (see {@link Download#setBandwidthLimit(long)})
+ * is checked together with them. The reads exceeding the limits are delayed by the limiter's timer,
+ * so no thread is blocked while waiting. Limits can be changed at any time and affect the running transfers.
+ * The full buckets of the hosts without own limit are dropped periodically, the hosts get new ones on the next read.
+ */
+public class BandwidthLimiter implements AutoCloseable {
+
+    public BandwidthLimiter() {
+        timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, String.format("Bandwidth-%02X", hashCode()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        timer.scheduleWithFixedDelay(this::forgetIdleHosts, IDLE_HOSTS_PERIOD, IDLE_HOSTS_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The limit of all downloads in bytes per second or {@link TokenBucket#UNLIMITED}
+     */
+    public long getLimit() {
+        return global.getRate();
+    }
+
+    /**
+     * Sets the limit of all downloads.
+     * @param rate The limit in bytes per second or {@link TokenBucket#UNLIMITED}.
+     */
+    public void setLimit(long rate) {
+        global.setRate(rate);
+    }
+
+    /**
+     * Sets the limit of every host which has no own limit.
+     * @param rate The limit in bytes per second or {@link TokenBucket#UNLIMITED}.
+     */
+    public synchronized void setHostLimit(long rate) {
+        assert rate >= 0;
+        hostRate = rate;
+        for (Map.Entry<String, TokenBucket> host : hosts.entrySet()) {
+            if (!customized.contains(host.getKey()))
+                host.getValue().setRate(rate);
+        }
+    }
+
+    /**
+     * Sets own limit of the host.
+     * @param host The name of the host.
+     * @param rate The limit in bytes per second or {@link TokenBucket#UNLIMITED}.
+     */
+    public synchronized void setHostLimit(String host, long rate) {
+        assert rate >= 0;
+        String key = host.toLowerCase();
+        customized.add(key);
+        bucketOf(key).setRate(rate);
+    }
+
+    /**
+     * @param host The name of the host.
+     * @return The limit of the host in bytes per second or {@link TokenBucket#UNLIMITED}
+     */
+    public synchronized long getHostLimit(String host) {
+        TokenBucket bucket = hosts.get(host.toLowerCase());
+        return bucket != null ? bucket.getRate() : hostRate;
+    }
+
+    /**
+     * Accounts the bytes received by the download.
+     * @param download The download receiving the bytes.
+     * @param bytes The number of received bytes.
+     * @return The time in nanoseconds to wait before the next read of the download
+     */
+    public long consume(Download download, long bytes) {
+        TokenBucket host;
+        synchronized (this) {
+            host = bucketOf(download.getWhat().getHost().toLowerCase());
+        }
+        return Math.max(download.getBandwidth().consume(bytes), host.consume(bytes));
+    }
+
+    /**
+     * Runs the delayed operation.
+     * @param operation The operation to run by the limiter's timer.
+     * @param delay The delay in nanoseconds.
+     */
+    public void schedule(Runnable operation, long delay) {
+        timer.schedule(operation, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the timer, the delayed operations are dropped.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Drops the buckets of the hosts which are not read for a while (the bucket is refilled)
+     * unless the host has own limit.
+     */
+    private synchronized void forgetIdleHosts() {
+        hosts.entrySet().removeIf(host -> !customized.contains(host.getKey()) && host.getValue().isFull());
+    }
+
+    private TokenBucket bucketOf(String host) {
+        TokenBucket bucket = hosts.get(host);
+        if (bucket == null) {
+            bucket = new TokenBucket(hostRate, global);
+            hosts.put(host, bucket);
+        }
+        return bucket;
+    }
+
+    private static final long IDLE_HOSTS_PERIOD = TimeUnit.SECONDS.toMillis(10);
+
+    private final ScheduledThreadPoolExecutor timer;
+    private final TokenBucket global = new TokenBucket(TokenBucket.UNLIMITED);
+    private final Map<String, TokenBucket> hosts = new HashMap<>();
+    private final Set<String> customized = new HashSet<>();
+    private long hostRate = TokenBucket.UNLIMITED;
+}
@@ -0,0 +1,554 @@
+package org.wlou.jdownloader.lib;
+
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * The engine running every workflow as straight-line blocking code in its own thread:
+ * connect, send the request, read the headers, read the content to the output buffers.
+ * The threads are virtual when the runtime supports them (Java 21+), so thousands of concurrent downloads
+ * don't need thousands of platform threads; otherwise a cached pool of platform threads is used.
+ * Every request is sent over a fresh connection which is closed after the response.
+ * The https connections are blocking TLS sockets of the engine's {@link SSLContext}, so they resume its cached sessions.
+ */
+public class BlockingEngine implements DownloadEngine {
+
+    private static Logger LOG = Logger.getLogger(BlockingEngine.class.getName());
+
+    /**
+     * @param resolver The resolver of remote hosts.
+     * @param bandwidth The limiter of the downloading bandwidth.
+     * @param buffers The pool of the request and response headers buffers.
+     */
+    public BlockingEngine(HostResolver resolver, BandwidthLimiter bandwidth, BufferPool buffers) {
+        this(resolver, bandwidth, buffers, new Metrics());
+    }
+
+    /**
+     * @param resolver The resolver of remote hosts.
+     * @param bandwidth The limiter of the downloading bandwidth.
+     * @param buffers The pool of the request and response headers buffers.
+     * @param metrics The registry of the transferred bytes and the latencies.
+     */
+    public BlockingEngine(HostResolver resolver, BandwidthLimiter bandwidth, BufferPool buffers, Metrics metrics) {
+        this.resolver = resolver;
+        this.bandwidth = bandwidth;
+        this.buffers = buffers;
+        this.metrics = metrics;
+        httpParams = new ConcurrentHashMap<>();
+        httpParams.put(HttpTools.CONNECTION_DIRECTIVE, HttpTools.CONNECTION_CLOSE);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        usesVirtualThreads = virtual != null;
+        if (virtual != null) {
+            workers = virtual;
+        }
+        else {
+            AtomicInteger counter = new AtomicInteger();
+            workers = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, String.format("Blocking-%d", counter.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("[blocking] %s threads", usesVirtualThreads ? "virtual" : "platform"));
+    }
+
+    /**
+     * @return True if the workflows run on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return usesVirtualThreads;
+    }
+
+    /**
+     * Sets the limit of connections to one host, the workflows above the limit wait for a connection.
+     * @param maxPerHost The number of connections [1; Infinity)
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        assert maxPerHost > 0;
+        lock.lock();
+        try {
+            this.maxPerHost = maxPerHost;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the context of the TLS connections.
+     * @param sslContext The initialized context, null for the default one ({@link SSLContext#getDefault()}).
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Turns on/off the negotiation of the compressed content (see {@link Downloader#setCompression(boolean)}).
+     * @param compression True to ask the servers for the compressed content.
+     */
+    public void setCompression(boolean compression) {
+        if (compression)
+            httpParams.put(HttpTools.ACCEPT_ENCODING_KEY, HttpTools.SUPPORTED_ENCODINGS);
+        else
+            httpParams.remove(HttpTools.ACCEPT_ENCODING_KEY);
+    }
+
+    /**
+     * Initialization workflow: HEAD request -> {@link Download#completeInitialization(HttpResponseParser)}
+     * (or {@link Download#completeFromCache()} if the cached copy is not modified).
+     * @param dc The downloader context for initialize operation
+     * @param interruptor Callback for interrupting network operation.
+     */
+    @Override
+    public void initialize(Downloader.DownloaderContext dc, Supplier<Boolean> interruptor) {
+        assert dc != null && dc.Target != null;
+        assert interruptor != null;
+
+        if (!dc.Target.lockForInitialization())
+            return; // Somebody else blocked this try.
+        execute(dc, DownloadTools.INIT_ERROR_MESSAGE, () -> {
+            String request = HttpTools.makeHeadRequest(dc.Target.getWhat(), DownloadTools.requestParams(httpParams, dc.Target));
+            try (Exchange exchange = new Exchange(dc, request)) {
+                exchange.Latency = metrics.histogram(Metrics.HEAD_LATENCY);
+                if (!exchange.readHeaders(interruptor))
+                    return;
+                if (DownloadTools.isNotModified(exchange.Parser, dc.Target)) {
+                    if (!dc.Target.completeFromCache())
+                        throw failure(dc.Target, "Download is interrupted");
+                }
+                else if (!dc.Target.completeInitialization(exchange.Parser))
+                    throw failure(dc.Target, "Download is interrupted");
+                if (LOG.isInfoEnabled())
+                    LOG.info(String.format("%s completed", dc.OperationInfo));
+            }
+        });
+    }
+
+    /**
+     * Processing workflow: GET request -> reading the content (segments are read by separate threads).
+     * @param dc The downloader context for process operation
+     * @param interruptor Callback for interrupting network operation.
+     */
+    @Override
+    public void process(Downloader.DownloaderContext dc, Supplier<Boolean> interruptor) {
+        assert dc != null && dc.Target != null;
+        assert interruptor != null;
+
+        if (!dc.Target.lockForProcessing())
+            return; // Somebody else blocked this try.
+        if (!dc.Target.getSegments().isEmpty()) {
+            for (Download.Segment segment : dc.Target.getSegments()) {
+                Downloader.DownloaderContext sc = new Downloader.DownloaderContext(dc.Target, "segment");
+                execute(sc, DownloadTools.PROC_ERROR_MESSAGE, () -> processSegment(sc, segment, interruptor));
+            }
+            return;
+        }
+        execute(dc, DownloadTools.PROC_ERROR_MESSAGE, () -> {
+            try (Exchange exchange = new Exchange(dc, HttpTools.makeGetRequest(dc.Target.getWhat(), httpParams))) {
+                if (!exchange.readHeaders(interruptor))
+                    return;
+                DownloadTools.checkContent(exchange.Parser, dc.Target.getLength());
+                BodyDecoder decoder = DownloadTools.bodyDecoder(exchange.Parser, dc.Target.getLength());
+                Iterator<ByteBuffer> outputs = new DownloadTools.DownloadOutputBuffersIterator(dc.Target);
+                if (!(decoder == null ? exchange.readBody(outputs, interruptor) : exchange.readBody(decoder, outputs, interruptor)))
+                    return;
+            }
+            complete(dc);
+        });
+    }
+
+    /**
+     * Single-request workflow: GET request -> {@link Download#initializeFromResponse(HttpResponseParser)} -> reading the content.
+     * @param dc The downloader context for fetch operation
+     * @param initInterruptor Callback for interrupting network operation while headers are read.
+     * @param procInterruptor Callback for interrupting network operation while content is read.
+     */
+    @Override
+    public void fetch(Downloader.DownloaderContext dc, Supplier<Boolean> initInterruptor, Supplier<Boolean> procInterruptor) {
+        assert dc != null && dc.Target != null;
+        assert initInterruptor != null && procInterruptor != null;
+
+        if (!dc.Target.lockForInitialization())
+            return; // Somebody else blocked this try.
+        execute(dc, DownloadTools.INIT_ERROR_MESSAGE, () -> {
+            String request = HttpTools.makeGetRequest(dc.Target.getWhat(), DownloadTools.requestParams(httpParams, dc.Target));
+            try (Exchange exchange = new Exchange(dc, request)) {
+                if (!exchange.readHeaders(initInterruptor))
+                    return;
+                if (DownloadTools.isNotModified(exchange.Parser, dc.Target)) {
+                    // the cached copy is valid, the response has no body
+                    if (!dc.Target.completeFromCache())
+                        throw failure(dc.Target, "Download is interrupted");
+                    return;
+                }
+                if (!dc.Target.initializeFromResponse(exchange.Parser))
+                    throw failure(dc.Target, "Download is interrupted");
+                BodyDecoder decoder = DownloadTools.bodyDecoder(exchange.Parser, dc.Target.getLength());
+                Iterator<ByteBuffer> outputs = new DownloadTools.DownloadOutputBuffersIterator(dc.Target);
+                if (!(decoder == null ? exchange.readBody(outputs, procInterruptor) : exchange.readBody(decoder, outputs, procInterruptor)))
+                    return;
+            }
+            complete(dc);
+        });
+    }
+
+    /**
+     * Interrupts the running workflows.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    private void processSegment(Downloader.DownloaderContext dc, Download.Segment segment, Supplier<Boolean> interruptor)
+            throws Exception {
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s segment [%d; %d)", dc.OperationInfo, segment.Offset, segment.Offset + segment.Length));
+        String request = HttpTools.makeRangeRequest(dc.Target.getWhat(), httpParams,
+            segment.Offset, segment.Offset + segment.Length - 1);
+        try (Exchange exchange = new Exchange(dc, request)) {
+            if (!exchange.readHeaders(interruptor))
+                return;
+            DownloadTools.checkPartialContent(exchange.Parser, segment.Length);
+            if (!exchange.readBody(new DownloadTools.SegmentOutputBuffersIterator(segment), interruptor))
+                return;
+        }
+        if (!interruptor.get())
+            // the download is interrupted or the attempt is over while the sink was being released
+            return;
+        if (!segment.isCompleted())
+            throw new IOException(String.format("Segment is incomplete: %d of %d bytes", segment.getReceived(), segment.Length));
+        boolean last = dc.Target.completeSegment(segment);
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format(last ? "%s completed the download" : "%s completed", dc.OperationInfo));
+    }
+
+    private static void complete(Downloader.DownloaderContext dc) throws Exception {
+        if (!dc.Target.completeProcessing())
+            throw failure(dc.Target, "Download is interrupted");
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s completed", dc.OperationInfo));
+    }
+
+    private static Exception failure(Download download, String otherwise) {
+        Throwable result = download.getLastError();
+        if (result instanceof Exception)
+            return (Exception) result;
+        return new IllegalStateException(otherwise);
+    }
+
+    /**
+     * The body of the workflow run by the worker thread.
+     */
+    private interface Workflow {
+        void run() throws Exception;
+    }
+
+    private void execute(Downloader.DownloaderContext dc, String errorMessage, Workflow workflow) {
+        workers.execute(() -> {
+            try {
+                workflow.run();
+            }
+            catch (Exception exc) {
+                LOG.error(String.format("%s reason: %s", dc.OperationInfo, exc));
+                dc.Target.interruptExceptionally(errorMessage, exc, dc.Attempt);
+            }
+        });
+    }
+
+    private InetAddress resolve(String host) throws Exception {
+        CompletableFuture<InetAddress> address = new CompletableFuture<>();
+        resolver.resolve(host, address, AsyncTools.handlerFrom(
+            (InetAddress resolved, CompletableFuture<InetAddress> result) -> result.complete(resolved),
+            (exc, result) -> result.completeExceptionally(exc)
+        ));
+        try {
+            return address.get();
+        }
+        catch (ExecutionException exc) {
+            throw exc.getCause() instanceof Exception ? (Exception) exc.getCause() : exc;
+        }
+    }
+
+    private void acquireHost(String host) throws InterruptedException {
+        lock.lock();
+        try {
+            while (perHost.getOrDefault(host, 0) >= maxPerHost)
+                released.await();
+            perHost.merge(host, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseHost(String host) {
+        lock.lock();
+        try {
+            perHost.computeIfPresent(host, (key, count) -> count > 1 ? count - 1 : null);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One request/response over a fresh blocking connection.
+     */
+    private class Exchange implements AutoCloseable {
+        Exchange(Downloader.DownloaderContext dc, String request) throws Exception {
+            Context = dc;
+            URL what = dc.Target.getWhat();
+            Host = ConnectionPool.keyOf(what);
+            acquireHost(Host);
+            Started = System.nanoTime();
+            ByteBuffer requestBytes = null;
+            try {
+                int port = HttpTools.portOf(what);
+                InetAddress address = resolve(what.getHost());
+                metrics.histogram(Metrics.DNS_LATENCY).recordSince(Started);
+                long connecting = System.nanoTime();
+                Channel = connect(new InetSocketAddress(address, port), what);
+                metrics.histogram(Metrics.CONNECT_LATENCY).recordSince(connecting);
+                if (LOG.isInfoEnabled())
+                    LOG.info(String.format("%s domain \"%s\" connected", dc.OperationInfo, what.getHost()));
+                requestBytes = HttpTools.encodeRequest(request, buffers);
+                while (requestBytes.hasRemaining())
+                    Channel.write(requestBytes);
+                if (LOG.isInfoEnabled())
+                    LOG.info(String.format("%s request \"%s\" is sent", dc.OperationInfo, request));
+                Response = buffers.acquire(HEADERS_BUFFER_SIZE);
+            }
+            catch (Exception exc) {
+                close();
+                throw exc;
+            }
+            finally {
+                if (requestBytes != null)
+                    buffers.release(requestBytes);
+            }
+            dc.Target.enterOperation(this, dc.Attempt, this::abort);
+        }
+
+        /**
+         * Reads the response headers, the bytes of the body read together with them are left in {@link #Response}.
+         * @return False if the reading is interrupted
+         * @throws IOException when the headers are not received
+         */
+        boolean readHeaders(Supplier<Boolean> interruptor) throws IOException, ParseException {
+            while (true) {
+                if (!interruptor.get()) {
+                    if (LOG.isInfoEnabled())
+                        LOG.info(String.format("%s interrupted", Context.OperationInfo));
+                    return false;
+                }
+                int read = Channel.read(Response);
+                Response.flip();
+                Parser.parse(Response);
+                if (Parser.isComplete()) {
+                    Latency.recordSince(Started);
+                    if (LOG.isInfoEnabled())
+                        LOG.info(String.format("%s response headers: \"%s\"", Context.OperationInfo, Parser));
+                    return true;
+                }
+                if (read == -1)
+                    throw new IOException("Response headers are not received");
+                Response.clear();
+            }
+        }
+
+        /**
+         * Reads the body to the output buffers until they are filled.
+         * @return False if the reading is interrupted
+         * @throws IOException when the connection is closed before the outputs are filled
+         */
+        boolean readBody(Iterator<ByteBuffer> outputs, Supplier<Boolean> interruptor) throws IOException, InterruptedException {
+            metrics.received(Context.Target, Response.remaining());
+            ByteBuffer output = DownloadTools.transferBody(Response, outputs);
+            while (output != null) {
+                if (!interruptor.get()) {
+                    if (LOG.isInfoEnabled())
+                        LOG.info(String.format("%s interrupted", Context.OperationInfo));
+                    return false;
+                }
+                int read = Channel.read(output);
+                if (read == -1)
+                    throw new IOException("Connection is closed before the content is received");
+                metrics.received(Context.Target, read);
+                long delay = bandwidth.consume(Context.Target, read);
+                if (delay > 0)
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                if (!output.hasRemaining())
+                    output = outputs.next();
+            }
+            return true;
+        }
+
+        /**
+         * Reads the body which needs decoding (see {@link BodyDecoder}) and decodes it to the output buffers.
+         * @return False if the reading is interrupted
+         * @throws IOException when the body is malformed or the connection is closed before the body is over
+         */
+        boolean readBody(BodyDecoder decoder, Iterator<ByteBuffer> outputs, Supplier<Boolean> interruptor)
+                throws IOException, InterruptedException {
+            if (LOG.isInfoEnabled())
+                LOG.info(String.format("%s decoding %s body", Context.OperationInfo,
+                    DownloadTools.isChunked(Parser) ? HttpTools.CHUNKED : "identity"));
+            metrics.received(Context.Target, Response.remaining());
+            decoder.decode(Response, outputs);
+            // the rest of the body is read by larger portions
+            buffers.release(Response);
+            Response = buffers.acquire(BODY_BUFFER_SIZE);
+            while (!decoder.isComplete()) {
+                if (!interruptor.get()) {
+                    if (LOG.isInfoEnabled())
+                        LOG.info(String.format("%s interrupted", Context.OperationInfo));
+                    return false;
+                }
+                Response.clear();
+                int read = Channel.read(Response);
+                if (read == -1) {
+                    decoder.finish(outputs);
+                    if (!decoder.isComplete())
+                        throw new IOException(String.format("Body is incomplete: %d bytes are decoded", decoder.getDecoded()));
+                    break;
+                }
+                metrics.received(Context.Target, read);
+                Response.flip();
+                decoder.decode(Response, outputs);
+                long delay = bandwidth.consume(Context.Target, read);
+                if (delay > 0)
+                    TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (Response != null)
+                buffers.release(Response);
+            if (Channel != null) {
+                try {
+                    Channel.close();
+                }
+                catch (IOException ignored) { }
+            }
+            releaseHost(Host);
+            // the worker has left the reads, it doesn't write to the outputs anymore
+            Context.Target.leaveOperation(this);
+        }
+
+        /**
+         * Breaks the exchange off when its attempt is over: the input of the socket is shut down,
+         * so the blocked read of the worker returns at once.
+         */
+        void abort() {
+            Socket socket = Plain;
+            if (socket == null)
+                return;
+            try {
+                socket.shutdownInput();
+            }
+            catch (IOException ignored) { }
+        }
+
+        /**
+         * Opens the plain connection or the TLS one for https urls.
+         */
+        private ByteChannel connect(InetSocketAddress address, URL what) throws IOException {
+            if (!HttpTools.isSecure(what)) {
+                SocketChannel channel = SocketChannel.open(address);
+                Plain = channel.socket();
+                return channel;
+            }
+            Socket socket = new Socket();
+            try {
+                socket.connect(address);
+                Plain = socket;
+                return TlsChannel.clientChannel(TlsChannel.contextOrDefault(sslContext), socket, what.getHost());
+            }
+            catch (IOException | RuntimeException exc) {
+                socket.close();
+                throw exc;
+            }
+        }
+
+        final Downloader.DownloaderContext Context;
+        final String Host;
+        final HttpResponseParser Parser = new HttpResponseParser();
+        final long Started;
+        /**
+         * The histogram of the time from the start till the response headers are received
+         */
+        Metrics.Histogram Latency = metrics.histogram(Metrics.FIRST_BYTE_LATENCY);
+        ByteChannel Channel;
+        ByteBuffer Response;
+        /**
+         * The plain socket of the connection (under TLS one for https urls)
+         */
+        volatile Socket Plain;
+    }
+
+    /**
+     * Creates the executor starting a virtual thread per task
+     * (Executors#newVirtualThreadPerTaskExecutor is looked up reflectively to keep Java 8 compatibility).
+     * @return The executor or null if virtual threads are not supported
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException exc) {
+            return null;
+        }
+    }
+
+    /**
+     * The size of the buffer for reading the response headers portion by portion
+     */
+    private static final int HEADERS_BUFFER_SIZE = 4 * 1024;
+    /**
+     * The size of the buffer for reading the body which needs decoding
+     */
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+
+    private final HostResolver resolver;
+    private final BandwidthLimiter bandwidth;
+    private final BufferPool buffers;
+    private final Metrics metrics;
+    private final Map<String, String> httpParams;
+    private final ExecutorService workers;
+    private final boolean usesVirtualThreads;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Map<String, Integer> perHost = new HashMap<>();
+    private int maxPerHost = ConnectionPool.DEFAULT_MAX_PER_HOST;
+    private volatile SSLContext sslContext;
+}
@@ -0,0 +1,45 @@
+package org.wlou.jdownloader.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Decoder of the response body which can't be read directly to the output buffers:
+ * the framing bytes are mixed with the content or the end of the content is not known in advance.
+ * The received portions are fed to the decoder as they come, the decoded content is written to the outputs
+ * incrementally, so the body is never kept in memory as a whole.
+ * Implementations:
+ *  - {@link IdentityBodyDecoder} the content as is, up to the known length or until the connection is closed;
+ *  - {@link ChunkedBodyDecoder} the chunked transfer coding.
+ */
+public interface BodyDecoder {
+
+    /**
+     * Decodes the received portion of the body.
+     * @param input The received bytes in [position; limit), the position is moved past the consumed ones.
+     *              The bytes following the end of the body are left unconsumed.
+     * @param outputs The buffers to write the content to (see {@link DownloadTools.DownloadOutputBuffersIterator}).
+     * @throws java.net.ProtocolException when the body is malformed or the outputs are filled before the content ends,
+     *         the failure repeats on every attempt
+     * @throws IOException when the compressed content is cut by the end of the body
+     */
+    void decode(ByteBuffer input, Iterator<ByteBuffer> outputs) throws IOException;
+
+    /**
+     * Handles the end of the stream: the connection is closed by the server.
+     * @param outputs The buffers to write the rest of the content to.
+     * @throws IOException when the buffered content can't be written
+     */
+    void finish(Iterator<ByteBuffer> outputs) throws IOException;
+
+    /**
+     * @return True if the whole body is decoded
+     */
+    boolean isComplete();
+
+    /**
+     * @return The number of the decoded content bytes written to the outputs
+     */
+    long getDecoded();
+}
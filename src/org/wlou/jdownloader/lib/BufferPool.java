@@ -0,0 +1,246 @@
+package org.wlou.jdownloader.lib;
+
+import org.apache.log4j.Logger;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe pool of direct byte buffers.
+ * Socket reads and writes through heap buffers are copied by the JDK to temporary direct buffers,
+ * and direct buffers are expensive to allocate, so the buffers are allocated once and reused.
+ * Features:
+ *  - size classes: the requested size is rounded up to the power of two in
+ *    [{@link #MIN_SIZE_CLASS}; {@link #MAX_SIZE_CLASS}], larger buffers are allocated and dropped as usual;
+ *  - the total size of idle buffers is limited (see {@link #setMaxPooledBytes(long)});
+ *  - leak detection: the buffer garbage collected without {@link #release(ByteBuffer)} is reported to the log
+ *    (with the stack of the acquisition if debug logging is enabled).
+ */
+public class BufferPool {
+
+    private static Logger LOG = Logger.getLogger(BufferPool.class.getName());
+
+    public static final int MIN_SIZE_CLASS = 512;
+    public static final int MAX_SIZE_CLASS = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * @return The pool shared by all downloading operations of the process.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    public BufferPool() {
+        int classes = Integer.numberOfTrailingZeros(MAX_SIZE_CLASS) - Integer.numberOfTrailingZeros(MIN_SIZE_CLASS) + 1;
+        idle = new ArrayList<>(classes);
+        for (int i = 0; i < classes; ++i)
+            idle.add(new ConcurrentLinkedDeque<>());
+    }
+
+    /**
+     * Gives the direct buffer of at least <code>size</code> bytes.
+     * @param size The required number of bytes.
+     * @return The cleared buffer with the limit set to <code>size</code>.
+     */
+    public ByteBuffer acquire(int size) {
+        assert size >= 0;
+        reportLeaks();
+        int index = classOf(size);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            buffer = idle.get(index).pollFirst();
+            if (buffer != null)
+                pooledBytes.addAndGet(-buffer.capacity());
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(index >= 0 ? MIN_SIZE_CLASS << index : size);
+            allocated.incrementAndGet();
+        }
+        buffer.clear();
+        buffer.limit(size);
+        leased.incrementAndGet();
+        if (leakDetection)
+            track(buffer);
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool.
+     * The buffer must not be used after that.
+     * @param buffer The buffer previously given by {@link #acquire(int)}, null is ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        if (leakDetection && !untrack(buffer)) {
+            // double release or foreign buffer: pooling it would hand the same memory to two owners
+            LOG.warn(String.format("[pool] released buffer (%d bytes) is not leased from the pool", buffer.capacity()));
+            return;
+        }
+        leased.decrementAndGet();
+        int index = classOf(buffer.capacity());
+        if (index < 0 || (MIN_SIZE_CLASS << index) != buffer.capacity() || !buffer.isDirect())
+            return;
+        if (pooledBytes.addAndGet(buffer.capacity()) > maxPooledBytes) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        idle.get(index).addFirst(buffer);
+    }
+
+    /**
+     * Forgets the buffer without returning it to the pool.
+     * It is useful when the buffer may be still in use by an abandoned asynchronous operation.
+     * @param buffer The buffer previously given by {@link #acquire(int)}, null is ignored.
+     */
+    public void discard(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        if (leakDetection && !untrack(buffer))
+            return;
+        leased.decrementAndGet();
+    }
+
+    /**
+     * Sets the limit of the total size of idle buffers, released buffers above the limit are dropped.
+     * @param maxPooledBytes The number of bytes [0; Infinity), 0 disables pooling
+     */
+    public void setMaxPooledBytes(long maxPooledBytes) {
+        assert maxPooledBytes >= 0;
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Turns on/off tracking of the leased buffers.
+     * @param leakDetection true to report buffers which are not released
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * @return The number of buffers given and not released yet.
+     */
+    public int getLeasedCount() {
+        return leased.get();
+    }
+
+    /**
+     * @return The number of buffers allocated by the pool.
+     */
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    /**
+     * @return The total size of idle buffers.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Checks for garbage collected buffers which have not been released.
+     * @return The number of leaks detected so far.
+     */
+    public long getLeaksCount() {
+        reportLeaks();
+        return leaks.get();
+    }
+
+    private static int classOf(int size) {
+        if (size > MAX_SIZE_CLASS)
+            return -1;
+        int rounded = size <= MIN_SIZE_CLASS ? MIN_SIZE_CLASS : Integer.highestOneBit(size - 1) << 1;
+        return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(MIN_SIZE_CLASS);
+    }
+
+    private void track(ByteBuffer buffer) {
+        Lease lease = new Lease(buffer, collected, LOG.isDebugEnabled() ? new Throwable("Acquired here") : null);
+        synchronized (leases) {
+            List<Lease> bucket = leases.get(lease.Identity);
+            if (bucket == null) {
+                bucket = new ArrayList<>(1);
+                leases.put(lease.Identity, bucket);
+            }
+            bucket.add(lease);
+        }
+    }
+
+    private boolean untrack(ByteBuffer buffer) {
+        int identity = System.identityHashCode(buffer);
+        synchronized (leases) {
+            List<Lease> bucket = leases.get(identity);
+            if (bucket == null)
+                return false;
+            for (Iterator<Lease> it = bucket.iterator(); it.hasNext(); ) {
+                if (it.next().get() == buffer) {
+                    it.remove();
+                    if (bucket.isEmpty())
+                        leases.remove(identity);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void reportLeaks() {
+        for (Lease lease = (Lease)collected.poll(); lease != null; lease = (Lease)collected.poll()) {
+            boolean leaked;
+            synchronized (leases) {
+                List<Lease> bucket = leases.get(lease.Identity);
+                leaked = bucket != null && bucket.remove(lease);
+                if (bucket != null && bucket.isEmpty())
+                    leases.remove(lease.Identity);
+            }
+            if (!leaked)
+                continue;
+            leaks.incrementAndGet();
+            leased.decrementAndGet();
+            if (lease.Trace != null)
+                LOG.error(String.format("[pool] buffer (%d bytes) is not released", lease.Capacity), lease.Trace);
+            else
+                LOG.error(String.format("[pool] buffer (%d bytes) is not released, enable debug logging to see where it is acquired", lease.Capacity));
+        }
+    }
+
+    /**
+     * Record of the leased buffer, it is enqueued when the buffer is garbage collected.
+     */
+    private static class Lease extends WeakReference<ByteBuffer> {
+        Lease(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, Throwable trace) {
+            super(buffer, queue);
+            Identity = System.identityHashCode(buffer);
+            Capacity = buffer.capacity();
+            Trace = trace;
+        }
+
+        final int Identity;
+        final int Capacity;
+        final Throwable Trace;
+    }
+
+    private static final BufferPool SHARED = new BufferPool();
+
+    private final List<ConcurrentLinkedDeque<ByteBuffer>> idle;
+    private final Map<Integer, List<Lease>> leases = new HashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private final AtomicInteger leased = new AtomicInteger();
+
+    private volatile long maxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+    private volatile boolean leakDetection = true;
+}
@@ -0,0 +1,127 @@
+package org.wlou.jdownloader.lib;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * The body in the chunked transfer coding (RFC 7230, section 4.1):
+ * <pre>
+ *  chunk-size [; extensions] CRLF
+ *  chunk-data CRLF
+ *  ...
+ *  0 [; extensions] CRLF
+ *  [trailer fields CRLF]
+ *  CRLF
+ * </pre>
+ * The decoder is a state machine, so the portions may be split at any byte.
+ * Chunk extensions and trailer fields are skipped.
+ */
+public class ChunkedBodyDecoder implements BodyDecoder {
+
+    /**
+     * The maximal length of the chunk size line and of a trailer field, longer ones are considered malformed
+     */
+    public static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    @Override
+    public void decode(ByteBuffer input, Iterator<ByteBuffer> outputs) throws IOException {
+        while (input.hasRemaining() && state != State.COMPLETE) {
+            if (state == State.DATA) {
+                ByteBuffer chunk = input.duplicate();
+                if (chunk.remaining() > remaining)
+                    chunk.limit(chunk.position() + (int) remaining);
+                int count = chunk.remaining();
+                DownloadTools.transferBody(chunk, outputs);
+                if (chunk.hasRemaining())
+                    throw new ProtocolException(String.format("Content exceeds the target: %d bytes are left", chunk.remaining()));
+                input.position(chunk.position());
+                decoded += count;
+                remaining -= count;
+                if (remaining == 0)
+                    state = State.DATA_END;
+                continue;
+            }
+            byte next = input.get();
+            if (++lineLength > MAX_LINE_LENGTH)
+                throw new ProtocolException("Chunk line is too long");
+            switch (state) {
+                case SIZE:
+                    parseSize(next);
+                    break;
+                case EXTENSION:
+                    if (next == HttpTools.LF)
+                        endSize();
+                    break;
+                case DATA_END:
+                    if (next == HttpTools.LF) {
+                        state = State.SIZE;
+                        lineLength = 0;
+                        digits = 0;
+                    }
+                    else if (next != HttpTools.CR)
+                        throw new ProtocolException("Chunk data is not followed by CRLF");
+                    break;
+                case TRAILER:
+                    if (next == HttpTools.LF) {
+                        // the empty line ends the trailer section
+                        if (lineLength <= 2)
+                            state = State.COMPLETE;
+                        lineLength = 0;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void finish(Iterator<ByteBuffer> outputs) {
+        // the chunked body ends with the last chunk only
+    }
+
+    @Override
+    public boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    @Override
+    public long getDecoded() {
+        return decoded;
+    }
+
+    private void parseSize(byte next) throws IOException {
+        int digit = Character.digit(next, 16);
+        if (digit >= 0) {
+            if (remaining > (Long.MAX_VALUE >> 4))
+                throw new ProtocolException("Chunk size is too large");
+            remaining = (remaining << 4) + digit;
+            ++digits;
+        }
+        else if (next == ';')
+            state = State.EXTENSION;
+        else if (next == HttpTools.LF)
+            endSize();
+        else if (next != HttpTools.CR && next != HttpTools.SPACE && next != '\t')
+            throw new ProtocolException(String.format("Unexpected character in chunk size: 0x%02X", next));
+    }
+
+    private void endSize() throws IOException {
+        if (digits == 0)
+            throw new ProtocolException("Chunk size is absent");
+        lineLength = 0;
+        state = remaining == 0 ? State.TRAILER : State.DATA;
+    }
+
+    private enum State {
+        SIZE, EXTENSION, DATA, DATA_END, TRAILER, COMPLETE
+    }
+
+    private State state = State.SIZE;
+    private long remaining;
+    private long decoded;
+    private int digits;
+    private int lineLength;
+}
@@ -0,0 +1,359 @@
+package org.wlou.jdownloader.lib;
+
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps idle keep-alive connections per remote host (host:port key) and hands them out to downloading operations.
+ * The connections to https hosts are {@link TlsChannel}s of the pool's {@link SSLContext}, their keys are prefixed
+ * by the scheme, so the plain and TLS connections to the same port are never mixed.
+ * Limits:
+ *  - max-per-host: the number of connections (leased and idle) to one host,
+ *    requests above the limit wait for a released connection;
+ *  - max-idle-per-host: the number of idle connections kept for one host, the rest are closed on release;
+ *  - idle timeout: idle connections older than the timeout are closed by the periodic sweep
+ *    (the connections of the host are checked on its every acquire/release as well).
+ * The hosts without connections and waiters are forgotten.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private static Logger LOG = Logger.getLogger(ConnectionPool.class.getName());
+
+    public static final int DEFAULT_MAX_PER_HOST = 8;
+    public static final int DEFAULT_MAX_IDLE_PER_HOST = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(15);
+    public static final String SECURE_PREFIX = HttpTools.HTTPS + "://";
+
+    /**
+     * The channel leased from the pool.
+     */
+    public static class Connection {
+        private Connection(String key, AsynchronousSocketChannel channel, boolean reused) {
+            Key = key;
+            Channel = channel;
+            this.reused = reused;
+        }
+
+        /**
+         * The remote host key the connection belongs to (see {@link #keyOf(URL)})
+         */
+        public final String Key;
+        /**
+         * The channel itself. It is connected if {@link #isReused()} is true.
+         */
+        public final AsynchronousSocketChannel Channel;
+
+        /**
+         * @return True if the channel has already been used and is connected to the remote host,
+         *         false if the channel is freshly opened and needs to be connected
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        private final boolean reused;
+        private long releasedAt;
+    }
+
+    /**
+     * @param group The group the new channels are opened in
+     */
+    public ConnectionPool(AsynchronousChannelGroup group) {
+        this.group = group;
+        // the idle connections expire even if the traffic stops
+        sweeper = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, String.format("Pool-%02X", hashCode()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.setRemoveOnCancelPolicy(true);
+        scheduleSweep();
+    }
+
+    /**
+     * Makes the pool key of the url's remote host.
+     * @param url The url of the resource.
+     * @return host:port string, https://host:port for TLS connections
+     */
+    public static String keyOf(URL url) {
+        String key = String.format("%s:%d", url.getHost().toLowerCase(), HttpTools.portOf(url));
+        return HttpTools.isSecure(url) ? SECURE_PREFIX + key : key;
+    }
+
+    /**
+     * Leases a connection to the host.
+     * Gives the idle connection if any, opens the new one if the host limit allows,
+     * otherwise postpones the lease until some connection to the host is released.
+     * @param key The remote host key (see {@link #keyOf(URL)}).
+     * @param attachment The object to attach to the operation.
+     * @param handler The handler receiving the connection.
+     * @param <A> The type of the attachment.
+     */
+    public <A> void acquire(String key, A attachment, CompletionHandler<Connection, A> handler) {
+        Connection idle;
+        List<Connection> expired = new ArrayList<>();
+        synchronized (hosts) {
+            Host host = host(key);
+            expire(host, expired);
+            idle = host.Idle.pollFirst();
+            if (idle == null) {
+                if (host.Leased >= maxPerHost) {
+                    host.Waiters.add(() -> acquire(key, attachment, handler));
+                    if (LOG.isDebugEnabled())
+                        LOG.debug(String.format("[pool] %s: all %d connections are busy, waiting", key, host.Leased));
+                    return;
+                }
+            }
+            ++host.Leased;
+        }
+        expired.forEach(ConnectionPool::close);
+        if (idle != null) {
+            if (LOG.isDebugEnabled())
+                LOG.debug(String.format("[pool] %s: reusing idle connection", key));
+            handler.completed(idle, attachment);
+            return;
+        }
+        try {
+            handler.completed(new Connection(key, open(key), false), attachment);
+        }
+        catch (IOException exc) {
+            onReleased(key);
+            handler.failed(exc, attachment);
+        }
+    }
+
+    /**
+     * Returns the connection to the pool.
+     * @param connection The connection previously given by {@link #acquire(String, Object, CompletionHandler)}.
+     * @param reusable True if the response has been completely read and the server keeps the connection alive,
+     *                 false to close the channel.
+     */
+    public void release(Connection connection, boolean reusable) {
+        assert connection != null;
+        boolean kept = false;
+        if (reusable && connection.Channel.isOpen()) {
+            synchronized (hosts) {
+                Host host = host(connection.Key);
+                if (host.Idle.size() < maxIdlePerHost) {
+                    Connection idle = new Connection(connection.Key, connection.Channel, true);
+                    idle.releasedAt = System.currentTimeMillis();
+                    host.Idle.addFirst(idle);
+                    kept = true;
+                }
+            }
+        }
+        if (!kept)
+            close(connection);
+        onReleased(connection.Key);
+    }
+
+    /**
+     * Opens the plain channel or the TLS one for the keys with {@link #SECURE_PREFIX}.
+     */
+    private AsynchronousSocketChannel open(String key) throws IOException {
+        AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(group);
+        if (!key.startsWith(SECURE_PREFIX))
+            return channel;
+        int colon = key.lastIndexOf(':');
+        String host = key.substring(SECURE_PREFIX.length(), colon);
+        int port = Integer.parseInt(key.substring(colon + 1));
+        try {
+            return new TlsChannel(channel, TlsChannel.clientEngine(getSslContext(), host, port), BufferPool.shared());
+        }
+        catch (IOException | RuntimeException exc) {
+            channel.close();
+            throw exc;
+        }
+    }
+
+    private void onReleased(String key) {
+        List<Runnable> ready = new ArrayList<>();
+        List<Connection> expired = new ArrayList<>();
+        synchronized (hosts) {
+            Host host = host(key);
+            expire(host, expired);
+            --host.Leased;
+            for (int available = maxPerHost - host.Leased; available > 0 && !host.Waiters.isEmpty(); --available)
+                ready.add(host.Waiters.poll());
+            if (host.isUnused())
+                hosts.remove(key);
+        }
+        expired.forEach(ConnectionPool::close);
+        ready.forEach(Runnable::run);
+    }
+
+    /**
+     * Sets the limit of connections to one host.
+     * @param maxPerHost The number of connections [1; Infinity)
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        assert maxPerHost > 0;
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Sets the limit of idle connections kept for one host.
+     * @param maxIdlePerHost The number of connections [0; Infinity), 0 disables reusing
+     */
+    public void setMaxIdlePerHost(int maxIdlePerHost) {
+        assert maxIdlePerHost >= 0;
+        this.maxIdlePerHost = maxIdlePerHost;
+    }
+
+    /**
+     * Sets the time of keeping idle connection open.
+     * @param timeout The timeout value in milliseconds.
+     */
+    public void setIdleTimeout(long timeout) {
+        assert timeout >= 0;
+        this.idleTimeout = timeout;
+        // the sweep follows the new timeout
+        scheduleSweep();
+    }
+
+    /**
+     * Sets the context of the TLS connections: the trusted certificates, the client keys and the session cache.
+     * The sessions are resumed by the connections made by the same context.
+     * @param sslContext The initialized context, null for the default one ({@link SSLContext#getDefault()}).
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * @return The context of the TLS connections.
+     * @throws IOException if the default context is not available.
+     */
+    public SSLContext getSslContext() throws IOException {
+        return TlsChannel.contextOrDefault(sslContext);
+    }
+
+    /**
+     * @param key The remote host key (see {@link #keyOf(URL)}).
+     * @return The number of idle connections to the host.
+     */
+    public int getIdleCount(String key) {
+        synchronized (hosts) {
+            Host host = hosts.get(key);
+            return host == null ? 0 : host.Idle.size();
+        }
+    }
+
+    /**
+     * Closes all idle connections.
+     * Leased connections are closed when released.
+     */
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+        synchronized (hosts) {
+            for (Host host : hosts.values()) {
+                host.Idle.forEach(ConnectionPool::close);
+                host.Idle.clear();
+            }
+            maxIdlePerHost = 0;
+        }
+    }
+
+    private Host host(String key) {
+        Host host = hosts.get(key);
+        if (host == null) {
+            host = new Host();
+            hosts.put(key, host);
+        }
+        return host;
+    }
+
+    /**
+     * Takes the expired idle connections of the host out, they are closed by the caller outside the lock.
+     */
+    private void expire(Host host, List<Connection> expired) {
+        long deadline = System.currentTimeMillis() - idleTimeout;
+        Iterator<Connection> ci = host.Idle.descendingIterator();
+        while (ci.hasNext()) {
+            Connection idle = ci.next();
+            if (idle.releasedAt > deadline && idle.Channel.isOpen())
+                break;
+            ci.remove();
+            expired.add(idle);
+        }
+    }
+
+    /**
+     * Closes the expired idle connections of all hosts and forgets the unused hosts.
+     */
+    private void sweep() {
+        List<Connection> expired = new ArrayList<>();
+        synchronized (hosts) {
+            for (Iterator<Host> hi = hosts.values().iterator(); hi.hasNext(); ) {
+                Host host = hi.next();
+                expire(host, expired);
+                if (host.isUnused())
+                    hi.remove();
+            }
+        }
+        expired.forEach(ConnectionPool::close);
+        scheduleSweep();
+    }
+
+    private synchronized void scheduleSweep() {
+        if (nextSweep != null)
+            nextSweep.cancel(false);
+        try {
+            nextSweep = sweeper.schedule(this::sweep, Math.max(idleTimeout / 2, MIN_SWEEP_PERIOD), TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException ignored) {
+            // the pool is closed
+        }
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.Channel.close();
+        }
+        catch (IOException ignored) {}
+    }
+
+    /**
+     * State of connections to one host.
+     * Idle connections are ordered from the most recently released.
+     */
+    private static class Host {
+        final Deque<Connection> Idle = new ArrayDeque<>();
+        final Deque<Runnable> Waiters = new ArrayDeque<>();
+        int Leased;
+
+        boolean isUnused() {
+            return Leased == 0 && Idle.isEmpty() && Waiters.isEmpty();
+        }
+    }
+
+    private static final long MIN_SWEEP_PERIOD = 25;
+
+    private final AsynchronousChannelGroup group;
+    private final ScheduledThreadPoolExecutor sweeper;
+    private ScheduledFuture<?> nextSweep;
+    private final Map<String, Host> hosts = new HashMap<>();
+
+    private volatile int maxPerHost = DEFAULT_MAX_PER_HOST;
+    private volatile int maxIdlePerHost = DEFAULT_MAX_IDLE_PER_HOST;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile SSLContext sslContext;
+}
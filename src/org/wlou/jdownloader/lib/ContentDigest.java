@@ -0,0 +1,299 @@
+package org.wlou.jdownloader.lib;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The expected digests of the resource content: the digest of the whole content and (or)
+ * the digests of the fixed size blocks. The digests are computed while the content is received
+ * (see {@link Download#setExpectedDigest(ContentDigest)}), the mismatch turns the download to
+ * {@link Download.Status#CORRUPTED}. The block digests allow to report the corrupted ranges.
+ */
+public class ContentDigest {
+
+    /**
+     * Supported algorithms, the digests are hex strings of the big-endian bytes
+     */
+    public enum Algorithm {
+        SHA_256("sha-256"),
+        MD5("md5"),
+        CRC32C("crc32c");
+
+        Algorithm(String name) {
+            Name = name;
+        }
+
+        /**
+         * @param name The name of the algorithm: "sha-256" (or "sha256"), "md5" or "crc32c", the case is ignored.
+         * @return The algorithm.
+         * @throws IllegalArgumentException when the algorithm is not supported
+         */
+        public static Algorithm of(String name) {
+            String normalized = name.trim().toLowerCase(Locale.ROOT);
+            for (Algorithm algorithm : values()) {
+                if (algorithm.Name.equals(normalized) || algorithm.Name.replace("-", "").equals(normalized))
+                    return algorithm;
+            }
+            throw new IllegalArgumentException(String.format("Unsupported digest algorithm: %s", name));
+        }
+
+        /**
+         * Computes the digest of the bytes, e.g. to form the expected block digests of the known content.
+         * @param bytes The bytes from the position to the limit, the buffer's position is moved to its limit.
+         * @return The lower case hex digest.
+         */
+        public String digest(ByteBuffer bytes) {
+            Hasher hasher = newHasher();
+            hasher.update(bytes);
+            return toHex(hasher.digest());
+        }
+
+        /**
+         * @return True if the digests of the adjacent parts are combined to the digest of the whole content,
+         *         so the parts may be received and digested in parallel (CRC-32C)
+         */
+        public boolean isCombinable() {
+            return this == CRC32C;
+        }
+
+        /**
+         * Combines the digests of the adjacent parts of the content.
+         * @param first The digest of the first part.
+         * @param second The digest of the part following the first one.
+         * @param length The length of the second part.
+         * @return The digest of both parts
+         * @throws UnsupportedOperationException when the algorithm is not combinable (see {@link #isCombinable()})
+         */
+        byte[] combine(byte[] first, byte[] second, long length) {
+            if (!isCombinable())
+                throw new UnsupportedOperationException(String.format("%s digests can't be combined", Name));
+            return Crc32cHasher.toBytes(Crc32cHasher.combine(Crc32cHasher.toInt(first), Crc32cHasher.toInt(second), length));
+        }
+
+        Hasher newHasher() {
+            switch (this) {
+                case CRC32C:
+                    return new Crc32cHasher();
+                default:
+                    try {
+                        return new MessageDigestHasher(MessageDigest.getInstance(Name.toUpperCase(Locale.ROOT)));
+                    }
+                    catch (NoSuchAlgorithmException exc) {
+                        // every Java platform is required to support SHA-256 and MD5
+                        throw new IllegalStateException(exc);
+                    }
+            }
+        }
+
+        public final String Name;
+    }
+
+    /**
+     * @param algorithm The algorithm of the digest.
+     * @param expected The hex digest of the whole content.
+     */
+    public ContentDigest(Algorithm algorithm, String expected) {
+        this(algorithm, expected, 0, Collections.emptyList());
+    }
+
+    /**
+     * @param algorithm The algorithm of the digests.
+     * @param expected The hex digest of the whole content or null if only the blocks are verified.
+     * @param blockSize The size of the blocks [1; Infinity) or 0 if there are no block digests.
+     * @param blocks The hex digests of the blocks in the order of the content, the last block may be shorter.
+     */
+    public ContentDigest(Algorithm algorithm, String expected, long blockSize, List<String> blocks) {
+        assert algorithm != null && blocks != null;
+        assert expected != null || !blocks.isEmpty();
+        assert blocks.isEmpty() ? blockSize == 0 : blockSize > 0;
+        Type = algorithm;
+        Expected = expected != null ? expected.toLowerCase(Locale.ROOT) : null;
+        BlockSize = blockSize;
+        List<String> normalized = new ArrayList<>(blocks.size());
+        for (String block : blocks)
+            normalized.add(block.toLowerCase(Locale.ROOT));
+        Blocks = Collections.unmodifiableList(normalized);
+    }
+
+    /**
+     * Parses the digest of the whole content in "algorithm:hex" form, e.g. "sha-256:9f86d0...".
+     * @param digest The textual digest.
+     * @return The expected digest.
+     * @throws IllegalArgumentException when the algorithm is not supported or the digest is not hex
+     */
+    public static ContentDigest parse(String digest) {
+        int colon = digest.indexOf(':');
+        if (colon < 0)
+            throw new IllegalArgumentException(String.format("Digest is not in \"algorithm:hex\" form: %s", digest));
+        String hex = digest.substring(colon + 1).trim();
+        if (hex.isEmpty() || !hex.matches("[0-9a-fA-F]+") || hex.length() % 2 != 0)
+            throw new IllegalArgumentException(String.format("Digest is not hex: %s", hex));
+        return new ContentDigest(Algorithm.of(digest.substring(0, colon)), hex);
+    }
+
+    /**
+     * @return True if the digests of the blocks are known
+     */
+    public boolean hasBlocks() {
+        return !Blocks.isEmpty();
+    }
+
+    /**
+     * The digest of the whole content is computed in the stream only if the content is received in order,
+     * unless the digests of the parts are combinable (see {@link Algorithm#isCombinable()}).
+     * @return True if the content may be received by parallel segments without reading it back for verification
+     */
+    public boolean allowsSegments() {
+        return Expected == null || Type.isCombinable();
+    }
+
+    static String toHex(byte[] digest) {
+        StringBuilder result = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+            result.append(String.format("%02x", b));
+        return result.toString();
+    }
+
+    /**
+     * The algorithm of the digests
+     */
+    public final Algorithm Type;
+    /**
+     * The lower case hex digest of the whole content or null
+     */
+    public final String Expected;
+    /**
+     * The size of the blocks or 0 if there are no block digests
+     */
+    public final long BlockSize;
+    /**
+     * The lower case hex digests of the blocks
+     */
+    public final List<String> Blocks;
+
+    /**
+     * The incremental computation of the digest.
+     */
+    interface Hasher {
+        /**
+         * Digests the remaining bytes of the buffer, the buffer's position is moved to its limit.
+         */
+        void update(ByteBuffer bytes);
+
+        /**
+         * @return The digest of the bytes, the hasher can't be used after that
+         */
+        byte[] digest();
+    }
+
+    private static class MessageDigestHasher implements Hasher {
+        MessageDigestHasher(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(ByteBuffer bytes) {
+            digest.update(bytes);
+        }
+
+        @Override
+        public byte[] digest() {
+            return digest.digest();
+        }
+
+        private final MessageDigest digest;
+    }
+
+    /**
+     * CRC-32C (Castagnoli) by the byte-wise table, java.util.zip.CRC32C isn't available in Java 8.
+     */
+    private static class Crc32cHasher implements Hasher {
+        @Override
+        public void update(ByteBuffer bytes) {
+            int value = crc;
+            while (bytes.hasRemaining())
+                value = TABLE[(value ^ bytes.get()) & 0xFF] ^ (value >>> 8);
+            crc = value;
+        }
+
+        @Override
+        public byte[] digest() {
+            return toBytes(~crc);
+        }
+
+        static byte[] toBytes(int value) {
+            return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+
+        static int toInt(byte[] digest) {
+            assert digest.length == 4;
+            return (digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16 | (digest[2] & 0xFF) << 8 | (digest[3] & 0xFF);
+        }
+
+        /**
+         * Computes the CRC of the concatenation from the CRCs of the parts (the zlib way):
+         * the first CRC is shifted over the zero bytes of the second part by squaring the shift operator
+         * in GF(2), so it takes O(log(length)) steps.
+         */
+        static int combine(int first, int second, long length) {
+            if (length <= 0)
+                return first;
+            int[] even = new int[32];
+            int[] odd = new int[32];
+            // the operator shifting by one zero bit
+            odd[0] = POLYNOMIAL;
+            for (int n = 1, row = 1; n < 32; ++n, row <<= 1)
+                odd[n] = row;
+            // the operators shifting by two and four zero bits
+            square(even, odd);
+            square(odd, even);
+            // the first CRC is shifted by the bits of the length, starting with the operator for one zero byte
+            do {
+                square(even, odd);
+                if ((length & 1) != 0)
+                    first = times(even, first);
+                length >>>= 1;
+                if (length == 0)
+                    break;
+                square(odd, even);
+                if ((length & 1) != 0)
+                    first = times(odd, first);
+                length >>>= 1;
+            } while (length != 0);
+            return first ^ second;
+        }
+
+        private static int times(int[] matrix, int vector) {
+            int sum = 0;
+            for (int i = 0; vector != 0; ++i, vector >>>= 1) {
+                if ((vector & 1) != 0)
+                    sum ^= matrix[i];
+            }
+            return sum;
+        }
+
+        private static void square(int[] square, int[] matrix) {
+            for (int n = 0; n < 32; ++n)
+                square[n] = times(matrix, matrix[n]);
+        }
+
+        private static final int POLYNOMIAL = 0x82F63B78;
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < TABLE.length; ++i) {
+                int value = i;
+                for (int bit = 0; bit < 8; ++bit)
+                    value = (value & 1) != 0 ? (value >>> 1) ^ POLYNOMIAL : value >>> 1;
+                TABLE[i] = value;
+            }
+        }
+
+        private int crc = ~0;
+    }
+}
@@ -0,0 +1,282 @@
+package org.wlou.jdownloader.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Verifies the content of the download against the {@link ContentDigest} without the extra pass over the file.
+ * Acts as following:
+ *  1. every output sink is wrapped (see {@link #wrap(OutputSink.Factory)}), the wrapper digests the bytes
+ *     of the filled buffer before handing it over to the sink, so the bytes are digested while they are in memory;
+ *  2. the sink starting at the beginning of the content computes the whole digest (every sink computes the digest
+ *     of its region if the parts are combinable, see {@link ContentDigest.Algorithm#isCombinable()}),
+ *     every sink computes the digests of the blocks starting in its region (the segments are aligned to the blocks,
+ *     see {@link #getAlignment()}); the whole digest which isn't combinable is streamed by the single segment only
+ *     (see {@link ContentDigest#allowsSegments()});
+ *  3. when the content is over the digests are finished and compared ({@link #verify(Path, long)}),
+ *     only the bytes not digested in the stream (the ranges received by the previous runs) are read from the file.
+ */
+class ContentVerifier {
+
+    ContentVerifier(ContentDigest expected) {
+        assert expected != null;
+        this.expected = expected;
+    }
+
+    /**
+     * @param factory The factory of the sinks writing the content.
+     * @return The factory of the sinks digesting the content before writing.
+     */
+    OutputSink.Factory wrap(OutputSink.Factory factory) {
+        return (channel, offset, length) -> wrap(factory.open(channel, offset, length), offset);
+    }
+
+    /**
+     * @param sink The sink writing the region of the content.
+     * @param offset The position of the region in the content.
+     * @return The sink digesting the region before writing.
+     */
+    OutputSink wrap(OutputSink sink, long offset) {
+        return new DigestingOutputSink(sink, offset);
+    }
+
+    /**
+     * @return The size the segments should be multiple of, so the blocks are digested in the stream
+     */
+    long getAlignment() {
+        return expected.hasBlocks() ? expected.BlockSize : 1;
+    }
+
+    /**
+     * Finishes the digests and compares them with the expected ones.
+     * @param file The target file, the bytes not digested in the stream are read from it.
+     * @param length The length of the content.
+     * @return The mismatched [from, to) ranges of the content, empty if the content is intact.
+     * @throws IOException when the file can't be read
+     */
+    synchronized List<long[]> verify(Path file, long length) throws IOException {
+        List<long[]> result = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (expected.hasBlocks()) {
+                long count = (length + expected.BlockSize - 1) / expected.BlockSize;
+                if (count != expected.Blocks.size())
+                    result.add(new long[] {0, length});
+                for (int index = 0; index < count && index < expected.Blocks.size(); ++index) {
+                    long from = index * expected.BlockSize;
+                    long to = Math.min(from + expected.BlockSize, length);
+                    String actual = finish(blocks.remove(index), channel, from, to);
+                    if (!actual.equals(expected.Blocks.get(index)))
+                        result.add(new long[] {from, to});
+                }
+            }
+            if (expected.Expected != null && !finishWhole(channel, length).equals(expected.Expected) && result.isEmpty())
+                result.add(new long[] {0, length});
+        }
+        return DownloadTools.mergeRanges(result);
+    }
+
+    /**
+     * Digests the rest of the [from, to) range from the file.
+     * The streamed digest is continued if it covers the beginning of the range, otherwise the range is read entirely.
+     */
+    private String finish(Streamed streamed, FileChannel channel, long from, long to) throws IOException {
+        ContentDigest.Hasher hasher = expected.Type.newHasher();
+        long position = from;
+        if (streamed != null && streamed.From == from && streamed.To <= to) {
+            hasher = streamed.Hasher;
+            position = streamed.To;
+        }
+        return ContentDigest.toHex(read(hasher, channel, position, to).digest());
+    }
+
+    /**
+     * Digests the whole content: the streamed parts are combined in the order of the content (or the part
+     * at the beginning is continued if they aren't combinable), the gaps between them are read from the file.
+     */
+    private String finishWhole(FileChannel channel, long length) throws IOException {
+        if (!expected.Type.isCombinable())
+            return finish(parts.get(0L), channel, 0, length);
+        byte[] result = null;
+        for (long position = 0; position < length || result == null; ) {
+            Streamed part = parts.get(position);
+            byte[] digest;
+            long to;
+            if (part != null && part.To > position && part.To <= length) {
+                digest = part.Hasher.digest();
+                to = part.To;
+            }
+            else {
+                Long next = parts.higherKey(position);
+                to = next != null ? Math.min(next, length) : length;
+                digest = read(expected.Type.newHasher(), channel, position, to).digest();
+            }
+            result = result == null ? digest : expected.Type.combine(result, digest, to - position);
+            position = to;
+        }
+        return ContentDigest.toHex(result);
+    }
+
+    private static ContentDigest.Hasher read(ContentDigest.Hasher hasher, FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        for (long position = from; position < to; ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            int read = channel.read(buffer, position);
+            if (read == -1)
+                throw new IOException(String.format("Content is truncated at %d bytes", position));
+            position += read;
+            buffer.flip();
+            hasher.update(buffer);
+        }
+        return hasher;
+    }
+
+    private synchronized void streamed(Integer block, Streamed streamed) {
+        if (block == null)
+            parts.put(streamed.From, streamed);
+        else
+            blocks.put(block, streamed);
+    }
+
+    /**
+     * The digest of the [From, To) range computed in the stream, it isn't finished yet.
+     */
+    private static class Streamed {
+        Streamed(ContentDigest.Hasher hasher, long from, long to) {
+            Hasher = hasher;
+            From = from;
+            To = to;
+        }
+
+        final ContentDigest.Hasher Hasher;
+        final long From;
+        final long To;
+    }
+
+    /**
+     * Digests the filled part of the buffers given by the wrapped sink.
+     * The sink is used by one network operation at a time, so the digests are not synchronized.
+     */
+    private class DigestingOutputSink implements OutputSink {
+        DigestingOutputSink(OutputSink sink, long offset) {
+            this.sink = sink;
+            this.position = offset;
+            this.start = offset;
+            if (expected.Expected != null && (offset == 0 || expected.Type.isCombinable()))
+                whole = expected.Type.newHasher();
+            if (expected.hasBlocks() && offset % expected.BlockSize == 0)
+                startBlock();
+        }
+
+        @Override
+        public synchronized ByteBuffer nextOutputBuffer() {
+            digestFilled();
+            ByteBuffer next = sink.nextOutputBuffer();
+            // the same buffer may be given again after it is written, so the mark is taken anew
+            mark = next != null ? next.position() : 0;
+            buffer = next;
+            return next;
+        }
+
+        @Override
+        public long getReceived() {
+            return sink.getReceived();
+        }
+
+        @Override
+        public long getWritten() {
+            return sink.getWritten();
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return sink.isCompleted();
+        }
+
+        @Override
+        public void force() {
+            sink.force();
+        }
+
+        @Override
+        public synchronized void release(boolean flush) {
+            if (flush) {
+                digestFilled();
+                if (whole != null)
+                    streamed(null, new Streamed(whole, start, position));
+                // the block started at the end of the region belongs to the next sink
+                if (block != null && position > blockStart)
+                    streamed(blockIndex, new Streamed(block, blockStart, position));
+            }
+            whole = null;
+            block = null;
+            buffer = null;
+            sink.release(flush);
+        }
+
+        private void digestFilled() {
+            ByteBuffer current = buffer;
+            if (current == null || current.position() == mark)
+                return;
+            ByteBuffer bytes = current.duplicate();
+            bytes.limit(current.position());
+            bytes.position(mark);
+            mark = current.position();
+            if (whole != null)
+                whole.update(bytes.duplicate());
+            if (expected.hasBlocks())
+                digestBlocks(bytes);
+            else
+                position += bytes.remaining();
+        }
+
+        private void digestBlocks(ByteBuffer bytes) {
+            while (bytes.hasRemaining()) {
+                long boundary = (position / expected.BlockSize + 1) * expected.BlockSize;
+                int count = (int) Math.min(bytes.remaining(), boundary - position);
+                if (block != null) {
+                    ByteBuffer part = bytes.duplicate();
+                    part.limit(part.position() + count);
+                    block.update(part);
+                }
+                bytes.position(bytes.position() + count);
+                position += count;
+                if (position == boundary) {
+                    if (block != null)
+                        streamed(blockIndex, new Streamed(block, blockStart, position));
+                    startBlock();
+                }
+            }
+        }
+
+        private void startBlock() {
+            blockIndex = (int) (position / expected.BlockSize);
+            blockStart = position;
+            block = expected.Type.newHasher();
+        }
+
+        private final OutputSink sink;
+        private final long start;
+        private ByteBuffer buffer;
+        private int mark;
+        private long position;
+        private ContentDigest.Hasher whole;
+        private ContentDigest.Hasher block;
+        private int blockIndex;
+        private long blockStart;
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ContentDigest expected;
+    private final Map<Integer, Streamed> blocks = new HashMap<>();
+    private final TreeMap<Long, Streamed> parts = new TreeMap<>();
+}
@@ -3,29 +3,53 @@ package org.wlou.jdownloader.lib;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Method;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Observable;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
 
 /**
  * Core class representing the download itself.
  * Provides base functionality for initializing, preparing, processing, keeping track and finalizing one download.
- * Implements {@link Observable} interface for signaling changes of the download state.
+ * Implements {@link Observable} interface for signaling changes of the download state
+ * (progress changes are published by {@link ProgressPublisher}).
  */
 public class Download extends Observable {
 
+    /**
+     * The default upper limit of the target file part mapped to the memory at a time
+     */
+    public static final long DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The scheduling priority of the download unless it is set explicitly
+     */
+    public static final int DEFAULT_PRIORITY = 0;
+
     /**
      * Represents states of the {@link Download} objects
      * Valid chains of states:
      *    NEW -> INITIALIZING -> INITIALIZED -> DOWNLOADING -> DOWNLOADED
+     *    (in single-request mode INITIALIZED -> DOWNLOADING transition is immediate)
      *    INITIALIZING -> ERROR
      *    DOWNLOADING -> ERROR
+     *    DOWNLOADING -> VERIFYING -> DOWNLOADED
+     *    INITIALIZING -> VERIFYING (the cached copy is verified)
+     *    VERIFYING -> CORRUPTED
+     *    VERIFYING -> ERROR
+     *    INITIALIZING -> RETRYING -> NEW
+     *    DOWNLOADING -> RETRYING -> NEW
      *    [ANY] -> GHOST
      */
     public enum Status
@@ -59,6 +83,22 @@ public class Download extends Observable {
          * failed stage (initializing or processing)
          */
         ERROR,
+        /**
+         * Represents the download whose content doesn't match the expected digest
+         * (see {@link Download#setExpectedDigest(ContentDigest)}), the mismatched ranges are
+         * reported by {@link Download#getMismatchedRanges()}
+         */
+        CORRUPTED,
+        /**
+         * Represents the download failed by a transient error and waiting for the next attempt
+         * (see {@link Download#setRetryPolicy(RetryPolicy)}), the received ranges are kept
+         */
+        RETRYING,
+        /**
+         * Represents the received download whose content is compared with the expected digest
+         * (see {@link Download#setExpectedDigest(ContentDigest)}) by {@link Downloader} off the network threads
+         */
+        VERIFYING,
         /**
          * Represents service state o the download. It is used before
          * removing it from the {@link DownloadManager}
@@ -66,6 +106,64 @@ public class Download extends Observable {
         GHOST
     }
 
+    /**
+     * Represents the part of the download which is processed by a separate connection
+     * (see {@link Downloader#process(Downloader.DownloaderContext, java.util.function.Supplier)}).
+     * Each segment writes to its own region of the target file.
+     */
+    public static class Segment {
+        /**
+         * @param offset The offset of the segment in the resource
+         * @param length The number of bytes in the segment
+         * @param sink The sink writing the region of the target file dedicated to the segment
+         */
+        Segment(long offset, long length, OutputSink sink) {
+            Offset = offset;
+            Length = length;
+            this.sink = sink;
+        }
+
+        /**
+         * The offset of the first byte of the segment in the resource
+         */
+        public final long Offset;
+        /**
+         * The number of bytes in the segment
+         */
+        public final long Length;
+
+        /**
+         * Provides the byte buffer for writing the segment content.
+         * @return the buffer of the segment's sink or null if nothing left
+         */
+        public ByteBuffer nextOutputBuffer() {
+            return sink.nextOutputBuffer();
+        }
+
+        /**
+         * @return The number of already received bytes of the segment
+         */
+        public long getReceived() {
+            return sink.getReceived();
+        }
+
+        /**
+         * @return The number of bytes of the segment handed over to the target file
+         */
+        public long getWritten() {
+            return sink.getWritten();
+        }
+
+        /**
+         * @return True if all bytes of the segment are received
+         */
+        public boolean isCompleted() {
+            return sink.isCompleted();
+        }
+
+        private final OutputSink sink;
+    }
+
     /**
      * Initializes the download with url and target directory path.
      * Checks target directory for existing filename and generates unique file name.
@@ -87,6 +185,23 @@ public class Download extends Observable {
         currentStatus = Status.NEW;
     }
 
+    /**
+     * Restores the download recorded in the {@link DownloadJournal}.
+     * The target file is reused: the completed ranges are not downloaded again if the server
+     * supports byte ranges and the resource is not changed (see {@link DownloadTools#sameResource}).
+     * Sets the {@link Download#currentStatus} of the download to {@link org.wlou.jdownloader.lib.Download.Status#NEW}
+     * @param entry the journal record of the download
+     */
+    public Download(DownloadJournal.Entry entry) {
+        this.what = entry.Url;
+        this.where = entry.Where;
+        this.length = entry.Length;
+        this.etag = entry.ETag;
+        this.lastModified = entry.LastModified;
+        this.completed = DownloadTools.mergeRanges(entry.Completed);
+        currentStatus = Status.NEW;
+    }
+
     /**
      * Getter for source url.
      * @return downloading url
@@ -129,16 +244,126 @@ public class Download extends Observable {
 
     /**
      * Getter for the current downloading progress
-     * @return progress in range [0.0; 1.0]
+     * @return progress in range [0.0; 1.0] or 0.0 while the length of the resource is unknown
+     *         (use {@link #getReceived()} then)
      */
     public double getProgress() {
-        if (mainBuffer != null)
-            return (double)(mainBuffer.capacity() - mainBuffer.remaining())/(double)mainBuffer.capacity();
-        return 0;
+        long total = length;
+        if (total <= 0)
+            return 0;
+        return (double)getReceived()/(double)total;
+    }
+
+    /**
+     * Getter for the number of the received content bytes
+     * (including the ranges completed before the download was restored from the journal)
+     * @return the number of bytes received to the target file so far
+     */
+    public long getReceived() {
+        long received = 0;
+        for (long[] range : completed)
+            received += range[1] - range[0];
+        OutputSink whole = output;
+        if (whole != null)
+            received = whole.getReceived();
+        for (Segment segment : segments)
+            received += segment.getReceived();
+        return received;
+    }
+
+    /**
+     * Getter for the current receiving rate
+     * @return bytes per second received from the network (see {@link Metrics.Meter#getRate()})
+     */
+    public long getRate() {
+        return received.getRate();
+    }
+
+    /**
+     * Getter for the length of the resource content
+     * @return the number of bytes in the resource (Content-Length) or -1 if the download is not initialized
+     *         or the length is unknown until the content is received (the chunked body or the body until close)
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Getter for the entity tag of the resource
+     * @return the ETag validator from the last response or null if it is unknown
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * Getter for the modification date of the resource
+     * @return the Last-Modified validator from the last response or null if it is unknown
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Collects the byte ranges of the resource already written to the target file
+     * (including the ranges completed before the download was restored from the journal).
+     * @return sorted non-overlapping [from, to) pairs
+     */
+    public List<long[]> getCompletedRanges() {
+        if (currentStatus == Status.DOWNLOADED)
+            return Collections.singletonList(new long[] {0, length});
+        if (currentStatus == Status.CORRUPTED)
+            // only the mismatched ranges are downloaded again
+            return DownloadTools.remainingRanges(mismatched, length);
+        return writtenRanges();
+    }
+
+    /**
+     * @return The ranges completed before the current attempt and written by its sinks
+     */
+    private List<long[]> writtenRanges() {
+        List<long[]> ranges = new ArrayList<>(completed);
+        OutputSink whole = output;
+        if (whole != null)
+            ranges.add(new long[] {0, whole.getWritten()});
+        for (Segment segment : segments)
+            ranges.add(new long[] {segment.Offset, segment.Offset + segment.getWritten()});
+        return DownloadTools.mergeRanges(ranges);
+    }
+
+    /**
+     * Forces the content written to the target file so far to the storage device,
+     * so the ranges given by {@link #getCompletedRanges()} before the call survive the crash.
+     * Does nothing if the file isn't opened or is closed meanwhile.
+     * @throws IOException when the content can't be written
+     */
+    public void force() throws IOException {
+        FileChannel file = channel;
+        if (file == null || !file.isOpen())
+            return;
+        List<OutputSink> sinks = new ArrayList<>();
+        OutputSink whole = output;
+        if (whole != null)
+            sinks.add(whole);
+        for (Segment segment : segments)
+            sinks.add(segment.sink);
+        try {
+            for (OutputSink sink : sinks)
+                sink.force();
+            file.force(false);
+        }
+        catch (UncheckedIOException exc) {
+            throw exc.getCause();
+        }
+        catch (ClosedChannelException ignored) {
+            // the output is released, the completed ranges were forced by the attempt finishing
+        }
     }
 
     /**
-     * Reports te downloading progress to the registered {@link java.util.Observer} objects
+     * Reports te downloading progress to the registered {@link java.util.Observer} objects.
+     * The observers are notified in the calling thread, the downloading itself reports only state transitions,
+     * use {@link ProgressPublisher} for sampling the progress.
      */
     public void invalidateProgress() {
         setChanged();
@@ -150,7 +375,232 @@ public class Download extends Observable {
      * @return next output buffer or null if nothing left
      */
     public ByteBuffer nextOutputBuffer() {
-        return outputs.poll();
+        OutputSink whole = output;
+        return whole != null ? whole.nextOutputBuffer() : null;
+    }
+
+    /**
+     * Gets segments the download is split into.
+     * @return segments of the download or empty list if the download is processed by a single connection
+     */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Gets the upper limit of the connections number used for processing the download.
+     * @return the number of segments the download can be split into
+     */
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * Sets the upper limit of the connections number used for processing the download.
+     * Takes effect only before initialization is completed and only if the server supports byte ranges.
+     * @param maxSegments the number of segments the download can be split into [1; Infinity)
+     */
+    public void setMaxSegments(int maxSegments) {
+        assert maxSegments > 0;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Gets the upper limit of the target file part mapped to the memory at a time.
+     * @return the size of the mapped window in bytes
+     */
+    public long getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Sets the upper limit of the target file part mapped to the memory at a time (per segment).
+     * The file is mapped window by window, every window is flushed and unmapped when it is filled.
+     * Takes effect only before initialization is completed and only for the default memory mapped output
+     * (see {@link #setOutputSink(OutputSink.Factory)}).
+     * @param windowSize the size of the mapped window in bytes [1; {@link Integer#MAX_VALUE}]
+     */
+    public void setWindowSize(long windowSize) {
+        assert windowSize > 0 && windowSize <= Integer.MAX_VALUE;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Sets the way the received bytes are written to the target file.
+     * Takes effect only before initialization is completed.
+     * @param factory the factory of the sinks (see {@link MappedOutputSink#factory(long)},
+     *                {@link PositionalOutputSink#factory(int, int)}) or null for memory mapped output
+     *                with the window of {@link #getWindowSize()} bytes
+     */
+    public void setOutputSink(OutputSink.Factory factory) {
+        sinkFactory = factory;
+    }
+
+    /**
+     * Gets the scheduling priority of the download.
+     * @return the priority, greater values are started earlier
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the scheduling priority of the download (see {@link DownloadScheduler}).
+     * Affects the order of starting the downloads waiting for a free slot.
+     * @param priority the priority, greater values are started earlier ({@link #DEFAULT_PRIORITY} by default)
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Gets the bandwidth limit of the download.
+     * @return the limit in bytes per second or {@link TokenBucket#UNLIMITED}
+     */
+    public long getBandwidthLimit() {
+        return bandwidth.getRate();
+    }
+
+    /**
+     * Sets the bandwidth limit of the download, it affects the running transfer
+     * (see {@link BandwidthLimiter} for host and global limits).
+     * @param rate the limit in bytes per second or {@link TokenBucket#UNLIMITED}
+     */
+    public void setBandwidthLimit(long rate) {
+        bandwidth.setRate(rate);
+    }
+
+    /**
+     * @return the token bucket of the download's own bandwidth limit
+     */
+    TokenBucket getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * @return the meter of the bytes received from the network (see {@link Metrics#received(Download, long)})
+     */
+    Metrics.Meter getReceivedMeter() {
+        return received;
+    }
+
+    /**
+     * Sets the listener of the state transitions.
+     * Unlike {@link java.util.Observer}s the listener is not notified about progress changes.
+     * @param listener The callback receiving the download and its new state
+     */
+    public void setStatusListener(BiConsumer<Download, Status> listener) {
+        statusListener = listener;
+    }
+
+    /**
+     * Getter for the cached copy of the resource.
+     * @return the entry validated by the initialization request or null if the resource isn't cached
+     */
+    public DownloadCache.Entry getCached() {
+        return cached;
+    }
+
+    /**
+     * Sets the cached copy of the resource, the download is initialized by the conditional request then
+     * (see {@link DownloadTools#requestParams(java.util.Map, Download)}).
+     * Takes effect only before initialization is started.
+     * @param entry the entry found by {@link DownloadCache#lookup(URL)} or null
+     */
+    public void setCached(DownloadCache.Entry entry) {
+        cached = entry;
+    }
+
+    /**
+     * Checks whether the content is taken from the cache instead of the network.
+     * @return true if the download is completed by {@link #completeFromCache()}
+     */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    /**
+     * Getter for the expected digest of the content.
+     * @return the digest verified when the content is received or null if the content isn't verified
+     */
+    public ContentDigest getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    /**
+     * Sets the expected digest of the content. The digests are computed while the bytes are received,
+     * only the bytes not digested in the stream are read back from the target file when the content is over
+     * (see {@link ContentVerifier}). The mismatch turns the download to {@link Status#CORRUPTED}.
+     * Segments are aligned to the blocks of the digest, so the block digests are computed in the stream too.
+     * Takes effect only before initialization is completed.
+     * @param digest the expected digest or null to skip verification
+     */
+    public void setExpectedDigest(ContentDigest digest) {
+        expectedDigest = digest;
+    }
+
+    /**
+     * Gets the ranges of the content which don't match the expected digest.
+     * The exact ranges are known only if the block digests are supplied, otherwise the whole content is reported.
+     * @return sorted non-overlapping [from, to) pairs, empty unless the download is {@link Status#CORRUPTED}
+     */
+    public List<long[]> getMismatchedRanges() {
+        return mismatched;
+    }
+
+    /**
+     * Gets the policy of retrying the transient failures.
+     * @return the policy ({@link RetryPolicy#NONE} by default)
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the policy of retrying the transient failures (see {@link #interruptExceptionally(String, Throwable, int)}).
+     * The next attempt continues from the written ranges by the range requests if the server supports them
+     * and the resource is not changed, as the download restored from the journal does.
+     * @param policy the policy, {@link RetryPolicy#NONE} fails the download on the first error
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        assert policy != null;
+        retryPolicy = policy;
+    }
+
+    /**
+     * Gets the number of the current attempt.
+     * @return 0 for the first attempt, the number of the retries made after that
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * @return the delay before the next attempt of the {@link Status#RETRYING} download in milliseconds
+     */
+    long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Checks whether the download is initialized from the content request itself.
+     * The partially received download is initialized by HEAD request anyway, its completed ranges are requested
+     * only if the resource is not changed.
+     * @return true if no separate HEAD request is made (see {@link #setSingleRequest(boolean)})
+     */
+    public boolean isSingleRequest() {
+        return singleRequest && completed.isEmpty();
+    }
+
+    /**
+     * Turns on/off single-request mode: the download is initialized from the headers of Http GET response
+     * and the content is written as soon as the headers are read.
+     * It halves the number of requests, but the download is never split into segments.
+     * Takes effect only before initialization is started.
+     * @param singleRequest true to skip separate HEAD request
+     */
+    public void setSingleRequest(boolean singleRequest) {
+        this.singleRequest = singleRequest;
     }
 
     /**
@@ -173,12 +623,45 @@ public class Download extends Observable {
     public synchronized boolean completeInitialization(String headers, String charset) {
         assert headers != null;
         assert charset != null;
+        HttpResponseParser response = new HttpResponseParser();
+        try {
+            response.parse(ByteBuffer.wrap(headers.getBytes(charset)));
+        } catch (Exception exc) {
+            lastError = exc;
+            return false;
+        }
+        return completeInitialization(response);
+    }
+
+    /**
+     * Implements initialization logic from parsed HTTP response
+     * @param response parsed HTTP HEAD response
+     * @return true if succeeded
+     */
+    public synchronized boolean completeInitialization(HttpResponseParser response) {
+        assert response != null;
         if (Download.Status.INITIALIZING != currentStatus)
             return false;
         try {
-            int headersLength = headers.getBytes(charset).length;
-            int contentLength = DownloadTools.parseContentLength(headers);
-            prepareOutput(headersLength, contentLength);
+            if (!response.isComplete())
+                throw new ParseException("Incomplete response headers", response.getHeadersLength());
+            long contentLength = DownloadTools.parseContentLength(response);
+            boolean acceptsRanges = DownloadTools.acceptsRanges(response);
+            boolean resumable = acceptsRanges && !completed.isEmpty() && contentLength > 0 && contentLength == length &&
+                DownloadTools.sameResource(etag, lastModified, response);
+            etag = response.getHeader(HttpTools.ETAG_KEY);
+            lastModified = response.getHeader(HttpTools.LAST_MODIFIED_KEY);
+            if (resumable) {
+                planOutput(contentLength, RESUMED_OUTPUT);
+            }
+            else {
+                int segmentsCount = 1;
+                // the whole digest which isn't combinable is computed in the stream only if the content is in order
+                ContentDigest digest = expectedDigest;
+                if (acceptsRanges && contentLength > 0 && (digest == null || digest.allowsSegments()))
+                    segmentsCount = DownloadTools.segmentsCount(contentLength, maxSegments);
+                planOutput(contentLength, segmentsCount);
+            }
         } catch (Exception exc) {
             lastError = exc;
             return false;
@@ -188,37 +671,307 @@ public class Download extends Observable {
     }
 
     /**
-     * Tries to receive processing exclusive rights in the current thread
+     * Implements initialization logic from HTTP GET response in single-request mode.
+     * Unlike {@link #completeInitialization(HttpResponseParser)} the output is never split into segments
+     * and the processing exclusive rights are acquired at once (see {@link #lockForProcessing()}).
+     * @param response parsed HTTP GET response headers
+     * @return true if succeeded
+     */
+    public synchronized boolean initializeFromResponse(HttpResponseParser response) {
+        assert response != null;
+        if (Download.Status.INITIALIZING != currentStatus)
+            return false;
+        try {
+            long contentLength = DownloadTools.parseContentLength(response);
+            etag = response.getHeader(HttpTools.ETAG_KEY);
+            lastModified = response.getHeader(HttpTools.LAST_MODIFIED_KEY);
+            planOutput(contentLength, 1);
+        } catch (Exception exc) {
+            lastError = exc;
+            return false;
+        }
+        setCurrentStatus(Download.Status.INITIALIZED, DownloadTools.SUCCESSFUL_INITIALIZED_MESSAGE);
+        return lockForProcessing();
+    }
+
+    /**
+     * Completes the download by the cached copy when the server has answered the initialization request
+     * by 304 Not Modified (see {@link DownloadTools#isNotModified(HttpResponseParser, Download)}).
+     * The target file is linked to the cached object, nothing is received.
+     * The copy is verified by {@link #completeVerification()} if the digest is expected.
+     * @return true if succeeded
+     */
+    public synchronized boolean completeFromCache() {
+        DownloadCache.Entry entry = cached;
+        if (Download.Status.INITIALIZING != currentStatus || entry == null)
+            return false;
+        try {
+            DownloadCache.restore(entry, where);
+        } catch (IOException exc) {
+            lastError = exc;
+            return false;
+        }
+        length = entry.Length;
+        etag = entry.ETag;
+        lastModified = entry.LastModified;
+        completed = Collections.singletonList(new long[] {0, entry.Length});
+        fromCache = true;
+        ContentDigest digest = expectedDigest;
+        if (digest != null) {
+            // nothing is digested in the stream, so the whole copy is read
+            mismatched = Collections.emptyList();
+            verifier = new ContentVerifier(digest);
+            setCurrentStatus(Download.Status.VERIFYING, DownloadTools.VERIFYING_MESSAGE);
+            return true;
+        }
+        setCurrentStatus(Download.Status.DOWNLOADED, DownloadTools.CACHED_MESSAGE);
+        return true;
+    }
+
+    /**
+     * Tries to receive processing exclusive rights in the current thread.
+     * The target file is opened here rather than by the initialization, so the initialized downloads
+     * waiting for the free slot of the scheduler hold neither file descriptors nor preallocated files.
+     * The download which target file can't be opened is completed with error.
      * @return true if succeeded
      */
     public synchronized boolean lockForProcessing() {
         if (Download.Status.INITIALIZED != currentStatus)
             return false;
+        try {
+            if (plannedSegments == RESUMED_OUTPUT)
+                resumeOutput(length);
+            else
+                prepareOutput(length, plannedSegments);
+        } catch (IOException exc) {
+            lastError = exc;
+            interruptExceptionally(DownloadTools.PROC_ERROR_MESSAGE);
+            return false;
+        }
         setCurrentStatus(Download.Status.DOWNLOADING, DownloadTools.SUCCESSFUL_INITIALIZED_MESSAGE);
         return true;
     }
 
     /**
-     * Completes downloading in a regular way
+     * Completes downloading in a regular way.
+     * The download with the expected digest becomes {@link Status#VERIFYING}, it is completed
+     * by {@link #completeVerification()}.
      * @return true if succeeded
      */
     public synchronized boolean completeProcessing() {
         if (Download.Status.DOWNLOADING != currentStatus)
             return false;
-        releaseBuffers();
+        long received = getReceived();
+        if (length >= 0 && received < length) {
+            // the connection is closed before the content is over, it is worth the next attempt
+            interruptExceptionally(DownloadTools.PROC_ERROR_MESSAGE,
+                new IOException(String.format("Content is incomplete: %d of %d bytes", received, length)), attempt);
+            return false;
+        }
+        try {
+            releaseBuffers(true);
+        } catch (IOException exc) {
+            lastError = exc;
+            setCurrentStatus(Download.Status.ERROR, DownloadTools.PROC_ERROR_MESSAGE);
+            return false;
+        }
+        if (length < 0)
+            // the content of unknown length is over
+            length = received;
+        if (verifier != null) {
+            // the digests may need reading the file, it isn't done by the network thread holding the download
+            setCurrentStatus(Download.Status.VERIFYING, DownloadTools.VERIFYING_MESSAGE);
+            return true;
+        }
         setCurrentStatus(Download.Status.DOWNLOADED, DownloadTools.SUCCESSFUL_COMPLETED_MESSAGE);
         return true;
     }
 
     /**
-     * Completes the download with error and specific status message
+     * Compares the content of the {@link Status#VERIFYING} download with the expected digest.
+     * The digests are finished without holding the download, so it can be observed (or removed) meanwhile.
+     * Called by {@link Downloader} on its verification thread.
+     * @return true if the content is intact and the download is {@link Status#DOWNLOADED}
+     */
+    boolean completeVerification() {
+        ContentVerifier current;
+        long total;
+        synchronized (this) {
+            if (Download.Status.VERIFYING != currentStatus)
+                return false;
+            current = verifier;
+            total = length;
+        }
+        List<long[]> ranges = null;
+        IOException failure = null;
+        try {
+            ranges = current.verify(where, total);
+        } catch (IOException exc) {
+            failure = exc;
+        }
+        synchronized (this) {
+            // the download may be removed while it is verified
+            if (Download.Status.VERIFYING != currentStatus)
+                return false;
+            verifier = null;
+            if (failure != null) {
+                lastError = failure;
+                setCurrentStatus(Download.Status.ERROR, DownloadTools.PROC_ERROR_MESSAGE);
+                return false;
+            }
+            if (!ranges.isEmpty()) {
+                mismatched = Collections.unmodifiableList(ranges);
+                lastError = new IOException(String.format("Content digest mismatch: bytes %s", DownloadTools.formatRanges(ranges)));
+                setCurrentStatus(Download.Status.CORRUPTED, DownloadTools.CORRUPTED_MESSAGE);
+                return false;
+            }
+            setCurrentStatus(Download.Status.DOWNLOADED,
+                fromCache ? DownloadTools.CACHED_MESSAGE : DownloadTools.SUCCESSFUL_COMPLETED_MESSAGE);
+            return true;
+        }
+    }
+
+    /**
+     * Completes one segment of the download.
+     * Completes the whole download in a regular way when the last segment is completed.
+     * @param segment The completed segment
+     * @return true if the whole download is completed
+     */
+    public synchronized boolean completeSegment(Segment segment) {
+        assert segments.contains(segment);
+        if (Download.Status.DOWNLOADING != currentStatus || !segment.isCompleted())
+            return false;
+        for (Segment s : segments) {
+            if (!s.isCompleted())
+                return false;
+        }
+        return completeProcessing();
+    }
+
+    /**
+     * Completes the download with error and specific status message.
+     * The operations of the download are aborted (see {@link #enterOperation(Object, int, Runnable)}).
      * @param statusInfo public information about the error
      */
     public synchronized void interruptExceptionally(String statusInfo) {
         if (!DownloadTools.isActiveDownload(this))
             return;
-        releaseBuffers();
+        releaseQuietly();
         setCurrentStatus(Download.Status.ERROR, statusInfo);
+        abortOperations();
+    }
+
+    /**
+     * Registers the network operation of the attempt, so the attempt isn't finished while the operation
+     * may write to the outputs (see {@link #interruptExceptionally(String, Throwable, int)}).
+     * The operation of the finished attempt or of the finished download is aborted at once.
+     * @param operation the operation, it is unregistered by {@link #leaveOperation(Object)} when it is over
+     * @param attempt the attempt the operation belongs to (see {@link #getAttempt()})
+     * @param abort the callback breaking the operation off, so its pending read is over soon (e.g. closing the connection)
+     */
+    public synchronized void enterOperation(Object operation, int attempt, Runnable abort) {
+        assert operation != null && abort != null;
+        operations.put(operation, abort);
+        if (attempt != this.attempt || releasePending || !DownloadTools.isActiveDownload(this))
+            abort.run();
+    }
+
+    /**
+     * Unregisters the network operation which doesn't read to the outputs anymore.
+     * The failed attempt is finished when its last operation is over.
+     * @param operation the operation registered by {@link #enterOperation(Object, int, Runnable)}
+     */
+    public synchronized void leaveOperation(Object operation) {
+        if (operations.remove(operation) != null && operations.isEmpty() && releasePending)
+            finishAttempt();
+    }
+
+    /**
+     * Completes the attempt of the download by the failure.
+     * The transient failure (see {@link RetryPolicy#isRetryable(Throwable)}) turns the download to {@link Status#RETRYING}
+     * until the retries are exhausted: the other operations of the attempt are aborted, when they are over
+     * the written ranges are kept as completed and the output is released, the download is initialized again
+     * by {@link #retry()}. Other failures complete the download with error.
+     * @param statusInfo public information about the error
+     * @param cause the failure, it becomes the last error of the download
+     * @param attempt the attempt the failed operation belongs to (see {@link #getAttempt()}),
+     *                the failures of the operations of the previous attempts are ignored
+     */
+    public synchronized void interruptExceptionally(String statusInfo, Throwable cause, int attempt) {
+        if (attempt != this.attempt || currentStatus == Status.RETRYING || !DownloadTools.isActiveDownload(this))
+            return;
+        lastError = cause;
+        RetryPolicy policy = retryPolicy;
+        if (attempt >= policy.MaxRetries || !policy.isRetryable(cause)) {
+            interruptExceptionally(statusInfo);
+            return;
+        }
+        this.attempt = attempt + 1;
+        retryDelay = policy.delay(this.attempt);
+        releasePending = true;
+        setCurrentStatus(Status.RETRYING, String.format(DownloadTools.RETRYING_MESSAGE,
+            retryDelay, this.attempt, policy.MaxRetries));
+        // the reads of the other operations may be still pending to the outputs, so the outputs are released
+        // when the last of them is over
+        abortOperations();
+        if (operations.isEmpty() && releasePending)
+            finishAttempt();
+    }
+
+    /**
+     * Breaks the registered operations off, so their pending reads are over soon.
+     * The aborted operation may leave at once, so the map is copied.
+     */
+    private void abortOperations() {
+        for (Runnable abort : new ArrayList<>(operations.values()))
+            abort.run();
+    }
+
+    /**
+     * Releases the outputs of the failed attempt when no operation writes to them anymore
+     * and starts the next attempt if its time has come.
+     */
+    private void finishAttempt() {
+        releasePending = false;
+        if (Download.Status.RETRYING != currentStatus)
+            // the download is removed or stopped meanwhile, the outputs are released already
+            return;
+        // the sinks are released without writing the received buffers, only the written bytes are kept,
+        // they are forced to survive the crash as the completed ranges of the next attempts
+        try {
+            force();
+        }
+        catch (IOException ignored) {
+            // the ranges are valid until the restart anyway, the broken file fails the next attempt
+        }
+        releaseQuietly();
+        completed = writtenRanges();
+        output = null;
+        segments = Collections.emptyList();
+        verifier = null;
+        if (retryRequested) {
+            retryRequested = false;
+            lastError = null;
+            setCurrentStatus(Download.Status.NEW, DownloadTools.INITIALIZING_MESSAGE);
+        }
+    }
+
+    /**
+     * Starts the next attempt of the {@link Status#RETRYING} download: the download becomes {@link Status#NEW}
+     * and is initialized again (see {@link Downloader} scheduling the retries).
+     * The attempt is started later if the operations of the failed attempt are not over yet.
+     * @return true if the next attempt is started
+     */
+    public synchronized boolean retry() {
+        if (Download.Status.RETRYING != currentStatus)
+            return false;
+        if (releasePending) {
+            retryRequested = true;
+            return false;
+        }
+        lastError = null;
+        setCurrentStatus(Download.Status.NEW, DownloadTools.INITIALIZING_MESSAGE);
+        return true;
     }
 
     /**
@@ -226,7 +979,8 @@ public class Download extends Observable {
      */
     public synchronized void turnToGhost() {
         setCurrentStatus(Status.GHOST, "");
-        releaseBuffers();
+        releaseQuietly();
+        abortOperations();
     }
 
     /**
@@ -240,48 +994,143 @@ public class Download extends Observable {
             return;
         currentStatus = status;
         information = info;
+        BiConsumer<Download, Status> listener = statusListener;
+        if (listener != null)
+            listener.accept(this, status);
         setChanged();
         notifyObservers();
     }
 
+    /**
+     * Keeps the layout of the output opened by {@link #lockForProcessing()}.
+     * @param payload a number of bytes in resource content (Content-Length http parameter) or -1 if it is unknown
+     * @param segmentsCount a number of segments to split the file into (1 means no splitting)
+     *                      or {@link #RESUMED_OUTPUT} to download the ranges which are not completed yet
+     */
+    private void planOutput(long payload, int segmentsCount) {
+        if (segmentsCount != RESUMED_OUTPUT) {
+            completed = Collections.emptyList();
+            length = payload;
+        }
+        mismatched = Collections.emptyList();
+        plannedSegments = segmentsCount;
+    }
+
     /**
      * Creates target file for the downloading resource.
-     * Maps the file content to the memory.
-     * Creates queue of buffers for the memory.
-     * @param skip The number of bytes to skip before start writing to the target memory.
-     *             It is useful for skipping http headers and writing only content.
-     * @param payload a number of bytes in resource content (Content-Length http parameter)
+     * Creates the single output sink for the whole file or splits the file between segments.
+     * The file of unknown length grows as the content is received (see {@link PositionalOutputSink#UNBOUNDED}).
+     * @param payload a number of bytes in resource content (Content-Length http parameter) or -1 if it is unknown
+     * @param segmentsCount a number of segments to split the file into (1 means no splitting)
      * @throws IOException when
      *  {@link RandomAccessFile#RandomAccessFile(File, String)} or
-     *  {@link RandomAccessFile#setLength(long)} or
-     *  {@link FileChannel#map(FileChannel.MapMode, long, long)} or
-     *  {@link FileChannel#close()} throw exception
-     */
-    private void prepareOutput(int skip, int payload) throws IOException {
-        outputs = new ConcurrentLinkedQueue<>();
-        if (skip > 0)
-            outputs.add(ByteBuffer.allocate(skip));
+     *  {@link RandomAccessFile#setLength(long)} throw exception
+     */
+    private void prepareOutput(long payload, int segmentsCount) throws IOException {
+        verifier = expectedDigest != null ? new ContentVerifier(expectedDigest) : null;
         if (payload > 0) {
             RandomAccessFile file = new RandomAccessFile(this.where.toFile(), "rw");
             file.setLength(payload);
-            FileChannel channel = file.getChannel();
-            mainBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, payload);
-            channel.close();
-            outputs.add(mainBuffer);
+            channel = file.getChannel();
+            OutputSink.Factory factory = outputFactory();
+            if (segmentsCount == 1)
+                output = factory.open(channel, 0, payload);
+            else
+                segments = splitOutput(channel, payload, segmentsCount, factory,
+                    verifier != null ? verifier.getAlignment() : 1);
+        }
+        else if (payload < 0) {
+            RandomAccessFile file = new RandomAccessFile(this.where.toFile(), "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            // the file can't be mapped in advance, so the content is appended by positional writes
+            OutputSink sink = new PositionalOutputSink(channel, 0, PositionalOutputSink.UNBOUNDED,
+                PositionalOutputSink.DEFAULT_BUFFER_SIZE, PositionalOutputSink.DEFAULT_BATCH_SIZE, BufferPool.shared());
+            output = verifier != null ? verifier.wrap(sink, 0) : sink;
         }
     }
 
     /**
-     * Hacky workaround to overcome {@link MappedByteBuffer} limitations which
-     * disallow to safely unmap previously mapped memory.
+     * Opens the partially downloaded target file and creates a segment for every remaining range.
+     * @param payload a number of bytes in resource content (Content-Length http parameter)
+     * @throws IOException when the target file can't be opened
      */
-    private void releaseBuffers() {
-        // FIXME: workaround http://bugs.java.com/view_bug.do?bug_id=4724038
+    private void resumeOutput(long payload) throws IOException {
+        List<long[]> remaining = DownloadTools.remainingRanges(completed, payload);
+        if (remaining.isEmpty()) {
+            // at least one byte is requested to complete the download in a regular way
+            remaining = Collections.singletonList(new long[] {payload - 1, payload});
+            completed = DownloadTools.remainingRanges(remaining, payload);
+        }
+        ContentDigest digest = expectedDigest;
+        remaining = DownloadTools.splitRanges(remaining, digest == null || digest.allowsSegments() ? maxSegments : 1);
+
+        verifier = expectedDigest != null ? new ContentVerifier(expectedDigest) : null;
+        RandomAccessFile file = new RandomAccessFile(this.where.toFile(), "rw");
+        file.setLength(payload);
+        channel = file.getChannel();
+        OutputSink.Factory factory = outputFactory();
+        List<Segment> result = new ArrayList<>(remaining.size());
+        for (long[] range : remaining)
+            result.add(new Segment(range[0], range[1] - range[0], factory.open(channel, range[0], range[1] - range[0])));
+        segments = Collections.unmodifiableList(result);
+    }
+
+    /**
+     * @return The factory of the sinks set by {@link #setOutputSink(OutputSink.Factory)} (memory mapped by default),
+     *         the sinks digest the content if it is verified.
+     */
+    private OutputSink.Factory outputFactory() {
+        OutputSink.Factory factory = sinkFactory != null ? sinkFactory : MappedOutputSink.factory(windowSize);
+        return verifier != null ? verifier.wrap(factory) : factory;
+    }
+
+    /**
+     * Splits the file between the segments of equal length.
+     * @param alignment The length of the segments (except the last one) is a multiple of it.
+     */
+    private static List<Segment> splitOutput(FileChannel channel, long payload, int segmentsCount,
+                                             OutputSink.Factory factory, long alignment) {
+        long length = Math.max(payload / segmentsCount / alignment, 1) * alignment;
+        segmentsCount = (int) Math.min(segmentsCount, (payload + length - 1) / length);
+        List<Segment> result = new ArrayList<>(segmentsCount);
+        for (int i = 0; i < segmentsCount; ++i) {
+            long offset = i * length;
+            long limit = (i == segmentsCount - 1) ? payload : offset + length;
+            result.add(new Segment(offset, limit - offset, factory.open(channel, offset, limit - offset)));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Releases the output sinks and closes the target file.
+     * @param flush True to write the received content before releasing.
+     * @throws IOException when the received content can't be written, the sinks are released anyway
+     */
+    private void releaseBuffers(boolean flush) throws IOException {
+        List<OutputSink> sinks = new ArrayList<>();
+        if (output != null)
+            sinks.add(output);
+        for (Segment segment : segments)
+            sinks.add(segment.sink);
+        IOException failure = null;
+        for (OutputSink sink : sinks) {
+            try {
+                sink.release(flush && failure == null);
+            } catch (UncheckedIOException exc) {
+                failure = exc.getCause();
+            }
+        }
+        if (channel != null)
+            channel.close();
+        if (failure != null)
+            throw failure;
+    }
+
+    private void releaseQuietly() {
         try {
-            Method unmapMethod = sun.nio.ch.FileChannelImpl.class.getDeclaredMethod("unmap", MappedByteBuffer.class);
-            unmapMethod.setAccessible(true);
-            unmapMethod.invoke(null, mainBuffer);
-        } catch (Exception ignored) { }
+            releaseBuffers(false);
+        } catch (IOException ignored) { }
     }
 
     private final URL what;
@@ -290,8 +1139,40 @@ public class Download extends Observable {
     private volatile Status currentStatus;
     private volatile String information;
 
-    private MappedByteBuffer mainBuffer;
-    private ConcurrentLinkedQueue<ByteBuffer> outputs;
+    /**
+     * The planned number of segments meaning the output is resumed (see {@link #planOutput(long, int)})
+     */
+    private static final int RESUMED_OUTPUT = 0;
+
+    private volatile FileChannel channel;
+    private int plannedSegments = 1;
+    private volatile OutputSink output;
+    private volatile long length = -1;
+    private volatile long windowSize = DEFAULT_WINDOW_SIZE;
+    private volatile OutputSink.Factory sinkFactory;
+    private volatile List<Segment> segments = Collections.emptyList();
+    private volatile List<long[]> completed = Collections.emptyList();
+    private volatile String etag;
+    private volatile String lastModified;
+    private volatile int maxSegments = 1;
+    private volatile boolean singleRequest = false;
+    private volatile int priority = DEFAULT_PRIORITY;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private volatile int attempt = 0;
+    private volatile long retryDelay;
+    // the network operations of the current attempt (see enterOperation), guarded by this
+    private final Map<Object, Runnable> operations = new IdentityHashMap<>();
+    private boolean releasePending = false;
+    private boolean retryRequested = false;
+    private volatile DownloadCache.Entry cached;
+    private volatile boolean fromCache = false;
+    private volatile ContentDigest expectedDigest;
+    private volatile ContentVerifier verifier;
+    private volatile List<long[]> mismatched = Collections.emptyList();
+
+    private final TokenBucket bandwidth = new TokenBucket(TokenBucket.UNLIMITED);
+    private final Metrics.Meter received = new Metrics.Meter();
 
     private volatile Throwable lastError;
+    private volatile BiConsumer<Download, Status> statusListener;
 }
@@ -0,0 +1,367 @@
+package org.wlou.jdownloader.lib;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of the downloaded resources.
+ * The content is kept once per SHA-256 hash in "objects/&lt;hash&gt;", the index maps the urls to the hashes
+ * and the validators (ETag, Last-Modified) of the resources. Acts as following:
+ *  1. the download of the cached url is initialized by the conditional request
+ *     (see {@link DownloadTools#requestParams(Map, Download)});
+ *  2. if the server answers 304 Not Modified the cached object is linked to the target file
+ *     (the hard link if the file system allows, the copy otherwise, see {@link #restore(Entry, Path)});
+ *  3. the downloaded file is hashed and linked to the objects (see {@link #store(URL, String, String, Path)}),
+ *     the least recently used urls are evicted while the objects exceed the size limit.
+ *
+ * <p>The object shares the data with the downloaded file, so the changed file must not be served:
+ * the size and the modification time of the object are checked on every lookup.
+ * The index has the format of {@link DownloadJournal}, the urls are kept from the least to the most recently used:
+ * <pre>url	etag	last-modified	length	hash	modified-millis</pre>
+ */
+public class DownloadCache {
+
+    private static Logger LOG = Logger.getLogger(DownloadCache.class.getName());
+
+    public static final String HEADER = "JDC1";
+    public static final String INDEX = "index";
+    public static final String OBJECTS = "objects";
+
+    /**
+     * The default limit of the objects size in bytes
+     */
+    public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * The cached resource.
+     */
+    public static class Entry {
+        Entry(URL url, String etag, String lastModified, long length, String hash, Path file, long modified) {
+            Url = url;
+            ETag = etag;
+            LastModified = lastModified;
+            Length = length;
+            Hash = hash;
+            File = file;
+            Modified = modified;
+        }
+
+        public final URL Url;
+        /**
+         * The ETag validator of the resource or null
+         */
+        public final String ETag;
+        /**
+         * The Last-Modified validator of the resource or null
+         */
+        public final String LastModified;
+        public final long Length;
+        /**
+         * The hex SHA-256 hash of the content
+         */
+        public final String Hash;
+        /**
+         * The path of the object keeping the content
+         */
+        public final Path File;
+        /**
+         * The modification time of the object when it was stored in milliseconds
+         */
+        public final long Modified;
+    }
+
+    /**
+     * Opens the cache, the directory is created if it doesn't exist.
+     * @param directory The directory of the index and the objects.
+     * @param maxSize The limit of the objects size in bytes [1; Infinity).
+     * @throws IOException when the directory can't be created or the index can't be read
+     */
+    public DownloadCache(Path directory, long maxSize) throws IOException {
+        assert directory != null && maxSize > 0;
+        this.index = directory.resolve(INDEX);
+        this.objects = directory.resolve(OBJECTS);
+        this.maxSize = maxSize;
+        Files.createDirectories(objects);
+        load();
+    }
+
+    /**
+     * Finds the intact cached copy of the resource and marks it as recently used.
+     * @param url The url of the resource.
+     * @return The entry of the resource or null if it isn't cached or the object is changed or lost
+     */
+    public synchronized Entry lookup(URL url) {
+        assert url != null;
+        Entry entry = entries.get(url.toString());
+        if (entry == null)
+            return null;
+        if (!isIntact(entry)) {
+            if (LOG.isInfoEnabled())
+                LOG.info(String.format("[cache] %s: object %s is changed, dropping", url, entry.Hash));
+            remove(entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Puts the downloaded file to the cache: the file is hashed and linked to the objects
+     * unless the object of the same content exists. The resources without validators are not cached:
+     * they can't be requested conditionally.
+     * @param url The url of the resource.
+     * @param etag The ETag validator of the resource or null.
+     * @param lastModified The Last-Modified validator of the resource or null.
+     * @param file The downloaded file.
+     * @return The new entry of the resource or null if it is not cacheable
+     * @throws IOException when the file can't be read or linked
+     */
+    public Entry store(URL url, String etag, String lastModified, Path file) throws IOException {
+        assert url != null && file != null;
+        if (etag == null && lastModified == null)
+            return null;
+        // the file is hashed without holding the lock, the lookups of other urls aren't blocked
+        String hash = hash(file);
+        Entry entry;
+        synchronized (this) {
+            Path object = objects.resolve(hash);
+            if (!Files.exists(object))
+                link(file, object);
+            Entry previous = entries.remove(url.toString());
+            entry = new Entry(url, etag, lastModified, Files.size(object), hash, object,
+                Files.getLastModifiedTime(object).toMillis());
+            entries.put(url.toString(), entry);
+            if (references.merge(hash, 1, Integer::sum) == 1)
+                size += entry.Length;
+            // the new reference is counted first, so the object of the same content isn't deleted
+            if (previous != null)
+                release(previous);
+            evict();
+            save();
+        }
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("[cache] %s: stored as %s, %d bytes", url, hash, entry.Length));
+        return entry;
+    }
+
+    /**
+     * Creates the target file of the cached content.
+     * @param entry The cached resource (see {@link #lookup(URL)}).
+     * @param target The path of the new file.
+     * @throws IOException when the file can't be created
+     */
+    public static void restore(Entry entry, Path target) throws IOException {
+        assert entry != null && target != null;
+        link(entry.File, target);
+    }
+
+    /**
+     * @return The size of the cached objects in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Sets the limit of the objects size, the excess is evicted at once.
+     * @param maxSize The limit in bytes [1; Infinity)
+     * @throws IOException when the index can't be written
+     */
+    public synchronized void setMaxSize(long maxSize) throws IOException {
+        assert maxSize > 0;
+        this.maxSize = maxSize;
+        if (evict())
+            save();
+    }
+
+    /**
+     * Hashes the content of the file.
+     * @param file The file to hash.
+     * @return The hex SHA-256 hash
+     * @throws IOException when the file can't be read
+     */
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest())
+            result.append(String.format("%02x", b));
+        return result.toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException exc) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /**
+     * Makes the hard link, the file is copied if the link is not supported
+     * (another file system, FAT, etc.).
+     */
+    private static void link(Path existing, Path link) throws IOException {
+        try {
+            Files.createLink(link, existing);
+        }
+        catch (UnsupportedOperationException | FileSystemException exc) {
+            if (Files.exists(link))
+                throw exc;
+            Files.copy(existing, link, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    private boolean isIntact(Entry entry) {
+        try {
+            return Files.size(entry.File) == entry.Length &&
+                Files.getLastModifiedTime(entry.File).toMillis() == entry.Modified;
+        }
+        catch (IOException exc) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes the least recently used entries while the objects exceed the limit.
+     * @return True if something is evicted
+     */
+    private boolean evict() {
+        boolean evicted = false;
+        for (Iterator<Entry> it = entries.values().iterator(); size > maxSize && it.hasNext(); ) {
+            Entry eldest = it.next();
+            it.remove();
+            release(eldest);
+            evicted = true;
+            if (LOG.isInfoEnabled())
+                LOG.info(String.format("[cache] %s: evicted", eldest.Url));
+        }
+        return evicted;
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.Url.toString());
+        release(entry);
+    }
+
+    /**
+     * Drops the reference of the removed entry to its object, the object is deleted when it isn't referenced.
+     */
+    private void release(Entry entry) {
+        Integer count = references.computeIfPresent(entry.Hash, (hash, references) -> references > 1 ? references - 1 : null);
+        if (count != null)
+            return;
+        size -= entry.Length;
+        try {
+            Files.deleteIfExists(entry.File);
+        }
+        catch (IOException exc) {
+            LOG.error(String.format("[cache] %s: object can't be deleted: %s", entry.File, exc));
+        }
+    }
+
+    private void load() throws IOException {
+        List<Entry> loaded = new ArrayList<>();
+        if (Files.exists(index))
+            readIndex(loaded);
+        for (Entry entry : loaded) {
+            if (!isIntact(entry))
+                continue;
+            entries.put(entry.Url.toString(), entry);
+            if (references.merge(entry.Hash, 1, Integer::sum) == 1)
+                size += entry.Length;
+        }
+        // the objects of the changed entries and the objects left by a crash aren't referenced
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(objects)) {
+            for (Path file : files) {
+                if (!references.containsKey(file.getFileName().toString()))
+                    Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Reads the index records from the least to the most recently used, ill-formatted records are skipped.
+     */
+    private void readIndex(List<Entry> loaded) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (!HEADER.equals(header)) {
+                LOG.error(String.format("[cache] %s: unknown format \"%s\"", index, header));
+                return;
+            }
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                try {
+                    loaded.add(parse(line));
+                }
+                catch (Exception exc) {
+                    LOG.error(String.format("[cache] %s: skipping record \"%s\": %s", index, line, exc));
+                }
+            }
+        }
+    }
+
+    private synchronized void save() throws IOException {
+        StringBuilder content = new StringBuilder(HEADER).append('\n');
+        for (Entry entry : entries.values()) {
+            DownloadJournal.escape(entry.Url.toString(), content).append('\t');
+            DownloadJournal.escape(entry.ETag, content).append('\t');
+            DownloadJournal.escape(entry.LastModified, content).append('\t');
+            content.append(entry.Length).append('\t');
+            content.append(entry.Hash).append('\t');
+            content.append(entry.Modified).append('\n');
+        }
+        Path temporary = index.resolveSibling(index.getFileName() + ".tmp");
+        Files.write(temporary, content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Entry parse(String line) throws IOException {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 6)
+            throw new IOException(String.format("%d fields instead of 6", fields.length));
+        if (!fields[4].matches("[0-9a-f]{64}"))
+            throw new IOException(String.format("Wrong hash: %s", fields[4]));
+        return new Entry(new URL(DownloadJournal.unescape(fields[0])), DownloadJournal.unescapeNullable(fields[1]),
+            DownloadJournal.unescapeNullable(fields[2]), Long.parseLong(fields[3]), fields[4],
+            objects.resolve(fields[4]), Long.parseLong(fields[5]));
+    }
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private final Path index;
+    private final Path objects;
+    // the access order: from the least to the most recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> references = new HashMap<>();
+    private long maxSize;
+    private long size;
+}
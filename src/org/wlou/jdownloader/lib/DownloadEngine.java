@@ -0,0 +1,55 @@
+package org.wlou.jdownloader.lib;
+
+import java.util.function.Supplier;
+
+/**
+ * The network part of the downloading: the workflows started by the {@link Downloader} dispatcher.
+ * Every workflow acquires the download by its lock method and runs in the background,
+ * the result is reported by the state transitions of the download.
+ */
+public interface DownloadEngine extends AutoCloseable {
+
+    /**
+     * The available implementations of the engine
+     */
+    enum Kind {
+        /**
+         * Chains of {@link java.nio.channels.CompletionHandler}s over the asynchronous channel group
+         * and pooled keep-alive connections (see {@link Downloader})
+         */
+        ASYNC,
+        /**
+         * Straight-line blocking code per download on virtual threads when they are available
+         * (see {@link BlockingEngine})
+         */
+        BLOCKING
+    }
+
+    /**
+     * Initializes the download by Http HEAD request.
+     * @param dc The downloader context for initialize operation
+     * @param interruptor Callback for interrupting network operation.
+     */
+    void initialize(Downloader.DownloaderContext dc, Supplier<Boolean> interruptor);
+
+    /**
+     * Downloads the content of the initialized download (segment by segment if it is split).
+     * @param dc The downloader context for process operation
+     * @param interruptor Callback for interrupting network operation.
+     */
+    void process(Downloader.DownloaderContext dc, Supplier<Boolean> interruptor);
+
+    /**
+     * Initializes and downloads the content by one Http GET request (single-request mode).
+     * @param dc The downloader context for fetch operation
+     * @param initInterruptor Callback for interrupting network operation while headers are read.
+     * @param procInterruptor Callback for interrupting network operation while content is read.
+     */
+    void fetch(Downloader.DownloaderContext dc, Supplier<Boolean> initInterruptor, Supplier<Boolean> procInterruptor);
+
+    /**
+     * Stops the engine, the running workflows are interrupted.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,225 @@
+package org.wlou.jdownloader.lib;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * On-disk journal of unfinished downloads.
+ * Every record keeps what is needed to resume the download with range requests after restart:
+ * url, target path, total length, validators (ETag, Last-Modified) and completed byte ranges.
+ *
+ * <p>The journal is a small text file, one download per line, fields are separated by tabs:
+ * <pre>url	path	length	etag	last-modified	from-to,from-to,...</pre>
+ * It is rewritten as a whole: the new content is written to a temporary file, synced to the disk and
+ * atomically moved over the old one, so the journal is never seen half-written.
+ */
+public class DownloadJournal {
+
+    private static Logger LOG = Logger.getLogger(DownloadJournal.class.getName());
+
+    public static final String HEADER = "JDJ1";
+
+    /**
+     * The state of one download kept in the journal.
+     */
+    public static class Entry {
+        /**
+         * @param url The url of the resource.
+         * @param where The path of the target file.
+         * @param length The length of the resource or -1 if it is unknown yet.
+         * @param etag The ETag validator of the resource or null.
+         * @param lastModified The Last-Modified validator of the resource or null.
+         * @param completed Completed byte ranges: sorted non-overlapping [from, to) pairs.
+         */
+        public Entry(URL url, Path where, long length, String etag, String lastModified, List<long[]> completed) {
+            assert url != null && where != null;
+            assert completed != null;
+            Url = url;
+            Where = where;
+            Length = length;
+            ETag = etag;
+            LastModified = lastModified;
+            Completed = Collections.unmodifiableList(completed);
+        }
+
+        /**
+         * Takes the current state of the download.
+         * @param download The download to record.
+         * @return The entry describing the download.
+         */
+        public static Entry of(Download download) {
+            return new Entry(download.getWhat(), download.getWhere(), download.getLength(),
+                download.getETag(), download.getLastModified(), download.getCompletedRanges());
+        }
+
+        /**
+         * @return The number of bytes in the completed ranges.
+         */
+        public long getCompletedLength() {
+            long result = 0;
+            for (long[] range : Completed)
+                result += range[1] - range[0];
+            return result;
+        }
+
+        public final URL Url;
+        public final Path Where;
+        public final long Length;
+        public final String ETag;
+        public final String LastModified;
+        public final List<long[]> Completed;
+    }
+
+    /**
+     * @param file The path of the journal file.
+     */
+    public DownloadJournal(Path file) {
+        assert file != null;
+        this.file = file;
+    }
+
+    /**
+     * @return The path of the journal file.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the journal.
+     * Ill-formatted records are skipped.
+     * @return The recorded downloads or empty list if the journal doesn't exist.
+     * @throws IOException when the journal can't be read
+     */
+    public synchronized List<Entry> load() throws IOException {
+        List<Entry> result = new ArrayList<>();
+        if (!Files.exists(file))
+            return result;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (!HEADER.equals(header)) {
+                LOG.error(String.format("[journal] %s: unknown format \"%s\"", file, header));
+                return result;
+            }
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                try {
+                    result.add(parse(line));
+                }
+                catch (Exception exc) {
+                    LOG.error(String.format("[journal] %s: skipping record \"%s\": %s", file, line, exc));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the journal content.
+     * @param entries The downloads to record.
+     * @throws IOException when the journal can't be written
+     */
+    public synchronized void save(Collection<Entry> entries) throws IOException {
+        StringBuilder content = new StringBuilder(HEADER).append('\n');
+        for (Entry entry : entries)
+            format(entry, content).append('\n');
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static StringBuilder format(Entry entry, StringBuilder out) {
+        escape(entry.Url.toString(), out).append('\t');
+        escape(entry.Where.toString(), out).append('\t');
+        out.append(entry.Length).append('\t');
+        escape(entry.ETag, out).append('\t');
+        escape(entry.LastModified, out).append('\t');
+        for (int i = 0; i < entry.Completed.size(); ++i) {
+            long[] range = entry.Completed.get(i);
+            if (i > 0)
+                out.append(',');
+            out.append(range[0]).append('-').append(range[1]);
+        }
+        return out;
+    }
+
+    private static Entry parse(String line) throws IOException {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 6)
+            throw new IOException(String.format("%d fields instead of 6", fields.length));
+        List<long[]> completed = new ArrayList<>();
+        if (!fields[5].isEmpty()) {
+            for (String range : fields[5].split(",")) {
+                int dash = range.indexOf('-');
+                completed.add(new long[] {Long.parseLong(range.substring(0, dash)), Long.parseLong(range.substring(dash + 1))});
+            }
+        }
+        return new Entry(new URL(unescape(fields[0])), Paths.get(unescape(fields[1])), Long.parseLong(fields[2]),
+            unescapeNullable(fields[3]), unescapeNullable(fields[4]), completed);
+    }
+
+    // null is written as the empty field, the empty string is written as "\0"
+    static StringBuilder escape(String value, StringBuilder out) {
+        if (value == null)
+            return out;
+        if (value.isEmpty())
+            return out.append("\\0");
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': out.append("\\\\"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                default: out.append(c);
+            }
+        }
+        return out;
+    }
+
+    static String unescapeNullable(String value) {
+        return value.isEmpty() ? null : unescape(value);
+    }
+
+    static String unescape(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                result.append(c);
+                continue;
+            }
+            switch (value.charAt(++i)) {
+                case 't': result.append('\t'); break;
+                case 'n': result.append('\n'); break;
+                case 'r': result.append('\r'); break;
+                case '0': break;
+                default: result.append(value.charAt(i));
+            }
+        }
+        return result.toString();
+    }
+
+    private final Path file;
+}
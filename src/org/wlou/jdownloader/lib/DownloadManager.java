@@ -1,11 +1,22 @@
 package org.wlou.jdownloader.lib;
 
+import org.apache.log4j.Logger;
+
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -17,12 +28,85 @@ import java.util.concurrent.TimeUnit;
  */
 public class DownloadManager extends Observable implements AutoCloseable {
 
+    private static Logger LOG = Logger.getLogger(DownloadManager.class.getName());
+
+    /**
+     * The change of the manager's downloads, it is passed to the {@link java.util.Observer}s as the argument,
+     * so the observers apply the changes one by one instead of rereading {@link #getDownloadsSnap()}.
+     * The events are published by the thread making the change (the network threads for state transitions),
+     * progress changes are published by {@link ProgressPublisher}.
+     */
+    public static class Event {
+        /**
+         * Represents kinds of the changes
+         */
+        public enum Kind {
+            /**
+             * The download is added to the manager (created or restored from the journal)
+             */
+            ADDED,
+            /**
+             * The download is removed from the manager
+             */
+            REMOVED,
+            /**
+             * The download has changed its {@link Download.Status} (and the information about it)
+             */
+            STATUS_CHANGED
+        }
+
+        Event(Kind change, Download target, Download.Status status) {
+            Change = change;
+            Target = target;
+            Status = status;
+        }
+
+        /**
+         * The kind of the change
+         */
+        public final Kind Change;
+        /**
+         * The changed download
+         */
+        public final Download Target;
+        /**
+         * The state of the download when the event is made
+         */
+        public final Download.Status Status;
+    }
+
+    /**
+     * The default period of saving the downloads progress to the journal in milliseconds
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 5000;
+
+    /**
+     * The time {@link #close()} waits for the files being put to the cache in milliseconds
+     */
+    public static final long CLOSE_TIMEOUT = 60000;
+
     public DownloadManager() throws IOException {
+        this(DownloadEngine.Kind.ASYNC);
+    }
+
+    /**
+     * @param engine The kind of the engine running the downloads (see {@link DownloadEngine.Kind}).
+     * @throws IOException when the downloader can't be created
+     */
+    public DownloadManager(DownloadEngine.Kind engine) throws IOException {
         downloads = new ConcurrentLinkedQueue<>();
         executors = new ThreadPoolExecutor(parallelCapacity, parallelCapacity, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
-        downloader = new Downloader(downloads, executors);
+        downloader = new Downloader(downloads, executors, new HostResolver(), engine);
+        downloader.setStatusListener(this::onStatusChanged);
         dispatcher = new Thread(downloader, String.format("Downloader-%02X", downloader.hashCode()));
         dispatcher.start();
+        progress = new ProgressPublisher();
+        checkpoints = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, String.format("Journal-%02X", downloader.hashCode()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        registerMetrics();
     }
 
     /**
@@ -32,24 +116,141 @@ public class DownloadManager extends Observable implements AutoCloseable {
      * @return {@link Download} object representing the download in the library.
      */
     public Download addDownload(URL url, Path base) {
+        return addDownload(url, base, Download.DEFAULT_PRIORITY);
+    }
+
+    /**
+     * Creates new download with the priority and insert in the processing queue.
+     * The downloads of greater priority are started before others waiting for a free slot
+     * (see {@link #setMaxActiveDownloads(int)}).
+     * @param url The url of the resources.
+     * @param base The directory in the local file system to save the network resource.
+     * @param priority The scheduling priority, greater values are started earlier.
+     * @return {@link Download} object representing the download in the library.
+     */
+    public Download addDownload(URL url, Path base, int priority) {
+        return addDownload(url, base, priority, null);
+    }
+
+    /**
+     * Creates new download with the priority and the expected digest of the content and insert in the processing queue.
+     * The content is verified while it is received, the mismatch turns the download to
+     * {@link Download.Status#CORRUPTED} (see {@link Download#setExpectedDigest(ContentDigest)}).
+     * @param url The url of the resources.
+     * @param base The directory in the local file system to save the network resource.
+     * @param priority The scheduling priority, greater values are started earlier.
+     * @param digest The expected digest of the content or null to skip verification.
+     * @return {@link Download} object representing the download in the library.
+     */
+    public Download addDownload(URL url, Path base, int priority, ContentDigest digest) {
         Download download = new Download(url, base);
-        downloads.add(download);
-        downloader.checkForNewTasks();
-        setChanged();
-        notifyObservers();
+        download.setPriority(priority);
+        download.setExpectedDigest(digest);
+        DownloadCache cached = cache;
+        if (cached != null)
+            download.setCached(cached.lookup(url));
+        enqueue(download);
         return download;
     }
 
+    /**
+     * Restores unfinished downloads from the journal and starts saving the progress of all downloads to it
+     * every {@link #setCheckpointInterval(long)} milliseconds (and on {@link #close()}).
+     * Restored downloads continue from the completed ranges if the resource hasn't changed
+     * (see {@link Download#Download(DownloadJournal.Entry)}).
+     * @param file The path of the journal file, it is created if it doesn't exist.
+     * @return Restored downloads.
+     * @throws IOException when the journal can't be read
+     */
+    public synchronized List<Download> openJournal(Path file) throws IOException {
+        assert journal == null;
+        DownloadJournal opened = new DownloadJournal(file);
+        List<Download> restored = new ArrayList<>();
+        for (DownloadJournal.Entry entry : opened.load()) {
+            Download download = new Download(entry);
+            enqueue(download);
+            restored.add(download);
+            if (LOG.isInfoEnabled())
+                LOG.info(String.format("[journal] %s: restored with %d of %d bytes", entry.Url, entry.getCompletedLength(), entry.Length));
+        }
+        journal = opened;
+        scheduleCheckpoints();
+        return restored;
+    }
+
+    /**
+     * Opens the cache of the downloaded resources (see {@link DownloadCache}).
+     * The downloads of the cached urls added after the call are initialized by the conditional requests
+     * and are completed by linking the cached copy if the resource is not modified.
+     * The downloaded files are put to the cache in the background, by the thread saving the journal.
+     * @param directory The directory of the cache, it is created if it doesn't exist.
+     * @param maxSize The limit of the cached content size in bytes [1; Infinity).
+     * @return The opened cache.
+     * @throws IOException when the cache can't be read
+     */
+    public synchronized DownloadCache openCache(Path directory, long maxSize) throws IOException {
+        assert cache == null;
+        cache = new DownloadCache(directory, maxSize);
+        return cache;
+    }
+
+    /**
+     * Cache accessor.
+     * @return The cache opened by {@link #openCache(Path, long)} or null.
+     */
+    public DownloadCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Saves the progress of unfinished downloads to the journal (see {@link #openJournal(Path)}).
+     * The target files are forced to the storage device before their ranges are saved.
+     * Does nothing if the journal isn't opened.
+     * @throws IOException when the journal can't be written
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (journal == null)
+            return;
+        List<DownloadJournal.Entry> entries = new ArrayList<>();
+        for (Download download : downloads) {
+            Download.Status status = download.getCurrentStatus();
+            if (status == Download.Status.DOWNLOADED || status == Download.Status.GHOST)
+                continue;
+            // the ranges are taken before forcing the file, so the journal never gets ahead of the content
+            DownloadJournal.Entry entry = DownloadJournal.Entry.of(download);
+            try {
+                download.force();
+                entries.add(entry);
+            }
+            catch (IOException exc) {
+                LOG.error(String.format("[journal] %s: content is not forced, progress is not saved: %s", download.getWhat(), exc));
+            }
+        }
+        journal.save(entries);
+    }
+
+    /**
+     * Sets the period of saving the downloads progress to the journal.
+     * The bytes received after the last checkpoint are downloaded again after restart.
+     * @param interval The period in milliseconds [1; Infinity)
+     */
+    public synchronized void setCheckpointInterval(long interval) {
+        assert interval > 0;
+        checkpointInterval = interval;
+        if (journal != null)
+            scheduleCheckpoints();
+    }
+
     /**
      * Gracefully stops the download (if needed) and removes from the manager's queue.
      * @param download The download to remove
      */
     public void removeDownload(Download download) {
         download.turnToGhost();
-        downloads.remove(download);
-        setChanged();
-        notifyObservers();
-
+        if (!downloads.remove(download))
+            return;
+        progress.untrack(download);
+        publish(Event.Kind.REMOVED, download);
     }
 
     /**
@@ -60,6 +261,27 @@ public class DownloadManager extends Observable implements AutoCloseable {
         return downloads.toArray(new Download[downloads.size()]);
     }
 
+    /**
+     * Progress accessor.
+     * @return The publisher of the progress changes of the manager's downloads.
+     */
+    public ProgressPublisher getProgressPublisher() {
+        return progress;
+    }
+
+    /**
+     * Metrics accessor.
+     * Besides the downloader's meters and latencies the registry contains the meters of
+     * the transitions to every status ("downloads.new.*", ..., "downloads.error.*"), they count the removed
+     * downloads as well, the gauges of the scheduler's slots ("downloads.active", "downloads.queued")
+     * and the buffer pool occupancy ("buffers.*").
+     * The registry is also available over JMX as "org.wlou.jdownloader:type=DownloadManager,id=XX".
+     * @return The registry of the manager's metrics.
+     */
+    public Metrics getMetrics() {
+        return downloader.getMetrics();
+    }
+
     /**
      * Sets number of thread-handlers of the downloads.
      * @param capacity The number of thread [1; Infinity)
@@ -69,6 +291,123 @@ public class DownloadManager extends Observable implements AutoCloseable {
         executors.setMaximumPoolSize(capacity);
     }
 
+    /**
+     * Sets number of connections which can be used for processing one download.
+     * Affects only downloads added after the call.
+     * @param segments The number of connections [1; Infinity)
+     */
+    public void setMaxSegments(int segments) {
+        assert segments > 0;
+        maxSegments = segments;
+    }
+
+    /**
+     * Turns on/off single-request mode for downloads added after the call.
+     * See {@link Download#setSingleRequest(boolean)}.
+     * @param singleRequest true to initialize downloads from Http GET response without separate HEAD request
+     */
+    public void setSingleRequest(boolean singleRequest) {
+        this.singleRequest = singleRequest;
+    }
+
+    /**
+     * Sets the policy of retrying the transient failures for downloads added after the call.
+     * See {@link Download#setRetryPolicy(RetryPolicy)}.
+     * @param policy The policy ({@link RetryPolicy#DEFAULT} by default), {@link RetryPolicy#NONE} turns retrying off
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        assert policy != null;
+        retryPolicy = policy;
+    }
+
+    /**
+     * Sets the size of the target file part mapped to the memory at a time for downloads added after the call.
+     * See {@link Download#setWindowSize(long)}.
+     * @param windowSize The size of the mapped window in bytes [1; {@link Integer#MAX_VALUE}]
+     */
+    public void setWindowSize(long windowSize) {
+        assert windowSize > 0 && windowSize <= Integer.MAX_VALUE;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Sets the way the received bytes are written to the target files for downloads added after the call.
+     * See {@link Download#setOutputSink(OutputSink.Factory)}.
+     * @param factory The factory of the sinks or null for memory mapped output
+     */
+    public void setOutputSink(OutputSink.Factory factory) {
+        outputSink = factory;
+    }
+
+    /**
+     * Sets number of downloads transferring the content simultaneously.
+     * Other downloads wait for a free slot in the order of their priority.
+     * @param downloads The number of downloads [1; Infinity) or {@link DownloadScheduler#UNLIMITED}
+     */
+    public void setMaxActiveDownloads(int downloads) {
+        downloader.getScheduler().setMaxActive(downloads);
+    }
+
+    /**
+     * Sets number of downloads from one remote host transferring the content simultaneously.
+     * Hosts take turns when the slots are freed, so one slow host can't occupy all of them.
+     * @param downloads The number of downloads [1; Infinity) or {@link DownloadScheduler#UNLIMITED}
+     */
+    public void setMaxActiveDownloadsPerHost(int downloads) {
+        downloader.getScheduler().setMaxActivePerHost(downloads);
+    }
+
+    /**
+     * Sets number of connections to one remote host.
+     * Operations above the limit wait for a connection released by other operations.
+     * @param connections The number of connections [1; Infinity)
+     */
+    public void setMaxConnectionsPerHost(int connections) {
+        downloader.setMaxConnectionsPerHost(connections);
+    }
+
+    /**
+     * Sets the TLS context of https downloads: the trusted certificates and the session cache.
+     * @param sslContext The initialized context, null for the default one.
+     */
+    public void setSslContext(SSLContext sslContext) {
+        downloader.setSslContext(sslContext);
+    }
+
+    /**
+     * Turns on/off the transparent decoding of the gzip and deflate compressed content.
+     * @param compression True to ask the servers for the compressed content.
+     */
+    public void setCompression(boolean compression) {
+        downloader.setCompression(compression);
+    }
+
+    /**
+     * Limits the total bandwidth of all downloads, it affects the running transfers.
+     * @param rate The limit in bytes per second or {@link TokenBucket#UNLIMITED}
+     */
+    public void setBandwidthLimit(long rate) {
+        downloader.getBandwidthLimiter().setLimit(rate);
+    }
+
+    /**
+     * Limits the bandwidth of the downloads from every host without own limit, it affects the running transfers.
+     * @param rate The limit in bytes per second or {@link TokenBucket#UNLIMITED}
+     */
+    public void setHostBandwidthLimit(long rate) {
+        downloader.getBandwidthLimiter().setHostLimit(rate);
+    }
+
+    /**
+     * Limits the bandwidth of the downloads from the host, it affects the running transfers.
+     * The limit of one download is set by {@link Download#setBandwidthLimit(long)}.
+     * @param host The name of the host
+     * @param rate The limit in bytes per second or {@link TokenBucket#UNLIMITED}
+     */
+    public void setHostBandwidthLimit(String host, long rate) {
+        downloader.getBandwidthLimiter().setHostLimit(host, rate);
+    }
+
     /**
      * Stops all download threads.
      * Cleans downloading queue.
@@ -77,15 +416,130 @@ public class DownloadManager extends Observable implements AutoCloseable {
      */
     @Override
     public void close() throws Exception {
+        // the periodic checkpoints are cancelled, the files being put to the cache are completed
+        checkpoints.shutdown();
+        if (!checkpoints.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+            LOG.error("[cache] Storing is not completed");
+        try {
+            checkpoint();
+        }
+        catch (IOException exc) {
+            LOG.error(String.format("[journal] Saving failed: %s", exc));
+        }
+        downloader.getMetrics().unregister();
+        downloader.close();
+        progress.close();
         executors.shutdown();
         dispatcher.interrupt();
         downloads.clear();
     }
 
+    private void onStatusChanged(Download download, Download.Status status) {
+        // only the transferring downloads are sampled, the final progress is published with the status
+        switch (status) {
+            case NEW:
+                progress.track(download);
+                break;
+            case DOWNLOADED:
+            case ERROR:
+            case CORRUPTED:
+            case GHOST:
+                progress.untrack(download);
+                break;
+            default:
+                break;
+        }
+        Metrics.Meter transitions = statusMeters.get(status);
+        if (transitions != null)
+            transitions.mark(1);
+        publish(Event.Kind.STATUS_CHANGED, download);
+        DownloadCache cached = cache;
+        if (cached == null || status != Download.Status.DOWNLOADED || download.isFromCache())
+            return;
+        // hashing the file takes a while, the network thread isn't blocked by it
+        try {
+            checkpoints.execute(() -> {
+                try {
+                    cached.store(download.getWhat(), download.getETag(), download.getLastModified(), download.getWhere());
+                }
+                catch (IOException exc) {
+                    LOG.error(String.format("[cache] %s: storing failed: %s", download.getWhat(), exc));
+                }
+            });
+        }
+        catch (RejectedExecutionException exc) {
+            // the manager is being closed
+            LOG.error(String.format("[cache] %s: not stored, the manager is closed", download.getWhat()));
+        }
+    }
+
+    private void publish(Event.Kind change, Download download) {
+        Event event = new Event(change, download, download.getCurrentStatus());
+        setChanged();
+        notifyObservers(event);
+    }
+
+    private void enqueue(Download download) {
+        download.setMaxSegments(maxSegments);
+        download.setSingleRequest(singleRequest);
+        download.setRetryPolicy(retryPolicy);
+        download.setWindowSize(windowSize);
+        download.setOutputSink(outputSink);
+        downloads.add(download);
+        progress.track(download);
+        publish(Event.Kind.ADDED, download);
+        downloader.submit(download);
+    }
+
+    private void registerMetrics() {
+        Metrics metrics = downloader.getMetrics();
+        // the transitions are counted as they happen, so reading doesn't walk the downloads
+        for (Download.Status status : Download.Status.values())
+            statusMeters.put(status, metrics.meter(String.format("downloads.%s", status.name().toLowerCase())));
+        DownloadScheduler scheduler = downloader.getScheduler();
+        metrics.gauge("downloads.active", scheduler::getActiveCount);
+        metrics.gauge("downloads.queued", scheduler::getWaitingCount);
+        BufferPool buffers = downloader.getBufferPool();
+        metrics.gauge("buffers.leased", buffers::getLeasedCount);
+        metrics.gauge("buffers.pooled.bytes", buffers::getPooledBytes);
+        metrics.gauge("buffers.allocated", buffers::getAllocatedCount);
+        try {
+            metrics.register(new ObjectName(String.format("org.wlou.jdownloader:type=DownloadManager,id=%02X", downloader.hashCode())));
+        }
+        catch (Exception exc) {
+            LOG.error(String.format("[metrics] JMX registration failed: %s", exc));
+        }
+    }
+
+    private void scheduleCheckpoints() {
+        if (scheduled != null)
+            scheduled.cancel(false);
+        scheduled = checkpoints.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            }
+            catch (IOException exc) {
+                LOG.error(String.format("[journal] Saving failed: %s", exc));
+            }
+        }, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+    }
+
     private final Thread dispatcher;
     private final Downloader downloader;
     private final ThreadPoolExecutor executors;
     private final ConcurrentLinkedQueue<Download> downloads;
+    private final ProgressPublisher progress;
+    private final ScheduledThreadPoolExecutor checkpoints;
+    private final Map<Download.Status, Metrics.Meter> statusMeters = new EnumMap<>(Download.Status.class);
+    private DownloadJournal journal;
+    private volatile DownloadCache cache;
+    private ScheduledFuture<?> scheduled;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
 
     int parallelCapacity = 2;
+    volatile int maxSegments = 1;
+    volatile boolean singleRequest = false;
+    volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    volatile long windowSize = Download.DEFAULT_WINDOW_SIZE;
+    volatile OutputSink.Factory outputSink;
 }
@@ -0,0 +1,259 @@
+package org.wlou.jdownloader.lib;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Decides which downloads start transferring the content.
+ * The downloads waiting for the start are chosen by:
+ *  1. priority (see {@link Download#setPriority(int)}), so urgent downloads overtake the backlog;
+ *  2. the host served least recently, so hosts take turns (round-robin);
+ *  3. the order of waiting.
+ * A download is started only if the number of active transfers is below the limit
+ * and the number of active transfers from its host is below the per-host limit,
+ * so one slow host can't occupy all slots.
+ * Every host has its own queue, the hosts with waiting downloads below the per-host limit form the ring
+ * ordered by the heads of their queues, so offering, choosing and releasing take logarithmic time.
+ */
+public class DownloadScheduler {
+
+    /**
+     * The value of the limits without limiting
+     */
+    public static final int UNLIMITED = 0;
+
+    /**
+     * @param onLimitsChanged The callback to run when the limits are changed (more downloads may be allowed to start).
+     */
+    public DownloadScheduler(Runnable onLimitsChanged) {
+        this.onLimitsChanged = onLimitsChanged;
+    }
+
+    /**
+     * @return The limit of simultaneously active transfers or {@link #UNLIMITED}
+     */
+    public synchronized int getMaxActive() {
+        return maxActive;
+    }
+
+    /**
+     * Sets the limit of simultaneously active transfers, the running transfers are not stopped.
+     * @param maxActive The number of transfers [1; Infinity) or {@link #UNLIMITED}.
+     */
+    public void setMaxActive(int maxActive) {
+        assert maxActive >= 0;
+        synchronized (this) {
+            this.maxActive = maxActive;
+        }
+        if (onLimitsChanged != null)
+            onLimitsChanged.run();
+    }
+
+    /**
+     * @return The limit of simultaneously active transfers from one host or {@link #UNLIMITED}
+     */
+    public synchronized int getMaxActivePerHost() {
+        return maxActivePerHost;
+    }
+
+    /**
+     * Sets the limit of simultaneously active transfers from one host, the running transfers are not stopped.
+     * @param maxActivePerHost The number of transfers [1; Infinity) or {@link #UNLIMITED}.
+     */
+    public void setMaxActivePerHost(int maxActivePerHost) {
+        assert maxActivePerHost >= 0;
+        synchronized (this) {
+            this.maxActivePerHost = maxActivePerHost;
+            ring.clear();
+            new ArrayList<>(hosts.values()).forEach(this::attach);
+        }
+        if (onLimitsChanged != null)
+            onLimitsChanged.run();
+    }
+
+    /**
+     * Puts the download to the waiting list.
+     * The priority of the download is taken at this moment, offering the waiting download again updates it.
+     * @param download The download ready to transfer the content.
+     */
+    public synchronized void offer(Download download) {
+        if (active.contains(download))
+            return;
+        Entry entry = waiting.get(download);
+        if (entry != null) {
+            if (entry.Priority == download.getPriority())
+                return;
+            remove(entry);
+        }
+        entry = new Entry(download, ++sequence);
+        waiting.put(download, entry);
+        Host host = hosts.computeIfAbsent(entry.Host, Host::new);
+        detach(host);
+        host.Queue.add(entry);
+        attach(host);
+    }
+
+    /**
+     * Chooses the next download to start and accounts it as active.
+     * The downloads which can't be started anymore (see {@link #isStartable(Download)}) are dropped
+     * when their turn comes.
+     * @return The download to start or null if nothing is allowed to start
+     */
+    public synchronized Download poll() {
+        if (maxActive != UNLIMITED && active.size() >= maxActive)
+            return null;
+        while (!ring.isEmpty()) {
+            // the hosts over the limit are not in the ring, so the first one is the best allowed
+            Host host = ring.pollFirst();
+            Entry head = host.Queue.pollFirst();
+            waiting.remove(head.Download);
+            if (isStartable(head.Download)) {
+                active.add(head.Download);
+                host.active += 1;
+                host.served = ++turn;
+                attach(host);
+                return head.Download;
+            }
+            attach(host);
+        }
+        return null;
+    }
+
+    /**
+     * Frees the slot of the active download.
+     * @param download The download which has finished transferring (successfully or not).
+     * @return True if the download was active, so another download may be started
+     */
+    public synchronized boolean release(Download download) {
+        Entry entry = waiting.get(download);
+        if (entry != null)
+            remove(entry);
+        if (!active.remove(download))
+            return false;
+        Host host = hosts.get(hostOf(download));
+        detach(host);
+        host.active -= 1;
+        attach(host);
+        return true;
+    }
+
+    /**
+     * @return The number of active transfers
+     */
+    public synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * @return The number of downloads waiting for the start
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * @return The number of hosts having waiting or active downloads
+     */
+    public synchronized int getHostCount() {
+        return hosts.size();
+    }
+
+    /**
+     * Checks whether the transfer of the download can be started.
+     * @param download The download to check.
+     * @return True if the download is initialized or it is the new download in single-request mode
+     */
+    public static boolean isStartable(Download download) {
+        Download.Status status = download.getCurrentStatus();
+        return status == Download.Status.INITIALIZED ||
+            (status == Download.Status.NEW && download.isSingleRequest());
+    }
+
+    private void remove(Entry entry) {
+        waiting.remove(entry.Download);
+        Host host = hosts.get(entry.Host);
+        detach(host);
+        host.Queue.remove(entry);
+        attach(host);
+    }
+
+    /**
+     * Takes the host out of the ring, the ring is ordered by the heads of the host queues,
+     * so it must be done before the queue or the turn of the host is changed.
+     */
+    private void detach(Host host) {
+        if (!host.Queue.isEmpty())
+            ring.remove(host);
+    }
+
+    /**
+     * Puts the host to the ring if it has waiting downloads and is below the per-host limit.
+     * The host without waiting and active downloads is forgotten.
+     */
+    private void attach(Host host) {
+        if (host.Queue.isEmpty() && host.active == 0)
+            hosts.remove(host.Name);
+        else if (!host.Queue.isEmpty() && (maxActivePerHost == UNLIMITED || host.active < maxActivePerHost))
+            ring.add(host);
+    }
+
+    private static String hostOf(Download download) {
+        return download.getWhat().getHost().toLowerCase();
+    }
+
+    /**
+     * The waiting download, the priority is fixed while it waits (the queues are ordered by it).
+     */
+    private static class Entry {
+        Entry(Download download, long sequence) {
+            Download = download;
+            Host = hostOf(download);
+            Priority = download.getPriority();
+            Sequence = sequence;
+        }
+
+        final Download Download;
+        final String Host;
+        final int Priority;
+        final long Sequence;
+    }
+
+    /**
+     * The downloads of one host waiting in the order of priority and waiting.
+     */
+    private static class Host {
+        Host(String name) {
+            Name = name;
+        }
+
+        final String Name;
+        final TreeSet<Entry> Queue = new TreeSet<>(ENTRY_ORDER);
+        int active = 0;
+        long served = 0;
+    }
+
+    private static final Comparator<Entry> ENTRY_ORDER = Comparator
+        .comparingInt((Entry entry) -> -entry.Priority)
+        .thenComparingLong(entry -> entry.Sequence);
+
+    // the host served least recently takes the turn among the heads of the same priority
+    private static final Comparator<Host> HOST_ORDER = Comparator
+        .comparingInt((Host host) -> -host.Queue.first().Priority)
+        .thenComparingLong(host -> host.served)
+        .thenComparingLong(host -> host.Queue.first().Sequence);
+
+    private final Runnable onLimitsChanged;
+    private final Map<Download, Entry> waiting = new HashMap<>();
+    private final Set<Download> active = new HashSet<>();
+    private final Map<String, Host> hosts = new HashMap<>();
+    private final TreeSet<Host> ring = new TreeSet<>(HOST_ORDER);
+    private long turn = 0;
+    private long sequence = 0;
+    private int maxActive = UNLIMITED;
+    private int maxActivePerHost = UNLIMITED;
+}
@@ -1,10 +1,17 @@
 package org.wlou.jdownloader.lib;
 
+import javax.net.ssl.SSLException;
 import javax.xml.ws.http.HTTPException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
@@ -18,9 +25,33 @@ public final class DownloadTools {
     public static final String INITIALIZING_MESSAGE = "Preparing download";
     public static final String SUCCESSFUL_INITIALIZED_MESSAGE = "Processing download";
     public static final String SUCCESSFUL_COMPLETED_MESSAGE = "Download is successfully completed";
+    public static final String CACHED_MESSAGE = "Download is completed from the cache";
+    public static final String VERIFYING_MESSAGE = "Verifying the content digest";
+    public static final String CORRUPTED_MESSAGE = "Content doesn't match the expected digest";
+    public static final String RETRYING_MESSAGE = "Retrying in %d ms (attempt %d of %d)";
 
     public static final String RESERVED = "[<>:\"\\|\\?\\*]";
 
+    /**
+     * The smallest part of a resource worth a separate connection
+     */
+    public static final int MIN_SEGMENT_SIZE = 16 * 1024;
+
+    /**
+     * Http status code of the successful response to a range request
+     */
+    public static final int PARTIAL_CONTENT_CODE = 206;
+
+    /**
+     * Http status code of the response to a conditional request when the resource is not changed
+     */
+    public static final int NOT_MODIFIED_CODE = 304;
+
+    /**
+     * The prefix of weak entity tags, such tags don't guarantee byte-to-byte equality
+     */
+    public static final String WEAK_ETAG_PREFIX = "W/";
+
     private DownloadTools() {}
 
     /**
@@ -54,25 +85,351 @@ public final class DownloadTools {
         private final Download source;
     }
 
+    /**
+     * Wraps {@link Download.Segment} to as sequence of output buffers
+     */
+    public static class SegmentOutputBuffersIterator implements Iterator<ByteBuffer> {
+
+        /**
+         * @param source The segment to wrap (null means empty sequence).
+         */
+        public SegmentOutputBuffersIterator(Download.Segment source) {
+            this.source = source;
+        }
+
+        /**
+         * @return Always true, to determine the end of the buffers check items for null
+         */
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+
+        /**
+         * @return Next buffer to receive part of the segment from the network
+         */
+        @Override
+        public ByteBuffer next() {
+            return source != null ? source.nextOutputBuffer() : null;
+        }
+
+        private final Download.Segment source;
+    }
+
     /**
      * Performs basic checks.
-     * Sets up all required download parameters.
-     * @param headers String representation of the Http HEAD response.
-     * @throws ParseException when {@link HttpTools#parseHeadResponse(String)} throws
-     * @throws IOException when {@link Download#prepareOutput(int, int)} throws
+     * Extracts the length of the resource.
+     * @param response Parsed headers of the Http response.
+     * @return The length of the resource or -1 if it is unknown in advance
+     *         (Content-Length is absent or the body is in the chunked transfer coding)
+     * @throws ParseException when Content-Length is ill-formatted
      * @throws HTTPException when Http status code is not in [200; 300)
      */
-    public static int parseContentLength(String headers) throws ParseException, IOException {
-        assert headers != null;
+    public static long parseContentLength(HttpResponseParser response) throws ParseException {
+        assert response != null && response.isComplete();
 
-        Map<String, String> parsedHeaders = HttpTools.parseHeadResponse(headers);
-
-        int status = Integer.parseInt(parsedHeaders.get(HttpTools.CODE_KEY));
+        int status = response.getStatusCode();
         if (status < 200 || status >= 300)
             // 2xx: Success - The action was successfully received, understood, and accepted
             throw new HTTPException(status);
 
-        return Integer.parseInt(parsedHeaders.get(HttpTools.CONTENT_LENGTH_KEY));
+        if (isChunked(response))
+            // Content-Length must be ignored if Transfer-Encoding is present (RFC 7230, section 3.3.3)
+            return -1;
+        if (contentCoding(response) != null)
+            // Content-Length is the length of the encoded content
+            return -1;
+        return response.getContentLength();
+    }
+
+    /**
+     * Extracts the coding the content is compressed with (see {@link HttpTools#SUPPORTED_ENCODINGS}).
+     * @param response Parsed headers of the Http response.
+     * @return {@link HttpTools#GZIP}, {@link HttpTools#DEFLATE} or null if the content is not encoded
+     * @throws ParseException when the coding is not supported
+     */
+    public static String contentCoding(HttpResponseParser response) throws ParseException {
+        assert response != null;
+        String encoding = response.getHeader(HttpTools.CONTENT_ENCODING_KEY);
+        if (encoding == null)
+            return null;
+        encoding = encoding.trim();
+        if (encoding.isEmpty() || encoding.equalsIgnoreCase(HttpTools.IDENTITY))
+            return null;
+        if (encoding.equalsIgnoreCase(HttpTools.GZIP) || encoding.equalsIgnoreCase(HttpTools.X_GZIP))
+            return HttpTools.GZIP;
+        if (encoding.equalsIgnoreCase(HttpTools.DEFLATE))
+            return HttpTools.DEFLATE;
+        throw new ParseException(String.format("Unsupported %s: \"%s\"", HttpTools.CONTENT_ENCODING_KEY, encoding), 0);
+    }
+
+    /**
+     * Checks whether the body of the response is in the chunked transfer coding.
+     * @param response Parsed headers of the Http response.
+     * @return True if "chunked" is the last coding of Transfer-Encoding
+     */
+    public static boolean isChunked(HttpResponseParser response) {
+        assert response != null;
+        String encoding = response.getHeader(HttpTools.TRANSFER_ENCODING_KEY);
+        if (encoding == null)
+            return false;
+        String[] codings = encoding.split(",");
+        return codings[codings.length - 1].trim().equalsIgnoreCase(HttpTools.CHUNKED);
+    }
+
+    /**
+     * Chooses the way the body of the response is read.
+     * @param response Parsed headers of the Http GET response.
+     * @param length The length of the resource known from the initialization or -1 if it is unknown.
+     * @return null if the body is exactly the <code>length</code> bytes of the content, so it is read directly
+     *         to the output buffers, otherwise the decoder of the body (chunked, of another length or until close),
+     *         the compressed content is inflated after that (see {@link InflatingBodyDecoder})
+     * @throws ParseException when Content-Length is ill-formatted or Content-Encoding is not supported
+     */
+    public static BodyDecoder bodyDecoder(HttpResponseParser response, long length) throws ParseException {
+        assert response != null;
+        String coding = contentCoding(response);
+        BodyDecoder decoder;
+        long contentLength = response.getContentLength();
+        if (isChunked(response))
+            decoder = new ChunkedBodyDecoder();
+        else if (contentLength < 0)
+            decoder = new IdentityBodyDecoder(IdentityBodyDecoder.UNTIL_CLOSE);
+        else if (contentLength != length || coding != null)
+            decoder = new IdentityBodyDecoder(contentLength);
+        else
+            return null;
+        return coding != null ? new InflatingBodyDecoder(decoder, coding.equals(HttpTools.GZIP)) : decoder;
+    }
+
+    /**
+     * Adds the validators of the cached copy to the headers of the initialization request,
+     * so the server answers by {@link #NOT_MODIFIED_CODE} if the copy is still valid (see {@link DownloadCache}).
+     * @param params The common headers of the requests.
+     * @param download The download to initialize.
+     * @return The <code>params</code> if the download has no cached copy, otherwise their copy with
+     *         If-None-Match and (or) If-Modified-Since headers
+     */
+    public static Map<String, String> requestParams(Map<String, String> params, Download download) {
+        assert params != null && download != null;
+        DownloadCache.Entry cached = download.getCached();
+        if (cached == null)
+            return params;
+        Map<String, String> result = new HashMap<>(params);
+        if (cached.ETag != null)
+            result.put(HttpTools.IF_NONE_MATCH_KEY, cached.ETag);
+        if (cached.LastModified != null)
+            result.put(HttpTools.IF_MODIFIED_SINCE_KEY, cached.LastModified);
+        return result;
+    }
+
+    /**
+     * Checks whether the cached copy of the download is confirmed by the server.
+     * @param response Parsed headers of the response to the initialization request.
+     * @param download The download being initialized.
+     * @return True if the download has the cached copy and the status code is {@link #NOT_MODIFIED_CODE}
+     */
+    public static boolean isNotModified(HttpResponseParser response, Download download) {
+        assert response != null && download != null;
+        return download.getCached() != null && response.getStatusCode() == NOT_MODIFIED_CODE;
+    }
+
+    /**
+     * Checks whether the server is ready to serve parts of the resource.
+     * @param response Parsed headers of the Http response.
+     * @return True if the response advertises byte ranges support
+     */
+    public static boolean acceptsRanges(HttpResponseParser response) {
+        assert response != null;
+        String ranges = response.getHeader(HttpTools.ACCEPT_RANGES_KEY);
+        return ranges != null && ranges.equalsIgnoreCase(HttpTools.BYTES_UNIT);
+    }
+
+    /**
+     * Checks that the server has responded with the requested part of the resource.
+     * @param response Parsed headers of the range request response.
+     * @param length The length of the requested range.
+     * @throws ParseException when Content-Length is absent or ill-formatted
+     * @throws HTTPException when Http status code is not 206 (server ignores the range)
+     * @throws IOException when the length of the part differs from the requested one
+     */
+    public static void checkPartialContent(HttpResponseParser response, long length) throws ParseException, IOException {
+        assert response != null && response.isComplete();
+
+        int status = response.getStatusCode();
+        if (status != PARTIAL_CONTENT_CODE)
+            throw new HTTPException(status);
+        if (response.getContentLength() != length)
+            throw new IOException(String.format("Unexpected length of the part: %d instead of %d", response.getContentLength(), length));
+    }
+
+    /**
+     * Checks that the server has responded with the whole resource of the known length.
+     * The length is not checked if it is unknown either from the initialization or from the response.
+     * @param response Parsed headers of the Http GET response.
+     * @param length The length of the resource known from the initialization or -1 if it is unknown.
+     * @throws ParseException when Content-Length is ill-formatted
+     * @throws HTTPException when Http status code is not in [200; 300)
+     * @throws IOException when the length of the resource has changed since the initialization
+     */
+    public static void checkContent(HttpResponseParser response, long length) throws ParseException, IOException {
+        long actual = parseContentLength(response);
+        if (length >= 0 && actual >= 0 && actual != length)
+            throw new IOException(String.format("Resource has changed: %d bytes instead of %d", actual, length));
+    }
+
+    /**
+     * Checks whether the server keeps the connection open after the response.
+     * @param response Parsed headers of the Http response.
+     * @return False if the response has "Connection: close" directive
+     *         or it is HTTP/1.0 response without "Connection: keep-alive" directive
+     */
+    public static boolean keepsAlive(HttpResponseParser response) {
+        assert response != null;
+        String directive = response.getHeader(HttpTools.CONNECTION_DIRECTIVE);
+        if (directive != null)
+            return directive.equalsIgnoreCase(HttpTools.CONNECTION_KEEP_ALIVE);
+        return HttpTools.DEFAULT_VERION.equals(response.getVersion());
+    }
+
+    /**
+     * Checks whether the resource is the same as the one partially downloaded earlier.
+     * The strong ETag is compared if it was known, otherwise Last-Modified date is compared.
+     * @param etag The ETag of the resource known earlier or null.
+     * @param lastModified The Last-Modified date of the resource known earlier or null.
+     * @param response Parsed headers of the Http response.
+     * @return False if there is no validator to compare, the ETag is weak or the validators differ
+     */
+    public static boolean sameResource(String etag, String lastModified, HttpResponseParser response) {
+        assert response != null;
+        if (etag != null)
+            // weak validators are not good enough for combining parts of the content
+            return !etag.startsWith(WEAK_ETAG_PREFIX) && etag.equals(response.getHeader(HttpTools.ETAG_KEY));
+        return lastModified != null && lastModified.equals(response.getHeader(HttpTools.LAST_MODIFIED_KEY));
+    }
+
+    /**
+     * Merges overlapping and adjacent byte ranges.
+     * @param ranges The [from, to) pairs in any order.
+     * @return Sorted non-overlapping non-empty [from, to) pairs
+     */
+    public static List<long[]> mergeRanges(List<long[]> ranges) {
+        List<long[]> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(range -> range[0]));
+        List<long[]> result = new ArrayList<>(sorted.size());
+        long[] last = null;
+        for (long[] range : sorted) {
+            if (range[1] <= range[0])
+                continue;
+            if (last != null && range[0] <= last[1])
+                last[1] = Math.max(last[1], range[1]);
+            else
+                result.add(last = new long[] {range[0], range[1]});
+        }
+        return result;
+    }
+
+    /**
+     * Formats byte ranges for the messages.
+     * @param ranges The [from, to) pairs.
+     * @return Comma separated inclusive "from-last" ranges, e.g. "0-1023,4096-8191"
+     */
+    public static String formatRanges(List<long[]> ranges) {
+        StringBuilder result = new StringBuilder();
+        for (long[] range : ranges) {
+            if (result.length() > 0)
+                result.append(',');
+            result.append(range[0]).append('-').append(range[1] - 1);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Finds the byte ranges of the resource which are not completed yet.
+     * @param completed Sorted non-overlapping [from, to) pairs (see {@link #mergeRanges(List)}).
+     * @param length The length of the resource.
+     * @return Sorted [from, to) pairs covering [0, length) except the <code>completed</code> ranges
+     */
+    public static List<long[]> remainingRanges(List<long[]> completed, long length) {
+        List<long[]> result = new ArrayList<>();
+        long position = 0;
+        for (long[] range : completed) {
+            if (range[0] > position)
+                result.add(new long[] {position, Math.min(range[0], length)});
+            position = Math.max(position, range[1]);
+            if (position >= length)
+                break;
+        }
+        if (position < length)
+            result.add(new long[] {position, length});
+        return result;
+    }
+
+    /**
+     * Splits the largest ranges in halves while there are less than <code>maxSegments</code> of them.
+     * A range is not split if the halves would be smaller than {@link #MIN_SEGMENT_SIZE}.
+     * @param ranges The [from, to) pairs to split.
+     * @param maxSegments The upper limit of the ranges number.
+     * @return Sorted [from, to) pairs covering the same bytes as <code>ranges</code>
+     */
+    public static List<long[]> splitRanges(List<long[]> ranges, int maxSegments) {
+        List<long[]> result = new ArrayList<>(ranges);
+        while (result.size() < maxSegments) {
+            long[] largest = Collections.max(result, Comparator.comparingLong(range -> range[1] - range[0]));
+            long half = (largest[1] - largest[0]) / 2;
+            if (half < MIN_SEGMENT_SIZE)
+                break;
+            result.remove(largest);
+            result.add(new long[] {largest[0], largest[0] + half});
+            result.add(new long[] {largest[0] + half, largest[1]});
+        }
+        result.sort(Comparator.comparingLong(range -> range[0]));
+        return result;
+    }
+
+    /**
+     * Calculates number of segments for the resource.
+     * @param payload The length of the resource.
+     * @param maxSegments The upper limit of the segments number.
+     * @return The number of segments in [1; maxSegments], so that each segment is not less than {@link #MIN_SEGMENT_SIZE}
+     */
+    public static int segmentsCount(long payload, int maxSegments) {
+        return (int)Math.max(1, Math.min(maxSegments, payload / MIN_SEGMENT_SIZE));
+    }
+
+    /**
+     * Completes the decoding of the body ended by the end of the stream.
+     * The TLS connection closed without close_notify may be cut by anybody on the way, so the body
+     * which is not complete by its own framing (e.g. delimited by the connection close) is truncated.
+     * @param decoder The decoder of the body.
+     * @param outputs The output buffers to fill.
+     * @param channel The channel the body has been read from.
+     * @throws IOException when the body is truncated or can't be decoded
+     */
+    public static void finishBody(BodyDecoder decoder, Iterator<ByteBuffer> outputs, Channel channel) throws IOException {
+        if (!decoder.isComplete() && channel instanceof TlsChannel && ((TlsChannel) channel).isTruncated())
+            throw new SSLException("Connection is closed without close_notify, the content may be truncated");
+        decoder.finish(outputs);
+    }
+
+    /**
+     * Moves the body bytes received together with headers to the output buffers.
+     * @param received The buffer with body bytes in [position; limit).
+     * @param outputs The output buffers to fill.
+     * @return The output buffer to continue reading to or null if all outputs are filled.
+     */
+    public static ByteBuffer transferBody(ByteBuffer received, Iterator<ByteBuffer> outputs) {
+        ByteBuffer output = outputs.next();
+        while (output != null && received.hasRemaining()) {
+            ByteBuffer portion = received.duplicate();
+            if (portion.remaining() > output.remaining())
+                portion.limit(portion.position() + output.remaining());
+            output.put(portion);
+            received.position(portion.position());
+            if (!output.hasRemaining())
+                output = outputs.next();
+        }
+        return output;
     }
 
     /**
@@ -87,18 +444,19 @@ public final class DownloadTools {
             case INITIALIZING:
             case INITIALIZED:
             case DOWNLOADING:
+            case RETRYING:
                 return true;
         }
         return false;
     }
 
     /**
-     * Auxiliary method for updating progress of the download and checking the status.
+     * Auxiliary method for checking download status allows proceed processing.
+     * The progress is not reported here since it is called on every read (see {@link ProgressPublisher}).
      * @param download The download to check.
      * @return True if the status of the <code>download</code> allows next operation.
      */
     public static boolean canProceedProcessing(Download download) {
-        download.invalidateProgress();
         return download.getCurrentStatus() == Download.Status.DOWNLOADING;
     }
 
@@ -2,33 +2,37 @@ package org.wlou.jdownloader.lib;
 
 import org.apache.log4j.Logger;
 import org.wlou.jdownloader.lib.AsyncTools.NetworkOperationContext;
-import org.wlou.jdownloader.lib.AsyncTools.OutputBuffersCollector;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 
 /**
  * The dispatcher object.
- * The main activity is scanning the downloading queue and calling appropriate handlers:
+ * The main activity is draining the ready queue and the scheduler and calling appropriate handlers:
  *  - initialize for new downloads (see {@link org.wlou.jdownloader.lib.Download.Status#NEW}
  *  - process for initialized downloads (see {@link org.wlou.jdownloader.lib.Download.Status#INITIALIZED}
+ *    when the {@link DownloadScheduler} gives them a slot
+ * Downloads are pushed to the queues by their state transitions (see {@link #submit(Download)}),
+ * so the dispatching cost is proportional to the number of changed downloads, not to the queue length.
  */
-public class Downloader implements Runnable {
+public class Downloader implements Runnable, DownloadEngine {
 
     private static Logger LOG = Logger.getLogger(Downloader.class.getName());
 
@@ -45,15 +49,29 @@ public class Downloader implements Runnable {
             assert opName != null && !opName.isEmpty();
 
             Target = target;
+            Attempt = target.getAttempt();
             OperationName = opName;
             OperationInfo = String.format("[%s:%x]", OperationName, DownloadTools.hash(Target));
-            LOG.info(String.format("DownloaderContext %s: \"%s\" -> \"%s\"", OperationInfo, Target.getWhat(), Target.getWhere()));
+            if (LOG.isInfoEnabled())
+                LOG.info(String.format("DownloaderContext %s: \"%s\" -> \"%s\"", OperationInfo, Target.getWhat(), Target.getWhere()));
+        }
+
+        /**
+         * @return True if the operation belongs to the current attempt of the download
+         *         (the operations of the failed attempt are left to finish by themselves)
+         */
+        public boolean isCurrent() {
+            return Target.getAttempt() == Attempt;
         }
 
         /**
          * Reference to the download provided in the {@link #DownloaderContext(Download, String)}
          */
         public final Download Target;
+        /**
+         * The attempt of the download the operation belongs to (see {@link Download#getAttempt()})
+         */
+        public final int Attempt;
         /**
          * Reference to the operation name provided in the {@link #DownloaderContext(Download, String)}
          */
@@ -71,25 +89,76 @@ public class Downloader implements Runnable {
      * @throws IOException when {@link AsynchronousChannelGroup#withThreadPool(ExecutorService)} throws
      */
     public Downloader(ConcurrentLinkedQueue<Download> downloads, ExecutorService executors) throws IOException {
-        httpParams = new HashMap<>();
-        httpParams.put(HttpTools.CONNECTION_DIRECTIVE, HttpTools.CONNECTION_CLOSE);
+        this(downloads, executors, new HostResolver());
+    }
+
+    /**
+     * Initializes downloading queue, worker-treads and the host names resolver
+     * @param downloads The downloading queue.
+     * @param executors The worker-threads.
+     * @param resolver The resolver of remote hosts.
+     * @throws IOException when {@link AsynchronousChannelGroup#withThreadPool(ExecutorService)} throws
+     */
+    public Downloader(ConcurrentLinkedQueue<Download> downloads, ExecutorService executors, HostResolver resolver) throws IOException {
+        this(downloads, executors, resolver, Kind.ASYNC);
+    }
+
+    /**
+     * Initializes downloading queue, worker-treads, the host names resolver and the engine running the workflows
+     * @param downloads The downloading queue.
+     * @param executors The worker-threads of the asynchronous channel group.
+     * @param resolver The resolver of remote hosts.
+     * @param engine The kind of the engine the dispatched downloads are run by:
+     *               the downloader itself ({@link DownloadEngine.Kind#ASYNC}) or {@link BlockingEngine}.
+     * @throws IOException when {@link AsynchronousChannelGroup#withThreadPool(ExecutorService)} throws
+     */
+    public Downloader(ConcurrentLinkedQueue<Download> downloads, ExecutorService executors, HostResolver resolver,
+                      DownloadEngine.Kind engine) throws IOException {
+        this.resolver = resolver;
+        this.engine = engine == Kind.BLOCKING ? new BlockingEngine(resolver, bandwidth, buffers, metrics) : this;
+        httpParams = new ConcurrentHashMap<>();
+        httpParams.put(HttpTools.CONNECTION_DIRECTIVE, HttpTools.CONNECTION_KEEP_ALIVE);
         channels = AsynchronousChannelGroup.withThreadPool(executors);
+        connections = new ConnectionPool(channels);
         tasks = downloads;
+        ready = new ConcurrentLinkedQueue<>();
+        scheduler = new DownloadScheduler(this::wakeUp);
+        // the backoff delays are waited by the single timer thread, not by the workers
+        retries = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, String.format("Retry-%02X", hashCode()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        retries.setRemoveOnCancelPolicy(true);
+        // the digests may read the file back, it is done by the own thread, not by the network ones
+        verifications = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, String.format("Verifier-%02X", hashCode()));
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
-     * Implements infinite loop over downloading queue and dispatching calls.
+     * Implements infinite loop of dispatching calls.
+     * The downloads already in the downloading queue are submitted on start,
+     * after that only the downloads which have changed their state are dispatched.
      */
     @Override
     public void run() {
+        for (Download download : tasks)
+            submit(download);
         while (true) {
             try {
+                dispatch();
+                long woken;
                 synchronized (mutex) {
-                    dispatch();
                     while (!hasWork) {
                         mutex.wait();
                     }
+                    hasWork = false;
+                    woken = wokenAt;
                 }
+                metrics.histogram(Metrics.DISPATCH_LATENCY).recordSince(woken);
             }
             catch (InterruptedException e) {
                 break;
@@ -100,47 +169,249 @@ public class Downloader implements Runnable {
         }
     }
 
+    /**
+     * Drains the ready queue and starts the transfers allowed by the {@link DownloadScheduler}.
+     * New downloads are initialized at once, the transfers (processing or fetching in single-request mode)
+     * wait for a free slot of the scheduler.
+     * Every download in a queue is dispatched once, the stale entries
+     * (the download has changed its state after the push) are dropped by the lock methods of {@link Download}.
+     */
     private void dispatch() {
-        int tasksToDispatch = 0;
-        for (Download download : tasks) {
-            switch (download.getCurrentStatus()) {
-                case NEW: {
-                    final DownloaderContext dc = new DownloaderContext(download, "initialize");
-                    initialize(dc, () -> DownloadTools.canProceedInitialization(dc.Target));
-                    ++tasksToDispatch;
-                    break;
-                }
-                case INITIALIZING:
-                    ++tasksToDispatch;
-                    break;
-                case INITIALIZED: {
-                    final DownloaderContext dc = new DownloaderContext(download, "process");
-                    process(dc, () -> DownloadTools.canProceedProcessing(dc.Target));
-                    break;
-                }
+        for (Download download = ready.poll(); download != null; download = ready.poll()) {
+            final DownloaderContext dc = new DownloaderContext(download, "initialize");
+            engine.initialize(dc, () -> dc.isCurrent() && DownloadTools.canProceedInitialization(dc.Target));
+        }
+        for (Download download = scheduler.poll(); download != null; download = scheduler.poll()) {
+            if (download.getCurrentStatus() == Download.Status.NEW) {
+                final DownloaderContext dc = new DownloaderContext(download, "fetch");
+                engine.fetch(dc, () -> dc.isCurrent() && DownloadTools.canProceedInitialization(dc.Target),
+                    () -> dc.isCurrent() && DownloadTools.canProceedProcessing(dc.Target));
+                continue;
             }
+            final DownloaderContext dc = new DownloaderContext(download, "process");
+            engine.process(dc, () -> dc.isCurrent() && DownloadTools.canProceedProcessing(dc.Target));
         }
-        hasWork = tasksToDispatch > 0;
     }
 
     /**
-     * Force to make one iteration of dispatching loop
+     * Registers the download in the dispatcher.
+     * The download is put to the ready queue or to the scheduler according to its current state and
+     * its further state transitions push it to the corresponding queues.
+     * @param download The download to dispatch.
+     */
+    public void submit(Download download) {
+        download.setStatusListener(this::onStatusChanged);
+        onStatusChanged(download, download.getCurrentStatus());
+    }
+
+    /**
+     * Sets the listener of the state transitions of all submitted downloads
+     * (the downloads' own listeners are occupied by the dispatcher, see {@link #submit(Download)}).
+     * The listener is called by the thread changing the state before the download is dispatched further.
+     * @param listener The callback receiving the download and its new state or null.
      */
-    public void checkForNewTasks() {
+    public void setStatusListener(BiConsumer<Download, Download.Status> listener) {
+        statusListener = listener;
+    }
+
+    /**
+     * Puts the download to the ready queue or to the scheduler if the state needs dispatching,
+     * frees the scheduler's slot if the transfer is finished (or waits for the retry) and wakes the dispatching loop up.
+     * The retry is scheduled on the timer, the download becomes NEW again when the delay is over.
+     * The received content is verified on the verification thread.
+     * @param download The download which has changed its state.
+     * @param status The new state of the download.
+     */
+    private void onStatusChanged(Download download, Download.Status status) {
+        BiConsumer<Download, Download.Status> listener = statusListener;
+        if (listener != null)
+            listener.accept(download, status);
+        switch (status) {
+            case NEW:
+                if (download.isSingleRequest())
+                    scheduler.offer(download);
+                else
+                    ready.add(download);
+                break;
+            case INITIALIZED:
+                scheduler.offer(download);
+                break;
+            case RETRYING:
+                scheduleRetry(download);
+                if (!scheduler.release(download))
+                    return;
+                break;
+            case VERIFYING:
+                scheduleVerification(download);
+                if (!scheduler.release(download))
+                    return;
+                break;
+            case DOWNLOADED:
+            case ERROR:
+            case CORRUPTED:
+            case GHOST:
+                if (!scheduler.release(download))
+                    return;
+                break;
+            default:
+                return;
+        }
+        wakeUp();
+    }
+
+    private void scheduleRetry(Download download) {
+        long delay = download.getRetryDelay();
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("[retry] %s: attempt %d in %d ms after %s", download.getWhat(),
+                download.getAttempt(), delay, download.getLastError()));
+        try {
+            retries.schedule(download::retry, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException exc) {
+            // the downloader is closed
+            LOG.warn(String.format("[retry] %s: the retry is dropped", download.getWhat()));
+        }
+    }
+
+    private void scheduleVerification(Download download) {
+        try {
+            verifications.execute(download::completeVerification);
+        }
+        catch (RejectedExecutionException exc) {
+            // the downloader is closed
+            LOG.warn(String.format("[verify] %s: the verification is dropped", download.getWhat()));
+        }
+    }
+
+    /**
+     * Wakes the dispatching loop up.
+     */
+    private void wakeUp() {
         synchronized (mutex) {
+            // the latency is counted from the first wake up not served yet
+            if (!hasWork)
+                wokenAt = System.nanoTime();
             hasWork = true;
             mutex.notifyAll();
         }
     }
 
+    /**
+     * Connection pool shared by all downloading operations.
+     * @return The pool of keep-alive connections.
+     */
+    public ConnectionPool getConnectionPool() {
+        return connections;
+    }
+
+    /**
+     * Resolver shared by all downloading operations.
+     * @return The resolver of the remote hosts.
+     */
+    public HostResolver getHostResolver() {
+        return resolver;
+    }
+
+    /**
+     * Scheduler of the transfers.
+     * @return The scheduler deciding which downloads start transferring.
+     */
+    public DownloadScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Limiter of the downloading bandwidth.
+     * @return The limiter shared by all downloads.
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidth;
+    }
+
+    /**
+     * Metrics of the downloading operations.
+     * @return The registry of the transferred bytes and the latencies of the network operations.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Pool of the request and response headers buffers.
+     * @return The pool of direct buffers.
+     */
+    public BufferPool getBufferPool() {
+        return buffers;
+    }
+
+    /**
+     * Sets the limit of connections to one host for both engines.
+     * @param maxPerHost The number of connections [1; Infinity)
+     */
+    public void setMaxConnectionsPerHost(int maxPerHost) {
+        connections.setMaxPerHost(maxPerHost);
+        if (engine instanceof BlockingEngine)
+            ((BlockingEngine) engine).setMaxPerHost(maxPerHost);
+    }
+
+    /**
+     * Sets the context of the https connections for both engines.
+     * The connections made by the same context resume its cached TLS sessions.
+     * @param sslContext The initialized context, null for the default one.
+     */
+    public void setSslContext(SSLContext sslContext) {
+        connections.setSslContext(sslContext);
+        if (engine instanceof BlockingEngine)
+            ((BlockingEngine) engine).setSslContext(sslContext);
+    }
+
+    /**
+     * Turns on/off the negotiation of the compressed content for both engines:
+     * the requests of the whole resource carry "Accept-Encoding: gzip, deflate" and the compressed response
+     * is inflated on the fly (see {@link InflatingBodyDecoder}), the range requests are never compressed.
+     * The length of the compressed resource is unknown in advance, so such download is not split into segments.
+     * @param compression True to ask the servers for the compressed content.
+     */
+    public void setCompression(boolean compression) {
+        if (compression)
+            httpParams.put(HttpTools.ACCEPT_ENCODING_KEY, HttpTools.SUPPORTED_ENCODINGS);
+        else
+            httpParams.remove(HttpTools.ACCEPT_ENCODING_KEY);
+        if (engine instanceof BlockingEngine)
+            ((BlockingEngine) engine).setCompression(compression);
+    }
+
+    /**
+     * Engine accessor.
+     * @return The engine running the dispatched downloads (the downloader itself for asynchronous engine).
+     */
+    public DownloadEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Closes idle connections, stops the resolver, the bandwidth limiter, the retry timer, the verification thread
+     * and the blocking engine. The downloads waiting for the retry stay {@link Download.Status#RETRYING},
+     * the downloads waiting for the verification stay {@link Download.Status#VERIFYING}.
+     */
+    @Override
+    public void close() {
+        retries.shutdownNow();
+        verifications.shutdownNow();
+        if (engine != this)
+            engine.close();
+        connections.close();
+        resolver.close();
+        bandwidth.close();
+    }
+
     /**
      * Main initialization workflow.
      * General scheme:
-     *  1. checks {@link Download}'s source domain for availability;
-     *  2. prepares Http HEAD request and {@link NetworkOperationContext};
-     *  3. sets up sequence of callback handlers of Http HEAD response, simplified logic is as follows:
-     *     send request -> read response -> call {@link Download#completeInitialization(String, String)};
-     *  4. runs Http HEAD request asynchronously.
+     *  1. prepares Http HEAD request and {@link Exchange};
+     *  2. sets up sequence of callback handlers of Http HEAD response, simplified logic is as follows:
+     *     read response headers -> call {@link Download#completeInitialization(HttpResponseParser)};
+     *  3. runs Http HEAD request asynchronously over a pooled connection (see {@link #start(Exchange)}).
      * @param dc The downloader context for initialize operation
      * @param interruptor Callback for interrupting network operation.
      *                    See {@link org.wlou.jdownloader.lib.AsyncTools.ChannelReader#ChannelReader(Iterator, Supplier, BiConsumer, BiConsumer)}
@@ -150,89 +421,51 @@ public class Downloader implements Runnable {
         assert dc != null && dc.Target != null;
         assert interruptor != null;
 
-        final BiConsumer<Throwable, NetworkOperationContext> initErrorHandler = (exc, nc) ->
-            onDownloaderError(dc, nc, DownloadTools.INIT_ERROR_MESSAGE, exc);
-
         // 1. Trying to acquire download and start initialization.
         if (!dc.Target.lockForInitialization())
             return; // Somebody else blocked this try.
 
         // 2. Here we've acquired exclusive initialization rights.
-        //    Start initialization from preparing endpoint parameters.
+        //    Start initialization from preparing the request.
         final URL what = dc.Target.getWhat();
-        SocketAddress remote;
-        try {
-            int port = what.getPort() == -1 ? HttpTools.DEFAULT_PORT : what.getPort();
-            remote = new InetSocketAddress(InetAddress.getByName(what.getHost()), port);
-        }
-        catch (Exception exc) {
-            initErrorHandler.accept(exc, null);
-            return;
-        }
-
-        // 3. Remote host is successfully resolved.
-        //    Prepare network context.
-        NetworkOperationContext networkContext;
-        OutputBuffersCollector responseCollector = new OutputBuffersCollector(1024);
+        final Exchange exchange;
         try {
-            networkContext = new NetworkOperationContext(
-                 dc.OperationInfo,
-                 AsynchronousSocketChannel.open(channels),
-                 ByteBuffer.wrap(HttpTools.makeHeadRequest(what, httpParams).getBytes()),
-                 responseCollector.next()
-             );
+            exchange = new Exchange(
+                dc,
+                DownloadTools.INIT_ERROR_MESSAGE,
+                interruptor,
+                HttpTools.makeHeadRequest(what, DownloadTools.requestParams(httpParams, dc.Target))
+            );
         } catch (Exception exc) {
-            initErrorHandler.accept(exc, null);
+            onDownloaderError(dc, null, DownloadTools.INIT_ERROR_MESSAGE, exc);
             return;
         }
 
-        // 4.  Prepare asynchronous initialization workflow.
-        //     [Connect] -> [Send HEAD request] -> [Read .. read ..] -> [Handle HEAD response]
-        //     The process based on callbacks, so define them in the reversed order.
-        // 4.1 Let's start with the last stage: "we've already read some portion of data (may be last)"
-        //     There is a AsyncTools.ChannelReader for handling such situation.
-        final AsyncTools.ChannelReader reader = new AsyncTools.ChannelReader(
-            responseCollector,
+        // 3. The response of HEAD request contains headers only.
+        //    There is a AsyncTools.HeadersReader for handling such situation:
+        //    it reads until the empty line is met.
+        AsyncTools.HeadersReader reader = new AsyncTools.HeadersReader(
+            exchange.Parser,
             interruptor,
-            (read, nc) -> onInitResponded(dc, nc, responseCollector),
-            initErrorHandler
+            (read, nc) -> onInitResponded(exchange, read),
+            exchange::onError
         );
         reader.setLog(LOG);
+        exchange.Reader = reader;
+        exchange.Latency = metrics.histogram(Metrics.HEAD_LATENCY);
 
-        // 4.2 Now we need writer for sending the request
-        //     The AsyncTools.ChannelWriter appropriates for this.
-        final AsyncTools.ChannelWriter writer = new AsyncTools.ChannelWriter(
-            interruptor,
-            (written, nc) -> {
-                LOG.info(String.format("%s request \"%s\" is sent", dc.OperationInfo,
-                    AsyncTools.extractString(nc.RequestBytes, HttpTools.DEFAULT_CONTENT_CHARSET)));
-                nc.Channel.read(nc.ResponseBytes, nc, reader);
-            },
-            initErrorHandler
-        );
-        writer.setLog(LOG);
-
-        // 4.3 Connection handler is the starting point in the workflow.
-        final CompletionHandler<Void, NetworkOperationContext> onConnect = AsyncTools.handlerFrom(
-            (stub, nc) -> {
-                LOG.info(String.format("%s domain \"%s\" connected", dc.OperationInfo, what.getHost()));
-                nc.Channel.write(nc.RequestBytes, nc, writer);
-            },
-            initErrorHandler
-        );
-
-        // 5. Start the workflow.
-        LOG.info(String.format("%s start workflow", dc.OperationInfo));
-        networkContext.Channel.connect(remote, networkContext, onConnect);
+        // 4. Start the workflow.
+        start(exchange);
     }
 
     /**
      * Main processing workflow.
      * General scheme:
-     *  1. prepares Http GET request and {@link NetworkOperationContext};
+     *  1. prepares Http GET request and {@link Exchange};
      *  2. sets up sequence of callback handlers of Http GET response, simplified logic is as follows:
-     *     send request -> set of reads -> finalize the download (set status, release buffers);
-     *  3. runs Http GET request asynchronously.
+     *     read headers -> check the resource is not changed ->
+     *     set of reads -> finalize the download (set status, release buffers);
+     *  3. runs Http GET request asynchronously over a pooled connection (see {@link #start(Exchange)}).
      * @param dc The download to initialize
      * @param interruptor Callback for interrupting network operation.
      *                    See {@link org.wlou.jdownloader.lib.AsyncTools.ChannelReader#ChannelReader(Iterator, Supplier, BiConsumer, BiConsumer)}
@@ -242,132 +475,659 @@ public class Downloader implements Runnable {
         assert dc != null && dc.Target != null;
         assert interruptor != null;
 
-        final BiConsumer<Throwable, NetworkOperationContext> procErrorHandler = (exc, nc) ->
-            onDownloaderError(dc, nc, DownloadTools.PROC_ERROR_MESSAGE, exc);
-
         // 1. Trying to acquire download and start processing.
         if (!dc.Target.lockForProcessing())
             return; // Somebody else blocked this try.
 
+        // 1.1 The download is split into segments: each of them is processed by its own connection.
+        if (!dc.Target.getSegments().isEmpty()) {
+            int index = 0;
+            for (Download.Segment segment : dc.Target.getSegments()) {
+                DownloaderContext sc = new DownloaderContext(dc.Target, String.format("%s-%d", dc.OperationName, index++));
+                processSegment(sc, segment, interruptor);
+            }
+            return;
+        }
+
         // 2. Here we've acquired exclusive processing rights.
-        //    Start processing from preparing endpoint.
+        //    Start processing from preparing the request.
         final URL what = dc.Target.getWhat();
-        SocketAddress remote;
+        final Exchange exchange;
         try {
-            int port = what.getPort() == -1 ? HttpTools.DEFAULT_PORT : what.getPort();
-            remote = new InetSocketAddress(InetAddress.getByName(what.getHost()), port);
+            exchange = new Exchange(
+                dc,
+                DownloadTools.PROC_ERROR_MESSAGE,
+                interruptor,
+                HttpTools.makeGetRequest(what, httpParams)
+            );
         } catch (Exception exc) {
-            procErrorHandler.accept(exc, null);
+            onDownloaderError(dc, null, DownloadTools.PROC_ERROR_MESSAGE, exc);
             return;
         }
 
-        // 3. Remote host is successfully resolved.
-        //    Prepare network context.
-        NetworkOperationContext networkContext;
+        // 3.  Prepare asynchronous workflow (in the reversed order).
+        //     [Read headers] -> [Read portion1] ... -> [Complete]
+        // 3.1 The content is read portion by portion directly to the download's output buffers.
+        //     There is a AsyncTools.ChannelReader for handling such situation.
+        //     The chunked body or the body of unexpected length is decoded instead (see readDecodedBody).
+        final AsyncTools.ChannelReader bodyReader = new AsyncTools.ChannelReader(
+            new DownloadTools.DownloadOutputBuffersIterator(dc.Target),
+            interruptor,
+            (read, nc) -> onProcResponded(exchange, read),
+            exchange::onError
+        );
+        bodyReader.setLog(LOG);
+        bodyReader.setThrottle(bytes -> onReceived(dc.Target, bytes), bandwidth::schedule);
+
+        // 3.2 Reading headers until the empty line is met.
+        AsyncTools.HeadersReader reader = new AsyncTools.HeadersReader(
+            exchange.Parser,
+            interruptor,
+            (read, nc) -> onProcHeadersResponded(exchange, read, nc, bodyReader, interruptor),
+            exchange::onError
+        );
+        reader.setLog(LOG);
+        exchange.Reader = reader;
+
+        // 4. All tings prepared.
+        //    Start the workflow.
+        start(exchange);
+    }
+
+    /**
+     * Segment processing workflow.
+     * General scheme:
+     *  1. prepares Http GET request for the segment's range and {@link Exchange};
+     *  2. sets up sequence of callback handlers of Http GET response, simplified logic is as follows:
+     *     read headers -> set of reads to the segment's slice -> complete the segment;
+     *  3. runs Http GET request asynchronously over a pooled connection (see {@link #start(Exchange)}).
+     * @param dc The download context of the segment
+     * @param segment The segment to process
+     * @param interruptor Callback for interrupting network operation.
+     */
+    private void processSegment(DownloaderContext dc, Download.Segment segment, Supplier<Boolean> interruptor) {
+        // 1. Prepare the range request.
+        final URL what = dc.Target.getWhat();
+        final Exchange exchange;
         try {
-            networkContext = new NetworkOperationContext(
-                dc.OperationInfo,
-                AsynchronousSocketChannel.open(channels),
-                ByteBuffer.wrap(HttpTools.makeGetRequest(what, httpParams).getBytes(HttpTools.DEFAULT_CONTENT_CHARSET)),
-                dc.Target.nextOutputBuffer()
+            String request = HttpTools.makeRangeRequest(what, httpParams, segment.Offset, segment.Offset + segment.Length - 1);
+            exchange = new Exchange(
+                dc,
+                DownloadTools.PROC_ERROR_MESSAGE,
+                interruptor,
+                request
             );
         } catch (Exception exc) {
-            procErrorHandler.accept(exc, null);
+            onDownloaderError(dc, null, DownloadTools.PROC_ERROR_MESSAGE, exc);
             return;
         }
 
-        // 4.  Prepare asynchronous download workflow.
-        //     The process based on callbacks, so define them in the reversed order.
-        //     [Connect] -> [Send Get request] -> [Read portion1] -> [Read portion2] ... -> [Complete]
-        // 4.1 Let's start with the last stage: "we've already read some portion of data (may be last)"
-        //     There is a AsyncTools.ChannelReader for handling such situation.
-        final AsyncTools.ChannelReader reader = new AsyncTools.ChannelReader(
-            new DownloadTools.DownloadOutputBuffersIterator(dc.Target),
+        // 2.  Prepare asynchronous segment workflow (in the reversed order).
+        //     [Read headers] -> [Read portion1] ... -> [Complete segment]
+        // 2.1 Reading the segment content to the dedicated slice of the target memory.
+        final AsyncTools.ChannelReader bodyReader = new AsyncTools.ChannelReader(
+            new DownloadTools.SegmentOutputBuffersIterator(segment),
             interruptor,
-            (read, nc) -> onProcResponded(dc, nc),
-            procErrorHandler
+            (read, nc) -> onSegmentResponded(exchange, read, segment),
+            exchange::onError
+        );
+        bodyReader.setLog(LOG);
+        bodyReader.setThrottle(bytes -> onReceived(dc.Target, bytes), bandwidth::schedule);
+
+        // 2.2 Reading headers until the empty line is met.
+        AsyncTools.HeadersReader reader = new AsyncTools.HeadersReader(
+            exchange.Parser,
+            interruptor,
+            (read, nc) -> onSegmentHeadersResponded(exchange, read, nc, segment, bodyReader),
+            exchange::onError
         );
         reader.setLog(LOG);
+        exchange.Reader = reader;
+
+        // 3. Start the workflow.
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s segment [%d; %d)", dc.OperationInfo, segment.Offset, segment.Offset + segment.Length));
+        start(exchange);
+    }
 
-        // 4.2 Before reading we need to send request for the data
-        //     We have AsyncTools.ChannelWriter for that
+    /**
+     * Single-request workflow: initialization and processing by one Http GET request.
+     * General scheme:
+     *  1. prepares Http GET request and {@link Exchange};
+     *  2. sets up sequence of callback handlers of Http GET response, simplified logic is as follows:
+     *     read headers -> call {@link Download#initializeFromResponse(HttpResponseParser)} ->
+     *     set of reads -> finalize the download (set status, release buffers);
+     *  3. runs Http GET request asynchronously over a pooled connection (see {@link #start(Exchange)}).
+     * The download passes {@link Download.Status#INITIALIZED} state without separate HEAD request.
+     * @param dc The downloader context for fetch operation
+     * @param initInterruptor Callback for interrupting network operation while headers are read.
+     * @param procInterruptor Callback for interrupting network operation while content is read.
+     */
+    public void fetch(DownloaderContext dc, Supplier<Boolean> initInterruptor, Supplier<Boolean> procInterruptor) {
+        assert dc != null && dc.Target != null;
+        assert initInterruptor != null && procInterruptor != null;
+
+        // 1. Trying to acquire download and start initialization.
+        if (!dc.Target.lockForInitialization())
+            return; // Somebody else blocked this try.
+
+        // 2. Here we've acquired exclusive initialization rights.
+        //    Start from preparing the request.
+        final URL what = dc.Target.getWhat();
+        final Exchange exchange;
+        try {
+            exchange = new Exchange(
+                dc,
+                DownloadTools.INIT_ERROR_MESSAGE,
+                initInterruptor,
+                HttpTools.makeGetRequest(what, DownloadTools.requestParams(httpParams, dc.Target))
+            );
+        } catch (Exception exc) {
+            onDownloaderError(dc, null, DownloadTools.INIT_ERROR_MESSAGE, exc);
+            return;
+        }
+
+        // 3.  Prepare asynchronous workflow (in the reversed order).
+        //     [Read headers] -> [Initialize] -> [Read portion1] ... -> [Complete]
+        // 3.1 Reading the content directly to the download's output buffers
+        //     (the chunked body or the body of unknown length is decoded instead, see readDecodedBody).
+        final AsyncTools.ChannelReader bodyReader = new AsyncTools.ChannelReader(
+            new DownloadTools.DownloadOutputBuffersIterator(dc.Target),
+            procInterruptor,
+            (read, nc) -> onProcResponded(exchange, read),
+            exchange::onError
+        );
+        bodyReader.setLog(LOG);
+        bodyReader.setThrottle(bytes -> onReceived(dc.Target, bytes), bandwidth::schedule);
+
+        // 3.2 Reading headers until the empty line is met.
+        AsyncTools.HeadersReader reader = new AsyncTools.HeadersReader(
+            exchange.Parser,
+            initInterruptor,
+            (read, nc) -> onFetchHeadersResponded(exchange, read, nc, bodyReader, procInterruptor),
+            exchange::onError
+        );
+        reader.setLog(LOG);
+        exchange.Reader = reader;
+
+        // 4. Start the workflow.
+        start(exchange);
+    }
+
+    /**
+     * Common part of all workflows.
+     *     [Acquire connection] -> [Connect (fresh connection only)] -> [Send request] -> [Read response by exchange's reader]
+     * The process based on callbacks, so define them in the reversed order.
+     * @param exchange The prepared request/response operation.
+     */
+    private void start(Exchange exchange) {
+        final DownloaderContext dc = exchange.Context;
+        final URL what = dc.Target.getWhat();
+
+        // 1. Writer for sending the request, the response is read by the exchange's reader.
         final AsyncTools.ChannelWriter writer = new AsyncTools.ChannelWriter(
-            interruptor,
+            exchange.Interruptor,
             (written, nc) -> {
-                LOG.info(String.format("%s request \"%s\" is sent", dc.OperationInfo,
-                    AsyncTools.extractString(nc.RequestBytes, HttpTools.DEFAULT_CONTENT_CHARSET)));
-                nc.Channel.read(nc.ResponseBytes, nc, reader);
+                if (LOG.isInfoEnabled())
+                    LOG.info(String.format("%s request \"%s\" is sent", dc.OperationInfo,
+                        AsyncTools.extractString(nc.RequestBytes, HttpTools.DEFAULT_CONTENT_CHARSET)));
+                nc.Channel.read(nc.ResponseBytes, nc, exchange.Reader);
             },
-            procErrorHandler
+            exchange::onError
         );
         writer.setLog(LOG);
 
-        // 4.3 To Send the request we need to connect to the remote host
+        // 2. Connection handler is needed for the fresh connections only.
         final CompletionHandler<Void, NetworkOperationContext> onConnect = AsyncTools.handlerFrom(
             (stub, nc) -> {
-                LOG.info(String.format("%s domain \"%s\" connected", dc.OperationInfo, what.getHost()));
+                metrics.histogram(Metrics.CONNECT_LATENCY).recordSince(exchange.Connecting);
+                if (LOG.isInfoEnabled())
+                    LOG.info(String.format("%s domain \"%s\" connected", dc.OperationInfo, what.getHost()));
                 nc.Channel.write(nc.RequestBytes, nc, writer);
             },
-            procErrorHandler
+            exchange::onError
         );
 
-        // 5. All tings prepared.
-        //    Start the workflow.
-        LOG.info(String.format("%s start workflow", dc.OperationInfo));
-        networkContext.Channel.connect(remote, networkContext, onConnect);
+        // 3. The pool gives the connection: reused one is ready for sending,
+        //    fresh one should be connected after asynchronous resolving of the remote host.
+        final CompletionHandler<ConnectionPool.Connection, Exchange> onAcquire = AsyncTools.handlerFrom(
+            (connection, ex) -> {
+                ex.Connection = connection;
+                // the attempt is over while the connection was acquired, so the abort has missed it
+                if (!ex.Interruptor.get()) {
+                    ex.close(false);
+                    return;
+                }
+                ex.Request.rewind();
+                NetworkOperationContext nc = new NetworkOperationContext(
+                    dc.OperationInfo, connection.Channel, ex.Request, ex.Response);
+                if (connection.isReused()) {
+                    if (LOG.isInfoEnabled())
+                        LOG.info(String.format("%s reuses connection to \"%s\"", dc.OperationInfo, connection.Key));
+                    nc.Channel.write(nc.RequestBytes, nc, writer);
+                    return;
+                }
+                final int port = HttpTools.portOf(what);
+                final long resolving = System.nanoTime();
+                resolver.resolve(what.getHost(), nc, AsyncTools.handlerFrom(
+                    (address, rc) -> {
+                        metrics.histogram(Metrics.DNS_LATENCY).recordSince(resolving);
+                        ex.Connecting = System.nanoTime();
+                        rc.Channel.connect(new InetSocketAddress(address, port), rc, onConnect);
+                    },
+                    ex::onError
+                ));
+            },
+            (exc, ex) -> onDownloaderError(dc, ex, ex.ErrorMessage, exc)
+        );
+
+        // 4. Start the workflow.
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s start workflow", dc.OperationInfo));
+        exchange.Started = System.nanoTime();
+        connections.acquire(ConnectionPool.keyOf(what), exchange, onAcquire);
     }
 
-    private void onDownloaderError(DownloaderContext dc, NetworkOperationContext nc, String status, Throwable exc) {
+    /**
+     * Checks whether the exchange failed because of the reused connection has been closed by the server
+     * while it was idle. Restarts the exchange on the other connection in this case.
+     * @return True if the exchange is restarted.
+     */
+    private boolean restartIfStale(Exchange exchange) {
+        // the aborted exchange fails the same way
+        if (!exchange.Interruptor.get())
+            return false;
+        if (exchange.Connection == null || !exchange.Connection.isReused() || exchange.Parser.getHeadersLength() != 0)
+            return false;
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s connection to \"%s\" is stale, restarting",
+                exchange.Context.OperationInfo, exchange.Connection.Key));
+        connections.release(exchange.Connection, false);
+        exchange.Connection = null;
+        exchange.Parser.reset();
+        exchange.Response.clear();
+        start(exchange);
+        return true;
+    }
+
+    /**
+     * Accounts the bytes read from the network by the body readers.
+     * @return The delay of the next read required by the bandwidth limits in nanoseconds.
+     */
+    private long onReceived(Download download, long bytes) {
+        metrics.received(download, bytes);
+        return bandwidth.consume(download, bytes);
+    }
+
+    private void onDownloaderError(DownloaderContext dc, Exchange exchange, String status, Throwable exc) {
         assert dc != null && dc.Target != null;
         LOG.error(String.format("%s reason: %s", dc.OperationInfo, exc));
-        dc.Target.interruptExceptionally(status);
-        if (nc != null)
-            nc.close();
+        dc.Target.interruptExceptionally(status, exc, dc.Attempt);
+        if (exchange != null)
+            exchange.close(false);
+    }
+
+    /**
+     * Common check of the headers reading result.
+     * The stale connection is replaced, the interrupted exchange releases the connection,
+     * incomplete headers interrupt the download.
+     * @return True if the headers are completely received and the workflow may proceed.
+     */
+    private boolean onHeadersResponded(Exchange exchange, Integer read) {
+        final DownloaderContext dc = exchange.Context;
 
+        if (exchange.Parser.isComplete()) {
+            exchange.Latency.recordSince(exchange.Started);
+            if (LOG.isInfoEnabled())
+                LOG.info(String.format("%s response headers: \"%s\"", dc.OperationInfo, exchange.Parser));
+            return true;
+        }
+        if (read == -1 && restartIfStale(exchange))
+            return false;
+        if (!exchange.Interruptor.get()) {
+            if (LOG.isInfoEnabled())
+                LOG.info(String.format("%s interrupted", dc.OperationInfo));
+            exchange.close(false);
+            return false;
+        }
+        onDownloaderError(dc, exchange, exchange.ErrorMessage,
+            new IOException("Response headers are not received"));
+        return false;
     }
 
-    private void onInitResponded(DownloaderContext dc, NetworkOperationContext nc, OutputBuffersCollector collector) {
-        assert dc != null && dc.Target != null;
-        assert collector != null;
+    private void onInitResponded(Exchange exchange, Integer read) {
+        final DownloaderContext dc = exchange.Context;
 
-        LOG.info(String.format("%s last read operation", dc.OperationInfo));
-        if (nc != null)
-            nc.close();
-        byte[] response = collector.getCollectedBytes();
-        String headers = new String(response, Charset.forName(HttpTools.DEFAULT_CONTENT_CHARSET));
-        LOG.info(String.format("%s response content: \"%s\"", dc.OperationInfo, headers));
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s last read operation", dc.OperationInfo));
+        if (!onHeadersResponded(exchange, read))
+            return;
+        exchange.close(read != -1 && DownloadTools.keepsAlive(exchange.Parser));
 
-        dc.Target.completeInitialization(headers, HttpTools.DEFAULT_CONTENT_CHARSET);
+        // The cached copy is confirmed by 304 Not Modified: the download is completed without the content request
+        if (DownloadTools.isNotModified(exchange.Parser, dc.Target))
+            dc.Target.completeFromCache();
+        else
+            dc.Target.completeInitialization(exchange.Parser);
         Throwable result = dc.Target.getLastError();
         if (result != null) {
             LOG.error(String.format("%s failed to complete", dc.OperationInfo));
-            onDownloaderError(dc, nc, DownloadTools.INIT_ERROR_MESSAGE, result);
+            onDownloaderError(dc, null, DownloadTools.INIT_ERROR_MESSAGE, result);
             return;
         }
-        LOG.info(String.format("%s completed", dc.OperationInfo));
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s completed", dc.OperationInfo));
     }
 
-    private void onProcResponded(DownloaderContext dc, NetworkOperationContext nc) {
-        assert dc != null && dc.Target != null;
+    private void onProcHeadersResponded(Exchange exchange, Integer read, NetworkOperationContext nc,
+                                        AsyncTools.ChannelReader bodyReader, Supplier<Boolean> interruptor) {
+        final DownloaderContext dc = exchange.Context;
+
+        if (!onHeadersResponded(exchange, read))
+            return;
+        final BodyDecoder decoder;
+        try {
+            DownloadTools.checkContent(exchange.Parser, dc.Target.getLength());
+            exchange.KeepAlive = DownloadTools.keepsAlive(exchange.Parser);
+            decoder = DownloadTools.bodyDecoder(exchange.Parser, dc.Target.getLength());
+        }
+        catch (Exception exc) {
+            onDownloaderError(dc, exchange, DownloadTools.PROC_ERROR_MESSAGE, exc);
+            return;
+        }
+        if (decoder != null) {
+            readDecodedBody(exchange, read, nc, decoder, interruptor);
+            return;
+        }
+
+        // The rest of the received bytes is the beginning of the content.
+        metrics.received(dc.Target, exchange.Response.remaining());
+        ByteBuffer output = DownloadTools.transferBody(exchange.Response, new DownloadTools.DownloadOutputBuffersIterator(dc.Target));
+        if (output == null) {
+            onProcResponded(exchange, read);
+            return;
+        }
+        nc = new NetworkOperationContext(nc.OperationInfo, nc.Channel, nc.RequestBytes, output);
+        nc.Channel.read(nc.ResponseBytes, nc, bodyReader);
+    }
 
-        LOG.info(String.format("%s last read operation", dc.OperationInfo));
-        if (nc != null)
-            nc.close();
+    private void onProcResponded(Exchange exchange, Integer read) {
+        final DownloaderContext dc = exchange.Context;
+
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s last read operation", dc.OperationInfo));
+        boolean reusable = read != -1 && exchange.KeepAlive && DownloadTools.canProceedProcessing(dc.Target);
+        exchange.close(reusable);
         dc.Target.completeProcessing();
         Throwable result = dc.Target.getLastError();
         if (result != null) {
             LOG.error(String.format("%s failed to complete", dc.OperationInfo));
-            onDownloaderError(dc, nc, DownloadTools.INIT_ERROR_MESSAGE, result);
+            onDownloaderError(dc, null, DownloadTools.PROC_ERROR_MESSAGE, result);
             return;
         }
-        LOG.info(String.format("%s completed", dc.OperationInfo));
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s completed", dc.OperationInfo));
+    }
+
+    /**
+     * Reads the body which can't be read directly to the output buffers (see {@link BodyDecoder}).
+     * The body is read to the exchange's own buffer and decoded to the download's output buffers portion by portion.
+     */
+    private void readDecodedBody(Exchange exchange, Integer read, NetworkOperationContext nc,
+                                 BodyDecoder decoder, Supplier<Boolean> interruptor) {
+        final DownloaderContext dc = exchange.Context;
+        final Iterator<ByteBuffer> outputs = new DownloadTools.DownloadOutputBuffersIterator(dc.Target);
 
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s decoding %s body", dc.OperationInfo,
+                DownloadTools.isChunked(exchange.Parser) ? HttpTools.CHUNKED : "identity"));
+        // The rest of the received bytes is the beginning of the body.
+        metrics.received(dc.Target, exchange.Response.remaining());
+        try {
+            decoder.decode(exchange.Response, outputs);
+            if (read == -1)
+                DownloadTools.finishBody(decoder, outputs, nc.Channel);
+        }
+        catch (Exception exc) {
+            onDownloaderError(dc, exchange, DownloadTools.PROC_ERROR_MESSAGE, exc);
+            return;
+        }
+        if (read == -1 || decoder.isComplete()) {
+            onDecodedResponded(exchange, read, decoder);
+            return;
+        }
+
+        AsyncTools.DecodingReader bodyReader = new AsyncTools.DecodingReader(
+            decoder,
+            outputs,
+            interruptor,
+            (r, c) -> onDecodedResponded(exchange, r, decoder),
+            exchange::onError
+        );
+        bodyReader.setLog(LOG);
+        bodyReader.setThrottle(bytes -> onReceived(dc.Target, bytes), bandwidth::schedule);
+        exchange.Body = buffers.acquire(BODY_BUFFER_SIZE);
+        nc = new NetworkOperationContext(nc.OperationInfo, nc.Channel, nc.RequestBytes, exchange.Body);
+        nc.Channel.read(nc.ResponseBytes, nc, bodyReader);
+    }
+
+    private void onDecodedResponded(Exchange exchange, Integer read, BodyDecoder decoder) {
+        final DownloaderContext dc = exchange.Context;
+
+        if (!decoder.isComplete() && DownloadTools.canProceedProcessing(dc.Target)) {
+            LOG.error(String.format("%s connection is closed before the body is received", dc.OperationInfo));
+            onDownloaderError(dc, exchange, DownloadTools.PROC_ERROR_MESSAGE,
+                new IOException(String.format("Body is incomplete: %d bytes are decoded", decoder.getDecoded())));
+            return;
+        }
+        onProcResponded(exchange, read);
+    }
+
+    private void onSegmentHeadersResponded(Exchange exchange, Integer read, NetworkOperationContext nc,
+                                           Download.Segment segment, AsyncTools.ChannelReader bodyReader) {
+        final DownloaderContext dc = exchange.Context;
+
+        if (!onHeadersResponded(exchange, read))
+            return;
+        try {
+            DownloadTools.checkPartialContent(exchange.Parser, segment.Length);
+            exchange.KeepAlive = DownloadTools.keepsAlive(exchange.Parser);
+        }
+        catch (Exception exc) {
+            onDownloaderError(dc, exchange, DownloadTools.PROC_ERROR_MESSAGE, exc);
+            return;
+        }
+
+        // The rest of the received bytes is the beginning of the segment content.
+        metrics.received(dc.Target, exchange.Response.remaining());
+        ByteBuffer output = DownloadTools.transferBody(exchange.Response, new DownloadTools.SegmentOutputBuffersIterator(segment));
+        if (output == null) {
+            onSegmentResponded(exchange, read, segment);
+            return;
+        }
+        nc = new NetworkOperationContext(nc.OperationInfo, nc.Channel, nc.RequestBytes, output);
+        nc.Channel.read(nc.ResponseBytes, nc, bodyReader);
+    }
+
+    private void onFetchHeadersResponded(Exchange exchange, Integer read, NetworkOperationContext nc,
+                                         AsyncTools.ChannelReader bodyReader, Supplier<Boolean> interruptor) {
+        final DownloaderContext dc = exchange.Context;
+
+        if (!onHeadersResponded(exchange, read))
+            return;
+
+        // The cached copy is confirmed by 304 Not Modified, the response has no body
+        if (DownloadTools.isNotModified(exchange.Parser, dc.Target)) {
+            exchange.close(read != -1 && DownloadTools.keepsAlive(exchange.Parser));
+            if (!dc.Target.completeFromCache()) {
+                Throwable result = dc.Target.getLastError();
+                onDownloaderError(dc, null, DownloadTools.INIT_ERROR_MESSAGE,
+                    result != null ? result : new IllegalStateException("Download is interrupted"));
+            }
+            return;
+        }
+
+        // Headers are enough for initialization, the download goes directly to the processing
+        if (!dc.Target.initializeFromResponse(exchange.Parser)) {
+            Throwable result = dc.Target.getLastError();
+            LOG.error(String.format("%s failed to initialize", dc.OperationInfo));
+            onDownloaderError(dc, exchange, DownloadTools.INIT_ERROR_MESSAGE,
+                result != null ? result : new IllegalStateException("Download is interrupted"));
+            return;
+        }
+        exchange.KeepAlive = DownloadTools.keepsAlive(exchange.Parser);
+        exchange.ErrorMessage = DownloadTools.PROC_ERROR_MESSAGE;
+        final BodyDecoder decoder;
+        try {
+            decoder = DownloadTools.bodyDecoder(exchange.Parser, dc.Target.getLength());
+        }
+        catch (Exception exc) {
+            onDownloaderError(dc, exchange, DownloadTools.PROC_ERROR_MESSAGE, exc);
+            return;
+        }
+        if (decoder != null) {
+            readDecodedBody(exchange, read, nc, decoder, interruptor);
+            return;
+        }
+
+        // The rest of the received bytes is the beginning of the content.
+        metrics.received(dc.Target, exchange.Response.remaining());
+        ByteBuffer output = DownloadTools.transferBody(exchange.Response, new DownloadTools.DownloadOutputBuffersIterator(dc.Target));
+        if (output == null) {
+            onProcResponded(exchange, read);
+            return;
+        }
+        nc = new NetworkOperationContext(nc.OperationInfo, nc.Channel, nc.RequestBytes, output);
+        nc.Channel.read(nc.ResponseBytes, nc, bodyReader);
+    }
+
+    private void onSegmentResponded(Exchange exchange, Integer read, Download.Segment segment) {
+        final DownloaderContext dc = exchange.Context;
+
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format("%s last read operation", dc.OperationInfo));
+        if (!exchange.Interruptor.get()) {
+            if (LOG.isInfoEnabled())
+                LOG.info(String.format("%s interrupted", dc.OperationInfo));
+            exchange.close(false);
+            return;
+        }
+        if (!segment.isCompleted()) {
+            LOG.error(String.format("%s connection is closed before the segment is received", dc.OperationInfo));
+            onDownloaderError(dc, exchange, DownloadTools.PROC_ERROR_MESSAGE,
+                new IOException(String.format("Segment is incomplete: %d of %d bytes", segment.getReceived(), segment.Length)));
+            return;
+        }
+        exchange.close(read != -1 && exchange.KeepAlive);
+        boolean last = dc.Target.completeSegment(segment);
+        if (LOG.isInfoEnabled())
+            LOG.info(String.format(last ? "%s completed the download" : "%s completed", dc.OperationInfo));
+    }
+
+    /**
+     * State of one request/response operation over a pooled connection.
+     */
+    private class Exchange {
+        Exchange(DownloaderContext dc, String errorMessage, Supplier<Boolean> interruptor, String request) {
+            Context = dc;
+            ErrorMessage = errorMessage;
+            Interruptor = interruptor;
+            Request = HttpTools.encodeRequest(request, buffers);
+            Response = buffers.acquire(HEADERS_BUFFER_SIZE);
+            dc.Target.enterOperation(this, dc.Attempt, this::abort);
+        }
+
+        /**
+         * Finishes the exchange: returns the connection and the buffers to the pools.
+         * Subsequent calls do nothing.
+         * @param reusable True if the connection can be reused by the next exchange.
+         */
+        void close(boolean reusable) {
+            if (closed)
+                return;
+            closed = true;
+            if (Connection != null)
+                connections.release(Connection, reusable);
+            buffers.release(Request);
+            buffers.release(Response);
+            if (Body != null)
+                buffers.release(Body);
+            // the handlers of the exchange's reads are over, it doesn't write to the outputs anymore
+            Context.Target.leaveOperation(this);
+        }
+
+        /**
+         * Breaks the exchange off when its attempt is over: the pending operation on the connection fails
+         * and the exchange is closed by the error handler.
+         */
+        void abort() {
+            ConnectionPool.Connection connection = Connection;
+            if (connection == null)
+                return;
+            try {
+                connection.Channel.close();
+            }
+            catch (IOException ignored) { }
+        }
+
+        /**
+         * Common error handler of the exchange's network operations.
+         * The stale connection is replaced, any other failure interrupts the download.
+         */
+        void onError(Throwable exc, NetworkOperationContext nc) {
+            if (restartIfStale(this))
+                return;
+            onDownloaderError(Context, this, ErrorMessage, exc);
+        }
+
+        final DownloaderContext Context;
+        volatile String ErrorMessage;
+        final Supplier<Boolean> Interruptor;
+        final ByteBuffer Request;
+        final ByteBuffer Response;
+        final HttpResponseParser Parser = new HttpResponseParser();
+        /**
+         * The buffer for reading the body which is decoded (null if the body is read directly to the outputs)
+         */
+        volatile ByteBuffer Body;
+        CompletionHandler<Integer, NetworkOperationContext> Reader;
+        /**
+         * The histogram of the time from the start till the response headers are received
+         */
+        Metrics.Histogram Latency = metrics.histogram(Metrics.FIRST_BYTE_LATENCY);
+        volatile long Started;
+        volatile long Connecting;
+        volatile ConnectionPool.Connection Connection;
+        volatile boolean KeepAlive = true;
+        private volatile boolean closed = false;
     }
 
+    /**
+     * The size of the buffer for reading the response headers portion by portion
+     */
+    private static final int HEADERS_BUFFER_SIZE = 4 * 1024;
+    /**
+     * The size of the buffer for reading the body which needs decoding
+     */
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+
     private final ConcurrentLinkedQueue<Download> tasks;
     private final AsynchronousChannelGroup channels;
+    private final ConnectionPool connections;
+    private final HostResolver resolver;
+    private final BufferPool buffers = BufferPool.shared();
+    private final BandwidthLimiter bandwidth = new BandwidthLimiter();
+    private final Metrics metrics = new Metrics();
     private final Map<String, String> httpParams;
 
+    private final DownloadEngine engine;
+    private final ConcurrentLinkedQueue<Download> ready;
+    private final DownloadScheduler scheduler;
+    private final ScheduledThreadPoolExecutor retries;
+    private final ExecutorService verifications;
+    private volatile BiConsumer<Download, Download.Status> statusListener;
+
     private final Object mutex = new Object();
-    private volatile boolean hasWork = true;
+    private boolean hasWork = false;
+    private long wokenAt;
 }
@@ -0,0 +1,205 @@
+package org.wlou.jdownloader.lib;
+
+import org.apache.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking host name resolution stage.
+ * Blocking lookups are performed by own worker threads, so callers (the dispatcher and I/O threads) never wait for DNS.
+ * Features:
+ *  - TTL-bounded cache of both successful (positive) and failed (negative) lookups;
+ *  - coalescing: concurrent requests of the same host wait for the single in-flight lookup.
+ */
+public class HostResolver implements AutoCloseable {
+
+    private static Logger LOG = Logger.getLogger(HostResolver.class.getName());
+
+    public static final long DEFAULT_POSITIVE_TTL = TimeUnit.SECONDS.toMillis(60);
+    public static final long DEFAULT_NEGATIVE_TTL = TimeUnit.SECONDS.toMillis(10);
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * The blocking lookup procedure. It is replaceable for testing purposes.
+     */
+    public interface Lookup {
+        /**
+         * @param host The host name to resolve.
+         * @return The address of the host.
+         * @throws UnknownHostException when the host can not be resolved
+         */
+        InetAddress lookup(String host) throws UnknownHostException;
+    }
+
+    /**
+     * Creates resolver based on {@link InetAddress#getByName(String)}.
+     */
+    public HostResolver() {
+        this(InetAddress::getByName);
+    }
+
+    /**
+     * @param lookup The blocking lookup procedure.
+     */
+    public HostResolver(Lookup lookup) {
+        this.lookup = lookup;
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, String.format("Resolver-%d", counter.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            });
+        workers.allowCoreThreadTimeOut(true);
+        this.workers = workers;
+    }
+
+    /**
+     * Resolves the host asynchronously.
+     * The handler is called immediately in the current thread if the host is in the cache,
+     * otherwise it is called by the resolver's thread when the lookup is done.
+     * @param host The host name to resolve.
+     * @param attachment The object to attach to the operation.
+     * @param handler The handler receiving the address.
+     * @param <A> The type of the attachment.
+     */
+    public <A> void resolve(String host, A attachment, CompletionHandler<InetAddress, A> handler) {
+        final String key = host.toLowerCase();
+        Entry cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+            if (cached != null && cached.ExpiresAt <= System.currentTimeMillis()) {
+                cache.remove(key);
+                cached = null;
+            }
+            if (cached == null) {
+                List<Consumer<Entry>> waiters = inFlight.get(key);
+                boolean started = waiters != null;
+                if (!started) {
+                    waiters = new ArrayList<>();
+                    inFlight.put(key, waiters);
+                }
+                waiters.add(entry -> complete(entry, attachment, handler));
+                if (started) {
+                    if (LOG.isDebugEnabled())
+                        LOG.debug(String.format("[resolver] %s: joined in-flight lookup", key));
+                    return;
+                }
+            }
+        }
+        if (cached != null) {
+            complete(cached, attachment, handler);
+            return;
+        }
+        try {
+            workers.execute(() -> lookup(key));
+        }
+        catch (Exception exc) {
+            // the resolver is closed
+            store(key, new Entry(null, exc, 0));
+        }
+    }
+
+    /**
+     * Sets the time of keeping successfully resolved addresses.
+     * @param ttl The time in milliseconds.
+     */
+    public void setPositiveTtl(long ttl) {
+        assert ttl >= 0;
+        positiveTtl = ttl;
+    }
+
+    /**
+     * Sets the time of keeping resolution failures.
+     * @param ttl The time in milliseconds.
+     */
+    public void setNegativeTtl(long ttl) {
+        assert ttl >= 0;
+        negativeTtl = ttl;
+    }
+
+    /**
+     * Drops all cached entries.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Stops the resolver's threads.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    private void lookup(String host) {
+        long started = System.currentTimeMillis();
+        Entry result;
+        try {
+            InetAddress address = lookup.lookup(host);
+            result = new Entry(address, null, System.currentTimeMillis() + positiveTtl);
+        }
+        catch (Exception exc) {
+            result = new Entry(null, exc, System.currentTimeMillis() + negativeTtl);
+        }
+        if (LOG.isDebugEnabled())
+            LOG.debug(String.format("[resolver] %s: resolved in %d ms to %s", host, System.currentTimeMillis() - started,
+                result.Address != null ? result.Address : result.Error));
+        store(host, result);
+    }
+
+    private void store(String host, Entry result) {
+        List<Consumer<Entry>> waiters;
+        synchronized (cache) {
+            cache.put(host, result);
+            waiters = inFlight.remove(host);
+        }
+        if (waiters != null)
+            waiters.forEach(waiter -> waiter.accept(result));
+    }
+
+    private static <A> void complete(Entry entry, A attachment, CompletionHandler<InetAddress, A> handler) {
+        if (entry.Address != null)
+            handler.completed(entry.Address, attachment);
+        else
+            handler.failed(entry.Error, attachment);
+    }
+
+    /**
+     * The result of the lookup: the address or the error.
+     */
+    private static class Entry {
+        Entry(InetAddress address, Throwable error, long expiresAt) {
+            Address = address;
+            Error = error;
+            ExpiresAt = expiresAt;
+        }
+
+        final InetAddress Address;
+        final Throwable Error;
+        final long ExpiresAt;
+    }
+
+    private final Lookup lookup;
+    private final ExecutorService workers;
+    private final Map<String, Entry> cache = new HashMap<>();
+    private final Map<String, List<Consumer<Entry>>> inFlight = new HashMap<>();
+
+    private volatile long positiveTtl = DEFAULT_POSITIVE_TTL;
+    private volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+}
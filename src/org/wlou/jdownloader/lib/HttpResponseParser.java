@@ -0,0 +1,218 @@
+package org.wlou.jdownloader.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental parser of Http response status line and headers.
+ *
+ * <p>Bytes are consumed as they arrive from the network, portion by portion, until the empty line
+ * which terminates headers. The parser stops right after the empty line, so the rest of the portion
+ * is the beginning of the response body. The only intermediate storage is a reusable line buffer,
+ * so the parser does not depend on the size of read buffers and does not split the whole response.
+ *
+ * <p>Header names are case-insensitive, repeated headers are joined with comma.
+ */
+public class HttpResponseParser {
+
+    public static final int DEFAULT_MAX_HEADERS_LENGTH = 64 * 1024;
+
+    public HttpResponseParser() {
+        this(DEFAULT_MAX_HEADERS_LENGTH);
+    }
+
+    /**
+     * @param maxHeadersLength The limit of the status line and headers length in bytes.
+     */
+    public HttpResponseParser(int maxHeadersLength) {
+        this.maxHeadersLength = maxHeadersLength;
+    }
+
+    /**
+     * Consumes the next portion of the response.
+     * @param portion The buffer in read mode, bytes in [position; limit) are consumed.
+     *                When headers are complete the position points to the first byte of the body.
+     * @return True if headers are complete.
+     * @throws ParseException when the status line or a header is ill-formatted or headers are too long
+     */
+    public boolean parse(ByteBuffer portion) throws ParseException {
+        assert portion != null;
+        while (!complete && portion.hasRemaining()) {
+            byte b = portion.get();
+            if (++consumed > maxHeadersLength)
+                throw new ParseException(String.format("Headers are longer than %d bytes", maxHeadersLength), consumed);
+            if (b != HttpTools.LF) {
+                append(b);
+                continue;
+            }
+            int length = lineLength > 0 && line[lineLength - 1] == HttpTools.CR ? lineLength - 1 : lineLength;
+            if (statusCode < 0)
+                parseStatusLine(length);
+            else if (length == 0)
+                complete = true;
+            else
+                parseHeaderLine(length);
+            lineLength = 0;
+        }
+        return complete;
+    }
+
+    /**
+     * Prepares the parser for the next response.
+     */
+    public void reset() {
+        complete = false;
+        consumed = 0;
+        lineLength = 0;
+        statusCode = -1;
+        version = null;
+        lastHeader = null;
+        headers.clear();
+    }
+
+    /**
+     * @return True if the empty line after headers is consumed.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return Http version from the status line (HTTP/1.1 for example) or null if status line is not parsed yet.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return Status code from the status line or -1 if status line is not parsed yet.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return The number of consumed bytes (the length of headers including the empty line if complete).
+     */
+    public int getHeadersLength() {
+        return consumed;
+    }
+
+    /**
+     * @param name The name of the header (case-insensitive).
+     * @return The value of the header or null if the header is absent.
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return Parsed headers with lower-cased names.
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return The value of Content-Length header or -1 if the header is absent.
+     * @throws ParseException when the value is not a number
+     */
+    public long getContentLength() throws ParseException {
+        String value = getHeader(HttpTools.CONTENT_LENGTH_KEY);
+        if (value == null)
+            return -1;
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException exc) {
+            throw new ParseException(String.format("Can't parse %s: \"%s\"", HttpTools.CONTENT_LENGTH_KEY, value), 0);
+        }
+    }
+
+    /**
+     * Builds textual representation of the parsed response for logging purposes.
+     * @return Status line and headers.
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("%s %d", version, statusCode));
+        for (Map.Entry<String, String> header : headers.entrySet())
+            result.append(String.format("\r\n%s: %s", header.getKey(), header.getValue()));
+        return result.toString();
+    }
+
+    private void append(byte b) {
+        if (lineLength == line.length) {
+            byte[] extended = new byte[line.length * 2];
+            System.arraycopy(line, 0, extended, 0, lineLength);
+            line = extended;
+        }
+        line[lineLength++] = b;
+    }
+
+    // Status-Line = HTTP-Version SP Status-Code SP Reason-Phrase CRLF
+    private void parseStatusLine(int length) throws ParseException {
+        int first = indexOf(HttpTools.SPACE, 0, length);
+        if (first <= 0 || first + 4 > length)
+            throw new ParseException(String.format("Can't parse status line: \"%s\"", text(0, length)), consumed);
+        int code = 0;
+        for (int i = first + 1; i < first + 4; ++i) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new ParseException(String.format("Can't parse status line: \"%s\"", text(0, length)), consumed);
+            code = code * 10 + digit;
+        }
+        if (first + 4 < length && line[first + 4] != HttpTools.SPACE)
+            throw new ParseException(String.format("Can't parse status line: \"%s\"", text(0, length)), consumed);
+        version = text(0, first);
+        statusCode = code;
+    }
+
+    // message-header = field-name ":" [ field-value ]
+    private void parseHeaderLine(int length) throws ParseException {
+        if (line[0] == HttpTools.SPACE || line[0] == '\t') {
+            // obsolete line folding: continuation of the previous header
+            if (lastHeader == null)
+                throw new ParseException(String.format("Can't parse header: \"%s\"", text(0, length)), consumed);
+            headers.put(lastHeader, headers.get(lastHeader) + " " + text(0, length).trim());
+            return;
+        }
+        int colon = indexOf(HttpTools.COLON, 0, length);
+        if (colon <= 0)
+            throw new ParseException(String.format("Can't parse header: \"%s\"", text(0, length)), consumed);
+        String name = text(0, colon).trim().toLowerCase(Locale.ROOT);
+        String value = text(colon + 1, length).trim();
+        String previous = headers.get(name);
+        headers.put(name, previous == null ? value : previous + ", " + value);
+        lastHeader = name;
+    }
+
+    private int indexOf(int b, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (line[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private String text(int from, int to) {
+        return new String(line, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private final int maxHeadersLength;
+    private final Map<String, String> headers = new HashMap<>();
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private int consumed;
+    private boolean complete;
+    private int statusCode = -1;
+    private String version;
+    private String lastHeader;
+}
@@ -2,11 +2,11 @@ package org.wlou.jdownloader.lib;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
-import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.regex.Pattern;
 
 /** The <code>HttpTools</code> provides auxiliary functions to work with Http protocol.
  *
@@ -21,11 +21,32 @@ public final class HttpTools {
     public static final int COLON = 58;
 
     public static final int DEFAULT_PORT = 80;
+    public static final int DEFAULT_SECURE_PORT = 443;
+
+    public static final String HTTP = "http";
+    public static final String HTTPS = "https";
 
     public static final String DEFAULT_VERION = "HTTP/1.1";
 
     public static final String CODE_KEY = "Response-Code";
     public static final String CONTENT_LENGTH_KEY = "Content-Length";
+    public static final String TRANSFER_ENCODING_KEY = "Transfer-Encoding";
+    public static final String CHUNKED = "chunked";
+    public static final String ACCEPT_ENCODING_KEY = "Accept-Encoding";
+    public static final String CONTENT_ENCODING_KEY = "Content-Encoding";
+    public static final String GZIP = "gzip";
+    public static final String X_GZIP = "x-gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String IDENTITY = "identity";
+    public static final String SUPPORTED_ENCODINGS = GZIP + ", " + DEFLATE;
+    public static final String ACCEPT_RANGES_KEY = "Accept-Ranges";
+    public static final String CONTENT_RANGE_KEY = "Content-Range";
+    public static final String RANGE_KEY = "Range";
+    public static final String BYTES_UNIT = "bytes";
+    public static final String ETAG_KEY = "ETag";
+    public static final String LAST_MODIFIED_KEY = "Last-Modified";
+    public static final String IF_NONE_MATCH_KEY = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE_KEY = "If-Modified-Since";
 
     public static final String TARGET_HOST = "Host";
     public static final String CONNECTION_DIRECTIVE = "Connection";
@@ -44,10 +65,26 @@ public final class HttpTools {
      */
     public static String makeGetRequest(URL url, Map<String, String> params) {
         final String METHOD_NAME = "GET";
-        String protocol = url.getProtocol();
-        if (!protocol.equals("http")) // TODO:
-            throw new UnsupportedOperationException("Only http protocol is supported");
-        return formHtpRequest(METHOD_NAME, url, params).toString();
+        if (!isSupported(url))
+            throw new UnsupportedOperationException("Only http and https protocols are supported");
+        return formHtpRequest(METHOD_NAME, url, params, null).toString();
+    }
+
+    /**
+     * Prepares Http GET request for the part of the resource.
+     * @param url   a <code>Url</code> target url for requesting
+     * @param params    a <code>Map<String, String></code> custom Http headers
+     * @param first the offset of the first byte of the requested range
+     * @param last  the offset of the last byte of the requested range (inclusive)
+     * @return  <code>String</code> containing formatted Http GET request with the Range header
+     */
+    public static String makeRangeRequest(URL url, Map<String, String> params, long first, long last) {
+        assert first >= 0 && first <= last;
+        final String METHOD_NAME = "GET";
+        if (!isSupported(url))
+            throw new UnsupportedOperationException("Only http and https protocols are supported");
+        String range = String.format("%s=%d-%d", HttpTools.BYTES_UNIT, first, last);
+        return formHtpRequest(METHOD_NAME, url, params, range).toString();
     }
 
     /**
@@ -55,17 +92,55 @@ public final class HttpTools {
      * @param url a <code>Url</code> target url for requesting
      * @param params a <code>Map<String, String></code> custom Http headers
      * @return  <code>String</code> containing formatted Http HEAD request
-     * @throws MalformedURLException when the protocol of the <code>url</code> is unsupported (not http)
+     * @throws MalformedURLException when the protocol of the <code>url</code> is unsupported (not http or https)
      */
     public static String makeHeadRequest(URL url, Map<String, String> params) throws MalformedURLException {
         final String METHOD_NAME = "HEAD";
-        String protocol = url.getProtocol();
-        if (!protocol.equals("http")) // TODO:
-            throw new MalformedURLException("Only http protocol is supported");
-        return formHtpRequest(METHOD_NAME, url, params).toString();
+        if (!isSupported(url))
+            throw new MalformedURLException("Only http and https protocols are supported");
+        return formHtpRequest(METHOD_NAME, url, params, null).toString();
+    }
+
+    /**
+     * @param url a <code>Url</code> of the resource
+     * @return  true if the resource is requested over TLS (https)
+     */
+    public static boolean isSecure(URL url) {
+        return url.getProtocol().equalsIgnoreCase(HTTPS);
+    }
+
+    /**
+     * @param url a <code>Url</code> of the resource
+     * @return  the port of the url or the default port of its protocol
+     */
+    public static int portOf(URL url) {
+        if (url.getPort() != -1)
+            return url.getPort();
+        return isSecure(url) ? DEFAULT_SECURE_PORT : DEFAULT_PORT;
     }
 
-    private static StringBuilder formHtpRequest(String METHOD, URL url, Map<String, String> params) {
+    private static boolean isSupported(URL url) {
+        return url.getProtocol().equalsIgnoreCase(HTTP) || isSecure(url);
+    }
+
+    /**
+     * Serializes the request to the direct buffer from the pool without intermediate byte arrays.
+     * The request consists of ISO-8859-1 characters only (see {@link #DEFAULT_CONTENT_CHARSET}).
+     * @param request the formatted Http request
+     * @param pool the pool to take the buffer from
+     * @return the buffer in read mode, it should be returned to the <code>pool</code> when the request is sent
+     */
+    public static ByteBuffer encodeRequest(CharSequence request, BufferPool pool) {
+        assert request != null && pool != null;
+        int length = request.length();
+        ByteBuffer result = pool.acquire(length);
+        for (int i = 0; i < length; ++i)
+            result.put((byte) request.charAt(i));
+        result.flip();
+        return result;
+    }
+
+    private static StringBuilder formHtpRequest(String METHOD, URL url, Map<String, String> params, String range) {
         StringBuilder request = new StringBuilder();
         request.append(String.format("%s %s %s", METHOD, url.toString(), HttpTools.DEFAULT_VERION));
         request.append((char) HttpTools.CR);
@@ -79,6 +154,22 @@ public final class HttpTools {
         request.append(String.format("%s: %s", HttpTools.CONNECTION_DIRECTIVE, connDirectiveValue));
         request.append((char) HttpTools.CR);
         request.append((char) HttpTools.LF);
+        if (range != null) {
+            request.append(String.format("%s: %s", HttpTools.RANGE_KEY, range));
+            request.append((char) HttpTools.CR);
+            request.append((char) HttpTools.LF);
+        }
+        else if (params != null) {
+            // the ranges of the encoded content can't be combined, so the parts are always requested as is,
+            // the parts are never conditional: the resource is validated by the initialization
+            for (String key : new String[] {ACCEPT_ENCODING_KEY, IF_NONE_MATCH_KEY, IF_MODIFIED_SINCE_KEY}) {
+                if (!params.containsKey(key))
+                    continue;
+                request.append(String.format("%s: %s", key, params.get(key)));
+                request.append((char) HttpTools.CR);
+                request.append((char) HttpTools.LF);
+            }
+        }
         request.append((char) HttpTools.CR);
         request.append((char) HttpTools.LF);
         return request;
@@ -86,41 +177,22 @@ public final class HttpTools {
 
     /**
      * Parses Http HEAD response from string to set of Key&lt-&gtValue pairs of headers.
+     * Convenience wrapper of {@link HttpResponseParser} for already received headers.
      * @param response  a <code>String</code> containing Http HEAD response from a server
-     * @return  parsed Http headers as Key&lt-&gtValue pairs
-     * @throws ParseException if error the response is ill-formatted
+     * @return  parsed Http headers as Key&lt-&gtValue pairs (names are case-insensitive),
+     *          the status code is available by {@link #CODE_KEY}
+     * @throws ParseException if error the response is ill-formatted or incomplete
      */
     public static Map<String, String> parseHeadResponse(String response) throws ParseException {
         assert response != null;
 
-        String[] headers = lineSplitter.split(response);
-        int parsePos = headers[0].length();
-
-        String[] status = spaceSplitter.split(headers[0].trim());
-        if (status.length < 3) // Status-Line = HTTP-Version SP Status-Code SP Reason-Phrase CRLF
-            throw new ParseException(String.format("Can't parse status line: \"%s\"", headers[0].trim()), parsePos);
+        HttpResponseParser parser = new HttpResponseParser();
+        if (!parser.parse(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1))))
+            throw new ParseException("Headers are incomplete", response.length());
 
         Map<String, String> result = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-        result.put(HttpTools.CODE_KEY, status[1]);
-
-        for (int i = 1; i < headers.length; ++i) {
-            parsePos += headers[i].length();
-
-            if (i == headers.length - 1 && headers[i].trim().isEmpty())
-                continue;
-
-            String[] kv = kvSplitter.split(headers[i].trim());
-            if (kv.length < 2) // "Content-Length" ":" 1*DIGIT
-                throw new ParseException(String.format("Can't parse header[%d]: \"%s\"", i, headers[i].trim()), parsePos);
-
-            String key = kv[0].trim();
-            String value = String.join("", Arrays.copyOfRange(kv, 1, kv.length)).trim();
-            result.put(key, value);
-        }
+        result.putAll(parser.getHeaders());
+        result.put(HttpTools.CODE_KEY, String.valueOf(parser.getStatusCode()));
         return result;
     }
-
-    private static final Pattern spaceSplitter = Pattern.compile(String.valueOf((char) HttpTools.SPACE), Pattern.LITERAL);
-    private static final Pattern lineSplitter = Pattern.compile(String.valueOf((char) HttpTools.LF), Pattern.LITERAL);
-    private static final Pattern kvSplitter = Pattern.compile(String.valueOf((char) HttpTools.COLON), Pattern.LITERAL);
 }
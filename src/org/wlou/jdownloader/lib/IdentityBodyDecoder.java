@@ -0,0 +1,63 @@
+package org.wlou.jdownloader.lib;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * The body without transfer coding: the content of the known length or the content up to the end of the stream
+ * (the response without Content-Length, the server closes the connection after the content).
+ */
+public class IdentityBodyDecoder implements BodyDecoder {
+
+    /**
+     * The length of the content ending with the connection
+     */
+    public static final long UNTIL_CLOSE = -1;
+
+    /**
+     * @param length The number of bytes in the content [0; Infinity) or {@link #UNTIL_CLOSE}.
+     */
+    public IdentityBodyDecoder(long length) {
+        assert length >= 0 || length == UNTIL_CLOSE;
+        this.length = length;
+        complete = length == 0;
+    }
+
+    @Override
+    public void decode(ByteBuffer input, Iterator<ByteBuffer> outputs) throws IOException {
+        if (complete || !input.hasRemaining())
+            return;
+        ByteBuffer content = input.duplicate();
+        if (length != UNTIL_CLOSE && content.remaining() > length - decoded)
+            content.limit(content.position() + (int) (length - decoded));
+        int count = content.remaining();
+        DownloadTools.transferBody(content, outputs);
+        if (content.hasRemaining())
+            throw new ProtocolException(String.format("Content exceeds the target: %d bytes are left", content.remaining()));
+        input.position(content.position());
+        decoded += count;
+        complete = decoded == length;
+    }
+
+    @Override
+    public void finish(Iterator<ByteBuffer> outputs) {
+        if (length == UNTIL_CLOSE)
+            complete = true;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public long getDecoded() {
+        return decoded;
+    }
+
+    private final long length;
+    private long decoded;
+    private boolean complete;
+}
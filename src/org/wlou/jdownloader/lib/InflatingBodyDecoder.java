@@ -0,0 +1,270 @@
+package org.wlou.jdownloader.lib;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The compressed content (Content-Encoding: gzip or deflate) of the body framed by another decoder.
+ * The framing decoder writes the compressed bytes to the intermediate buffer, the buffer is inflated
+ * to the outputs after every portion, so neither the compressed nor the inflated content is kept in memory as a whole.
+ * Acts as following:
+ *  1. the framing decoder consumes the portion not larger than the free space of the intermediate buffer;
+ *  2. the header of the compressed stream is checked (gzip header, zlib or raw deflate for "deflate");
+ *  3. the compressed bytes are inflated to the outputs;
+ *  4. the gzip trailer (CRC32 and the length of the content) is verified when the stream is over.
+ */
+public class InflatingBodyDecoder implements BodyDecoder {
+
+    /**
+     * The size of the intermediate buffers of the compressed and the inflated bytes
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximal length of the gzip header, longer ones (with the huge name or comment) are considered malformed
+     */
+    public static final int MAX_HEADER_LENGTH = 8 * 1024;
+
+    /**
+     * @param framing The decoder of the body framing (chunked, of the known length or until close).
+     * @param gzip True for gzip content coding, false for deflate one.
+     */
+    public InflatingBodyDecoder(BodyDecoder framing, boolean gzip) {
+        assert framing != null;
+        this.framing = framing;
+        this.gzip = gzip;
+        header = new byte[gzip ? MAX_HEADER_LENGTH : ZLIB_HEADER_LENGTH];
+    }
+
+    @Override
+    public void decode(ByteBuffer input, Iterator<ByteBuffer> outputs) throws IOException {
+        while (input.hasRemaining() && !framing.isComplete()) {
+            ByteBuffer portion = input.duplicate();
+            if (portion.remaining() > compressed.remaining())
+                portion.limit(portion.position() + compressed.remaining());
+            framing.decode(portion, compressedOutputs);
+            boolean consumed = portion.position() != input.position();
+            input.position(portion.position());
+            inflate(outputs);
+            if (!consumed)
+                break;
+        }
+        checkComplete();
+    }
+
+    @Override
+    public void finish(Iterator<ByteBuffer> outputs) throws IOException {
+        framing.finish(compressedOutputs);
+        inflate(outputs);
+        checkComplete();
+    }
+
+    /**
+     * @return True if the body is over, the compressed stream is verified at that moment
+     */
+    @Override
+    public boolean isComplete() {
+        return framing.isComplete();
+    }
+
+    /**
+     * @return The number of the inflated content bytes written to the outputs
+     */
+    @Override
+    public long getDecoded() {
+        return decoded;
+    }
+
+    private void checkComplete() throws IOException {
+        if (framing.isComplete() && stage != Stage.DONE) {
+            release();
+            throw new IOException(String.format("Compressed content is truncated: %d bytes are inflated", decoded));
+        }
+    }
+
+    /**
+     * Inflates the compressed bytes collected by the framing decoder, the buffer is emptied.
+     */
+    private void inflate(Iterator<ByteBuffer> outputs) throws IOException {
+        compressed.flip();
+        try {
+            while (compressed.hasRemaining() && stage != Stage.DONE) {
+                switch (stage) {
+                    case HEADER:
+                        readHeader(outputs);
+                        break;
+                    case CONTENT:
+                        int consumed = inflate(compressed.array(), compressed.arrayOffset() + compressed.position(),
+                            compressed.remaining(), outputs);
+                        compressed.position(compressed.position() + consumed);
+                        break;
+                    case TRAILER:
+                        readTrailer();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        catch (IOException exc) {
+            release();
+            throw exc;
+        }
+        // the bytes after the end of the compressed stream are ignored
+        compressed.clear();
+    }
+
+    private void readHeader(Iterator<ByteBuffer> outputs) throws IOException {
+        if (headerLength == header.length)
+            throw new ProtocolException("Compressed content header is too long");
+        header[headerLength++] = compressed.get();
+        if (gzip) {
+            if (gzipHeaderLength() == headerLength) {
+                inflater = new Inflater(true);
+                stage = Stage.CONTENT;
+            }
+        }
+        else if (headerLength == ZLIB_HEADER_LENGTH) {
+            // "deflate" is the zlib format, but some servers send the raw deflate stream
+            int cmf = header[0] & 0xFF;
+            boolean zlib = (cmf & 0x0F) == 8 && ((cmf << 8) | (header[1] & 0xFF)) % 31 == 0;
+            inflater = new Inflater(!zlib);
+            stage = Stage.CONTENT;
+            inflate(header, 0, ZLIB_HEADER_LENGTH, outputs);
+        }
+    }
+
+    /**
+     * @return The length of the gzip header (RFC 1952, section 2.3) or -1 if more bytes are needed
+     */
+    private int gzipHeaderLength() throws IOException {
+        if ((header[0] & 0xFF) != 0x1F || (headerLength > 1 && (header[1] & 0xFF) != 0x8B))
+            throw new ProtocolException("Content is not in gzip format");
+        if (headerLength > 2 && header[2] != 8)
+            throw new ProtocolException(String.format("Unsupported gzip compression method: %d", header[2]));
+        if (headerLength < 10)
+            return -1;
+        int flags = header[3] & 0xFF;
+        int position = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (headerLength < position + 2)
+                return -1;
+            position += 2 + ((header[position] & 0xFF) | ((header[position + 1] & 0xFF) << 8));
+        }
+        for (int flag : new int[] {FNAME, FCOMMENT}) {
+            if ((flags & flag) == 0)
+                continue;
+            // zero-terminated string
+            while (position < headerLength && header[position] != 0)
+                ++position;
+            if (position++ >= headerLength)
+                return -1;
+        }
+        if ((flags & FHCRC) != 0)
+            position += 2;
+        return position <= headerLength ? position : -1;
+    }
+
+    /**
+     * @return The number of bytes consumed by the inflater
+     */
+    private int inflate(byte[] input, int offset, int length, Iterator<ByteBuffer> outputs) throws IOException {
+        inflater.setInput(input, offset, length);
+        try {
+            while (true) {
+                int count = inflater.inflate(inflated);
+                if (count > 0) {
+                    crc.update(inflated, 0, count);
+                    decoded += count;
+                    ByteBuffer content = ByteBuffer.wrap(inflated, 0, count);
+                    DownloadTools.transferBody(content, outputs);
+                    if (content.hasRemaining())
+                        throw new ProtocolException(String.format("Content exceeds the target: %d bytes are left", content.remaining()));
+                    continue;
+                }
+                if (inflater.finished() || inflater.needsInput())
+                    break;
+                if (inflater.needsDictionary())
+                    throw new ProtocolException("Compressed content needs a preset dictionary");
+            }
+        }
+        catch (DataFormatException exc) {
+            ProtocolException failure = new ProtocolException(String.format("Compressed content is malformed: %s", exc.getMessage()));
+            failure.initCause(exc);
+            throw failure;
+        }
+        int consumed = length - inflater.getRemaining();
+        if (inflater.finished()) {
+            stage = gzip ? Stage.TRAILER : Stage.DONE;
+            if (!gzip)
+                release();
+        }
+        return consumed;
+    }
+
+    private void readTrailer() throws IOException {
+        trailer[trailerLength++] = compressed.get();
+        if (trailerLength < trailer.length)
+            return;
+        ByteBuffer values = ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN);
+        int expectedCrc = values.getInt();
+        int expectedSize = values.getInt();
+        release();
+        if (expectedCrc != (int) crc.getValue())
+            throw new ProtocolException("Compressed content is corrupted: CRC32 mismatch");
+        if (expectedSize != (int) decoded)
+            throw new ProtocolException(String.format("Compressed content is corrupted: %d bytes instead of %d",
+                decoded, expectedSize & 0xFFFFFFFFL));
+        stage = Stage.DONE;
+    }
+
+    /**
+     * Frees the native memory of the inflater.
+     */
+    private void release() {
+        if (inflater != null)
+            inflater.end();
+    }
+
+    private enum Stage {
+        HEADER, CONTENT, TRAILER, DONE
+    }
+
+    private static final int ZLIB_HEADER_LENGTH = 2;
+    private static final int GZIP_TRAILER_LENGTH = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final BodyDecoder framing;
+    private final boolean gzip;
+    private final ByteBuffer compressed = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] inflated = new byte[BUFFER_SIZE];
+    private final byte[] header;
+    private final byte[] trailer = new byte[GZIP_TRAILER_LENGTH];
+    private final CRC32 crc = new CRC32();
+    private final Iterator<ByteBuffer> compressedOutputs = new Iterator<ByteBuffer>() {
+        @Override
+        public boolean hasNext() {
+            return compressed.hasRemaining();
+        }
+
+        @Override
+        public ByteBuffer next() {
+            return compressed.hasRemaining() ? compressed : null;
+        }
+    };
+
+    private Stage stage = Stage.HEADER;
+    private Inflater inflater;
+    private int headerLength;
+    private int trailerLength;
+    private long decoded;
+}
@@ -0,0 +1,158 @@
+package org.wlou.jdownloader.lib;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The region of the target file written through a sliding memory mapped window.
+ * Only one window of the region is mapped at a time: when it is filled the window is flushed, unmapped
+ * and the next part of the region is mapped. So the memory usage is bounded by the window size
+ * regardless of the file size, and files longer than {@link Integer#MAX_VALUE} bytes can be written.
+ */
+public class MappedOutputSink implements OutputSink {
+
+    /**
+     * @param windowSize The upper limit of the mapped window size [1; {@link Integer#MAX_VALUE}].
+     * @return The factory of memory mapped sinks.
+     */
+    public static OutputSink.Factory factory(long windowSize) {
+        return (channel, offset, length) -> new MappedOutputSink(channel, offset, length, windowSize);
+    }
+
+    /**
+     * @param channel The channel of the target file, it must be opened for writing.
+     * @param offset The position of the region in the file.
+     * @param length The number of bytes in the region.
+     * @param windowSize The upper limit of the mapped window size [1; {@link Integer#MAX_VALUE}].
+     */
+    public MappedOutputSink(FileChannel channel, long offset, long length, long windowSize) {
+        assert channel != null;
+        assert offset >= 0 && length >= 0;
+        assert windowSize > 0 && windowSize <= Integer.MAX_VALUE;
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Provides the window for writing the region content.
+     * Maps the next part of the region when the current window is filled.
+     * @return the window with remaining space or null if the region is filled
+     * @throws UncheckedIOException when the window can not be mapped
+     */
+    @Override
+    public synchronized ByteBuffer nextOutputBuffer() {
+        MappedByteBuffer current = window;
+        if (current != null && current.hasRemaining())
+            return current;
+        if (current != null) {
+            current.force();
+            window = null;
+            flushed += current.capacity();
+            unmap(current);
+        }
+        if (flushed >= length || released)
+            return null;
+        try {
+            window = channel.map(FileChannel.MapMode.READ_WRITE, offset + flushed, Math.min(windowSize, length - flushed));
+        }
+        catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+        return window;
+    }
+
+    /**
+     * @return The number of bytes written to the region
+     */
+    @Override
+    public long getReceived() {
+        MappedByteBuffer current = window;
+        long received = flushed;
+        return current != null ? received + current.position() : received;
+    }
+
+    /**
+     * @return The number of bytes written to the mapped memory, it is the same as {@link #getReceived()}
+     */
+    @Override
+    public long getWritten() {
+        return getReceived();
+    }
+
+    /**
+     * @return True if all bytes of the region are written
+     */
+    @Override
+    public boolean isCompleted() {
+        return getReceived() >= length;
+    }
+
+    /**
+     * Forces the content of the current window to the file.
+     */
+    @Override
+    public synchronized void force() {
+        MappedByteBuffer current = window;
+        if (current != null)
+            current.force();
+    }
+
+    /**
+     * Releases the current window, the region can't be written after that.
+     * @param flush True to write the window content to the file and unmap the window,
+     *              false to drop the window without unmapping it.
+     */
+    @Override
+    public synchronized void release(boolean flush) {
+        released = true;
+        MappedByteBuffer current = window;
+        if (current == null)
+            return;
+        window = null;
+        flushed += current.position();
+        if (flush) {
+            current.force();
+            unmap(current);
+        }
+        // the interrupted network read may still write to the window, so it is left to the garbage collector
+        // which unmaps it once the read is over and the window is unreachable
+    }
+
+    /**
+     * Hacky workaround to overcome {@link MappedByteBuffer} limitations which
+     * disallow to safely unmap previously mapped memory.
+     * Uses sun.misc.Unsafe#invokeCleaner on Java 9+ where the old way fails silently.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        // FIXME: workaround http://bugs.java.com/view_bug.do?bug_id=4724038
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception ignored) { }
+        try {
+            Method unmapMethod = sun.nio.ch.FileChannelImpl.class.getDeclaredMethod("unmap", MappedByteBuffer.class);
+            unmapMethod.setAccessible(true);
+            unmapMethod.invoke(null, buffer);
+        } catch (Exception ignored) { }
+    }
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+    private final long windowSize;
+
+    private volatile MappedByteBuffer window;
+    private volatile long flushed;
+    private boolean released;
+}
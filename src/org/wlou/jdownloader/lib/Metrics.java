@@ -0,0 +1,364 @@
+package org.wlou.jdownloader.lib;
+
+import org.apache.log4j.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the runtime metrics: meters of transferred bytes, latency histograms and gauges.
+ * Recording is lock-free and cheap enough for the I/O threads, the values are computed when they are read:
+ * by {@link #snapshot()}, by {@link #value(String)} or by JMX clients when the registry is registered as an MBean
+ * (see {@link #register(ObjectName)}), a JMX attribute read computes only the requested values.
+ *
+ * <p>The snapshot flattens every metric to the numeric values:
+ * <pre>
+ *  meter:      name.total, name.rate (per second)
+ *  histogram:  name.count, name.mean, name.p50, name.p90, name.p99, name.max (milliseconds)
+ *  gauge:      name
+ * </pre>
+ */
+public class Metrics implements DynamicMBean {
+
+    private static Logger LOG = Logger.getLogger(Metrics.class.getName());
+
+    public static final String RECEIVED = "bytes.received";
+    public static final String DNS_LATENCY = "latency.dns";
+    public static final String CONNECT_LATENCY = "latency.connect";
+    public static final String HEAD_LATENCY = "latency.head";
+    public static final String FIRST_BYTE_LATENCY = "latency.ttfb";
+    public static final String DISPATCH_LATENCY = "latency.dispatch";
+
+    /**
+     * Counts the events (usually bytes) and their rate.
+     * The rate is measured over the window of at least {@link #RATE_WINDOW} milliseconds between the readings,
+     * the previous window is reported until the current one is over.
+     */
+    public static class Meter {
+
+        public static final long RATE_WINDOW = 1000;
+
+        /**
+         * @param count The number of the events [0; Infinity).
+         */
+        public void mark(long count) {
+            total.add(count);
+        }
+
+        /**
+         * @return The number of the events since the creation.
+         */
+        public long getTotal() {
+            return total.sum();
+        }
+
+        /**
+         * @return The number of the events per second.
+         */
+        public synchronized long getRate() {
+            long now = System.nanoTime();
+            long elapsed = now - windowStarted;
+            if (elapsed >= TimeUnit.MILLISECONDS.toNanos(RATE_WINDOW)) {
+                long current = total.sum();
+                rate = (long) ((current - windowTotal) * 1e9 / elapsed);
+                windowStarted = now;
+                windowTotal = current;
+            }
+            return rate;
+        }
+
+        private final LongAdder total = new LongAdder();
+        private long windowStarted = System.nanoTime();
+        private long windowTotal;
+        private long rate;
+    }
+
+    /**
+     * Distribution of the durations in power-of-two buckets of microseconds,
+     * so the percentiles are precise up to the factor of 2 and recording costs two atomic increments.
+     */
+    public static class Histogram {
+
+        /**
+         * @param nanos The duration in nanoseconds.
+         */
+        public void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            sum.add(micros);
+            max.accumulate(micros);
+        }
+
+        /**
+         * Records the time elapsed since the start.
+         * @param started The start time by {@link System#nanoTime()}.
+         */
+        public void recordSince(long started) {
+            record(System.nanoTime() - started);
+        }
+
+        /**
+         * @return The number of recorded durations.
+         */
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; ++i)
+                count += buckets.get(i);
+            return count;
+        }
+
+        /**
+         * @return The mean duration in milliseconds or 0 if nothing is recorded.
+         */
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : sum.sum() / 1000.0 / count;
+        }
+
+        /**
+         * @return The maximal duration in milliseconds.
+         */
+        public double getMax() {
+            return max.get() / 1000.0;
+        }
+
+        /**
+         * @param quantile The quantile (0; 1].
+         * @return The upper bound of the bucket containing the quantile in milliseconds or 0 if nothing is recorded.
+         */
+        public double getPercentile(double quantile) {
+            assert quantile > 0 && quantile <= 1;
+            long count = getCount();
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(i == 0 ? 0 : 1L << i, max.get()) / 1000.0;
+            }
+            return getMax();
+        }
+
+        // the bucket i keeps durations in [2^(i-1); 2^i) microseconds, the last one is unbounded
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * @param name The name of the meter.
+     * @return The meter, it is created on the first request.
+     */
+    public Meter meter(String name) {
+        return meters.computeIfAbsent(name, key -> new Meter());
+    }
+
+    /**
+     * @param name The name of the histogram.
+     * @return The histogram, it is created on the first request.
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Registers the value computed on reading.
+     * @param name The name of the gauge, the previous gauge with the same name is replaced.
+     * @param value The callback computing the value, it should be cheap and thread-safe.
+     */
+    public void gauge(String name, LongSupplier value) {
+        assert value != null;
+        gauges.put(name, value);
+    }
+
+    /**
+     * Counts the received bytes of the download in its own meter and in the global one.
+     * @param download The receiving download.
+     * @param bytes The number of received bytes.
+     */
+    public void received(Download download, long bytes) {
+        download.getReceivedMeter().mark(bytes);
+        meter(RECEIVED).mark(bytes);
+    }
+
+    /**
+     * @return The current values of all metrics by the flattened names.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> result = new TreeMap<>();
+        meters.forEach((name, meter) -> {
+            for (String field : METER_FIELDS)
+                result.put(name + "." + field, valueOf(meter, field));
+        });
+        histograms.forEach((name, histogram) -> {
+            for (String field : HISTOGRAM_FIELDS)
+                result.put(name + "." + field, valueOf(histogram, field));
+        });
+        gauges.forEach((name, gauge) -> result.put(name, gauge.getAsLong()));
+        return result;
+    }
+
+    /**
+     * Computes the value of one metric, the other metrics are not read.
+     * @param name The flattened name of the value (see {@link #snapshot()}).
+     * @return The current value or null if there is no such metric
+     */
+    public Number value(String name) {
+        LongSupplier gauge = gauges.get(name);
+        if (gauge != null)
+            return gauge.getAsLong();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0)
+            return null;
+        String metric = name.substring(0, dot);
+        String field = name.substring(dot + 1);
+        Meter meter = meters.get(metric);
+        if (meter != null && Arrays.asList(METER_FIELDS).contains(field))
+            return valueOf(meter, field);
+        Histogram histogram = histograms.get(metric);
+        if (histogram != null && Arrays.asList(HISTOGRAM_FIELDS).contains(field))
+            return valueOf(histogram, field);
+        return null;
+    }
+
+    /**
+     * Registers the registry in the platform MBean server, the attributes are the values of {@link #snapshot()}.
+     * The failure is logged, the metrics stay available programmatically.
+     * @param name The name of the MBean.
+     */
+    public synchronized void register(ObjectName name) {
+        assert name != null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registered = name;
+        }
+        catch (Exception exc) {
+            LOG.error(String.format("[metrics] %s: failed to register: %s", name, exc));
+        }
+    }
+
+    /**
+     * Removes the MBean registered by {@link #register(ObjectName)}.
+     */
+    public synchronized void unregister() {
+        if (registered == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        }
+        catch (Exception exc) {
+            LOG.error(String.format("[metrics] %s: failed to unregister: %s", registered, exc));
+        }
+        registered = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = value(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(String.format("%s is read-only", attribute.getName()));
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = value(attribute);
+            if (value != null)
+                result.add(new Attribute(attribute, value));
+        }
+        return result;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    /**
+     * The attributes are built from the current metrics (no value is computed),
+     * so the metrics created later appear on the next request.
+     */
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Class<?>> types = new TreeMap<>();
+        for (String name : meters.keySet()) {
+            for (String field : METER_FIELDS)
+                types.put(name + "." + field, Long.class);
+        }
+        for (String name : histograms.keySet()) {
+            for (String field : HISTOGRAM_FIELDS)
+                types.put(name + "." + field, field.equals("count") ? Long.class : Double.class);
+        }
+        for (String name : gauges.keySet())
+            types.put(name, Long.class);
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[types.size()];
+        int index = 0;
+        for (Map.Entry<String, Class<?>> type : types.entrySet()) {
+            attributes[index++] = new MBeanAttributeInfo(type.getKey(), type.getValue().getName(),
+                type.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Download metrics", attributes, null, new MBeanOperationInfo[0], null);
+    }
+
+    private static Number valueOf(Meter meter, String field) {
+        return field.equals("total") ? meter.getTotal() : meter.getRate();
+    }
+
+    private static Number valueOf(Histogram histogram, String field) {
+        switch (field) {
+            case "count":
+                return histogram.getCount();
+            case "mean":
+                return histogram.getMean();
+            case "p50":
+                return histogram.getPercentile(0.5);
+            case "p90":
+                return histogram.getPercentile(0.9);
+            case "p99":
+                return histogram.getPercentile(0.99);
+            default:
+                return histogram.getMax();
+        }
+    }
+
+    private static final String[] METER_FIELDS = {"total", "rate"};
+    private static final String[] HISTOGRAM_FIELDS = {"count", "mean", "p50", "p90", "p99", "max"};
+
+    private final Map<String, Meter> meters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private ObjectName registered;
+}
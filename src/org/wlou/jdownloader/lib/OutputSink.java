@@ -0,0 +1,66 @@
+package org.wlou.jdownloader.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Destination of the received bytes for a region of the target file.
+ * The network reader asks the sink for the buffer to read into and asks for the next one when the buffer is filled,
+ * so the sink decides when and how the filled buffers reach the file.
+ * Implementations:
+ *  - {@link MappedOutputSink} the buffers are memory mapped windows of the file;
+ *  - {@link PositionalOutputSink} the buffers are direct buffers written by positional {@link FileChannel} writes.
+ */
+public interface OutputSink {
+
+    /**
+     * Creates sinks for the regions of the target file.
+     */
+    interface Factory {
+        /**
+         * @param channel The channel of the target file opened for writing.
+         * @param offset The position of the region in the file.
+         * @param length The number of bytes in the region.
+         * @return The sink writing the region.
+         */
+        OutputSink open(FileChannel channel, long offset, long length);
+    }
+
+    /**
+     * Provides the buffer for writing the region content.
+     * The previously given buffer is considered filled.
+     * @return the buffer with remaining space or null if the region is filled
+     * @throws java.io.UncheckedIOException when the file can't be written
+     */
+    ByteBuffer nextOutputBuffer();
+
+    /**
+     * @return The number of bytes received to the region (some of them may be not written to the file yet)
+     */
+    long getReceived();
+
+    /**
+     * @return The number of bytes of the region handed over to the file system,
+     *         they are not lost if the process terminates
+     */
+    long getWritten();
+
+    /**
+     * @return True if all bytes of the region are received
+     */
+    boolean isCompleted();
+
+    /**
+     * Writes the bytes kept in the sink's memory (e.g. the mapped window) through to the file,
+     * so the bytes reported by {@link #getWritten()} before the call reach the storage device
+     * once the file channel is forced.
+     * @throws java.io.UncheckedIOException when the file can't be written
+     */
+    void force();
+
+    /**
+     * Releases the sink's buffers, the region can't be written after that.
+     * @param flush True to write the received bytes to the file before releasing.
+     */
+    void release(boolean flush);
+}
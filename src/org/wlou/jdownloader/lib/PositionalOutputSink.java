@@ -0,0 +1,209 @@
+package org.wlou.jdownloader.lib;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The region of the target file written by positional {@link FileChannel} writes.
+ * The bytes are received to direct buffers of the {@link BufferPool}, the filled buffers are written to the file and reused,
+ * so no file memory is mapped and the memory usage is bounded by the buffer size times the batch size.
+ * The batch of several filled buffers is written by one gathering write.
+ */
+public class PositionalOutputSink implements OutputSink {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_BATCH_SIZE = 1;
+    /**
+     * The length of the region growing until the content is over (the length of the content is unknown)
+     */
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+
+    /**
+     * @param bufferSize The size of the receiving buffers [1; Infinity).
+     * @param batchSize The number of filled buffers written at once [1; Infinity), 1 disables gathering writes.
+     * @return The factory of positional sinks.
+     */
+    public static OutputSink.Factory factory(int bufferSize, int batchSize) {
+        return factory(bufferSize, batchSize, BufferPool.shared());
+    }
+
+    /**
+     * @param bufferSize The size of the receiving buffers [1; Infinity).
+     * @param batchSize The number of filled buffers written at once [1; Infinity), 1 disables gathering writes.
+     * @param pool The pool of the receiving buffers.
+     * @return The factory of positional sinks.
+     */
+    public static OutputSink.Factory factory(int bufferSize, int batchSize, BufferPool pool) {
+        return (channel, offset, length) -> new PositionalOutputSink(channel, offset, length, bufferSize, batchSize, pool);
+    }
+
+    /**
+     * @param channel The channel of the target file, it must be opened for writing.
+     * @param offset The position of the region in the file.
+     * @param length The number of bytes in the region or {@link #UNBOUNDED}.
+     * @param bufferSize The size of the receiving buffers [1; Infinity).
+     * @param batchSize The number of filled buffers written at once [1; Infinity).
+     * @param pool The pool of the receiving buffers.
+     */
+    public PositionalOutputSink(FileChannel channel, long offset, long length, int bufferSize, int batchSize, BufferPool pool) {
+        assert channel != null && pool != null;
+        assert offset >= 0 && length >= 0;
+        assert bufferSize > 0 && batchSize > 0;
+        this.channel = channel;
+        this.offset = offset;
+        this.position = offset;
+        this.length = length;
+        this.bufferSize = bufferSize;
+        this.batchSize = batchSize;
+        this.pool = pool;
+    }
+
+    /**
+     * Provides the buffer for receiving the region content.
+     * Writes the batch of filled buffers when it is collected.
+     * @return the buffer with remaining space or null if the region is filled
+     * @throws UncheckedIOException when the file can't be written
+     */
+    @Override
+    public synchronized ByteBuffer nextOutputBuffer() {
+        ByteBuffer buffer = current;
+        if (buffer != null && buffer.hasRemaining())
+            return buffer;
+        if (buffer != null) {
+            current = null;
+            filled += buffer.position();
+            buffer.flip();
+            pending.add(buffer);
+        }
+        if (assigned >= length || released) {
+            write();
+            return null;
+        }
+        if (pending.size() >= batchSize)
+            write();
+        int size = (int)Math.min(bufferSize, length - assigned);
+        buffer = free.isEmpty() ? pool.acquire(bufferSize) : free.poll();
+        buffer.clear();
+        buffer.limit(size);
+        assigned += size;
+        current = buffer;
+        return buffer;
+    }
+
+    /**
+     * @return The number of bytes received to the region (the last batch may be not written yet)
+     */
+    @Override
+    public long getReceived() {
+        ByteBuffer buffer = current;
+        long received = filled;
+        return buffer != null ? received + buffer.position() : received;
+    }
+
+    /**
+     * @return The number of bytes written to the file by positional writes
+     */
+    @Override
+    public long getWritten() {
+        return position - offset;
+    }
+
+    /**
+     * @return True if all bytes of the region are received
+     */
+    @Override
+    public boolean isCompleted() {
+        return getReceived() >= length;
+    }
+
+    /**
+     * Does nothing: the written buffers are handed over to the file channel already.
+     */
+    @Override
+    public void force() { }
+
+    /**
+     * Releases the buffers, the region can't be written after that.
+     * @param flush True to write received bytes to the file before releasing.
+     * @throws UncheckedIOException when the file can't be written
+     */
+    @Override
+    public synchronized void release(boolean flush) {
+        released = true;
+        ByteBuffer buffer = current;
+        if (buffer != null) {
+            current = null;
+            filled += buffer.position();
+            if (flush) {
+                buffer.flip();
+                pending.add(buffer);
+            }
+            else {
+                // the interrupted network read may still write to the buffer, so it can't be reused
+                pool.discard(buffer);
+            }
+        }
+        try {
+            if (flush)
+                write();
+        }
+        finally {
+            pending.forEach(pool::release);
+            pending.clear();
+            free.forEach(pool::release);
+            free.clear();
+        }
+    }
+
+    private void write() {
+        if (pending.isEmpty())
+            return;
+        try {
+            if (pending.size() == 1) {
+                ByteBuffer buffer = pending.get(0);
+                while (buffer.hasRemaining())
+                    position += channel.write(buffer, position);
+            }
+            else {
+                // FileChannel has no positional gathering write,
+                // so the channel position is shared with the sinks of other segments
+                ByteBuffer[] batch = pending.toArray(new ByteBuffer[pending.size()]);
+                long total = 0;
+                for (ByteBuffer buffer : batch)
+                    total += buffer.remaining();
+                synchronized (channel) {
+                    channel.position(position);
+                    for (long written = 0; written < total; )
+                        written += channel.write(batch);
+                }
+                position += total;
+            }
+        }
+        catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+        free.addAll(pending);
+        pending.clear();
+    }
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+    private final int bufferSize;
+    private final int batchSize;
+    private final BufferPool pool;
+    private final List<ByteBuffer> pending = new ArrayList<>();
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+
+    private volatile ByteBuffer current;
+    private volatile long filled;
+    private volatile long position;
+    private long assigned;
+    private boolean released;
+}
@@ -0,0 +1,135 @@
+package org.wlou.jdownloader.lib;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Publishes the progress of the downloads at a fixed rate.
+ * The network threads only count received bytes, the publisher samples the received bytes of tracked downloads
+ * (see {@link Download#getReceived()}) on its own thread every tick and passes all downloads changed since
+ * the previous tick to the listeners at once. The bytes rather than the fraction are sampled,
+ * so the downloads of unknown length (chunked or streamed content) are published as well.
+ * So the cost of the notifications depends on the tick rate rather than on the number of socket reads.
+ */
+public class ProgressPublisher implements AutoCloseable {
+
+    private static Logger LOG = Logger.getLogger(ProgressPublisher.class.getName());
+
+    /**
+     * The default period between the samples in milliseconds (20 Hz)
+     */
+    public static final long DEFAULT_INTERVAL = 50;
+
+    /**
+     * Creates the publisher sampling the progress every {@link #DEFAULT_INTERVAL} milliseconds.
+     */
+    public ProgressPublisher() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param interval The period between the samples in milliseconds [1; Infinity).
+     */
+    public ProgressPublisher(long interval) {
+        assert interval > 0;
+        ticker = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, String.format("Progress-%02X", hashCode()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::publish, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts sampling the progress of the download.
+     * @param download The download to track.
+     */
+    public void track(Download download) {
+        assert download != null;
+        samples.putIfAbsent(download, UNKNOWN);
+    }
+
+    /**
+     * Stops sampling the progress of the download.
+     * @param download The tracked download.
+     */
+    public void untrack(Download download) {
+        samples.remove(download);
+    }
+
+    /**
+     * @return The number of the sampled downloads.
+     */
+    public int getTrackedCount() {
+        return samples.size();
+    }
+
+    /**
+     * Adds the listener of the progress changes.
+     * The listener is called by the publisher's thread once per tick if any download has changed its progress.
+     * @param listener The callback receiving the changed downloads.
+     */
+    public void subscribe(Consumer<List<Download>> listener) {
+        assert listener != null;
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes the listener of the progress changes.
+     * @param listener The subscribed callback.
+     */
+    public void unsubscribe(Consumer<List<Download>> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Samples the received bytes of tracked downloads and notifies the listeners about changed ones.
+     * It is called every tick, but can be called directly to publish the changes immediately.
+     */
+    public synchronized void publish() {
+        List<Download> changed = new ArrayList<>();
+        for (Map.Entry<Download, Long> sample : samples.entrySet()) {
+            long received = sample.getKey().getReceived();
+            if (received != sample.getValue()) {
+                // the entry could be removed concurrently, so it is not updated in place
+                if (samples.replace(sample.getKey(), sample.getValue(), received))
+                    changed.add(sample.getKey());
+            }
+        }
+        if (changed.isEmpty())
+            return;
+        for (Consumer<List<Download>> listener : listeners) {
+            try {
+                listener.accept(changed);
+            }
+            catch (RuntimeException exc) {
+                LOG.error(String.format("[progress] Listener failed: %s", exc));
+            }
+        }
+    }
+
+    /**
+     * Stops sampling, the listeners are not called after that.
+     */
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+    private final ScheduledThreadPoolExecutor ticker;
+    /**
+     * The initial sample, so the first tick publishes every tracked download
+     */
+    private static final long UNKNOWN = -1;
+
+    private final Map<Download, Long> samples = new ConcurrentHashMap<>();
+    private final List<Consumer<List<Download>>> listeners = new CopyOnWriteArrayList<>();
+}
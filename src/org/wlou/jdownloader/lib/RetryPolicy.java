@@ -0,0 +1,105 @@
+package org.wlou.jdownloader.lib;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.xml.ws.http.HTTPException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.file.FileSystemException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether the failed download is attempted again and when (see {@link Download#setRetryPolicy(RetryPolicy)}).
+ * The delay grows exponentially from the base delay up to the maximal one, every delay is randomized
+ * within its upper half (so the downloads failed by the same outage don't come back at once).
+ * Only the transient network failures are retried: resets, timeouts, connections closed before
+ * the content is over and 5xx, 408 and 429 responses. The failures which don't go away by themselves
+ * (other Http statuses, unknown hosts, refused connections, TLS handshake and local file system failures,
+ * malformed responses) are fatal.
+ */
+public class RetryPolicy {
+
+    public static final long DEFAULT_BASE_DELAY = 1000;
+    public static final long DEFAULT_MAX_DELAY = 30000;
+
+    /**
+     * The policy failing the download on the first error
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(0, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+
+    /**
+     * The policy retrying the transient failures 3 times after 1, 2 and 4 seconds (half of them at least)
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+
+    /**
+     * @param maxRetries The number of attempts after the first one [0; Infinity).
+     * @param baseDelay The delay before the first retry in milliseconds [1; Infinity).
+     * @param maxDelay The upper limit of the delay in milliseconds [baseDelay; Infinity).
+     */
+    public RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+        assert maxRetries >= 0;
+        assert baseDelay > 0 && maxDelay >= baseDelay;
+        MaxRetries = maxRetries;
+        BaseDelay = baseDelay;
+        MaxDelay = maxDelay;
+    }
+
+    /**
+     * Classifies the failure.
+     * @param failure The cause of the failure or null if it is unknown.
+     * @return True if the failure is transient and the next attempt may succeed
+     */
+    public boolean isRetryable(Throwable failure) {
+        if (failure instanceof HTTPException) {
+            int status = ((HTTPException) failure).getStatusCode();
+            return status >= 500 || status == REQUEST_TIMEOUT_CODE || status == TOO_MANY_REQUESTS_CODE;
+        }
+        // the sinks report the failures of the target file by unchecked exceptions
+        if (failure instanceof UncheckedIOException || failure instanceof FileSystemException ||
+            failure instanceof FileNotFoundException)
+            return false;
+        // nobody listens on the port, unlike the reset of the established connection
+        if (failure instanceof UnknownHostException || failure instanceof ConnectException ||
+            failure instanceof MalformedURLException || failure instanceof SSLHandshakeException)
+            return false;
+        // the malformed body (see BodyDecoder) is sent the same way every time
+        if (failure instanceof ProtocolException)
+            return false;
+        // resets, timeouts and early closes are reported by plain IOExceptions of the channels
+        return failure instanceof IOException;
+    }
+
+    /**
+     * @param retry The number of the retry [1; MaxRetries].
+     * @return The randomized delay before the retry in milliseconds
+     */
+    public long delay(int retry) {
+        assert retry > 0;
+        long delay = BaseDelay;
+        for (int i = 1; i < retry && delay < MaxDelay; ++i)
+            delay *= 2;
+        delay = Math.min(delay, MaxDelay);
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * The number of attempts after the first one
+     */
+    public final int MaxRetries;
+    /**
+     * The delay before the first retry in milliseconds
+     */
+    public final long BaseDelay;
+    /**
+     * The upper limit of the delay in milliseconds
+     */
+    public final long MaxDelay;
+
+    private static final int REQUEST_TIMEOUT_CODE = 408;
+    private static final int TOO_MANY_REQUESTS_CODE = 429;
+}
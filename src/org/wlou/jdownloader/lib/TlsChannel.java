@@ -0,0 +1,661 @@
+package org.wlou.jdownloader.lib;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * The client side TLS over the asynchronous socket channel.
+ * The channel wraps the plain one and encrypts/decrypts the data by {@link SSLEngine},
+ * so the readers and writers of {@link AsyncTools} and the {@link ConnectionPool} use it as the plain one.
+ *
+ * <p>The handshake is made by {@link #connect(SocketAddress, Object, CompletionHandler)}, the channel is ready
+ * for the request when the connection is completed. The engines made by {@link #clientEngine(SSLContext, String, int)}
+ * for the same host and port resume the cached session of the context, so the repeated connections
+ * skip the full handshake.
+ *
+ * <p>The encrypted records are kept in the buffers of the {@link BufferPool}, they are returned on close.
+ * The buffers are used under the channel's lock and every step checks the channel is not closed,
+ * so the close running on another thread (the abort of the exchange) never recycles the buffer
+ * in use; the buffer of the system read or write in progress is discarded rather than returned.
+ * Only one read and one write may be outstanding at a time (that is the way the exchanges use the channel).
+ */
+public class TlsChannel extends AsynchronousSocketChannel {
+
+    /**
+     * Makes the engine of the client connection to the host.
+     * @param context The context keeping the session cache.
+     * @param host The name of the host: it is sent as SNI and verified against the server's certificate.
+     * @param port The port of the host.
+     * @return The engine in the client mode.
+     */
+    public static SSLEngine clientEngine(SSLContext context, String host, int port) {
+        assert context != null && host != null;
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * @param context The configured context or null.
+     * @return The context or the default one ({@link SSLContext#getDefault()}) if it is null.
+     * @throws IOException if the default context is not available.
+     */
+    public static SSLContext contextOrDefault(SSLContext context) throws IOException {
+        if (context != null)
+            return context;
+        try {
+            return SSLContext.getDefault();
+        }
+        catch (NoSuchAlgorithmException exc) {
+            throw new IOException("TLS is not available", exc);
+        }
+    }
+
+    /**
+     * Makes the blocking TLS connection over the connected socket, it is used by the {@link BlockingEngine}.
+     * The handshake is made before returning.
+     * @param context The context keeping the session cache.
+     * @param socket The connected socket, it is owned by the result.
+     * @param host The name of the host: it is sent as SNI and verified against the server's certificate.
+     * @return The channel reading and writing the application data.
+     * @throws IOException if the handshake fails.
+     */
+    public static ByteChannel clientChannel(SSLContext context, Socket socket, String host) throws IOException {
+        SSLSocket tls = (SSLSocket) context.getSocketFactory().createSocket(socket, host, socket.getPort(), true);
+        SSLParameters parameters = tls.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        tls.setSSLParameters(parameters);
+        tls.startHandshake();
+        ReadableByteChannel input = Channels.newChannel(tls.getInputStream());
+        WritableByteChannel output = Channels.newChannel(tls.getOutputStream());
+        return new ByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return input.read(dst);
+            }
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return output.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return !tls.isClosed();
+            }
+
+            @Override
+            public void close() throws IOException {
+                tls.close();
+            }
+        };
+    }
+
+    /**
+     * @param channel The plain channel, it is owned by the new one.
+     * @param engine The engine in the client mode (see {@link #clientEngine(SSLContext, String, int)}).
+     * @param buffers The pool of the record buffers.
+     */
+    public TlsChannel(AsynchronousSocketChannel channel, SSLEngine engine, BufferPool buffers) {
+        super(channel.provider());
+        assert engine != null && buffers != null;
+        this.channel = channel;
+        this.engine = engine;
+        this.buffers = buffers;
+        SSLSession session = engine.getSession();
+        // the network buffers are in write mode, the application one is in read mode
+        netIn = buffers.acquire(session.getPacketBufferSize());
+        netOut = buffers.acquire(session.getPacketBufferSize());
+        netOut.flip();
+        appIn = buffers.acquire(session.getApplicationBufferSize());
+        appIn.flip();
+    }
+
+    /**
+     * @return The engine of the channel, the session is available when the channel is connected.
+     */
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Connects the plain channel and makes the handshake.
+     */
+    @Override
+    public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
+        channel.connect(remote, attachment, AsyncTools.handlerFrom(
+            (stub, a) -> handshake(() -> handler.completed(null, a), exc -> handler.failed(exc, a)),
+            (exc, a) -> handler.failed(exc, a)
+        ));
+    }
+
+    @Override
+    public Future<Void> connect(SocketAddress remote) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        connect(remote, result, AsyncTools.handlerFrom(
+            (stub, future) -> future.complete(null),
+            (exc, future) -> future.completeExceptionally(exc)
+        ));
+        return result;
+    }
+
+    /**
+     * Reads the decrypted data.
+     * The timeout is applied to every read of the plain channel.
+     */
+    @Override
+    public <A> void read(ByteBuffer dst, long timeout, TimeUnit unit, A attachment,
+                         CompletionHandler<Integer, ? super A> handler) {
+        int result;
+        try {
+            result = receive(dst);
+        }
+        catch (Exception exc) {
+            handler.failed(exc, attachment);
+            return;
+        }
+        if (result == NEED_FLUSH)
+            flush(timeout, unit,
+                () -> read(dst, timeout, unit, attachment, handler),
+                exc -> handler.failed(exc, attachment));
+        else if (result == NEED_FILL)
+            fill(timeout, unit,
+                () -> read(dst, timeout, unit, attachment, handler),
+                exc -> handler.failed(exc, attachment));
+        else
+            handler.completed(result, attachment);
+    }
+
+    @Override
+    public Future<Integer> read(ByteBuffer dst) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        read(dst, result, AsyncTools.handlerFrom(
+            (read, future) -> future.complete(read),
+            (exc, future) -> future.completeExceptionally(exc)
+        ));
+        return result;
+    }
+
+    /**
+     * Reads to the first buffer having the space.
+     */
+    @Override
+    public <A> void read(ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit, A attachment,
+                         CompletionHandler<Long, ? super A> handler) {
+        ByteBuffer dst = first(dsts, offset, length);
+        if (dst == null) {
+            handler.completed(0L, attachment);
+            return;
+        }
+        read(dst, timeout, unit, attachment, AsyncTools.handlerFrom(
+            (read, a) -> handler.completed((long) read, a),
+            (exc, a) -> handler.failed(exc, a)
+        ));
+    }
+
+    /**
+     * Encrypts one record of the data and writes it.
+     * The timeout is applied to every write of the plain channel.
+     */
+    @Override
+    public <A> void write(ByteBuffer src, long timeout, TimeUnit unit, A attachment,
+                          CompletionHandler<Integer, ? super A> handler) {
+        if (!src.hasRemaining()) {
+            handler.completed(0, attachment);
+            return;
+        }
+        int consumed;
+        try {
+            synchronized (lock) {
+                if (closed.get())
+                    throw new AsynchronousCloseException();
+                consumed = wrap(src);
+            }
+        }
+        catch (Exception exc) {
+            handler.failed(exc, attachment);
+            return;
+        }
+        flush(timeout, unit,
+            () -> handler.completed(consumed, attachment),
+            exc -> handler.failed(exc, attachment));
+    }
+
+    @Override
+    public Future<Integer> write(ByteBuffer src) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        write(src, 0L, TimeUnit.MILLISECONDS, result, AsyncTools.handlerFrom(
+            (written, future) -> future.complete(written),
+            (exc, future) -> future.completeExceptionally(exc)
+        ));
+        return result;
+    }
+
+    /**
+     * Writes the first buffer having the data.
+     */
+    @Override
+    public <A> void write(ByteBuffer[] srcs, int offset, int length, long timeout, TimeUnit unit, A attachment,
+                          CompletionHandler<Long, ? super A> handler) {
+        ByteBuffer src = first(srcs, offset, length);
+        if (src == null) {
+            handler.completed(0L, attachment);
+            return;
+        }
+        write(src, timeout, unit, attachment, AsyncTools.handlerFrom(
+            (written, a) -> handler.completed((long) written, a),
+            (exc, a) -> handler.failed(exc, a)
+        ));
+    }
+
+    @Override
+    public AsynchronousSocketChannel bind(SocketAddress local) throws IOException {
+        channel.bind(local);
+        return this;
+    }
+
+    @Override
+    public <T> AsynchronousSocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+        channel.setOption(name, value);
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        return channel.getOption(name);
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return channel.supportedOptions();
+    }
+
+    @Override
+    public AsynchronousSocketChannel shutdownInput() throws IOException {
+        channel.shutdownInput();
+        return this;
+    }
+
+    @Override
+    public AsynchronousSocketChannel shutdownOutput() throws IOException {
+        engine.closeOutbound();
+        channel.shutdownOutput();
+        return this;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException {
+        return channel.getRemoteAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get() && channel.isOpen();
+    }
+
+    /**
+     * @return True if the server has closed the connection without close_notify,
+     *         so the data up to the end of the stream may be truncated (see {@link DownloadTools#finishBody})
+     */
+    public boolean isTruncated() {
+        return inboundClosed && !engine.isInboundDone();
+    }
+
+    /**
+     * Sends the close_notify alert, closes the plain channel after that and returns the record buffers to the pool.
+     * The alert is written asynchronously (the plain channel is closed when it is written or failed),
+     * it is skipped if the write of the application data is in progress.
+     * The buffers are returned once the step using them is over, the operations fail on their next step.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed.getAndSet(true))
+            return;
+        ByteBuffer alert = null;
+        synchronized (lock) {
+            engine.closeOutbound();
+            if (!writing && !netOut.hasRemaining() && channel.isOpen()) {
+                try {
+                    wrap(EMPTY);
+                    alert = ByteBuffer.allocate(netOut.remaining()).put(netOut);
+                    alert.flip();
+                }
+                catch (SSLException ignored) {
+                    // the engine failed already, there is nobody to notify
+                }
+            }
+            // the buffers of the system reads and writes in progress may be still filled by the system
+            if (reading)
+                buffers.discard(netIn);
+            else
+                buffers.release(netIn);
+            if (writing)
+                buffers.discard(netOut);
+            else
+                buffers.release(netOut);
+            buffers.release(appIn);
+        }
+        if (alert != null && alert.hasRemaining())
+            channel.write(alert, CLOSE_NOTIFY_TIMEOUT, TimeUnit.MILLISECONDS, null, AsyncTools.handlerFrom(
+                (written, stub) -> closeQuietly(),
+                (exc, stub) -> closeQuietly()
+            ));
+        else
+            channel.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            channel.close();
+        }
+        catch (IOException ignored) { }
+    }
+
+    private void handshake(Runnable done, Consumer<Throwable> failed) {
+        try {
+            engine.beginHandshake();
+        }
+        catch (SSLException exc) {
+            failed.accept(exc);
+            return;
+        }
+        continueHandshake(done, failed);
+    }
+
+    private void continueHandshake(Runnable done, Consumer<Throwable> failed) {
+        int step;
+        try {
+            step = shake();
+        }
+        catch (Exception exc) {
+            failed.accept(exc);
+            return;
+        }
+        if (step == NEED_FLUSH)
+            flush(0L, TimeUnit.MILLISECONDS, () -> continueHandshake(done, failed), failed);
+        else if (step == NEED_FILL)
+            fill(0L, TimeUnit.MILLISECONDS, () -> continueHandshake(done, failed), failed);
+        else
+            done.run();
+    }
+
+    /**
+     * Advances the handshake as far as the received records allow.
+     * @return 0 if the handshake is finished, {@link #NEED_FLUSH} or {@link #NEED_FILL} if it waits for the network
+     */
+    private int shake() throws IOException {
+        synchronized (lock) {
+            while (true) {
+                if (closed.get())
+                    throw new AsynchronousCloseException();
+                if (inboundClosed)
+                    throw new EOFException("Connection is closed during TLS handshake");
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.FINISHED
+                    || status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                    return 0;
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+                else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    wrap(EMPTY);
+                    return NEED_FLUSH;
+                }
+                else if (!unwrap()) {
+                    return NEED_FILL;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the decrypted data or finds out which network operation the data waits for.
+     * @return The number of the transferred bytes, -1 at the end of stream, {@link #NEED_FLUSH} or {@link #NEED_FILL}
+     */
+    private int receive(ByteBuffer dst) throws IOException {
+        synchronized (lock) {
+            while (true) {
+                if (closed.get())
+                    throw new AsynchronousCloseException();
+                if (appIn.hasRemaining())
+                    return transfer(appIn, dst);
+                if (inboundClosed)
+                    return -1;
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    // the post-handshake messages (key updates)
+                    wrap(EMPTY);
+                    return NEED_FLUSH;
+                }
+                if (!unwrap())
+                    return NEED_FILL;
+            }
+        }
+    }
+
+    /**
+     * Encrypts the data to the empty network output buffer.
+     * @return The number of the consumed bytes.
+     */
+    private int wrap(ByteBuffer src) throws SSLException {
+        assert !netOut.hasRemaining();
+        netOut.clear();
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(src, netOut);
+        }
+        finally {
+            netOut.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && src != EMPTY)
+            throw new SSLException("TLS session is closed");
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+            throw new SSLException(String.format("TLS record exceeds %d bytes", netOut.capacity()));
+        return result.bytesConsumed();
+    }
+
+    /**
+     * Decrypts the received records to the application buffer.
+     * @return False if more network bytes are needed.
+     */
+    private boolean unwrap() throws SSLException {
+        SSLEngineResult result;
+        netIn.flip();
+        appIn.compact();
+        try {
+            result = engine.unwrap(netIn, appIn);
+        }
+        finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                // the record may be larger than the negotiated size
+                if (!netIn.hasRemaining())
+                    netIn = enlarge(netIn, engine.getSession().getPacketBufferSize(), false);
+                return false;
+            case BUFFER_OVERFLOW:
+                if (!appIn.hasRemaining())
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize(), true);
+                return true;
+            case CLOSED:
+                inboundClosed = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Reads the network bytes, the end of stream closes the inbound side.
+     */
+    private void fill(long timeout, TimeUnit unit, Runnable done, Consumer<Throwable> failed) {
+        ByteBuffer target;
+        synchronized (lock) {
+            target = closed.get() ? null : netIn;
+            reading = target != null;
+        }
+        if (target == null) {
+            failed.accept(new AsynchronousCloseException());
+            return;
+        }
+        channel.read(target, timeout, unit, null, AsyncTools.handlerFrom(
+            (read, stub) -> {
+                boolean open;
+                synchronized (lock) {
+                    reading = false;
+                    // the plain channel outlives the close while close_notify is written, the buffers are gone
+                    open = !closed.get();
+                    // the engine isn't closed if the server has closed the connection without close_notify:
+                    // the engine invalidates the session on that, so it couldn't be resumed; the framed response
+                    // is checked by its length, the one delimited by the close is failed (see isTruncated)
+                    if (open && read == -1)
+                        inboundClosed = true;
+                }
+                if (open)
+                    done.run();
+                else
+                    failed.accept(new AsynchronousCloseException());
+            },
+            (exc, stub) -> {
+                synchronized (lock) {
+                    reading = false;
+                }
+                failed.accept(exc);
+            }
+        ));
+    }
+
+    /**
+     * Writes the network output buffer completely.
+     */
+    private void flush(long timeout, TimeUnit unit, Runnable done, Consumer<Throwable> failed) {
+        ByteBuffer source;
+        synchronized (lock) {
+            if (closed.get()) {
+                source = null;
+            }
+            else if (!netOut.hasRemaining()) {
+                source = EMPTY;
+            }
+            else {
+                source = netOut;
+                writing = true;
+            }
+        }
+        if (source == null) {
+            failed.accept(new AsynchronousCloseException());
+            return;
+        }
+        if (source == EMPTY) {
+            done.run();
+            return;
+        }
+        channel.write(source, timeout, unit, null, AsyncTools.handlerFrom(
+            (written, stub) -> {
+                synchronized (lock) {
+                    writing = false;
+                }
+                flush(timeout, unit, done, failed);
+            },
+            (exc, stub) -> {
+                synchronized (lock) {
+                    writing = false;
+                }
+                failed.accept(exc);
+            }
+        ));
+    }
+
+    private void runTasks() {
+        for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+            task.run();
+    }
+
+    /**
+     * Replaces the buffer by the larger one from the pool keeping the content.
+     * @param readMode True if the buffer is in read mode.
+     */
+    private ByteBuffer enlarge(ByteBuffer buffer, int size, boolean readMode) {
+        ByteBuffer result = buffers.acquire(Math.max(size, buffer.capacity() * 2));
+        if (readMode)
+            result.put(buffer).flip();
+        else
+            result.put((ByteBuffer) buffer.flip());
+        buffers.release(buffer);
+        return result;
+    }
+
+    private static int transfer(ByteBuffer src, ByteBuffer dst) {
+        int count = Math.min(src.remaining(), dst.remaining());
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + count);
+        dst.put(part);
+        src.position(src.position() + count);
+        return count;
+    }
+
+    private static ByteBuffer first(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            if (buffers[i].hasRemaining())
+                return buffers[i];
+        }
+        return null;
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long CLOSE_NOTIFY_TIMEOUT = 1000;
+    // the results of the steps waiting for the network
+    private static final int NEED_FILL = -2;
+    private static final int NEED_FLUSH = -3;
+
+    private final AsynchronousSocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool buffers;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Object lock = new Object();
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private volatile boolean reading;
+    private volatile boolean writing;
+    private volatile boolean inboundClosed;
+}
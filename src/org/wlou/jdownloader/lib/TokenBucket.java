@@ -0,0 +1,106 @@
+package org.wlou.jdownloader.lib;
+
+/**
+ * The token bucket limiting the rate of received bytes.
+ * The bucket is refilled with <code>rate</code> tokens per second up to one second worth of tokens,
+ * every received byte takes one token. Since the number of bytes is known only after the read,
+ * the bucket can go into debt: the debt is the time the next read has to be delayed for.
+ * Buckets are chained to the parent ones (download -> host -> global), a read is delayed until
+ * all buckets of the chain are out of debt, so every level limits the sum of its children.
+ */
+public class TokenBucket {
+
+    /**
+     * The rate of the bucket without limit
+     */
+    public static final long UNLIMITED = 0;
+
+    /**
+     * @param rate The limit in bytes per second or {@link #UNLIMITED}.
+     */
+    public TokenBucket(long rate) {
+        this(rate, null);
+    }
+
+    /**
+     * @param rate The limit in bytes per second or {@link #UNLIMITED}.
+     * @param parent The bucket of the upper level or null.
+     */
+    public TokenBucket(long rate, TokenBucket parent) {
+        assert rate >= 0;
+        this.parent = parent;
+        this.rate = rate;
+        this.tokens = rate;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * @return The limit in bytes per second or {@link #UNLIMITED}
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Changes the limit, the reads already delayed are not affected.
+     * @param rate The limit in bytes per second or {@link #UNLIMITED}.
+     */
+    public synchronized void setRate(long rate) {
+        assert rate >= 0;
+        refill(System.nanoTime());
+        // the bucket of the unlimited rate isn't tracked, so it starts full
+        tokens = this.rate == UNLIMITED ? rate : Math.min(tokens, rate);
+        this.rate = rate;
+    }
+
+    /**
+     * @return True if the bucket has all tokens, so it is in the same state as the new one of the same rate
+     */
+    public synchronized boolean isFull() {
+        refill(System.nanoTime());
+        return rate == UNLIMITED || tokens >= rate;
+    }
+
+    /**
+     * @return The bucket of the upper level or null
+     */
+    public TokenBucket getParent() {
+        return parent;
+    }
+
+    /**
+     * Takes tokens for received bytes from the bucket and all its parents.
+     * @param bytes The number of received bytes.
+     * @return The time in nanoseconds to wait before the next read (0 if no bucket of the chain is in debt)
+     */
+    public long consume(long bytes) {
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+            if (rate == UNLIMITED) {
+                delay = 0;
+            }
+            else {
+                tokens -= bytes;
+                delay = tokens < 0 ? -tokens * NANOS_PER_SECOND / rate : 0;
+            }
+        }
+        return parent != null ? Math.max(delay, parent.consume(bytes)) : delay;
+    }
+
+    private void refill(long now) {
+        // the bucket is full after a second, so longer pauses don't matter (and don't overflow)
+        long elapsed = Math.min(now - refilled, NANOS_PER_SECOND);
+        refilled = now;
+        if (rate != UNLIMITED && elapsed > 0)
+            tokens = Math.min(rate, tokens + elapsed * rate / NANOS_PER_SECOND);
+    }
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final TokenBucket parent;
+    private long rate;
+    private long tokens;
+    private long refilled;
+}
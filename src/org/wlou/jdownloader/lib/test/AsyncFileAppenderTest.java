@@ -0,0 +1,87 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.wlou.jdownloader.lib.AsyncFileAppender;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class AsyncFileAppenderTest extends TestCase {
+
+    public void testAppend() throws Exception {
+        Path file = Files.createTempFile("async-appender", ".log");
+        Logger logger = Logger.getLogger(AsyncFileAppenderTest.class.getName() + ".append");
+        logger.setAdditivity(false);
+        AsyncFileAppender appender = new AsyncFileAppender();
+        try {
+            appender.setName("test");
+            appender.setLayout(new PatternLayout("%-5p {%t}: %m%n"));
+            appender.setFile(file.toString());
+            appender.setAppend(false);
+            appender.setBatchSize(16);
+            appender.activateOptions();
+            logger.addAppender(appender);
+
+            for (int i = 0; i < 1000; ++i)
+                logger.info(String.format("line %d", i));
+            logger.error("last");
+            // closing writes the queued events
+            logger.removeAppender(appender);
+            appender.close();
+
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                .filter(line -> !line.contains("discarded"))
+                .collect(Collectors.toList());
+            // the events are written in order, the thread name is the logging thread's one
+            String thread = Thread.currentThread().getName();
+            assertEquals(String.format("ERROR {%s}: last", thread), lines.get(lines.size() - 1));
+            assertEquals(1001, lines.size() + appender.getDiscardedCount());
+            for (int i = 1; i < lines.size() - 1; ++i) {
+                int previous = Integer.parseInt(lines.get(i - 1).substring(lines.get(i - 1).lastIndexOf(' ') + 1));
+                int current = Integer.parseInt(lines.get(i).substring(lines.get(i).lastIndexOf(' ') + 1));
+                assertTrue(current > previous);
+            }
+        } finally {
+            appender.close();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void testQueueOverflow() throws Exception {
+        Path file = Files.createTempFile("async-appender", ".log");
+        Logger logger = Logger.getLogger(AsyncFileAppenderTest.class.getName() + ".overflow");
+        logger.setAdditivity(false);
+        logger.setLevel(Level.DEBUG);
+        AsyncFileAppender appender = new AsyncFileAppender();
+        try {
+            appender.setName("overflow");
+            appender.setLayout(new PatternLayout("%-5p %m%n"));
+            appender.setFile(file.toString());
+            appender.setQueueSize(1);
+            appender.activateOptions();
+            logger.addAppender(appender);
+
+            // the errors are never discarded, they wait for the place in the queue
+            for (int i = 0; i < 100; ++i)
+                logger.error(String.format("error %d", i));
+            for (int i = 0; i < 10000; ++i)
+                logger.debug(String.format("debug %d", i));
+            logger.removeAppender(appender);
+            appender.close();
+
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            assertEquals(100, lines.stream().filter(line -> line.startsWith("ERROR")).count());
+            long written = lines.stream().filter(line -> line.startsWith("DEBUG")).count();
+            assertEquals(10000, written + appender.getDiscardedCount());
+        } finally {
+            appender.close();
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.wlou.jdownloader.lib.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal benchmark runner: every benchmark is run for several warmup iterations and then for
+ * several measured iterations of the fixed duration, the score is the mean throughput of the measured iterations.
+ * Results can be saved to a file and compared with the results of the previous run to catch regressions.
+ * The file format is CSV: <pre>name,unit,score,error</pre>
+ */
+public class BenchmarkHarness {
+
+    /**
+     * The measured piece of work.
+     */
+    public interface Operation {
+        /**
+         * Performs the work once.
+         * @return The amount of work done: operations, bytes, etc.
+         * @throws Exception to abort the benchmark
+         */
+        long run() throws Exception;
+    }
+
+    public static class Result {
+        Result(String name, String unit, double score, double error) {
+            Name = name;
+            Unit = unit;
+            Score = score;
+            Error = error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-56s %14.1f +- %8.1f %s", Name, Score, Error, Unit);
+        }
+
+        public final String Name;
+        public final String Unit;
+        /**
+         * Mean throughput, the higher is the better.
+         */
+        public final double Score;
+        /**
+         * Standard deviation of the iteration throughputs.
+         */
+        public final double Error;
+    }
+
+    public static final String OPS = "ops/s";
+    public static final String MBS = "MB/s";
+
+    /**
+     * @param warmups The number of not measured iterations [0; Infinity).
+     * @param iterations The number of measured iterations [1; Infinity).
+     * @param iterationMillis The minimal duration of an iteration, the operation is repeated until it elapses.
+     */
+    public BenchmarkHarness(int warmups, int iterations, long iterationMillis) {
+        assert warmups >= 0 && iterations > 0 && iterationMillis >= 0;
+        this.warmups = warmups;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    /**
+     * Keeps the value reachable, so the computation of it can't be eliminated by JIT.
+     * @param value The result of the measured computation.
+     */
+    public static void consume(Object value) {
+        sink = value;
+    }
+
+    /**
+     * Measures the operation in operations per second.
+     */
+    public Result run(String name, Operation operation) throws Exception {
+        return run(name, OPS, 1, operation);
+    }
+
+    /**
+     * Measures the operation.
+     * @param name The unique name of the benchmark, it is the key for comparing with the baseline.
+     * @param unit The unit of the score.
+     * @param unitSize The amount of work returned by the operation per one unit of the score.
+     * @param operation The measured work.
+     * @return The result, it is also printed and kept for {@link #save(Path)}.
+     * @throws Exception if the operation fails
+     */
+    public Result run(String name, String unit, double unitSize, Operation operation) throws Exception {
+        for (int i = 0; i < warmups; ++i)
+            iterate(operation);
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            long started = System.nanoTime();
+            long work = iterate(operation);
+            scores[i] = work / unitSize / ((System.nanoTime() - started) / 1e9);
+        }
+        double mean = 0;
+        for (double score : scores)
+            mean += score / iterations;
+        double variance = 0;
+        for (double score : scores)
+            variance += (score - mean) * (score - mean) / iterations;
+        Result result = new Result(name, unit, mean, Math.sqrt(variance));
+        results.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * @return The results of all run benchmarks.
+     */
+    public List<Result> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Writes the results to the file.
+     * @param file The path of the file.
+     * @throws IOException when the file can't be written
+     */
+    public void save(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            for (Result result : results)
+                out.println(String.format("%s,%s,%.3f,%.3f", result.Name, result.Unit, result.Score, result.Error));
+        }
+    }
+
+    /**
+     * Reads the results saved by {@link #save(Path)}.
+     * @param file The path of the file.
+     * @return The results by names.
+     * @throws IOException when the file can't be read
+     */
+    public static Map<String, Result> load(Path file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.split(",");
+                if (fields.length != 4)
+                    continue;
+                results.put(fields[0], new Result(fields[0], fields[1], Double.parseDouble(fields[2]), Double.parseDouble(fields[3])));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Finds the benchmarks which became slower than the baseline more than by the tolerance.
+     * The benchmarks absent in the baseline are not compared.
+     * @param baseline The results of the previous run.
+     * @param tolerance The allowed relative slowdown [0; 1).
+     * @return The descriptions of the regressions, it is empty if there are no regressions.
+     */
+    public List<String> compare(Map<String, Result> baseline, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        for (Result result : results) {
+            Result base = baseline.get(result.Name);
+            if (base == null || !base.Unit.equals(result.Unit))
+                continue;
+            if (result.Score < base.Score * (1 - tolerance))
+                regressions.add(String.format("%s: %.1f %s, baseline %.1f %s (%+.1f%%)", result.Name, result.Score, result.Unit,
+                    base.Score, base.Unit, (result.Score / base.Score - 1) * 100));
+        }
+        return regressions;
+    }
+
+    private long iterate(Operation operation) throws Exception {
+        long deadline = System.nanoTime() + iterationMillis * 1000000;
+        long work = 0;
+        do {
+            work += operation.run();
+        } while (System.nanoTime() < deadline);
+        return work;
+    }
+
+    private static volatile Object sink;
+
+    private final int warmups;
+    private final int iterations;
+    private final long iterationMillis;
+    private final List<Result> results = new ArrayList<>();
+}
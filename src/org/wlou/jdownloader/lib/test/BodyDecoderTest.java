@@ -0,0 +1,207 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.BodyDecoder;
+import org.wlou.jdownloader.lib.ChunkedBodyDecoder;
+import org.wlou.jdownloader.lib.HttpTools;
+import org.wlou.jdownloader.lib.IdentityBodyDecoder;
+import org.wlou.jdownloader.lib.InflatingBodyDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class BodyDecoderTest extends TestCase {
+
+    public static final String CHUNKED_BODY =
+        "4\r\nWiki\r\n" +
+        "5;name=value\r\npedia\r\n" +
+        "E \r\n in\r\n\r\nchunks.\r\n" +
+        "0\r\n" +
+        "Expires: never\r\n" +
+        "\r\n";
+    public static final String CONTENT = "Wikipedia in\r\n\r\nchunks.";
+    public static final String NEXT = "HTTP/1.1";
+
+    public void testChunked() throws Exception {
+        byte[] body = (CHUNKED_BODY + NEXT).getBytes(HttpTools.ISO_8859_1);
+
+        // the whole body at once, the next response is left in the input
+        ByteBuffer target = ByteBuffer.allocate(CONTENT.length());
+        BodyDecoder decoder = new ChunkedBodyDecoder();
+        ByteBuffer input = ByteBuffer.wrap(body);
+        decoder.decode(input, outputOf(target));
+        assertTrue(decoder.isComplete());
+        assertEquals(CONTENT.length(), decoder.getDecoded());
+        assertEquals(CONTENT, contentOf(target));
+        assertEquals(NEXT.length(), input.remaining());
+
+        // the body split at every byte
+        target = ByteBuffer.allocate(CONTENT.length());
+        decoder = new ChunkedBodyDecoder();
+        for (int i = 0; i < CHUNKED_BODY.length(); ++i) {
+            assertFalse(decoder.isComplete());
+            ByteBuffer portion = ByteBuffer.wrap(body, i, 1);
+            decoder.decode(portion, outputOf(target));
+            assertFalse(portion.hasRemaining());
+        }
+        assertTrue(decoder.isComplete());
+        assertEquals(CONTENT, contentOf(target));
+    }
+
+    public void testChunkedMalformed() throws Exception {
+        String[] malformed = {
+            "x\r\n",                                 // not a hex digit
+            "\r\n",                                  // the size is absent
+            "4\r\nWikiXX",                           // the data is not followed by CRLF
+            "10000000000000000\r\n",                 // the size overflows
+            "40\r\n" + new String(new char[64]),     // the content exceeds the target
+        };
+        for (String body : malformed) {
+            try {
+                new ChunkedBodyDecoder().decode(ByteBuffer.wrap(body.getBytes(HttpTools.ISO_8859_1)),
+                    outputOf(ByteBuffer.allocate(16)));
+                fail(String.format("\"%s\" is decoded", body));
+            }
+            catch (ProtocolException ignored) { }
+        }
+
+        // the connection is closed before the last chunk
+        BodyDecoder decoder = new ChunkedBodyDecoder();
+        ByteBuffer target = ByteBuffer.allocate(16);
+        decoder.decode(ByteBuffer.wrap("4\r\nWiki\r\n".getBytes(HttpTools.ISO_8859_1)), outputOf(target));
+        decoder.finish(outputOf(target));
+        assertFalse(decoder.isComplete());
+    }
+
+    public void testIdentity() throws Exception {
+        // the known length, the rest is left in the input
+        ByteBuffer target = ByteBuffer.allocate(16);
+        BodyDecoder decoder = new IdentityBodyDecoder(4);
+        ByteBuffer input = ByteBuffer.wrap(("Wiki" + NEXT).getBytes(HttpTools.ISO_8859_1));
+        decoder.decode(input, outputOf(target));
+        assertTrue(decoder.isComplete());
+        assertEquals("Wiki", contentOf(target));
+        assertEquals(NEXT.length(), input.remaining());
+
+        // until the connection is closed
+        target = ByteBuffer.allocate(16);
+        decoder = new IdentityBodyDecoder(IdentityBodyDecoder.UNTIL_CLOSE);
+        decoder.decode(ByteBuffer.wrap("Wiki".getBytes(HttpTools.ISO_8859_1)), outputOf(target));
+        decoder.decode(ByteBuffer.wrap("pedia".getBytes(HttpTools.ISO_8859_1)), outputOf(target));
+        assertFalse(decoder.isComplete());
+        decoder.finish(outputOf(target));
+        assertTrue(decoder.isComplete());
+        assertEquals(9, decoder.getDecoded());
+        assertEquals("Wikipedia", contentOf(target));
+
+        // the content exceeds the target
+        try {
+            new IdentityBodyDecoder(9).decode(ByteBuffer.wrap("Wikipedia".getBytes(HttpTools.ISO_8859_1)),
+                outputOf(ByteBuffer.allocate(4)));
+            fail("Content exceeding the target is decoded");
+        }
+        catch (ProtocolException ignored) { }
+
+        // the content of the known length is not completed by the end of the stream
+        decoder = new IdentityBodyDecoder(9);
+        decoder.finish(outputOf(ByteBuffer.allocate(16)));
+        assertFalse(decoder.isComplete());
+        assertTrue(new IdentityBodyDecoder(0).isComplete());
+    }
+
+    public void testInflating() throws Exception {
+        byte[] content = HttpHandlerStub._256K_SEQ;
+
+        // gzip in the body of the known length, split at every 1000th byte
+        byte[] gzipped = gzip(content);
+        ByteBuffer target = ByteBuffer.allocate(content.length);
+        BodyDecoder decoder = new InflatingBodyDecoder(new IdentityBodyDecoder(gzipped.length), true);
+        for (int i = 0; i < gzipped.length; i += 1000)
+            decoder.decode(ByteBuffer.wrap(gzipped, i, Math.min(1000, gzipped.length - i)), outputOf(target));
+        assertTrue(decoder.isComplete());
+        assertEquals(content.length, decoder.getDecoded());
+        assertTrue(Arrays.equals(content, target.array()));
+
+        // the header and the trailer split at every byte
+        target = ByteBuffer.allocate(content.length);
+        decoder = new InflatingBodyDecoder(new IdentityBodyDecoder(IdentityBodyDecoder.UNTIL_CLOSE), true);
+        for (int i = 0; i < gzipped.length; ++i)
+            decoder.decode(ByteBuffer.wrap(gzipped, i, 1), outputOf(target));
+        decoder.finish(outputOf(target));
+        assertTrue(decoder.isComplete());
+        assertTrue(Arrays.equals(content, target.array()));
+
+        // zlib and raw streams are both accepted as deflate
+        for (boolean nowrap : new boolean[] {false, true}) {
+            byte[] deflated = deflate(content, nowrap);
+            target = ByteBuffer.allocate(content.length);
+            decoder = new InflatingBodyDecoder(new IdentityBodyDecoder(deflated.length), false);
+            decoder.decode(ByteBuffer.wrap(deflated), outputOf(target));
+            assertTrue(decoder.isComplete());
+            assertTrue(Arrays.equals(content, target.array()));
+        }
+
+        // the corrupted trailer and the truncated stream
+        byte[] corrupted = Arrays.copyOf(gzipped, gzipped.length);
+        corrupted[corrupted.length - 5] ^= 1;
+        byte[] truncated = Arrays.copyOf(gzipped, gzipped.length / 2);
+        for (byte[] body : new byte[][] {corrupted, truncated}) {
+            try {
+                new InflatingBodyDecoder(new IdentityBodyDecoder(body.length), true).decode(ByteBuffer.wrap(body),
+                    outputOf(ByteBuffer.allocate(content.length)));
+                fail("Broken stream is decoded");
+            }
+            catch (IOException exc) {
+                // only the cut stream is worth the next attempt
+                assertEquals(body == corrupted, exc instanceof ProtocolException);
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (OutputStream output = new GZIPOutputStream(result)) {
+            output.write(content);
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] content, boolean nowrap) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (OutputStream output = new DeflaterOutputStream(result, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap))) {
+            output.write(content);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * The outputs of one buffer, similar to the output sink of the download.
+     */
+    private static Iterator<ByteBuffer> outputOf(ByteBuffer target) {
+        return new Iterator<ByteBuffer>() {
+            @Override
+            public boolean hasNext() {
+                return target.hasRemaining();
+            }
+
+            @Override
+            public ByteBuffer next() {
+                return target.hasRemaining() ? target : null;
+            }
+        };
+    }
+
+    private static String contentOf(ByteBuffer target) {
+        target.flip();
+        return Charset.forName(HttpTools.ISO_8859_1).decode(target).toString();
+    }
+}
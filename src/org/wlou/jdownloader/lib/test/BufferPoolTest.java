@@ -0,0 +1,75 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.BufferPool;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testSizeClasses() throws Exception {
+        BufferPool pool = new BufferPool();
+        ByteBuffer small = pool.acquire(1);
+        assertTrue(small.isDirect());
+        assertEquals(BufferPool.MIN_SIZE_CLASS, small.capacity());
+        assertEquals(1, small.limit());
+        assertEquals(0, small.position());
+
+        ByteBuffer exact = pool.acquire(4096);
+        assertEquals(4096, exact.capacity());
+        ByteBuffer rounded = pool.acquire(4097);
+        assertEquals(8192, rounded.capacity());
+        assertEquals(4097, rounded.limit());
+
+        ByteBuffer huge = pool.acquire(BufferPool.MAX_SIZE_CLASS + 1);
+        assertEquals(BufferPool.MAX_SIZE_CLASS + 1, huge.capacity());
+        assertEquals(4, pool.getLeasedCount());
+
+        pool.release(small);
+        pool.release(exact);
+        pool.release(rounded);
+        pool.release(huge);
+        assertEquals(0, pool.getLeasedCount());
+        // buffers out of size classes are not pooled
+        assertEquals(BufferPool.MIN_SIZE_CLASS + 4096 + 8192, pool.getPooledBytes());
+    }
+
+    public void testReuse() throws Exception {
+        BufferPool pool = new BufferPool();
+        ByteBuffer first = pool.acquire(3000);
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer second = pool.acquire(2500);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(2500, second.limit());
+        assertEquals(1, pool.getAllocatedCount());
+
+        // double release doesn't put the buffer to the pool twice
+        pool.release(second);
+        pool.release(second);
+        assertNotSame(pool.acquire(2000), pool.acquire(2000));
+
+        // the pool doesn't keep more than the limit
+        pool.setMaxPooledBytes(4096);
+        ByteBuffer a = pool.acquire(4096);
+        ByteBuffer b = pool.acquire(4096);
+        pool.release(a);
+        pool.release(b);
+        assertEquals(4096, pool.getPooledBytes());
+    }
+
+    public void testLeakDetection() throws Exception {
+        BufferPool pool = new BufferPool();
+        pool.acquire(1024);
+        pool.discard(pool.acquire(1024));
+        assertEquals(1, pool.getLeasedCount());
+
+        for (int i = 0; i < 50 && pool.getLeaksCount() == 0; ++i) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.getLeaksCount());
+        assertEquals(0, pool.getLeasedCount());
+    }
+}
@@ -0,0 +1,106 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.AsyncTools;
+import org.wlou.jdownloader.lib.ConnectionPool;
+
+import java.net.URL;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ConnectionPoolTest extends TestCase {
+
+    public static final String KEY = "localhost:8080";
+
+    public void testKeyOf() throws Exception {
+        assertEquals(KEY, ConnectionPool.keyOf(new URL("http://LocalHost:8080/a?b=c")));
+        assertEquals("localhost:80", ConnectionPool.keyOf(new URL("http://localhost/a")));
+        // TLS connections are never mixed with the plain ones
+        assertEquals("https://localhost:443", ConnectionPool.keyOf(new URL("https://localhost/a")));
+        assertEquals("https://localhost:8080", ConnectionPool.keyOf(new URL("https://localhost:8080/a")));
+    }
+
+    public void testReuse() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        try (ConnectionPool connections = new ConnectionPool(AsynchronousChannelGroup.withThreadPool(pool))) {
+            ConcurrentLinkedQueue<ConnectionPool.Connection> leased = new ConcurrentLinkedQueue<>();
+
+            connections.acquire(KEY, leased, AsyncTools.handlerFrom((c, q) -> q.add(c), (e, q) -> fail()));
+            ConnectionPool.Connection first = leased.poll();
+            assertNotNull(first);
+            assertFalse(first.isReused());
+
+            connections.release(first, true);
+            assertEquals(1, connections.getIdleCount(KEY));
+
+            connections.acquire(KEY, leased, AsyncTools.handlerFrom((c, q) -> q.add(c), (e, q) -> fail()));
+            ConnectionPool.Connection second = leased.poll();
+            assertNotNull(second);
+            assertTrue(second.isReused());
+            assertSame(first.Channel, second.Channel);
+            assertEquals(0, connections.getIdleCount(KEY));
+
+            // not reusable connection is closed
+            connections.release(second, false);
+            assertFalse(second.Channel.isOpen());
+            assertEquals(0, connections.getIdleCount(KEY));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public void testLimits() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        try (ConnectionPool connections = new ConnectionPool(AsynchronousChannelGroup.withThreadPool(pool))) {
+            connections.setMaxPerHost(1);
+            ConcurrentLinkedQueue<ConnectionPool.Connection> leased = new ConcurrentLinkedQueue<>();
+
+            connections.acquire(KEY, leased, AsyncTools.handlerFrom((c, q) -> q.add(c), (e, q) -> fail()));
+            connections.acquire(KEY, leased, AsyncTools.handlerFrom((c, q) -> q.add(c), (e, q) -> fail()));
+            // the second request waits for the first connection
+            assertEquals(1, leased.size());
+
+            connections.release(leased.poll(), true);
+            assertEquals(1, leased.size());
+            assertTrue(leased.peek().isReused());
+
+            // idle connections above the limit are closed
+            connections.setMaxIdlePerHost(0);
+            ConnectionPool.Connection last = leased.poll();
+            connections.release(last, true);
+            assertFalse(last.Channel.isOpen());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public void testIdleEviction() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        try (ConnectionPool connections = new ConnectionPool(AsynchronousChannelGroup.withThreadPool(pool))) {
+            connections.setIdleTimeout(50);
+            ConcurrentLinkedQueue<ConnectionPool.Connection> leased = new ConcurrentLinkedQueue<>();
+
+            connections.acquire(KEY, leased, AsyncTools.handlerFrom((c, q) -> q.add(c), (e, q) -> fail()));
+            ConnectionPool.Connection first = leased.poll();
+            connections.release(first, true);
+            assertEquals(1, connections.getIdleCount(KEY));
+
+            Thread.sleep(100);
+            connections.acquire(KEY, leased, AsyncTools.handlerFrom((c, q) -> q.add(c), (e, q) -> fail()));
+            ConnectionPool.Connection second = leased.poll();
+            assertFalse(second.isReused());
+            assertFalse(first.Channel.isOpen());
+
+            // the idle connection expires without the traffic as well
+            connections.release(second, true);
+            assertEquals(1, connections.getIdleCount(KEY));
+            Thread.sleep(200);
+            assertEquals(0, connections.getIdleCount(KEY));
+            assertFalse(second.Channel.isOpen());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
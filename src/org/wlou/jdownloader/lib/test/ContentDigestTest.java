@@ -0,0 +1,127 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.ContentDigest;
+import org.wlou.jdownloader.lib.Download;
+import org.wlou.jdownloader.lib.DownloadManager;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ContentDigestTest extends TestCase {
+
+    public static final String _256K_SEQ_URL = "http://localhost:8085/JBDownloaderTest?q=256k_bytes_seq";
+    public static final String _1K_ZEROS_URL = "http://localhost:8085/JBDownloaderTest?q=1k_bytes_0";
+    public static final int BLOCK_SIZE = 16 * 1024;
+
+    static  {
+        new HttpServerStub(8085).start();
+    }
+
+    public void testAlgorithms() throws Exception {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("e3069283", ContentDigest.Algorithm.CRC32C.digest(ByteBuffer.wrap(check)));
+        byte[] abc = "abc".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+            ContentDigest.Algorithm.SHA_256.digest(ByteBuffer.wrap(abc)));
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", ContentDigest.Algorithm.MD5.digest(ByteBuffer.wrap(abc)));
+
+        ContentDigest digest = ContentDigest.parse("SHA256:BA7816BF");
+        assertEquals(ContentDigest.Algorithm.SHA_256, digest.Type);
+        assertEquals("ba7816bf", digest.Expected);
+        assertFalse(digest.hasBlocks());
+        for (String wrong : new String[] {"ba7816bf", "sha-1:ba7816bf", "md5:xyz", "crc32c:abc"}) {
+            try {
+                ContentDigest.parse(wrong);
+                fail(wrong);
+            }
+            catch (IllegalArgumentException ignored) {
+            }
+        }
+    }
+
+    public void testVerified() throws Exception {
+        Path base = Files.createTempDirectory("digest-test");
+        try (DownloadManager manager = new DownloadManager()) {
+            manager.setMaxSegments(3);
+            String sha = ContentDigest.Algorithm.SHA_256.digest(ByteBuffer.wrap(HttpHandlerStub._256K_SEQ));
+            Download whole = manager.addDownload(new URL(_256K_SEQ_URL + "&whole"), base, Download.DEFAULT_PRIORITY,
+                new ContentDigest(ContentDigest.Algorithm.SHA_256, sha));
+
+            String crc = ContentDigest.Algorithm.CRC32C.digest(ByteBuffer.wrap(HttpHandlerStub._256K_SEQ));
+            Download combined = manager.addDownload(new URL(_256K_SEQ_URL + "&combined"), base, Download.DEFAULT_PRIORITY,
+                new ContentDigest(ContentDigest.Algorithm.CRC32C, crc));
+
+            List<String> blocks = blocks(ContentDigest.Algorithm.CRC32C, HttpHandlerStub._256K_SEQ);
+            Download blocked = manager.addDownload(new URL(_256K_SEQ_URL + "&blocks"), base, Download.DEFAULT_PRIORITY,
+                new ContentDigest(ContentDigest.Algorithm.CRC32C, null, BLOCK_SIZE, blocks));
+
+            await(whole);
+            await(combined);
+            await(blocked);
+            assertEquals(Download.Status.DOWNLOADED, whole.getCurrentStatus());
+            assertEquals(Download.Status.DOWNLOADED, combined.getCurrentStatus());
+            assertEquals(Download.Status.DOWNLOADED, blocked.getCurrentStatus());
+            // the whole digest is streamed by the single segment unless the digests of the segments are combined
+            assertTrue(whole.getSegments().isEmpty());
+            assertEquals(3, combined.getSegments().size());
+            assertTrue(Arrays.equals(HttpHandlerStub._256K_SEQ, Files.readAllBytes(blocked.getWhere())));
+            // the segments are aligned to the blocks
+            assertEquals(3, blocked.getSegments().size());
+            for (Download.Segment segment : blocked.getSegments())
+                assertEquals(0, segment.Offset % BLOCK_SIZE);
+        }
+    }
+
+    public void testMismatch() throws Exception {
+        Path base = Files.createTempDirectory("digest-test");
+        try (DownloadManager manager = new DownloadManager()) {
+            manager.setMaxSegments(2);
+            List<String> blocks = blocks(ContentDigest.Algorithm.MD5, HttpHandlerStub._256K_SEQ);
+            blocks.set(5, blocks.get(4));
+            Download blocked = manager.addDownload(new URL(_256K_SEQ_URL + "&mismatch"), base, Download.DEFAULT_PRIORITY,
+                new ContentDigest(ContentDigest.Algorithm.MD5, null, BLOCK_SIZE, blocks));
+            Download whole = manager.addDownload(new URL(_1K_ZEROS_URL), base, Download.DEFAULT_PRIORITY,
+                ContentDigest.parse("crc32c:00000000"));
+
+            await(blocked);
+            await(whole);
+            assertEquals(Download.Status.CORRUPTED, blocked.getCurrentStatus());
+            List<long[]> mismatched = blocked.getMismatchedRanges();
+            assertEquals(1, mismatched.size());
+            assertTrue(Arrays.equals(new long[] {5 * BLOCK_SIZE, 6 * BLOCK_SIZE}, mismatched.get(0)));
+            assertTrue(blocked.getLastError().getMessage().contains(String.format("%d-%d", 5 * BLOCK_SIZE, 6 * BLOCK_SIZE - 1)));
+            // only the mismatched block is left to download
+            List<long[]> completed = blocked.getCompletedRanges();
+            assertEquals(2, completed.size());
+            assertEquals(5 * BLOCK_SIZE, completed.get(0)[1]);
+            assertEquals(6 * BLOCK_SIZE, completed.get(1)[0]);
+
+            // without the block digests the whole content is reported
+            assertEquals(Download.Status.CORRUPTED, whole.getCurrentStatus());
+            assertTrue(Arrays.equals(new long[] {0, 1024}, whole.getMismatchedRanges().get(0)));
+        }
+    }
+
+    private static List<String> blocks(ContentDigest.Algorithm algorithm, byte[] content) {
+        List<String> result = new ArrayList<>();
+        for (int offset = 0; offset < content.length; offset += BLOCK_SIZE)
+            result.add(algorithm.digest(ByteBuffer.wrap(content, offset, Math.min(BLOCK_SIZE, content.length - offset))));
+        return result;
+    }
+
+    private static void await(Download download) throws InterruptedException {
+        for (int i = 0; i < 100; ++i) {
+            Download.Status status = download.getCurrentStatus();
+            if (status == Download.Status.DOWNLOADED || status == Download.Status.ERROR || status == Download.Status.CORRUPTED)
+                return;
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.Download;
+import org.wlou.jdownloader.lib.DownloadCache;
+import org.wlou.jdownloader.lib.DownloadManager;
+
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+public class DownloadCacheTest extends TestCase {
+
+    public static final String _256K_SEQ_URL = "http://localhost:8084/JBDownloaderTest?q=256k_bytes_seq";
+    public static final String ETAG = "\"tag\"";
+
+    static  {
+        new HttpServerStub(8084).start();
+    }
+
+    public void testStoreLookup() throws Exception {
+        Path directory = Files.createTempDirectory("cache-test");
+        byte[] x = new byte[100];
+        byte[] y = new byte[100];
+        Arrays.fill(y, (byte) 1);
+        Path first = Files.write(directory.resolve("x1"), x);
+        Path second = Files.write(directory.resolve("x2"), x);
+        Path third = Files.write(directory.resolve("y"), y);
+        URL a = new URL("http://localhost/a");
+        URL b = new URL("http://localhost/b");
+        URL c = new URL("http://localhost/c");
+
+        DownloadCache cache = new DownloadCache(directory.resolve("cache"), 150);
+        assertNull(cache.store(a, null, null, first));
+        DownloadCache.Entry entry = cache.store(a, ETAG, null, first);
+        assertEquals(DownloadCache.hash(first), entry.Hash);
+        assertEquals(100, entry.Length);
+        // storing the same content of the url again keeps the object
+        entry = cache.store(a, ETAG, null, first);
+        assertTrue(Files.exists(entry.File));
+        assertEquals(100, cache.getSize());
+        assertSame(entry, cache.lookup(a));
+        // the same content is kept once
+        assertEquals(entry.Hash, cache.store(b, null, "Sat, 01 Jan 2000 00:00:00 GMT", second).Hash);
+        assertEquals(100, cache.getSize());
+        assertSame(entry, cache.lookup(a));
+
+        // the least recently used urls are evicted, the object is deleted with the last of them
+        cache.store(c, ETAG, null, third);
+        assertNull(cache.lookup(a));
+        assertNull(cache.lookup(b));
+        assertFalse(Files.exists(entry.File));
+        assertEquals(100, cache.getSize());
+
+        // the index survives reopening, the changed content isn't served
+        cache = new DownloadCache(directory.resolve("cache"), 150);
+        entry = cache.lookup(c);
+        assertNotNull(entry);
+        assertEquals(ETAG, entry.ETag);
+        Path restored = directory.resolve("restored");
+        DownloadCache.restore(entry, restored);
+        assertTrue(Arrays.equals(y, Files.readAllBytes(restored)));
+        Files.write(third, x);
+        // the object is the hard link of the file (or the copy with the same time)
+        Files.setLastModifiedTime(entry.File, FileTime.fromMillis(entry.Modified + 1000));
+        assertNull(cache.lookup(c));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testConditionalRequest() throws Exception {
+        Path base = Files.createTempDirectory("cache-test");
+        try (DownloadManager manager = new DownloadManager()) {
+            DownloadCache cache = manager.openCache(base.resolve("cache"), DownloadCache.DEFAULT_MAX_SIZE);
+
+            Download d = manager.addDownload(new URL(_256K_SEQ_URL), base);
+            assertNull(d.getCached());
+            await(d);
+            assertEquals(Download.Status.DOWNLOADED, d.getCurrentStatus());
+            assertFalse(d.isFromCache());
+            // the file is stored in the background
+            for (int i = 0; cache.getSize() == 0 && i < 50; ++i)
+                Thread.sleep(100);
+            assertEquals(HttpHandlerStub._256K_SEQ.length, cache.getSize());
+
+            // HEAD request is answered by 304 Not Modified
+            Download hit = manager.addDownload(new URL(_256K_SEQ_URL), base);
+            assertNotNull(hit.getCached());
+            await(hit);
+            assertEquals(Download.Status.DOWNLOADED, hit.getCurrentStatus());
+            assertTrue(hit.isFromCache());
+            assertFalse(d.getWhere().equals(hit.getWhere()));
+            assertTrue(Arrays.equals(HttpHandlerStub._256K_SEQ, Files.readAllBytes(hit.getWhere())));
+            assertEquals(1.0, hit.getProgress());
+
+            // GET request in single-request mode is answered by 304 Not Modified too
+            manager.setSingleRequest(true);
+            Download fetched = manager.addDownload(new URL(_256K_SEQ_URL), base);
+            await(fetched);
+            assertTrue(fetched.isFromCache());
+            assertTrue(Arrays.equals(HttpHandlerStub._256K_SEQ, Files.readAllBytes(fetched.getWhere())));
+        }
+    }
+
+    private static void await(Download download) throws InterruptedException {
+        for (int i = 0; i < 100; ++i) {
+            Download.Status status = download.getCurrentStatus();
+            if (status == Download.Status.DOWNLOADED || status == Download.Status.ERROR)
+                return;
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.DownloadJournal;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class DownloadJournalTest extends TestCase {
+
+    public void testSaveLoad() throws Exception {
+        Path file = Paths.get("JBDownloaderTest.journal").toAbsolutePath();
+        try {
+            DownloadJournal journal = new DownloadJournal(file);
+            assertTrue(journal.load().isEmpty());
+
+            List<DownloadJournal.Entry> entries = new ArrayList<>();
+            entries.add(new DownloadJournal.Entry(new URL("http://localhost/a?q=1"), Paths.get("/tmp/a\tb\\c"), 1000,
+                "\"tag\"", "Sat, 01 Jan 2000 00:00:00 GMT", Arrays.asList(new long[] {0, 10}, new long[] {20, 1000})));
+            entries.add(new DownloadJournal.Entry(new URL("http://localhost/b"), Paths.get("/tmp/b"), -1,
+                null, "", Collections.emptyList()));
+            journal.save(entries);
+
+            List<DownloadJournal.Entry> loaded = journal.load();
+            assertEquals(2, loaded.size());
+            DownloadJournal.Entry a = loaded.get(0);
+            assertEquals(new URL("http://localhost/a?q=1"), a.Url);
+            assertEquals(Paths.get("/tmp/a\tb\\c"), a.Where);
+            assertEquals(1000, a.Length);
+            assertEquals("\"tag\"", a.ETag);
+            assertEquals("Sat, 01 Jan 2000 00:00:00 GMT", a.LastModified);
+            assertEquals(2, a.Completed.size());
+            assertTrue(Arrays.equals(new long[] {20, 1000}, a.Completed.get(1)));
+            assertEquals(990, a.getCompletedLength());
+            DownloadJournal.Entry b = loaded.get(1);
+            assertEquals(-1, b.Length);
+            assertNull(b.ETag);
+            assertEquals("", b.LastModified);
+            assertTrue(b.Completed.isEmpty());
+
+            // broken records are skipped
+            Files.write(file, Arrays.asList(DownloadJournal.HEADER, "garbage", "http://localhost/c\t/tmp/c\t5\t\t\t0-5"),
+                StandardCharsets.UTF_8);
+            loaded = journal.load();
+            assertEquals(1, loaded.size());
+            assertEquals(5, loaded.get(0).getCompletedLength());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.Download;
+import org.wlou.jdownloader.lib.DownloadManager;
+
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DownloadManagerTest extends TestCase {
+
+    public static final String UNREACHABLE_URL = "http://localhost:1/JBDownloaderTest?q=unreachable";
+
+    public void testEvents() throws Exception {
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+        List<DownloadManager.Event> events = new ArrayList<>();
+
+        try (DownloadManager manager = new DownloadManager()) {
+            manager.addObserver((o, arg) -> {
+                synchronized (events) {
+                    events.add((DownloadManager.Event) arg);
+                    events.notifyAll();
+                }
+            });
+
+            // the download is added, it fails to connect
+            Download d = manager.addDownload(new URL(UNREACHABLE_URL), defaultBasePath);
+            synchronized (events) {
+                for (int i = 0; last(events).Status != Download.Status.ERROR && i < 10; ++i)
+                    events.wait(500);
+                assertEquals(DownloadManager.Event.Kind.ADDED, events.get(0).Change);
+                assertSame(d, events.get(0).Target);
+                for (DownloadManager.Event event : events.subList(1, events.size())) {
+                    assertEquals(DownloadManager.Event.Kind.STATUS_CHANGED, event.Change);
+                    assertSame(d, event.Target);
+                }
+                assertEquals(Download.Status.ERROR, last(events).Status);
+                events.clear();
+            }
+            // the finished download isn't sampled anymore
+            assertEquals(0, manager.getProgressPublisher().getTrackedCount());
+
+            // the removal is published once
+            manager.removeDownload(d);
+            manager.removeDownload(d);
+            synchronized (events) {
+                assertEquals(DownloadManager.Event.Kind.REMOVED, last(events).Change);
+                assertEquals(1, events.stream().filter(event -> event.Change == DownloadManager.Event.Kind.REMOVED).count());
+            }
+            assertEquals(0, manager.getDownloadsSnap().length);
+            // the transitions are counted regardless of the removal
+            assertEquals(1L, manager.getMetrics().value("downloads.error.total"));
+        }
+    }
+
+    private static DownloadManager.Event last(List<DownloadManager.Event> events) {
+        return events.get(events.size() - 1);
+    }
+}
@@ -0,0 +1,90 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.Download;
+import org.wlou.jdownloader.lib.DownloadScheduler;
+
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class DownloadSchedulerTest extends TestCase {
+
+    public void testLimits() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(null);
+        scheduler.setMaxActive(2);
+        Download a1 = fetched("http://a/1");
+        Download a2 = fetched("http://a/2");
+        Download b1 = fetched("http://b/1");
+        for (Download d : new Download[] {a1, a2, b1})
+            scheduler.offer(d);
+        assertSame(a1, scheduler.poll());
+        assertSame(b1, scheduler.poll());
+        assertNull(scheduler.poll());
+        assertEquals(1, scheduler.getWaitingCount());
+
+        assertTrue(scheduler.release(a1));
+        assertFalse(scheduler.release(a1));
+        assertSame(a2, scheduler.poll());
+
+        // the host limit holds the second download of the host back
+        scheduler = new DownloadScheduler(null);
+        scheduler.setMaxActivePerHost(1);
+        for (Download d : new Download[] {a1, a2})
+            scheduler.offer(d);
+        assertSame(a1, scheduler.poll());
+        assertNull(scheduler.poll());
+        scheduler.release(a1);
+        assertSame(a2, scheduler.poll());
+        // the host without waiting and active downloads is forgotten
+        assertEquals(1, scheduler.getHostCount());
+        scheduler.release(a2);
+        assertEquals(0, scheduler.getHostCount());
+
+        // the downloads which can't be started are dropped
+        scheduler = new DownloadScheduler(null);
+        scheduler.offer(a1);
+        a1.turnToGhost();
+        assertNull(scheduler.poll());
+        assertEquals(0, scheduler.getWaitingCount());
+        assertEquals(0, scheduler.getHostCount());
+    }
+
+    public void testOrder() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(null);
+        scheduler.setMaxActive(1);
+        Download a1 = fetched("http://a/1");
+        Download a2 = fetched("http://a/2");
+        Download a3 = fetched("http://a/3");
+        Download b1 = fetched("http://b/1");
+        Download urgent = fetched("http://c/1");
+        urgent.setPriority(10);
+        for (Download d : new Download[] {a1, a2, a3, b1, urgent})
+            scheduler.offer(d);
+
+        // the priority goes first, then hosts take turns
+        Download[] expected = {urgent, a1, b1, a2, a3};
+        for (Download d : expected) {
+            assertSame(d, scheduler.poll());
+            assertNull(scheduler.poll());
+            scheduler.release(d);
+        }
+
+        // offering the waiting download again updates its priority
+        for (Download d : new Download[] {a1, a2})
+            scheduler.offer(d);
+        a2.setPriority(10);
+        scheduler.offer(a2);
+        assertEquals(2, scheduler.getWaitingCount());
+        assertSame(a2, scheduler.poll());
+        scheduler.release(a2);
+        assertSame(a1, scheduler.poll());
+    }
+
+    private static Download fetched(String url) throws Exception {
+        Path base = Paths.get(".").toAbsolutePath().normalize();
+        Download download = new Download(new URL(url), base);
+        download.setSingleRequest(true);
+        return download;
+    }
+}
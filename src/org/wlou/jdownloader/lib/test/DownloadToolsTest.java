@@ -1,10 +1,34 @@
 package org.wlou.jdownloader.lib.test;
 
 import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.DownloadTools;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class DownloadToolsTest extends TestCase {
 
     public void testPrepareDownload() throws Exception {
         //TODO:
     }
-}
\ No newline at end of file
+
+    public void testRanges() throws Exception {
+        List<long[]> merged = DownloadTools.mergeRanges(Arrays.asList(
+            new long[] {50, 60}, new long[] {0, 10}, new long[] {10, 20}, new long[] {55, 70}, new long[] {30, 30}));
+        assertEquals(2, merged.size());
+        assertTrue(Arrays.equals(new long[] {0, 20}, merged.get(0)));
+        assertTrue(Arrays.equals(new long[] {50, 70}, merged.get(1)));
+
+        List<long[]> remaining = DownloadTools.remainingRanges(merged, 100);
+        assertEquals(2, remaining.size());
+        assertTrue(Arrays.equals(new long[] {20, 50}, remaining.get(0)));
+        assertTrue(Arrays.equals(new long[] {70, 100}, remaining.get(1)));
+        assertTrue(DownloadTools.remainingRanges(Collections.singletonList(new long[] {0, 100}), 100).isEmpty());
+
+        int size = DownloadTools.MIN_SEGMENT_SIZE;
+        List<long[]> split = DownloadTools.splitRanges(Arrays.asList(new long[] {0, 10}, new long[] {100, 100 + 4 * size}), 8);
+        assertEquals(5, split.size());
+        assertTrue(Arrays.equals(new long[] {100, 100 + size}, split.get(1)));
+    }
+}
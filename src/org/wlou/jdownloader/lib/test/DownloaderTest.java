@@ -1,16 +1,25 @@
 package org.wlou.jdownloader.lib.test;
 
 import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.BandwidthLimiter;
+import org.wlou.jdownloader.lib.BlockingEngine;
+import org.wlou.jdownloader.lib.BufferPool;
 import org.wlou.jdownloader.lib.Download;
+import org.wlou.jdownloader.lib.DownloadJournal;
 import org.wlou.jdownloader.lib.DownloadTools;
 import org.wlou.jdownloader.lib.Downloader;
+import org.wlou.jdownloader.lib.HostResolver;
 import org.wlou.jdownloader.lib.HttpTools;
+import org.wlou.jdownloader.lib.Metrics;
+import org.wlou.jdownloader.lib.PositionalOutputSink;
 
+import javax.net.ssl.SSLContext;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -21,7 +30,10 @@ public class DownloaderTest extends TestCase {
 
     public static final String _1K_ZEROS_URL = "http://localhost:8080/JBDownloaderTest?q=1k_bytes_0";
     public static final String _10K_ONES_URL = "http://localhost:8080/JBDownloaderTest?q=100k_bytes_1";
+    public static final String _256K_SEQ_URL = "http://localhost:8080/JBDownloaderTest?q=256k_bytes_seq";
     public static final String _404_URL = "http://localhost:8080/JBDownloaderTest?q=404";
+    public static final String _256K_SEQ_SECURE_URL = "https://localhost:8443/JBDownloaderTest?q=256k_bytes_seq";
+    public static final String _256K_CHUNKED_URL = "http://localhost:8080/JBDownloaderTest?q=256k_chunked";
 
     public static final String initResponse =
         "HTTP/1.1 200 OK\r\n" +
@@ -32,11 +44,14 @@ public class DownloaderTest extends TestCase {
         "\r\n";
 
     private static  HttpServerStub testServer;
+    private static  HttpsServerStub secureServer;
 
     static  {
         try {
             testServer = new HttpServerStub(8080);
             testServer.start();
+            secureServer = new HttpsServerStub(8443);
+            secureServer.start();
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -74,7 +89,11 @@ public class DownloaderTest extends TestCase {
                     synchronized (d) { d.wait(500); }
                 assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
                 assertEquals(d.getInformation(), DownloadTools.SUCCESSFUL_INITIALIZED_MESSAGE);
+                // the target file is created when the processing starts
+                assertFalse(d.getWhere().toFile().exists());
+                assertTrue(d.lockForProcessing());
                 assertTrue(d.getWhere().toFile().exists());
+                assertEquals(HttpHandlerStub._1K_ZEROS.length, Files.size(d.getWhere()));
             } finally {
                 d.turnToGhost();
                 Files.deleteIfExists(d.getWhere());
@@ -117,6 +136,556 @@ public class DownloaderTest extends TestCase {
         // TODO: add more test cases, for example interrupt and etc..
     }
 
+    public void testProcessSegmented() throws Exception {
+        ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+
+        try {
+            Downloader downloader = new Downloader(testQueue, pool);
+
+            // let's test the resource with byte ranges support
+            Download d = new Download(new URL(_256K_SEQ_URL), defaultBasePath);
+            d.setMaxSegments(4);
+            try {
+                downloader.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 3; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+                // the output is opened when the processing starts
+                assertTrue(d.getSegments().isEmpty());
+
+                downloader.process(new Downloader.DownloaderContext(d, "process"), () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.DOWNLOADING && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertEquals(4, d.getSegments().size());
+                assertEquals(d.getInformation(), DownloadTools.SUCCESSFUL_COMPLETED_MESSAGE);
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+
+                // every body byte is counted once, one HEAD and four range requests are timed
+                Metrics metrics = downloader.getMetrics();
+                assertEquals(HttpHandlerStub._256K_SEQ.length, metrics.meter(Metrics.RECEIVED).getTotal());
+                assertEquals(1, metrics.histogram(Metrics.HEAD_LATENCY).getCount());
+                assertEquals(4, metrics.histogram(Metrics.FIRST_BYTE_LATENCY).getCount());
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+
+            // the resource without byte ranges support is processed by one connection
+            d = new Download(new URL(_10K_ONES_URL), defaultBasePath);
+            d.setMaxSegments(4);
+            try {
+                downloader.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 3; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+                assertTrue(d.getSegments().isEmpty());
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testProcessWindowed() throws Exception {
+        ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+
+        try {
+            Downloader downloader = new Downloader(testQueue, pool);
+
+            // the window is much smaller than the resource and the segments
+            // and isn't aligned with them, so windows are remapped in the middle of reads
+            for (int segments : new int[] {1, 4}) {
+                Download d = new Download(new URL(_256K_SEQ_URL), defaultBasePath);
+                d.setMaxSegments(segments);
+                d.setWindowSize(10000);
+                try {
+                    downloader.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                    for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 3; ++i)
+                        synchronized (d) { d.wait(500); }
+                    assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+                    assertEquals(HttpHandlerStub._256K_SEQ.length, d.getLength());
+
+                    downloader.process(new Downloader.DownloaderContext(d, "process"), () -> true);
+                    for (int i = 0; d.getCurrentStatus() == Download.Status.DOWNLOADING && i < 5; ++i)
+                        synchronized (d) { d.wait(500); }
+                    assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                    assertEquals(1.0, d.getProgress());
+                    assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+                } finally {
+                    d.turnToGhost();
+                    Files.deleteIfExists(d.getWhere());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testProcessPositional() throws Exception {
+        ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+
+        try {
+            Downloader downloader = new Downloader(testQueue, pool);
+
+            int leased = BufferPool.shared().getLeasedCount();
+            // the buffers are much smaller than the resource and the segments, the batches are written
+            // by single positional writes and by gathering writes
+            for (int segments : new int[] {1, 4}) {
+                for (int batch : new int[] {1, 3}) {
+                    Download d = new Download(new URL(_256K_SEQ_URL), defaultBasePath);
+                    d.setMaxSegments(segments);
+                    d.setOutputSink(PositionalOutputSink.factory(10000, batch));
+                    try {
+                        downloader.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                        for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 3; ++i)
+                            synchronized (d) { d.wait(500); }
+                        assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+                        assertEquals(HttpHandlerStub._256K_SEQ.length, d.getLength());
+
+                        downloader.process(new Downloader.DownloaderContext(d, "process"), () -> true);
+                        for (int i = 0; d.getCurrentStatus() == Download.Status.DOWNLOADING && i < 5; ++i)
+                            synchronized (d) { d.wait(500); }
+                        assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                        assertEquals(1.0, d.getProgress());
+                        assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+                    } finally {
+                        d.turnToGhost();
+                        Files.deleteIfExists(d.getWhere());
+                    }
+                }
+            }
+            // all exchanges and sinks have returned their buffers
+            assertEquals(leased, BufferPool.shared().getLeasedCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testProcessResumed() throws Exception {
+        ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+        Path where = defaultBasePath.resolve("JBDownloaderTest.resumed");
+
+        try {
+            Downloader downloader = new Downloader(testQueue, pool);
+            byte[] expected = Arrays.copyOf(HttpHandlerStub._256K_SEQ, HttpHandlerStub._256K_SEQ.length);
+            // completed ranges are marked to make sure they are not downloaded again
+            Arrays.fill(expected, 1000, 100000, (byte) 0xFF);
+            Arrays.fill(expected, 200000, expected.length, (byte) 0xFF);
+            List<long[]> completed = Arrays.asList(new long[] {1000, 100000}, new long[] {200000, expected.length});
+
+            for (String etag : new String[] {HttpHandlerStub.ETAG_VAL, "\"changed\""}) {
+                Files.write(where, expected);
+                Download d = new Download(new DownloadJournal.Entry(new URL(_256K_SEQ_URL), where, expected.length,
+                    etag, null, completed));
+                d.setMaxSegments(4);
+                try {
+                    downloader.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                    for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 3; ++i)
+                        synchronized (d) { d.wait(500); }
+                    assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+                    assertEquals(HttpHandlerStub.ETAG_VAL, d.getETag());
+
+                    downloader.process(new Downloader.DownloaderContext(d, "process"), () -> true);
+                    for (int i = 0; d.getCurrentStatus() == Download.Status.DOWNLOADING && i < 5; ++i)
+                        synchronized (d) { d.wait(500); }
+                    assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                    assertEquals(1.0, d.getProgress());
+                    if (etag.equals(HttpHandlerStub.ETAG_VAL)) {
+                        // [0; 1000) is too small to split, [100000; 200000) is split between 3 segments
+                        assertEquals(4, d.getSegments().size());
+                        assertTrue(Arrays.equals(Files.readAllBytes(where), expected));
+                    }
+                    else {
+                        // the resource has changed, so it is downloaded from scratch
+                        assertTrue(Arrays.equals(Files.readAllBytes(where), HttpHandlerStub._256K_SEQ));
+                    }
+                } finally {
+                    d.turnToGhost();
+                    Files.deleteIfExists(where);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testProcessThrottled() throws Exception {
+        ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+        final long rate = 128 * 1024;
+
+        try {
+            // every level limits the download: the first second is the burst, the rest takes about a second
+            for (String level : new String[] {"download", "host", "global"}) {
+                Downloader downloader = new Downloader(testQueue, pool);
+                Download d = new Download(new URL(_256K_SEQ_URL), defaultBasePath);
+                d.setMaxSegments(2);
+                if (level.equals("download"))
+                    d.setBandwidthLimit(rate);
+                else if (level.equals("host"))
+                    downloader.getBandwidthLimiter().setHostLimit("LocalHost", rate);
+                else
+                    downloader.getBandwidthLimiter().setLimit(rate);
+                try {
+                    downloader.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                    for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 3; ++i)
+                        synchronized (d) { d.wait(500); }
+                    assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+
+                    long started = System.nanoTime();
+                    downloader.process(new Downloader.DownloaderContext(d, "process"), () -> true);
+                    for (int i = 0; d.getCurrentStatus() == Download.Status.DOWNLOADING && i < 10; ++i)
+                        synchronized (d) { d.wait(500); }
+                    long elapsed = (System.nanoTime() - started) / 1000000;
+                    assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                    assertTrue(String.format("%s: %d ms", level, elapsed), elapsed >= 600);
+                    assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+                } finally {
+                    d.turnToGhost();
+                    Files.deleteIfExists(d.getWhere());
+                    downloader.close();
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testBlockingEngine() throws Exception {
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+
+        try (BlockingEngine engine = new BlockingEngine(new HostResolver(), new BandwidthLimiter(), BufferPool.shared())) {
+            // whole and segmented processing
+            for (int segments : new int[] {1, 4}) {
+                Download d = new Download(new URL(_256K_SEQ_URL), defaultBasePath);
+                d.setMaxSegments(segments);
+                try {
+                    engine.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                    for (int i = 0; d.getCurrentStatus() != Download.Status.INITIALIZED && i < 3; ++i)
+                        synchronized (d) { d.wait(500); }
+                    assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+                    assertTrue(d.getSegments().isEmpty());
+
+                    engine.process(new Downloader.DownloaderContext(d, "process"), () -> true);
+                    for (int i = 0; d.getCurrentStatus() == Download.Status.DOWNLOADING && i < 5; ++i)
+                        synchronized (d) { d.wait(500); }
+                    assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                    assertEquals(segments == 1 ? 0 : segments, d.getSegments().size());
+                    assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+                } finally {
+                    d.turnToGhost();
+                    Files.deleteIfExists(d.getWhere());
+                }
+            }
+
+            // single-request mode
+            Download d = new Download(new URL(_10K_ONES_URL), defaultBasePath);
+            try {
+                engine.fetch(new Downloader.DownloaderContext(d, "fetch"), () -> true, () -> true);
+                for (int i = 0; d.getCurrentStatus() != Download.Status.DOWNLOADED && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._100K_ONES));
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+
+            // errors interrupt the download
+            d = new Download(new URL(_404_URL), defaultBasePath);
+            engine.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+            for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 3; ++i)
+                synchronized (d) { d.wait(500); }
+            assertTrue(d.getCurrentStatus() == Download.Status.ERROR);
+            assertEquals(DownloadTools.INIT_ERROR_MESSAGE, d.getInformation());
+        }
+    }
+
+    public void testProcessSecure() throws Exception {
+        ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+        SSLContext context = secureServer.getClientContext();
+
+        try {
+            Downloader downloader = new Downloader(testQueue, pool);
+            downloader.setSslContext(context);
+
+            // the HEAD and four range requests over TLS connections
+            Download d = new Download(new URL(_256K_SEQ_SECURE_URL), defaultBasePath);
+            d.setMaxSegments(4);
+            try {
+                downloader.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+                // the output is opened when the processing starts
+                assertTrue(d.getSegments().isEmpty());
+
+                downloader.process(new Downloader.DownloaderContext(d, "process"), () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.DOWNLOADING && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertEquals(4, d.getSegments().size());
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+                assertEquals(HttpHandlerStub._256K_SEQ.length, downloader.getMetrics().meter(Metrics.RECEIVED).getTotal());
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // the blocking engine uses the same context
+        try (BlockingEngine engine = new BlockingEngine(new HostResolver(), new BandwidthLimiter(), BufferPool.shared())) {
+            engine.setSslContext(context);
+            Download d = new Download(new URL(_256K_SEQ_SECURE_URL), defaultBasePath);
+            d.setMaxSegments(4);
+            try {
+                engine.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                for (int i = 0; d.getCurrentStatus() != Download.Status.INITIALIZED && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+
+                engine.process(new Downloader.DownloaderContext(d, "process"), () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.DOWNLOADING && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+        }
+
+        // the untrusted certificate fails the initialization
+        ConcurrentLinkedQueue<Download> otherQueue = new ConcurrentLinkedQueue<>();
+        pool = Executors.newFixedThreadPool(1);
+        try {
+            Downloader downloader = new Downloader(otherQueue, pool);
+            Download d = new Download(new URL(_256K_SEQ_SECURE_URL), defaultBasePath);
+            downloader.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+            for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 5; ++i)
+                synchronized (d) { d.wait(500); }
+            assertTrue(d.getCurrentStatus() == Download.Status.ERROR);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testProcessChunked() throws Exception {
+        ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+
+        try {
+            Downloader downloader = new Downloader(testQueue, pool);
+
+            // HEAD response has no Content-Length, the length is known when the last chunk is received
+            Download d = new Download(new URL(_256K_CHUNKED_URL), defaultBasePath);
+            d.setMaxSegments(4);
+            try {
+                downloader.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 3; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+                assertEquals(-1, d.getLength());
+                assertTrue(d.getSegments().isEmpty());
+
+                downloader.process(new Downloader.DownloaderContext(d, "process"), () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.DOWNLOADING && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+                assertEquals(HttpHandlerStub._256K_SEQ.length, d.getLength());
+                assertEquals(HttpHandlerStub._256K_SEQ.length, d.getReceived());
+                assertEquals(1.0, d.getProgress());
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+
+            // single-request mode
+            d = new Download(new URL(_256K_CHUNKED_URL), defaultBasePath);
+            d.setSingleRequest(true);
+            try {
+                downloader.fetch(new Downloader.DownloaderContext(d, "fetch"), () -> true, () -> true);
+                for (int i = 0; d.getCurrentStatus() != Download.Status.DOWNLOADED && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+                assertEquals(HttpHandlerStub._256K_SEQ.length, d.getLength());
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        try (BlockingEngine engine = new BlockingEngine(new HostResolver(), new BandwidthLimiter(), BufferPool.shared())) {
+            Download d = new Download(new URL(_256K_CHUNKED_URL), defaultBasePath);
+            try {
+                engine.fetch(new Downloader.DownloaderContext(d, "fetch"), () -> true, () -> true);
+                for (int i = 0; d.getCurrentStatus() != Download.Status.DOWNLOADED && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+                assertEquals(HttpHandlerStub._256K_SEQ.length, d.getLength());
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+        }
+    }
+
+    public void testProcessCompressed() throws Exception {
+        ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+
+        try {
+            Downloader downloader = new Downloader(testQueue, pool);
+            downloader.setCompression(true);
+
+            // the length of the compressed resource is unknown, so it isn't split into segments
+            Download d = new Download(new URL(_256K_SEQ_URL), defaultBasePath);
+            d.setMaxSegments(4);
+            try {
+                downloader.initialize(new Downloader.DownloaderContext(d, "initialize"), () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 3; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.INITIALIZED);
+                assertTrue(d.getSegments().isEmpty());
+
+                downloader.process(new Downloader.DownloaderContext(d, "process"), () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.DOWNLOADING && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+                assertEquals(HttpHandlerStub._256K_SEQ.length, d.getLength());
+                assertEquals(HttpHandlerStub._256K_SEQ_GZIPPED.length, downloader.getMetrics().meter(Metrics.RECEIVED).getTotal());
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+
+            // the chunked body compressed on the fly
+            d = new Download(new URL(_256K_CHUNKED_URL), defaultBasePath);
+            d.setSingleRequest(true);
+            try {
+                downloader.fetch(new Downloader.DownloaderContext(d, "fetch"), () -> true, () -> true);
+                for (int i = 0; d.getCurrentStatus() != Download.Status.DOWNLOADED && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        try (BlockingEngine engine = new BlockingEngine(new HostResolver(), new BandwidthLimiter(), BufferPool.shared())) {
+            engine.setCompression(true);
+            Download d = new Download(new URL(_256K_SEQ_URL), defaultBasePath);
+            try {
+                engine.fetch(new Downloader.DownloaderContext(d, "fetch"), () -> true, () -> true);
+                for (int i = 0; d.getCurrentStatus() != Download.Status.DOWNLOADED && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._256K_SEQ));
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+        }
+    }
+
+    public void testFetch() throws Exception {
+        ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+
+        try {
+            Downloader downloader = new Downloader(testQueue, pool);
+
+            // let's test 404 response
+            Download d = new Download(new URL(_404_URL), defaultBasePath);
+            d.setSingleRequest(true);
+            try {
+                downloader.fetch(new Downloader.DownloaderContext(d, "fetch"), () -> true, () -> true);
+                for (int i = 0; d.getCurrentStatus() == Download.Status.INITIALIZING && i < 3; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.ERROR);
+                assertEquals(d.getInformation(), DownloadTools.INIT_ERROR_MESSAGE);
+                assertFalse(d.getWhere().toFile().exists());
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+
+            // let's test regular case: one GET request initializes and processes the download
+            d = new Download(new URL(_10K_ONES_URL), defaultBasePath);
+            d.setSingleRequest(true);
+            try {
+                downloader.fetch(new Downloader.DownloaderContext(d, "fetch"), () -> true, () -> true);
+                for (int i = 0; d.getCurrentStatus() != Download.Status.DOWNLOADED && i < 5; ++i)
+                    synchronized (d) { d.wait(500); }
+                assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+                assertEquals(d.getInformation(), DownloadTools.SUCCESSFUL_COMPLETED_MESSAGE);
+                assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._100K_ONES));
+            } finally {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testSubmit() throws Exception {
+        ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        Path defaultBasePath = Paths.get(".").toAbsolutePath().normalize();
+        Downloader downloader = new Downloader(testQueue, pool);
+        Thread worker = new Thread(downloader);
+
+        try {
+            // the dispatcher is idle until a download is submitted
+            worker.start();
+            Download d = new Download(new URL(_1K_ZEROS_URL), defaultBasePath);
+            testQueue.add(d);
+            downloader.submit(d);
+            for (int i = 0; d.getCurrentStatus() != Download.Status.DOWNLOADED && i < 5; ++i)
+                synchronized (d) { d.wait(500); }
+            assertTrue(d.getCurrentStatus() == Download.Status.DOWNLOADED);
+            assertTrue(Arrays.equals(Files.readAllBytes(d.getWhere()), HttpHandlerStub._1K_ZEROS));
+        }
+        finally {
+            pool.shutdown();
+            worker.interrupt();
+            for (Download d: testQueue) {
+                d.turnToGhost();
+                Files.deleteIfExists(d.getWhere());
+            }
+        }
+    }
+
     public void testRun() throws Exception {
         ConcurrentLinkedQueue<Download> testQueue = new ConcurrentLinkedQueue<>();
         ExecutorService pool = Executors.newFixedThreadPool(1);
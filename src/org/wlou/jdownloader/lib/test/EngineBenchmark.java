@@ -0,0 +1,91 @@
+package org.wlou.jdownloader.lib.test;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.wlou.jdownloader.lib.Download;
+import org.wlou.jdownloader.lib.DownloadEngine;
+import org.wlou.jdownloader.lib.DownloadManager;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Compares the download engines on many concurrent small downloads from the local stub server.
+ * All downloads are added at once, the time until the last one is finished is measured.
+ * Usage: EngineBenchmark [number of downloads] [connections per host] [rounds]
+ */
+public class EngineBenchmark {
+
+    public static final int PORT = 8081;
+    public static final String URL = "http://localhost:%d/JBDownloaderTest?q=1k_bytes_0&n=%d";
+
+    public static void main(String[] args) throws Exception {
+        int downloads = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        LogManager.getRootLogger().setLevel(Level.WARN);
+        new HttpServerStub(PORT).start();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        System.out.println(String.format("downloads: %d, connections per host: %d, rounds: %d", downloads, connections, rounds));
+        for (DownloadEngine.Kind engine : DownloadEngine.Kind.values()) {
+            // the first round warms up
+            run(engine, downloads, connections);
+            for (int round = 0; round < rounds; ++round) {
+                threads.resetPeakThreadCount();
+                Result result = run(engine, downloads, connections);
+                System.out.println(String.format("%-9s %8.1f downloads/s, %6d ms, failed: %d, peak threads: %d",
+                    engine, downloads * 1000.0 / result.Elapsed, result.Elapsed, result.Failed, threads.getPeakThreadCount()));
+            }
+        }
+        System.exit(0);
+    }
+
+    private static class Result {
+        Result(long elapsed, int failed) {
+            Elapsed = elapsed;
+            Failed = failed;
+        }
+        final long Elapsed;
+        final int Failed;
+    }
+
+    private static Result run(DownloadEngine.Kind engine, int downloads, int connections) throws Exception {
+        Path base = Files.createTempDirectory("engine-benchmark");
+        try (DownloadManager manager = new DownloadManager(engine)) {
+            manager.setSingleRequest(true);
+            manager.setMaxConnectionsPerHost(connections);
+            manager.setParallelCapacity(Runtime.getRuntime().availableProcessors());
+
+            long started = System.nanoTime();
+            // distinct urls give distinct target files
+            for (int i = 0; i < downloads; ++i)
+                manager.addDownload(new URL(String.format(URL, PORT, i)), base);
+            int failed;
+            while (true) {
+                int active = 0;
+                failed = 0;
+                for (Download d : manager.getDownloadsSnap()) {
+                    if (d.getCurrentStatus() == Download.Status.ERROR)
+                        ++failed;
+                    else if (d.getCurrentStatus() != Download.Status.DOWNLOADED)
+                        ++active;
+                }
+                if (active == 0)
+                    break;
+                Thread.sleep(10);
+            }
+            return new Result((System.nanoTime() - started) / 1000000, failed);
+        } finally {
+            try (Stream<Path> files = Files.list(base)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.deleteIfExists(base);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.AsyncTools;
+import org.wlou.jdownloader.lib.HostResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HostResolverTest extends TestCase {
+
+    public static final String KNOWN_HOST = "mirror.test";
+    public static final String UNKNOWN_HOST = "unknown.test";
+
+    /**
+     * Resolves {@link #KNOWN_HOST} only, counts calls and blocks until released.
+     */
+    private static class StubLookup implements HostResolver.Lookup {
+        @Override
+        public InetAddress lookup(String host) throws UnknownHostException {
+            calls.incrementAndGet();
+            try {
+                gate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {}
+            if (!host.equals(KNOWN_HOST))
+                throw new UnknownHostException(host);
+            return InetAddress.getByAddress(host, new byte[] {10, 0, 0, 1});
+        }
+
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch gate = new CountDownLatch(1);
+    }
+
+    public void testCoalescing() throws Exception {
+        StubLookup lookup = new StubLookup();
+        try (HostResolver resolver = new HostResolver(lookup)) {
+            ConcurrentLinkedQueue<InetAddress> resolved = new ConcurrentLinkedQueue<>();
+            CountDownLatch done = new CountDownLatch(100);
+            for (int i = 0; i < 100; ++i) {
+                resolver.resolve(KNOWN_HOST, resolved, AsyncTools.handlerFrom(
+                    (address, r) -> { r.add(address); done.countDown(); },
+                    (exc, r) -> done.countDown()
+                ));
+            }
+            // nobody is blocked while the lookup is in progress
+            assertEquals(0, resolved.size());
+            lookup.gate.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(100, resolved.size());
+            assertEquals(1, lookup.calls.get());
+
+            // the next request is served from the cache in the current thread
+            resolver.resolve(KNOWN_HOST, resolved, AsyncTools.handlerFrom((address, r) -> r.add(address), (exc, r) -> fail()));
+            assertEquals(101, resolved.size());
+            assertEquals(1, lookup.calls.get());
+        }
+    }
+
+    public void testNegativeCaching() throws Exception {
+        StubLookup lookup = new StubLookup();
+        lookup.gate.countDown();
+        try (HostResolver resolver = new HostResolver(lookup)) {
+            ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+            CountDownLatch done = new CountDownLatch(1);
+            resolver.resolve(UNKNOWN_HOST, errors, AsyncTools.handlerFrom(
+                (address, e) -> fail(),
+                (exc, e) -> { e.add(exc); done.countDown(); }
+            ));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            resolver.resolve(UNKNOWN_HOST, errors, AsyncTools.handlerFrom((address, e) -> fail(), (exc, e) -> e.add(exc)));
+            assertEquals(2, errors.size());
+            assertTrue(errors.peek() instanceof UnknownHostException);
+            assertEquals(1, lookup.calls.get());
+        }
+    }
+
+    public void testExpiration() throws Exception {
+        StubLookup lookup = new StubLookup();
+        lookup.gate.countDown();
+        try (HostResolver resolver = new HostResolver(lookup)) {
+            resolver.setPositiveTtl(0);
+            for (int i = 1; i <= 3; ++i) {
+                CountDownLatch done = new CountDownLatch(1);
+                resolver.resolve(KNOWN_HOST, done, AsyncTools.handlerFrom((address, d) -> d.countDown(), (exc, d) -> fail()));
+                assertTrue(done.await(5, TimeUnit.SECONDS));
+                assertEquals(i, lookup.calls.get());
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package org.wlou.jdownloader.lib.test;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.wlou.jdownloader.lib.AsyncTools;
+import org.wlou.jdownloader.lib.BufferPool;
+import org.wlou.jdownloader.lib.Download;
+import org.wlou.jdownloader.lib.DownloadEngine;
+import org.wlou.jdownloader.lib.DownloadManager;
+import org.wlou.jdownloader.lib.DownloadTools;
+import org.wlou.jdownloader.lib.HttpResponseParser;
+import org.wlou.jdownloader.lib.HttpTools;
+import org.wlou.jdownloader.lib.OutputSink;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of the download hot paths:
+ *  - headers: building of the requests and parsing of the response headers
+ *  - buffers: moving of the received bytes to the output buffers
+ *  - reader: the overhead of the {@link AsyncTools.ChannelReader} read loop compared to the blocking reading
+ *  - sinks: the memory mapped and the positional output sinks (see {@link OutputSinkBenchmark})
+ *  - e2e: the throughput of {@link DownloadManager} downloading from the local stub server
+ *         for the grid of body sizes and numbers of concurrent downloads
+ *
+ * Usage: HotPathBenchmark [options] [suite,...]
+ *  -quick                  1 warmup and 3 measured iterations of 200 ms instead of 3 and 5 of 1 s
+ *  -sizes 1K,1M,64M        body sizes of e2e downloads (K, M, G suffixes)
+ *  -concurrency 1,10,100   numbers of concurrent e2e downloads
+ *  -max-total 1G           e2e combinations downloading more bytes at once are skipped
+ *  -engine ASYNC           the engine of e2e downloads
+ *  -save results.csv       save the results
+ *  -baseline results.csv   compare with the saved results, exits with 1 if there are regressions
+ *  -tolerance 10           the allowed slowdown in percents
+ */
+public class HotPathBenchmark {
+
+    public static final int PORT = 8082;
+    public static final String URL = "http://localhost:%d/JBDownloaderTest?" + HttpHandlerStub.GENERATED_PREFIX + "%d&n=%d";
+    public static final String DOWNLOADS = "downloads/s";
+    public static final List<String> SUITES = Arrays.asList("headers", "buffers", "reader", "sinks", "e2e");
+
+    public static void main(String[] args) throws Exception {
+        List<String> suites = new ArrayList<>(SUITES);
+        long[] sizes = {1L << 10, 1L << 20, 64L << 20};
+        long[] concurrency = {1, 10, 100};
+        long maxTotal = 1L << 30;
+        DownloadEngine.Kind engine = DownloadEngine.Kind.ASYNC;
+        boolean quick = false;
+        Path save = null;
+        Path baseline = null;
+        double tolerance = 0.1;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "-quick": quick = true; break;
+                case "-sizes": sizes = parseList(args[++i]); break;
+                case "-concurrency": concurrency = parseList(args[++i]); break;
+                case "-max-total": maxTotal = parseSize(args[++i]); break;
+                case "-engine": engine = DownloadEngine.Kind.valueOf(args[++i].toUpperCase()); break;
+                case "-save": save = Paths.get(args[++i]); break;
+                case "-baseline": baseline = Paths.get(args[++i]); break;
+                case "-tolerance": tolerance = Double.parseDouble(args[++i]) / 100; break;
+                default: suites = Arrays.asList(args[i].split(","));
+            }
+        }
+
+        LogManager.getRootLogger().setLevel(Level.WARN);
+        BenchmarkHarness harness = quick ? new BenchmarkHarness(1, 3, 200) : new BenchmarkHarness(3, 5, 1000);
+        if (suites.contains("headers"))
+            headers(harness);
+        if (suites.contains("buffers"))
+            buffers(harness);
+        if (suites.contains("reader"))
+            reader(harness);
+        if (suites.contains("sinks"))
+            sinks(harness);
+        if (suites.contains("e2e"))
+            endToEnd(harness, engine, sizes, concurrency, maxTotal);
+
+        if (save != null)
+            harness.save(save);
+        int status = 0;
+        if (baseline != null) {
+            List<String> regressions = harness.compare(BenchmarkHarness.load(baseline), tolerance);
+            regressions.forEach(regression -> System.out.println("REGRESSION " + regression));
+            status = regressions.isEmpty() ? 0 : 1;
+        }
+        System.exit(status);
+    }
+
+    private static void headers(BenchmarkHarness harness) throws Exception {
+        URL url = new URL(String.format(URL, PORT, 1024, 0));
+        String response = "HTTP/1.1 206 Partial Content\r\n" +
+            "Server: test_stub\r\n" +
+            "Date: Sat, 01 Jan 2000 00:00:00 GMT\r\n" +
+            "Content-Type: application/octet-stream\r\n" +
+            "Content-Length: 262144\r\n" +
+            "Content-Range: bytes 0-262143/1073741824\r\n" +
+            "Accept-Ranges: bytes\r\n" +
+            "ETag: \"256k-seq\"\r\n" +
+            "Last-Modified: Sat, 01 Jan 2000 00:00:00 GMT\r\n" +
+            "Connection: Keep-Alive\r\n" +
+            "\r\n";
+        ByteBuffer responseBytes = ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1));
+        HttpResponseParser parser = new HttpResponseParser();
+        BufferPool pool = new BufferPool();
+
+        harness.run("headers makeGetRequest", () -> {
+            BenchmarkHarness.consume(HttpTools.makeGetRequest(url, null));
+            return 1;
+        });
+        harness.run("headers makeRangeRequest", () -> {
+            BenchmarkHarness.consume(HttpTools.makeRangeRequest(url, null, 262144, 524287));
+            return 1;
+        });
+        String request = HttpTools.makeGetRequest(url, null);
+        harness.run("headers encodeRequest", () -> {
+            ByteBuffer encoded = HttpTools.encodeRequest(request, pool);
+            BenchmarkHarness.consume(encoded);
+            pool.release(encoded);
+            return 1;
+        });
+        harness.run("headers parseHeadResponse", () -> {
+            BenchmarkHarness.consume(HttpTools.parseHeadResponse(response));
+            return 1;
+        });
+        harness.run("headers HttpResponseParser", () -> {
+            parser.reset();
+            responseBytes.rewind();
+            parser.parse(responseBytes);
+            BenchmarkHarness.consume(parser.getHeader(HttpTools.CONTENT_RANGE_KEY));
+            return 1;
+        });
+        // the headers split across several reads
+        harness.run("headers HttpResponseParser 16B portions", () -> {
+            parser.reset();
+            for (int position = 0; position < response.length(); position += 16) {
+                ByteBuffer portion = responseBytes.duplicate();
+                portion.limit(Math.min(position + 16, response.length())).position(position);
+                parser.parse(portion);
+            }
+            BenchmarkHarness.consume(parser.getHeader(HttpTools.CONTENT_RANGE_KEY));
+            return 1;
+        });
+    }
+
+    private static void buffers(BenchmarkHarness harness) throws Exception {
+        final int received = 64 * 1024;
+        ByteBuffer portion = ByteBuffer.allocateDirect(received);
+        for (int outputSize : new int[] {512, 4 * 1024, 64 * 1024}) {
+            // the outputs are reused in turn like the buffers of a sink
+            ByteBuffer[] outputs = new ByteBuffer[4];
+            for (int i = 0; i < outputs.length; ++i)
+                outputs[i] = ByteBuffer.allocateDirect(outputSize);
+            Iterator<ByteBuffer> cycle = new Iterator<ByteBuffer>() {
+                @Override
+                public boolean hasNext() {
+                    return true;
+                }
+
+                @Override
+                public ByteBuffer next() {
+                    ByteBuffer output = outputs[next++ % outputs.length];
+                    output.clear();
+                    return output;
+                }
+
+                private int next;
+            };
+            harness.run(String.format("buffers transferBody output=%s", formatSize(outputSize)), BenchmarkHarness.MBS, 1 << 20, () -> {
+                portion.clear();
+                BenchmarkHarness.consume(DownloadTools.transferBody(portion, cycle));
+                return received;
+            });
+        }
+    }
+
+    private static void reader(BenchmarkHarness harness) throws Exception {
+        final long total = 64L << 20;
+        try (LoopbackSource source = new LoopbackSource(total)) {
+            for (int bufferSize : new int[] {4 * 1024, 64 * 1024}) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+                harness.run(String.format("reader blocking buffer=%s", formatSize(bufferSize)), BenchmarkHarness.MBS, 1 << 20, () -> {
+                    long read = 0;
+                    try (SocketChannel channel = SocketChannel.open(source.getAddress())) {
+                        for (int portion = 0; portion != -1; portion = channel.read(buffer)) {
+                            read += portion;
+                            buffer.clear();
+                        }
+                    }
+                    return read;
+                });
+                harness.run(String.format("reader ChannelReader buffer=%s", formatSize(bufferSize)), BenchmarkHarness.MBS, 1 << 20, () ->
+                    readAsync(source.getAddress(), buffer));
+            }
+        }
+    }
+
+    private static long readAsync(InetSocketAddress address, ByteBuffer buffer) throws Exception {
+        long[] read = {0};
+        Iterator<ByteBuffer> buffers = new Iterator<ByteBuffer>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public ByteBuffer next() {
+                read[0] += buffer.position();
+                buffer.clear();
+                return buffer;
+            }
+        };
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        AsyncTools.ChannelReader reader = new AsyncTools.ChannelReader(buffers, () -> true,
+            (result, ctx) -> done.complete(null),
+            (exc, ctx) -> done.completeExceptionally(exc));
+        buffer.clear();
+        try (AsynchronousSocketChannel channel = AsynchronousSocketChannel.open()) {
+            channel.connect(address).get();
+            channel.read(buffer, new AsyncTools.NetworkOperationContext("[benchmark]", channel, null, buffer), reader);
+            done.get(1, TimeUnit.MINUTES);
+        }
+        return read[0] + buffer.position();
+    }
+
+    private static void sinks(BenchmarkHarness harness) throws Exception {
+        final long size = 256L << 20;
+        final int segments = 4;
+        ByteBuffer portion = OutputSinkBenchmark.makePortion();
+        Path target = Files.createTempFile("sink-benchmark", ".bin");
+        try {
+            for (Map.Entry<String, OutputSink.Factory> sink : OutputSinkBenchmark.makeSinks().entrySet()) {
+                harness.run(String.format("sinks %s", sink.getKey().replace(",", "")), BenchmarkHarness.MBS, 1 << 20, () -> {
+                    OutputSinkBenchmark.run(sink.getValue(), target, size, segments, portion);
+                    return size;
+                });
+            }
+        } finally {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    private static void endToEnd(BenchmarkHarness harness, DownloadEngine.Kind engine, long[] sizes, long[] concurrency, long maxTotal)
+            throws Exception {
+        new HttpServerStub(PORT).start();
+        for (long size : sizes) {
+            for (long downloads : concurrency) {
+                String name = String.format("e2e %s size=%s concurrency=%d", engine, formatSize(size), downloads);
+                if (size * downloads > maxTotal) {
+                    System.out.println(String.format("%-56s skipped: %s in total exceeds -max-total", name, formatSize(size * downloads)));
+                    continue;
+                }
+                // the bytes per second of small downloads say nothing
+                if (size < 1 << 20)
+                    harness.run(name, DOWNLOADS, 1, () -> download(engine, size, (int) downloads) / size);
+                else
+                    harness.run(name, BenchmarkHarness.MBS, 1 << 20, () -> download(engine, size, (int) downloads));
+            }
+        }
+    }
+
+    private static long download(DownloadEngine.Kind engine, long size, int downloads) throws Exception {
+        Path base = Files.createTempDirectory("e2e-benchmark");
+        try (DownloadManager manager = new DownloadManager(engine)) {
+            manager.setMaxConnectionsPerHost(Math.max(downloads, 16));
+            // distinct urls give distinct target files
+            for (int i = 0; i < downloads; ++i)
+                manager.addDownload(new URL(String.format(URL, PORT, size, i)), base);
+            while (true) {
+                int active = 0;
+                for (Download d : manager.getDownloadsSnap()) {
+                    if (d.getCurrentStatus() == Download.Status.ERROR)
+                        throw new IOException(String.format("%s: %s", d.getWhat(), d.getInformation()));
+                    if (d.getCurrentStatus() != Download.Status.DOWNLOADED)
+                        ++active;
+                }
+                if (active == 0)
+                    break;
+                Thread.sleep(1);
+            }
+            return size * downloads;
+        } finally {
+            try (Stream<Path> files = Files.list(base)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.deleteIfExists(base);
+        }
+    }
+
+    /**
+     * Sends the given number of bytes to every accepted connection and closes it.
+     */
+    private static class LoopbackSource implements AutoCloseable {
+        LoopbackSource(long total) throws IOException {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress("localhost", 0));
+            ByteBuffer content = ByteBuffer.allocateDirect(256 * 1024);
+            worker = new Thread(() -> {
+                while (server.isOpen()) {
+                    try (SocketChannel client = server.accept()) {
+                        for (long sent = 0; sent < total; ) {
+                            content.clear();
+                            if (content.remaining() > total - sent)
+                                content.limit((int) (total - sent));
+                            sent += client.write(content);
+                        }
+                    }
+                    catch (IOException ignored) { }
+                }
+            }, "LoopbackSource");
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        InetSocketAddress getAddress() throws IOException {
+            return (InetSocketAddress) server.getLocalAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+
+        private final ServerSocketChannel server;
+        private final Thread worker;
+    }
+
+    private static long[] parseList(String list) {
+        return Arrays.stream(list.split(",")).mapToLong(HotPathBenchmark::parseSize).toArray();
+    }
+
+    private static long parseSize(String size) {
+        String units = "KMG";
+        int unit = units.indexOf(Character.toUpperCase(size.charAt(size.length() - 1)));
+        if (unit == -1)
+            return Long.parseLong(size);
+        return Long.parseLong(size.substring(0, size.length() - 1)) << (10 * (unit + 1));
+    }
+
+    private static String formatSize(long size) {
+        String units = "KMG";
+        int unit = -1;
+        while (unit + 1 < units.length() && size >= 1024 && size % 1024 == 0) {
+            size /= 1024;
+            ++unit;
+        }
+        return unit == -1 ? String.valueOf(size) : size + String.valueOf(units.charAt(unit));
+    }
+}
@@ -0,0 +1,107 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.HttpResponseParser;
+import org.wlou.jdownloader.lib.HttpTools;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+public class HttpResponseParserTest extends TestCase {
+
+    public static final String BODY = "0123456789";
+
+    public void testParse() throws Exception {
+        HttpResponseParser parser = new HttpResponseParser();
+        ByteBuffer response = bytes(HttpToolsTest._200_HEADER_1K_BYTES + BODY);
+        assertTrue(parser.parse(response));
+        assertEquals("HTTP/1.1", parser.getVersion());
+        assertEquals(200, parser.getStatusCode());
+        assertEquals(HttpHandlerStub.SERVER_VAL, parser.getHeader(HttpHandlerStub.SERVER_KEY));
+        assertEquals(HttpHandlerStub._1K_ZEROS.length, parser.getContentLength());
+        assertEquals(HttpToolsTest._200_HEADER_1K_BYTES.length(), parser.getHeadersLength());
+        // the body is not consumed
+        assertEquals(BODY.length(), response.remaining());
+        assertEquals('0', response.get());
+    }
+
+    public void testParseByPortions() throws Exception {
+        HttpResponseParser parser = new HttpResponseParser();
+        byte[] response = (HttpToolsTest._200_HEADER_1K_BYTES + BODY).getBytes(StandardCharsets.ISO_8859_1);
+        int headersLength = HttpToolsTest._200_HEADER_1K_BYTES.length();
+        for (int i = 0; i < headersLength - 1; ++i)
+            assertFalse(parser.parse(ByteBuffer.wrap(response, i, 1)));
+        ByteBuffer last = ByteBuffer.wrap(response, headersLength - 1, response.length - headersLength + 1);
+        assertTrue(parser.parse(last));
+        assertEquals(BODY.length(), last.remaining());
+        assertEquals(HttpHandlerStub._1K_ZEROS.length, parser.getContentLength());
+
+        // completed parser does not consume the rest
+        assertTrue(parser.parse(last));
+        assertEquals(BODY.length(), last.remaining());
+    }
+
+    public void testHeaders() throws Exception {
+        HttpResponseParser parser = new HttpResponseParser();
+        assertTrue(parser.parse(bytes(
+            "HTTP/1.0 206 Partial Content\n" +
+            "content-LENGTH:  10 \n" +
+            "Via: a\r\n" +
+            "Via: b\r\n" +
+            "X-Folded: first\r\n" +
+            "\t second\r\n" +
+            "\r\n")));
+        assertEquals("HTTP/1.0", parser.getVersion());
+        assertEquals(206, parser.getStatusCode());
+        assertEquals(10, parser.getContentLength());
+        assertEquals("10", parser.getHeader(HttpTools.CONTENT_LENGTH_KEY));
+        assertEquals("a, b", parser.getHeader("via"));
+        assertEquals("first second", parser.getHeader("X-FOLDED"));
+        assertNull(parser.getHeader("Accept-Ranges"));
+    }
+
+    public void testReset() throws Exception {
+        HttpResponseParser parser = new HttpResponseParser();
+        assertTrue(parser.parse(bytes(HttpToolsTest._200_HEADER_1K_BYTES)));
+        parser.reset();
+        assertFalse(parser.isComplete());
+        assertEquals(-1, parser.getStatusCode());
+        assertEquals(-1, parser.getContentLength());
+        assertTrue(parser.parse(bytes("HTTP/1.1 404 Not Found\r\n\r\n")));
+        assertEquals(404, parser.getStatusCode());
+    }
+
+    public void testErrors() throws Exception {
+        String[] malformed = {
+            "HTTP/1.1\r\n\r\n",
+            "HTTP/1.1 2x0 OK\r\n\r\n",
+            "HTTP/1.1 200OK\r\n\r\n",
+            "HTTP/1.1 200 OK\r\nNo colon\r\n\r\n",
+            "HTTP/1.1 200 OK\r\n folded\r\n\r\n"
+        };
+        for (String response : malformed) {
+            try {
+                new HttpResponseParser().parse(bytes(response));
+                fail(response);
+            } catch (ParseException ignored) {}
+        }
+
+        HttpResponseParser limited = new HttpResponseParser(16);
+        try {
+            limited.parse(bytes(HttpToolsTest._200_HEADER_1K_BYTES));
+            fail();
+        } catch (ParseException ignored) {}
+
+        HttpResponseParser parser = new HttpResponseParser();
+        parser.parse(bytes("HTTP/1.1 200 OK\r\nContent-Length: ten\r\n\r\n"));
+        try {
+            parser.getContentLength();
+            fail();
+        } catch (ParseException ignored) {}
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
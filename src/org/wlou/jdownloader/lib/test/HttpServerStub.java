@@ -4,10 +4,16 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
 
 class HttpHandlerStub implements HttpHandler {
 
@@ -18,26 +24,79 @@ class HttpHandlerStub implements HttpHandler {
     public static final String CL_KEY = "Content-Length";
     public static final String ALLOW_KEY = "Allow";
     public static final String ALLOW_VAL = "HEAD,GET";
+    public static final String AR_KEY = "Accept-Ranges";
+    public static final String AR_VAL = "bytes";
+    public static final String CR_KEY = "Content-Range";
+    public static final String RANGE_KEY = "Range";
+    public static final String ETAG_KEY = "ETag";
+    public static final String ETAG_VAL = "\"256k-seq\"";
+    public static final String LM_KEY = "Last-Modified";
+    public static final String LM_VAL = "Sat, 01 Jan 2000 00:00:00 GMT";
+    public static final String AE_KEY = "Accept-Encoding";
+    public static final String CE_KEY = "Content-Encoding";
+    public static final String GZIP_VAL = "gzip";
+    public static final String INM_KEY = "If-None-Match";
 
     public static final byte[] _1K_ZEROS = new byte[1024];
     public static final byte[] _100K_ONES = new byte[100*1024];
+    public static final byte[] _256K_SEQ = new byte[256*1024];
+    public static final byte[] _256K_SEQ_GZIPPED;
+
+    public static final String GENERATED_PREFIX = "q=size_";
+    public static final String CHUNKED_QUERY = "q=256k_chunked";
+    public static final String FLAKY_QUERY = "q=256k_flaky";
+    /**
+     * The Range headers of the requests of the flaky resource by the query
+     */
+    public static final Map<String, String> FLAKY_RANGES = new ConcurrentHashMap<>();
 
     public static final int _200_CODE = 200;
+    public static final int _206_CODE = 206;
+    public static final int _304_CODE = 304;
     public static final int _404_CODE = 404;
     public static final int _405_CODE = 405;
 
     static {
         for (int i = 0; i < _100K_ONES.length; ++i)
             _100K_ONES[i] = 1;
+        for (int i = 0; i < _256K_SEQ.length; ++i)
+            _256K_SEQ[i] = (byte) (i % 251);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream output = new GZIPOutputStream(gzipped)) {
+            output.write(_256K_SEQ);
+        }
+        catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+        _256K_SEQ_GZIPPED = gzipped.toByteArray();
     }
 
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
         URI uri = httpExchange.getRequestURI();
+        if (uri.getQuery().startsWith(GENERATED_PREFIX)) {
+            handleGenerated(httpExchange, Long.parseLong(uri.getQuery().split("&")[0].substring(GENERATED_PREFIX.length())));
+            return;
+        }
+        if (uri.getQuery().split("&")[0].equalsIgnoreCase(CHUNKED_QUERY)) {
+            handleChunked(httpExchange);
+            return;
+        }
+        if (uri.getQuery().split("&")[0].equalsIgnoreCase(FLAKY_QUERY) && handleFlaky(httpExchange))
+            return;
         byte[] resource = getResource(uri);
+        if (resource == _256K_SEQ && ETAG_VAL.equals(httpExchange.getRequestHeaders().getFirst(INM_KEY))) {
+            httpExchange.getResponseHeaders().set(SERVER_KEY, SERVER_VAL);
+            httpExchange.getResponseHeaders().set(ETAG_KEY, ETAG_VAL);
+            httpExchange.sendResponseHeaders(_304_CODE, -1);
+            httpExchange.getResponseBody().close();
+            return;
+        }
         if (httpExchange.getRequestMethod().equalsIgnoreCase("head")) {
             if (resource != null) {
                 make200Headers(httpExchange, resource);
+                if (resource == _256K_SEQ && acceptsGzip(httpExchange))
+                    makeGzipHeaders(httpExchange);
                 httpExchange.sendResponseHeaders(_200_CODE, -1);
                 httpExchange.getResponseBody().close();
             }
@@ -45,7 +104,25 @@ class HttpHandlerStub implements HttpHandler {
                 send404(httpExchange);
         }
         else if (httpExchange.getRequestMethod().equalsIgnoreCase("get")) {
-            if (resource != null) {
+            String range = httpExchange.getRequestHeaders().getFirst(RANGE_KEY);
+            if (resource != null && range != null && isRangeable(uri)) {
+                String[] bounds = range.substring(range.indexOf('=') + 1).split("-");
+                int first = Integer.parseInt(bounds[0]);
+                int last = Math.min(Integer.parseInt(bounds[1]), resource.length - 1);
+                make200Headers(httpExchange, resource);
+                httpExchange.getResponseHeaders().set(CR_KEY, String.format("bytes %d-%d/%d", first, last, resource.length));
+                httpExchange.sendResponseHeaders(_206_CODE, last - first + 1);
+                httpExchange.getResponseBody().write(resource, first, last - first + 1);
+                httpExchange.getResponseBody().close();
+            }
+            else if (resource == _256K_SEQ && acceptsGzip(httpExchange)) {
+                make200Headers(httpExchange, resource);
+                makeGzipHeaders(httpExchange);
+                httpExchange.sendResponseHeaders(_200_CODE, _256K_SEQ_GZIPPED.length);
+                httpExchange.getResponseBody().write(_256K_SEQ_GZIPPED);
+                httpExchange.getResponseBody().close();
+            }
+            else if (resource != null) {
                 make200Headers(httpExchange, resource);
                 httpExchange.sendResponseHeaders(_200_CODE, resource.length);
                 httpExchange.getResponseBody().write(resource);
@@ -62,19 +139,124 @@ class HttpHandlerStub implements HttpHandler {
         }
     }
 
+    /**
+     * Serves the rangeable resource of the requested length ("q=size_N") without keeping it in memory,
+     * the content is the same sequence as {@link #_256K_SEQ} repeated.
+     */
+    private void handleGenerated(HttpExchange httpExchange, long length) throws IOException {
+        httpExchange.getResponseHeaders().set(SERVER_KEY, SERVER_VAL);
+        httpExchange.getResponseHeaders().set(CT_KEY, CT_VAL);
+        httpExchange.getResponseHeaders().set(CL_KEY, String.format("%d", length));
+        httpExchange.getResponseHeaders().set(AR_KEY, AR_VAL);
+        if (httpExchange.getRequestMethod().equalsIgnoreCase("head")) {
+            httpExchange.sendResponseHeaders(_200_CODE, -1);
+            httpExchange.getResponseBody().close();
+            return;
+        }
+        long first = 0;
+        long last = length - 1;
+        String range = httpExchange.getRequestHeaders().getFirst(RANGE_KEY);
+        if (range != null) {
+            String[] bounds = range.substring(range.indexOf('=') + 1).split("-");
+            first = Long.parseLong(bounds[0]);
+            last = Math.min(Long.parseLong(bounds[1]), length - 1);
+            httpExchange.getResponseHeaders().set(CR_KEY, String.format("bytes %d-%d/%d", first, last, length));
+        }
+        httpExchange.sendResponseHeaders(range != null ? _206_CODE : _200_CODE, last - first + 1);
+        for (long position = first; position <= last; ) {
+            int from = (int) (position % 251);
+            int count = (int) Math.min(_256K_SEQ.length - from, last - position + 1);
+            httpExchange.getResponseBody().write(_256K_SEQ, from, count);
+            position += count;
+        }
+        httpExchange.getResponseBody().close();
+    }
+
+    /**
+     * Serves {@link #_256K_SEQ} without Content-Length: the body is in the chunked transfer coding
+     * and every write of the handler makes its own chunk. The content is compressed on the fly if gzip is accepted.
+     */
+    private void handleChunked(HttpExchange httpExchange) throws IOException {
+        httpExchange.getResponseHeaders().set(SERVER_KEY, SERVER_VAL);
+        httpExchange.getResponseHeaders().set(CT_KEY, CT_VAL);
+        boolean gzip = acceptsGzip(httpExchange);
+        if (gzip)
+            httpExchange.getResponseHeaders().set(CE_KEY, GZIP_VAL);
+        if (httpExchange.getRequestMethod().equalsIgnoreCase("head")) {
+            httpExchange.sendResponseHeaders(_200_CODE, -1);
+            httpExchange.getResponseBody().close();
+            return;
+        }
+        httpExchange.sendResponseHeaders(_200_CODE, 0);
+        try (OutputStream body = gzip ? new GZIPOutputStream(httpExchange.getResponseBody(), true) : httpExchange.getResponseBody()) {
+            for (int position = 0; position < _256K_SEQ.length; position += 10000) {
+                body.write(_256K_SEQ, position, Math.min(10000, _256K_SEQ.length - position));
+                body.flush();
+            }
+        }
+    }
+
+    /**
+     * Serves {@link #_256K_SEQ} (see {@link #getResource(URI)}), but the first GET request of the whole content
+     * of every url is broken: the connection is closed after the half of the content.
+     * @return True if the request is handled
+     */
+    private boolean handleFlaky(HttpExchange httpExchange) throws IOException {
+        String query = httpExchange.getRequestURI().getQuery();
+        String range = httpExchange.getRequestHeaders().getFirst(RANGE_KEY);
+        if (!httpExchange.getRequestMethod().equalsIgnoreCase("get"))
+            return false;
+        if (range != null) {
+            FLAKY_RANGES.put(query, range);
+            return false;
+        }
+        if (FLAKY_RANGES.putIfAbsent(query, "") != null)
+            return false;
+        make200Headers(httpExchange, _256K_SEQ);
+        httpExchange.sendResponseHeaders(_200_CODE, _256K_SEQ.length);
+        httpExchange.getResponseBody().write(_256K_SEQ, 0, _256K_SEQ.length / 2);
+        httpExchange.getResponseBody().flush();
+        // the exchange is closed before the content is over, so the server drops the connection
+        httpExchange.close();
+        return true;
+    }
+
+    private boolean acceptsGzip(HttpExchange httpExchange) {
+        String encodings = httpExchange.getRequestHeaders().getFirst(AE_KEY);
+        return encodings != null && encodings.contains(GZIP_VAL);
+    }
+
+    private void makeGzipHeaders(HttpExchange httpExchange) {
+        httpExchange.getResponseHeaders().set(CE_KEY, GZIP_VAL);
+        httpExchange.getResponseHeaders().set(CL_KEY, String.format("%d", _256K_SEQ_GZIPPED.length));
+    }
+
     private byte[] getResource(URI uri) {
-        String query = uri.getQuery();
+        // the parameters after the first one only make urls distinct
+        String query = uri.getQuery().split("&")[0];
         if (query.equalsIgnoreCase("q=1k_bytes_0"))
             return _1K_ZEROS;
         if (query.equalsIgnoreCase("q=100k_bytes_1"))
             return _100K_ONES;
+        if (query.equalsIgnoreCase("q=256k_bytes_seq") || query.equalsIgnoreCase(FLAKY_QUERY))
+            return _256K_SEQ;
         return null;
     }
 
+    private boolean isRangeable(URI uri) {
+        String query = uri.getQuery().split("&")[0];
+        return query.equalsIgnoreCase("q=256k_bytes_seq") || query.equalsIgnoreCase(FLAKY_QUERY);
+    }
+
     private void make200Headers(HttpExchange httpExchange, byte[] resource) {
         httpExchange.getResponseHeaders().set(SERVER_KEY, SERVER_VAL);
         httpExchange.getResponseHeaders().set(CT_KEY, CT_VAL);
         httpExchange.getResponseHeaders().set(CL_KEY, String.format("%d", resource.length));
+        if (resource == _256K_SEQ) {
+            httpExchange.getResponseHeaders().set(AR_KEY, AR_VAL);
+            httpExchange.getResponseHeaders().set(ETAG_KEY, ETAG_VAL);
+            httpExchange.getResponseHeaders().set(LM_KEY, LM_VAL);
+        }
     }
 
     private void send404(HttpExchange httpExchange) throws IOException {
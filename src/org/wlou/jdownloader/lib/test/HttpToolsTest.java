@@ -3,6 +3,8 @@ package org.wlou.jdownloader.lib.test;
 import junit.framework.TestCase;
 import org.wlou.jdownloader.lib.HttpTools;
 
+import java.net.URL;
+import java.util.HashMap;
 import java.util.Map;
 
 public class HttpToolsTest extends TestCase {
@@ -16,7 +18,14 @@ public class HttpToolsTest extends TestCase {
 
 
     public void testMakeGetRequest() throws Exception {
-        //TODO:
+        URL url = new URL(DownloaderTest._256K_SEQ_URL);
+        Map<String, String> params = new HashMap<>();
+        assertFalse(HttpTools.makeGetRequest(url, params).contains(HttpTools.ACCEPT_ENCODING_KEY));
+
+        // the compressed content is negotiated for the whole resource only
+        params.put(HttpTools.ACCEPT_ENCODING_KEY, HttpTools.SUPPORTED_ENCODINGS);
+        assertTrue(HttpTools.makeGetRequest(url, params).contains("Accept-Encoding: gzip, deflate\r\n"));
+        assertFalse(HttpTools.makeRangeRequest(url, params, 0, 99).contains(HttpTools.ACCEPT_ENCODING_KEY));
     }
 
     public void testMakeHeadRequest() throws Exception {
@@ -0,0 +1,94 @@
+package org.wlou.jdownloader.lib.test;
+
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.concurrent.Executors;
+
+/**
+ * The https version of {@link HttpServerStub} with the self-signed certificate of localhost.
+ * The certificate is generated by the JDK's keytool on start, the clients trust it by {@link #getClientContext()}.
+ */
+public class HttpsServerStub {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private HttpsServer httpsServer;
+    private KeyStore keyStore;
+    private SSLContext context;
+
+    public HttpsServerStub(int port) {
+        try {
+            keyStore = generateKeyStore();
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(keyStore, PASSWORD);
+            context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+
+            httpsServer = HttpsServer.create(new InetSocketAddress(port), 0);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(context));
+            httpsServer.createContext("/JBDownloaderTest", new HttpHandlerStub());
+            httpsServer.setExecutor(Executors.newFixedThreadPool(2));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void start() {
+        httpsServer.start();
+    }
+
+    /**
+     * @return The context of the server with the certificate of localhost.
+     */
+    public SSLContext getServerContext() {
+        return context;
+    }
+
+    /**
+     * @return The new client context trusting the server's certificate only.
+     */
+    public SSLContext getClientContext() throws Exception {
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+
+    private static KeyStore generateKeyStore() throws Exception {
+        Path file = Files.createTempFile("https-stub", ".p12");
+        try {
+            Files.delete(file);
+            String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12", "-keystore", file.toString(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                .redirectErrorStream(true)
+                .redirectOutput(new File(file.toString() + ".log"))
+                .start();
+            if (process.waitFor() != 0)
+                throw new IOException("keytool failed: " + new String(Files.readAllBytes(Paths.get(file + ".log"))));
+            KeyStore result = KeyStore.getInstance("PKCS12");
+            try (InputStream input = Files.newInputStream(file)) {
+                result.load(input, PASSWORD);
+            }
+            return result;
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(Paths.get(file + ".log"));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.Metrics;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+public class MetricsTest extends TestCase {
+
+    public void testHistogram() throws Exception {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getPercentile(0.5));
+
+        // 90 fast (~1 ms) and 10 slow (~100 ms) durations
+        for (int i = 0; i < 90; ++i)
+            histogram.record(1000000);
+        for (int i = 0; i < 10; ++i)
+            histogram.record(100000000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(10.9, histogram.getMean(), 0.001);
+        assertEquals(100.0, histogram.getMax(), 0.001);
+        // the percentiles are the upper bounds of the power-of-two buckets
+        double p50 = histogram.getPercentile(0.5);
+        assertTrue(p50 >= 1.0 && p50 <= 2.048);
+        double p99 = histogram.getPercentile(0.99);
+        assertTrue(p99 >= 100.0 && p99 <= 131.072);
+    }
+
+    public void testSnapshot() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.meter("bytes").mark(10);
+        metrics.meter("bytes").mark(20);
+        metrics.histogram("latency").record(2000000);
+        long[] gauge = {5};
+        metrics.gauge("items", () -> gauge[0]);
+
+        Map<String, Number> snapshot = metrics.snapshot();
+        assertEquals(30L, snapshot.get("bytes.total"));
+        assertEquals(1L, snapshot.get("latency.count"));
+        assertEquals(2.0, snapshot.get("latency.max").doubleValue(), 0.001);
+        assertEquals(5L, snapshot.get("items"));
+
+        // the gauges are computed on reading
+        gauge[0] = 7;
+        assertEquals(7L, metrics.snapshot().get("items"));
+
+        // the single value is computed alone
+        assertEquals(30L, metrics.value("bytes.total"));
+        assertEquals(2.0, metrics.value("latency.p50").doubleValue(), 0.001);
+        assertEquals(7L, metrics.value("items"));
+        assertNull(metrics.value("bytes.p50"));
+        assertNull(metrics.value("missing"));
+    }
+
+    public void testJmx() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.meter("bytes").mark(42);
+        ObjectName name = new ObjectName("org.wlou.jdownloader:type=MetricsTest");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        metrics.register(name);
+        try {
+            assertEquals(42L, server.getAttribute(name, "bytes.total"));
+            // the metrics created after the registration are visible too
+            metrics.histogram("latency").record(1000000);
+            assertEquals(1L, server.getAttribute(name, "latency.count"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,117 @@
+package org.wlou.jdownloader.lib.test;
+
+import org.wlou.jdownloader.lib.MappedOutputSink;
+import org.wlou.jdownloader.lib.OutputSink;
+import org.wlou.jdownloader.lib.PositionalOutputSink;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares throughput of the output sinks without network: the received portions are simulated by copying
+ * of a direct buffer of the typical socket read size to the buffers given by the sinks.
+ * Usage: OutputSinkBenchmark [file size in MB] [number of segments] [rounds]
+ */
+public class OutputSinkBenchmark {
+
+    public static final int READ_SIZE = 16 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+        int segments = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Map<String, OutputSink.Factory> sinks = makeSinks();
+        ByteBuffer portion = makePortion();
+
+        System.out.println(String.format("file: %d MB, segments: %d, rounds: %d", size >> 20, segments, rounds));
+        Path target = Files.createTempFile("sink-benchmark", ".bin");
+        try {
+            for (Map.Entry<String, OutputSink.Factory> sink : sinks.entrySet()) {
+                // the first round warms up
+                run(sink.getValue(), target, size, segments, portion);
+                long best = Long.MAX_VALUE;
+                long total = 0;
+                for (int round = 0; round < rounds; ++round) {
+                    long elapsed = run(sink.getValue(), target, size, segments, portion);
+                    best = Math.min(best, elapsed);
+                    total += elapsed;
+                }
+                System.out.println(String.format("%-30s best: %8.1f MB/s, mean: %8.1f MB/s", sink.getKey(),
+                    throughput(size, best), throughput(size, total / rounds)));
+            }
+        } finally {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    /**
+     * @return The compared sink configurations by names.
+     */
+    static Map<String, OutputSink.Factory> makeSinks() {
+        Map<String, OutputSink.Factory> sinks = new LinkedHashMap<>();
+        sinks.put("mmap, 64M window", MappedOutputSink.factory(64 * 1024 * 1024));
+        sinks.put("mmap, 1M window", MappedOutputSink.factory(1024 * 1024));
+        sinks.put("positional, 64K x1", PositionalOutputSink.factory(64 * 1024, 1));
+        sinks.put("positional, 64K x8 gathering", PositionalOutputSink.factory(64 * 1024, 8));
+        sinks.put("positional, 1M x1", PositionalOutputSink.factory(1024 * 1024, 1));
+        return sinks;
+    }
+
+    /**
+     * @return The direct buffer simulating one received portion.
+     */
+    static ByteBuffer makePortion() {
+        ByteBuffer portion = ByteBuffer.allocateDirect(READ_SIZE);
+        for (int i = 0; i < READ_SIZE; ++i)
+            portion.put((byte)i);
+        return portion;
+    }
+
+    static long run(OutputSink.Factory factory, Path target, long size, int segments, ByteBuffer portion) throws Exception {
+        Files.deleteIfExists(target);
+        long started = System.nanoTime();
+        try (RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")) {
+            file.setLength(size);
+            FileChannel channel = file.getChannel();
+            OutputSink[] sinks = new OutputSink[segments];
+            ByteBuffer[] outputs = new ByteBuffer[segments];
+            long length = size / segments;
+            for (int i = 0; i < segments; ++i) {
+                long offset = i * length;
+                sinks[i] = factory.open(channel, offset, i == segments - 1 ? size - offset : length);
+                outputs[i] = sinks[i].nextOutputBuffer();
+            }
+            // segments receive portions in turn like concurrent connections do
+            for (int active = segments; active > 0; ) {
+                active = 0;
+                for (int i = 0; i < segments; ++i) {
+                    if (outputs[i] == null)
+                        continue;
+                    ByteBuffer source = portion.duplicate();
+                    source.clear();
+                    if (source.remaining() > outputs[i].remaining())
+                        source.limit(outputs[i].remaining());
+                    outputs[i].put(source);
+                    if (!outputs[i].hasRemaining())
+                        outputs[i] = sinks[i].nextOutputBuffer();
+                    if (outputs[i] != null)
+                        ++active;
+                }
+            }
+            for (OutputSink sink : sinks)
+                sink.release(true);
+            channel.force(false);
+        }
+        return System.nanoTime() - started;
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return (double)bytes / (1024 * 1024) / (nanos / 1e9);
+    }
+}
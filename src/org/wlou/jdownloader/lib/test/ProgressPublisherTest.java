@@ -0,0 +1,63 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.Download;
+import org.wlou.jdownloader.lib.DownloadJournal;
+import org.wlou.jdownloader.lib.ProgressPublisher;
+
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ProgressPublisherTest extends TestCase {
+
+    public void testPublish() throws Exception {
+        List<List<Download>> batches = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        try (ProgressPublisher publisher = new ProgressPublisher(20)) {
+            // restored downloads have progress before any byte is received
+            Download a = restored("a", 100, 50);
+            Download b = restored("b", 100, 25);
+            publisher.subscribe(changed -> {
+                synchronized (batches) {
+                    batches.add(changed);
+                    threads.add(Thread.currentThread());
+                    batches.notifyAll();
+                }
+            });
+            publisher.track(a);
+            publisher.track(b);
+            synchronized (batches) {
+                for (int i = 0; batches.isEmpty() && i < 10; ++i)
+                    batches.wait(100);
+                // both downloads are published at once by the publisher's thread
+                assertEquals(1, batches.size());
+                assertEquals(2, batches.get(0).size());
+                assertNotSame(Thread.currentThread(), threads.get(0));
+            }
+
+            // nothing is published while the progress isn't changed
+            Thread.sleep(100);
+            publisher.publish();
+            synchronized (batches) {
+                assertEquals(1, batches.size());
+            }
+
+            publisher.untrack(b);
+            publisher.track(restored("c", 100, 10));
+            publisher.publish();
+            synchronized (batches) {
+                assertEquals(2, batches.size());
+                assertEquals(1, batches.get(1).size());
+                assertEquals("http://localhost/c", batches.get(1).get(0).getWhat().toString());
+            }
+        }
+    }
+
+    private static Download restored(String name, long length, long completed) throws Exception {
+        return new Download(new DownloadJournal.Entry(new URL("http://localhost/" + name), Paths.get(name), length,
+            null, null, Collections.singletonList(new long[] {0, completed})));
+    }
+}
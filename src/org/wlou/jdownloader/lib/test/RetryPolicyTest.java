@@ -0,0 +1,129 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.Download;
+import org.wlou.jdownloader.lib.DownloadEngine;
+import org.wlou.jdownloader.lib.DownloadManager;
+import org.wlou.jdownloader.lib.RetryPolicy;
+
+import javax.xml.ws.http.HTTPException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RetryPolicyTest extends TestCase {
+
+    public static final String FLAKY_URL = "http://localhost:8086/JBDownloaderTest?q=256k_flaky";
+
+    static  {
+        new HttpServerStub(8086).start();
+    }
+
+    public void testPolicy() throws Exception {
+        RetryPolicy policy = new RetryPolicy(5, 100, 1000);
+        assertTrue(policy.isRetryable(new SocketException("Connection reset")));
+        assertTrue(policy.isRetryable(new SocketTimeoutException()));
+        assertTrue(policy.isRetryable(new IOException("Content is incomplete")));
+        assertTrue(policy.isRetryable(new HTTPException(503)));
+        assertTrue(policy.isRetryable(new HTTPException(429)));
+        assertFalse(policy.isRetryable(new HTTPException(404)));
+        assertFalse(policy.isRetryable(new ConnectException("Connection refused")));
+        assertFalse(policy.isRetryable(new UnknownHostException("nowhere")));
+        assertFalse(policy.isRetryable(new UncheckedIOException(new IOException("No space left on device"))));
+        assertFalse(policy.isRetryable(new FileNotFoundException()));
+        assertFalse(policy.isRetryable(new ParseException("Malformed status line", 0)));
+        assertFalse(policy.isRetryable(new ProtocolException("Chunk size is absent")));
+        assertFalse(policy.isRetryable(null));
+
+        // the delays are doubled up to the limit and randomized within their upper half
+        long[][] bounds = {{50, 100}, {100, 200}, {200, 400}, {400, 800}, {500, 1000}};
+        for (int retry = 1; retry <= bounds.length; ++retry) {
+            for (int i = 0; i < 100; ++i) {
+                long delay = policy.delay(retry);
+                assertTrue(String.format("%d: %d", retry, delay), delay >= bounds[retry - 1][0] && delay <= bounds[retry - 1][1]);
+            }
+        }
+    }
+
+    public void testPendingOperations() throws Exception {
+        Download d = new Download(new URL(FLAKY_URL), Files.createTempDirectory("retry-test"));
+        d.setRetryPolicy(new RetryPolicy(1, 50, 100));
+        Object failed = new Object();
+        Object sibling = new Object();
+        AtomicInteger aborted = new AtomicInteger();
+        d.enterOperation(failed, 0, aborted::incrementAndGet);
+        d.enterOperation(sibling, 0, aborted::incrementAndGet);
+
+        // the other operations of the failed attempt are aborted, the next attempt waits for them
+        d.interruptExceptionally("failed", new SocketException("Connection reset"), 0);
+        assertEquals(Download.Status.RETRYING, d.getCurrentStatus());
+        assertEquals(2, aborted.get());
+        assertFalse(d.retry());
+        d.leaveOperation(failed);
+        assertEquals(Download.Status.RETRYING, d.getCurrentStatus());
+        d.leaveOperation(sibling);
+        assertEquals(Download.Status.NEW, d.getCurrentStatus());
+        assertEquals(1, d.getAttempt());
+
+        // the late operation of the previous attempt is aborted at once
+        d.enterOperation(failed, 0, aborted::incrementAndGet);
+        assertEquals(3, aborted.get());
+        d.leaveOperation(failed);
+        assertEquals(Download.Status.NEW, d.getCurrentStatus());
+    }
+
+    public void testFatalOperations() throws Exception {
+        Download d = new Download(new URL(FLAKY_URL), Files.createTempDirectory("retry-test"));
+        Object failed = new Object();
+        Object sibling = new Object();
+        AtomicInteger aborted = new AtomicInteger();
+        d.enterOperation(failed, 0, aborted::incrementAndGet);
+        d.enterOperation(sibling, 0, aborted::incrementAndGet);
+
+        // the operations of the failed download are aborted as well
+        d.interruptExceptionally("failed");
+        assertEquals(Download.Status.ERROR, d.getCurrentStatus());
+        assertEquals(2, aborted.get());
+        d.leaveOperation(failed);
+        d.leaveOperation(sibling);
+
+        // the late operation of the failed download is aborted at once
+        d.enterOperation(failed, 0, aborted::incrementAndGet);
+        assertEquals(3, aborted.get());
+        d.leaveOperation(failed);
+        assertEquals(Download.Status.ERROR, d.getCurrentStatus());
+    }
+
+    public void testResume() throws Exception {
+        for (DownloadEngine.Kind kind : DownloadEngine.Kind.values()) {
+            Path base = Files.createTempDirectory("retry-test");
+            try (DownloadManager manager = new DownloadManager(kind)) {
+                manager.setRetryPolicy(new RetryPolicy(2, 50, 100));
+                String url = String.format("%s&%s", FLAKY_URL, kind);
+                Download d = manager.addDownload(new URL(url), base);
+                for (int i = 0; i < 100 && d.getCurrentStatus() != Download.Status.DOWNLOADED &&
+                    d.getCurrentStatus() != Download.Status.ERROR; ++i)
+                    Thread.sleep(100);
+
+                assertEquals(kind.toString(), Download.Status.DOWNLOADED, d.getCurrentStatus());
+                assertEquals(1, d.getAttempt());
+                assertTrue(Arrays.equals(HttpHandlerStub._256K_SEQ, Files.readAllBytes(d.getWhere())));
+                // the second attempt asks only for the bytes not written by the first one
+                String range = HttpHandlerStub.FLAKY_RANGES.get(url.substring(url.indexOf('?') + 1));
+                assertNotNull(range);
+                assertTrue(range, range.startsWith("bytes=") && !range.startsWith("bytes=0-"));
+            }
+        }
+    }
+}
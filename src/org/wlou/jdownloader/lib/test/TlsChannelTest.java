@@ -0,0 +1,149 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.BodyDecoder;
+import org.wlou.jdownloader.lib.BufferPool;
+import org.wlou.jdownloader.lib.DownloadTools;
+import org.wlou.jdownloader.lib.HttpTools;
+import org.wlou.jdownloader.lib.IdentityBodyDecoder;
+import org.wlou.jdownloader.lib.TlsChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class TlsChannelTest extends TestCase {
+
+    public static final String _100K_ONES_URL = "https://localhost:8444/JBDownloaderTest?q=100k_bytes_1";
+
+    private static  HttpsServerStub testServer;
+
+    static  {
+        try {
+            testServer = new HttpsServerStub(8444);
+            testServer.start();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void testExchange() throws Exception {
+        SSLContext context = testServer.getClientContext();
+        BufferPool pool = new BufferPool();
+        URL url = new URL(_100K_ONES_URL);
+        Map<String, String> params = new HashMap<>();
+        params.put(HttpTools.CONNECTION_DIRECTIVE, HttpTools.CONNECTION_CLOSE);
+
+        long created = 0;
+        for (int i = 0; i < 3; ++i) {
+            try (TlsChannel channel = new TlsChannel(AsynchronousSocketChannel.open(),
+                    TlsChannel.clientEngine(context, url.getHost(), HttpTools.portOf(url)), pool)) {
+                channel.connect(new InetSocketAddress(url.getHost(), HttpTools.portOf(url))).get(5, TimeUnit.SECONDS);
+
+                // the repeated connections resume the session of the first one
+                SSLSession session = channel.getEngine().getSession();
+                if (i == 0)
+                    created = session.getCreationTime();
+                else
+                    assertEquals(created, session.getCreationTime());
+
+                ByteBuffer request = ByteBuffer.wrap(
+                    HttpTools.makeGetRequest(url, params).getBytes(StandardCharsets.ISO_8859_1));
+                while (request.hasRemaining())
+                    channel.write(request).get(5, TimeUnit.SECONDS);
+
+                // the server closes the connection after the response
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                ByteBuffer buffer = ByteBuffer.allocate(1000);
+                while (channel.read(buffer).get(5, TimeUnit.SECONDS) != -1) {
+                    buffer.flip();
+                    response.write(buffer.array(), 0, buffer.limit());
+                    buffer.clear();
+                }
+                byte[] bytes = response.toByteArray();
+                String headers = new String(bytes, StandardCharsets.ISO_8859_1);
+                assertTrue(headers.startsWith("HTTP/1.1 200"));
+                int body = headers.indexOf("\r\n\r\n") + 4;
+                assertTrue(Arrays.equals(HttpHandlerStub._100K_ONES, Arrays.copyOfRange(bytes, body, bytes.length)));
+            }
+        }
+        // the record buffers are returned on close
+        assertEquals(0, pool.getLeasedCount());
+    }
+
+    public void testTruncation() throws Exception {
+        byte[] body = "partial".getBytes(StandardCharsets.ISO_8859_1);
+        try (ServerSocket server = new ServerSocket(0)) {
+            // the server closes the connection after the body without close_notify
+            Thread peer = new Thread(() -> {
+                try (Socket plain = server.accept()) {
+                    SSLSocket tls = (SSLSocket) testServer.getServerContext().getSocketFactory()
+                        .createSocket(plain, null, plain.getPort(), false);
+                    tls.setUseClientMode(false);
+                    tls.startHandshake();
+                    tls.getOutputStream().write(body);
+                    tls.getOutputStream().flush();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            peer.start();
+
+            try (TlsChannel channel = new TlsChannel(AsynchronousSocketChannel.open(),
+                    TlsChannel.clientEngine(testServer.getClientContext(), "localhost", server.getLocalPort()), new BufferPool())) {
+                channel.connect(new InetSocketAddress("localhost", server.getLocalPort())).get(5, TimeUnit.SECONDS);
+                ByteBuffer received = ByteBuffer.allocate(100);
+                while (channel.read(received).get(5, TimeUnit.SECONDS) != -1)
+                    assertTrue(received.hasRemaining());
+                received.flip();
+                assertTrue(channel.isTruncated());
+
+                // the body of the known length is complete anyway
+                BodyDecoder framed = new IdentityBodyDecoder(body.length);
+                framed.decode(received.duplicate(), Collections.singletonList(ByteBuffer.allocate(100)).iterator());
+                DownloadTools.finishBody(framed, Collections.emptyIterator(), channel);
+                assertTrue(framed.isComplete());
+
+                // the body delimited by the close is truncated
+                BodyDecoder unframed = new IdentityBodyDecoder(IdentityBodyDecoder.UNTIL_CLOSE);
+                unframed.decode(received.duplicate(), Collections.singletonList(ByteBuffer.allocate(100)).iterator());
+                try {
+                    DownloadTools.finishBody(unframed, Collections.emptyIterator(), channel);
+                    fail();
+                }
+                catch (SSLException expected) {
+                    assertFalse(unframed.isComplete());
+                }
+
+                // the closed channel doesn't touch its buffers anymore
+                channel.close();
+                try {
+                    channel.read(ByteBuffer.allocate(100)).get(5, TimeUnit.SECONDS);
+                    fail();
+                }
+                catch (ExecutionException expected) {
+                    assertTrue(expected.getCause() instanceof AsynchronousCloseException);
+                }
+            }
+            peer.join(5000);
+        }
+    }
+}
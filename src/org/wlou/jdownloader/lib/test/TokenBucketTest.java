@@ -0,0 +1,32 @@
+package org.wlou.jdownloader.lib.test;
+
+import junit.framework.TestCase;
+import org.wlou.jdownloader.lib.TokenBucket;
+
+public class TokenBucketTest extends TestCase {
+
+    public void testConsume() throws Exception {
+        TokenBucket unlimited = new TokenBucket(TokenBucket.UNLIMITED);
+        assertEquals(0, unlimited.consume(1L << 40));
+
+        // one second worth of tokens is available at once, the rest is the debt
+        TokenBucket bucket = new TokenBucket(1000);
+        assertTrue(bucket.isFull());
+        assertEquals(0, bucket.consume(1000));
+        long delay = bucket.consume(500);
+        assertTrue(delay > 400000000L && delay <= 500000000L);
+        assertFalse(bucket.isFull());
+
+        // the parent's debt delays the child's reads
+        TokenBucket parent = new TokenBucket(1000);
+        TokenBucket child = new TokenBucket(TokenBucket.UNLIMITED, parent);
+        assertEquals(0, child.consume(1000));
+        assertTrue(child.consume(2000) > 1900000000L);
+
+        // the limit is changed at runtime
+        child.setRate(100);
+        parent.setRate(TokenBucket.UNLIMITED);
+        assertEquals(0, child.consume(100));
+        assertTrue(child.consume(100) > 900000000L);
+    }
+}